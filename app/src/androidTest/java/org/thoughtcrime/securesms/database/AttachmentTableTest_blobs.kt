@@ -0,0 +1,243 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.thoughtcrime.securesms.attachments.AttachmentId
+import org.thoughtcrime.securesms.attachments.DatabaseAttachment
+import org.thoughtcrime.securesms.jobs.AttachmentGarbageCollectionJob
+import org.thoughtcrime.securesms.providers.BlobProvider
+import org.thoughtcrime.securesms.util.MediaUtil
+import java.io.ByteArrayInputStream
+import java.io.File
+
+@Suppress("ClassName")
+@RunWith(AndroidJUnit4::class)
+class AttachmentTableTest_blobs {
+
+  @Before
+  fun setUp() {
+    SignalDatabase.attachments.deleteAllAttachments()
+  }
+
+  @Test
+  fun givenTwoAttachmentsWithTheSameData_whenIInsertThem_thenIExpectThemToShareAFile() {
+    val first = insert(byteArrayOf(1, 2, 3))
+    val second = insert(byteArrayOf(1, 2, 3))
+
+    assertEquals(getFile(first.attachmentId), getFile(second.attachmentId))
+    assertEquals(2, getRefCount(getFile(first.attachmentId)))
+  }
+
+  @Test
+  fun givenTwoAttachmentsSharingAFile_whenIDeleteThemOneAtATime_thenIExpectTheFileToBeDeletedWithTheLastOne() {
+    val first = insert(byteArrayOf(1, 2, 3))
+    val second = insert(byteArrayOf(1, 2, 3))
+    val file = getFile(first.attachmentId)
+
+    SignalDatabase.attachments.deleteAttachment(first.attachmentId)
+
+    assertTrue(file.exists())
+    assertEquals(1, getRefCount(file))
+
+    SignalDatabase.attachments.deleteAttachment(second.attachmentId)
+
+    assertFalse(file.exists())
+    assertEquals(-1, getRefCount(file))
+  }
+
+  @Test
+  fun givenDriftedReferenceCounts_whenIRepairBlobs_thenIExpectThemToBeCorrected() {
+    val first = insert(byteArrayOf(1, 2, 3))
+    insert(byteArrayOf(1, 2, 3))
+    insert(byteArrayOf(4, 5, 6))
+    val file = getFile(first.attachmentId)
+
+    SignalDatabase.rawDatabase.execSQL("UPDATE ${AttachmentTable.BLOB_TABLE_NAME} SET ref_count = 7 WHERE ${AttachmentTable.DATA} = ?", arrayOf(file.absolutePath))
+
+    val result = SignalDatabase.attachments.repairBlobs()
+
+    assertEquals(1, result.correctedCount)
+    assertEquals(2, result.blobCount)
+    assertEquals(3, result.referenceCount)
+    assertEquals(3, result.bytesSaved)
+    assertEquals(2, getRefCount(file))
+  }
+
+  @Test
+  fun givenAnUnreferencedFile_whenIRepairBlobs_thenIExpectItToBeDeleted() {
+    val attachment = insert(byteArrayOf(1, 2, 3))
+    val file = getFile(attachment.attachmentId)
+
+    SignalDatabase.rawDatabase.execSQL("DELETE FROM ${AttachmentTable.TABLE_NAME}")
+
+    assertTrue(file.exists())
+    assertEquals(0, getRefCount(file))
+
+    val result = SignalDatabase.attachments.repairBlobs()
+
+    assertEquals(1, result.deletedCount)
+    assertEquals(0, result.blobCount)
+    assertFalse(file.exists())
+  }
+
+  @Test
+  fun givenAFileOnlyReferencedByAQuote_whenIRepairBlobs_thenIExpectItToBeKept() {
+    val attachment = insert(byteArrayOf(1, 2, 3))
+    val file = getFile(attachment.attachmentId)
+
+    SignalDatabase.rawDatabase.execSQL("UPDATE ${AttachmentTable.TABLE_NAME} SET ${AttachmentTable.QUOTE} = 1 WHERE ${AttachmentTable.ROW_ID} = ?", arrayOf(attachment.attachmentId.rowId))
+
+    assertEquals(0, getRefCount(file))
+
+    val result = SignalDatabase.attachments.repairBlobs()
+
+    assertEquals(0, result.deletedCount)
+    assertEquals(1, result.blobCount)
+    assertTrue(file.exists())
+    assertEquals(file, getFile(attachment.attachmentId))
+  }
+
+  @Test
+  fun givenAnAbandonedAttachment_whenICollectTombstones_thenIExpectItsFileToBeDeleted() {
+    val attachment = insert(byteArrayOf(1, 2, 3))
+    val file = getFile(attachment.attachmentId)
+
+    SignalDatabase.rawDatabase.execSQL("DELETE FROM ${AttachmentTable.TABLE_NAME}")
+
+    assertEquals(1, getTombstoneCount())
+
+    val processed = SignalDatabase.attachments.collectTombstones(System.currentTimeMillis() + 1000, 10)
+
+    assertEquals(1, processed)
+    assertEquals(0, getTombstoneCount())
+    assertEquals(-1, getRefCount(file))
+    assertFalse(file.exists())
+  }
+
+  @Test
+  fun givenANewTombstone_whenICollectTombstonesFromBeforeIt_thenIExpectTheFileToBeKept() {
+    val attachment = insert(byteArrayOf(1, 2, 3))
+    val file = getFile(attachment.attachmentId)
+
+    SignalDatabase.rawDatabase.execSQL("DELETE FROM ${AttachmentTable.TABLE_NAME}")
+
+    val processed = SignalDatabase.attachments.collectTombstones(System.currentTimeMillis() - 60_000, 10)
+
+    assertEquals(0, processed)
+    assertEquals(1, getTombstoneCount())
+    assertTrue(file.exists())
+  }
+
+  @Test
+  fun givenAFileStillReferencedByAQuote_whenIRemoveTheLastNonQuoteReference_thenIExpectNoTombstoneUntilTheQuoteIsGone() {
+    val attachment = insert(byteArrayOf(1, 2, 3))
+    val quote = insert(byteArrayOf(1, 2, 3))
+    val file = getFile(attachment.attachmentId)
+
+    SignalDatabase.rawDatabase.execSQL("UPDATE ${AttachmentTable.TABLE_NAME} SET ${AttachmentTable.QUOTE} = 1 WHERE ${AttachmentTable.ROW_ID} = ?", arrayOf(quote.attachmentId.rowId))
+    SignalDatabase.rawDatabase.execSQL("DELETE FROM ${AttachmentTable.TABLE_NAME} WHERE ${AttachmentTable.ROW_ID} = ?", arrayOf(attachment.attachmentId.rowId))
+
+    assertEquals(0, getTombstoneCount())
+    assertEquals(0, SignalDatabase.attachments.collectTombstones(System.currentTimeMillis() + 1000, 10))
+    assertTrue(file.exists())
+
+    SignalDatabase.rawDatabase.execSQL("DELETE FROM ${AttachmentTable.TABLE_NAME} WHERE ${AttachmentTable.ROW_ID} = ?", arrayOf(quote.attachmentId.rowId))
+
+    assertEquals(1, getTombstoneCount())
+    assertEquals(1, SignalDatabase.attachments.collectTombstones(System.currentTimeMillis() + 1000, 10))
+    assertFalse(file.exists())
+  }
+
+  @Test
+  fun givenANewAttachment_whenIInsertIt_thenIExpectNoTombstone() {
+    insert(byteArrayOf(1, 2, 3))
+
+    assertEquals(0, getTombstoneCount())
+  }
+
+  @Test
+  fun givenDataForAMissingPlaceholder_whenIInsertIt_thenIExpectItsFileToBeCollected() {
+    SignalDatabase.attachments.insertAttachmentsForPlaceholder(1, AttachmentId(Long.MAX_VALUE, 0), ByteArrayInputStream(byteArrayOf(1, 2, 3)))
+
+    assertEquals(1, getTombstoneCount())
+
+    val file = getTombstonedFile()
+    assertTrue(file.exists())
+
+    val processed = SignalDatabase.attachments.collectTombstones(System.currentTimeMillis() + 1000, 10)
+
+    assertEquals(1, processed)
+    assertEquals(0, getTombstoneCount())
+    assertFalse(file.exists())
+  }
+
+  @Test
+  fun givenAFileThatCantBeDeleted_whenICollectTombstones_thenIExpectItToBeRetriedMuchLater() {
+    val attachment = insert(byteArrayOf(1, 2, 3))
+    val file = getFile(attachment.attachmentId)
+
+    SignalDatabase.rawDatabase.execSQL("DELETE FROM ${AttachmentTable.TABLE_NAME}")
+
+    // A directory that isn't empty can't be deleted
+    assertTrue(file.delete())
+    assertTrue(file.mkdir())
+    assertTrue(File(file, "child").createNewFile())
+
+    try {
+      val now = System.currentTimeMillis()
+
+      assertEquals(1, SignalDatabase.attachments.collectTombstones(now + 1000, 10))
+      assertEquals(1, getTombstoneCount())
+      assertFalse(SignalDatabase.attachments.hasTombstonesSince(now - AttachmentGarbageCollectionJob.MIN_TOMBSTONE_AGE))
+      assertEquals(0, SignalDatabase.attachments.collectTombstones(now + AttachmentGarbageCollectionJob.MIN_TOMBSTONE_AGE, 10))
+    } finally {
+      file.deleteRecursively()
+    }
+  }
+
+  @Test
+  fun givenADeletedAttachment_whenItsFileIsDeleted_thenIExpectNoTombstoneToBeLeftBehind() {
+    val attachment = insert(byteArrayOf(1, 2, 3))
+
+    SignalDatabase.attachments.deleteAttachment(attachment.attachmentId)
+
+    assertEquals(0, getTombstoneCount())
+  }
+
+  private fun insert(data: ByteArray): DatabaseAttachment {
+    val blob = BlobProvider.getInstance().forData(data).createForSingleSessionInMemory()
+    return SignalDatabase.attachments.insertAttachmentForPreUpload(UriAttachmentBuilder.build(1, uri = blob, contentType = MediaUtil.IMAGE_JPEG))
+  }
+
+  private fun getFile(attachmentId: AttachmentId): File {
+    SignalDatabase.rawDatabase.rawQuery("SELECT ${AttachmentTable.DATA} FROM ${AttachmentTable.TABLE_NAME} WHERE ${AttachmentTable.ROW_ID} = ?", arrayOf(attachmentId.rowId.toString())).use { cursor ->
+      cursor.moveToFirst()
+      return File(cursor.getString(0))
+    }
+  }
+
+  private fun getTombstonedFile(): File {
+    SignalDatabase.rawDatabase.rawQuery("SELECT ${AttachmentTable.DATA} FROM ${AttachmentTable.TOMBSTONE_TABLE_NAME}", null).use { cursor ->
+      cursor.moveToFirst()
+      return File(cursor.getString(0))
+    }
+  }
+
+  private fun getTombstoneCount(): Long {
+    SignalDatabase.rawDatabase.rawQuery("SELECT COUNT(*) FROM ${AttachmentTable.TOMBSTONE_TABLE_NAME}", null).use { cursor ->
+      cursor.moveToFirst()
+      return cursor.getLong(0)
+    }
+  }
+
+  private fun getRefCount(file: File): Long {
+    SignalDatabase.rawDatabase.rawQuery("SELECT ref_count FROM ${AttachmentTable.BLOB_TABLE_NAME} WHERE ${AttachmentTable.DATA} = ?", arrayOf(file.absolutePath)).use { cursor ->
+      return if (cursor.moveToFirst()) cursor.getLong(0) else -1
+    }
+  }
+}
@@ -7,15 +7,21 @@ import org.junit.Assert.assertTrue
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
+import org.mockito.kotlin.mock
 import org.signal.core.util.concurrent.SignalExecutors
+import org.thoughtcrime.securesms.database.model.MessageId
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
 import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ScheduledExecutorService
 import java.util.concurrent.atomic.AtomicBoolean
 import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * When writing tests, be very careful to call [DatabaseObserver.flush] before asserting any observer state. Internally, the observer is enqueueing tasks on
  * an executor, and failing to flush the executor will lead to incorrect/flaky tests.
+ *
+ * The observer under test is given a delivery timer that never fires, so notifications are only delivered by [DatabaseObserver.flush], and a delivery
+ * window can't close partway through a test.
  */
 @RunWith(AndroidJUnit4::class)
 class DatabaseObserverTest {
@@ -26,7 +32,7 @@ class DatabaseObserverTest {
   @Before
   fun setup() {
     db = SignalDatabase.instance!!.signalWritableDatabase
-    observer = ApplicationDependencies.getDatabaseObserver()
+    observer = DatabaseObserver(ApplicationDependencies.getApplication(), mock<ScheduledExecutorService>())
   }
 
   @Test
@@ -154,4 +160,45 @@ class DatabaseObserverTest {
     assertEquals(1, thread1Count.get())
     assertEquals(1, thread2Count.get())
   }
+
+  @Test
+  fun notifyConversationListeners_mergesNotificationsOutsideOfTransaction() {
+    val count = AtomicInteger(0)
+
+    observer.registerConversationObserver(1) { count.incrementAndGet() }
+
+    for (i in 0 until 100) {
+      observer.notifyConversationListeners(1)
+    }
+
+    observer.flush()
+    assertEquals(1, count.get())
+  }
+
+  @Test
+  fun notifyMessageUpdateObservers_deliversChangedIdsTogether() {
+    val delivered = mutableListOf<Set<MessageId>>()
+
+    observer.registerMessageUpdateObserver(object : DatabaseObserver.MessageObserver {
+      override fun onMessageChanged(messageId: MessageId) = throw AssertionError()
+      override fun onMessagesChanged(messageIds: Set<MessageId>) {
+        delivered += messageIds.toSet()
+      }
+    })
+
+    val emitted = observer.notificationsEmitted
+    val deliveredCount = observer.notificationsDelivered
+
+    for (i in 1L..50L) {
+      observer.notifyMessageUpdateObservers(MessageId(i))
+      observer.notifyMessageUpdateObservers(MessageId(i))
+    }
+
+    observer.flush()
+
+    assertEquals(1, delivered.size)
+    assertEquals((1L..50L).map { MessageId(it) }.toSet(), delivered[0])
+    assertEquals(100, observer.notificationsEmitted - emitted)
+    assertEquals(50, observer.notificationsDelivered - deliveredCount)
+  }
 }
@@ -0,0 +1,175 @@
+package org.thoughtcrime.securesms.database
+
+import androidx.core.content.contentValuesOf
+import androidx.test.ext.junit.runners.AndroidJUnit4
+import org.junit.Assert.assertEquals
+import org.junit.Before
+import org.junit.Ignore
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.signal.core.util.logging.Log
+import org.signal.core.util.requireBoolean
+import org.signal.core.util.requireLong
+import org.thoughtcrime.securesms.keyvalue.SignalStore
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.recipients.RecipientId
+import org.whispersystems.signalservice.api.push.ACI
+import org.whispersystems.signalservice.api.push.PNI
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+
+@Suppress("ClassName")
+@RunWith(AndroidJUnit4::class)
+class MessageTableTest_messagePosition {
+
+  companion object {
+    private val TAG = Log.tag(MessageTableTest_messagePosition::class.java)
+  }
+
+  private lateinit var mms: MessageTable
+
+  private val localAci = ACI.from(UUID.randomUUID())
+  private val localPni = PNI.from(UUID.randomUUID())
+
+  private lateinit var alice: RecipientId
+  private lateinit var bob: RecipientId
+  private var threadId: Long = 0
+
+  @Before
+  fun setUp() {
+    mms = SignalDatabase.messages
+
+    mms.deleteAllThreads()
+
+    SignalStore.account().setAci(localAci)
+    SignalStore.account().setPni(localPni)
+
+    alice = SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID()))
+    bob = SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID()))
+    threadId = SignalDatabase.threads.getOrCreateThreadIdFor(Recipient.resolved(alice))
+  }
+
+  @Test
+  fun givenDistinctTimestamps_whenIGetPosition_thenIExpectNewestFirstOrder() {
+    insert(alice, 1)
+    insert(alice, 2)
+    insert(alice, 3)
+
+    assertEquals(0, mms.getMessagePositionInConversation(threadId, 3, alice))
+    assertEquals(1, mms.getMessagePositionInConversation(threadId, 2, alice))
+    assertEquals(2, mms.getMessagePositionInConversation(threadId, 1, alice))
+  }
+
+  @Test
+  fun givenNoMatchingAuthor_whenIGetPosition_thenIExpectNoPosition() {
+    insert(alice, 1)
+
+    assertEquals(-1, mms.getMessagePositionInConversation(threadId, 1, bob))
+    assertEquals(-1, mms.getMessagePositionInConversation(threadId, 2, alice))
+  }
+
+  @Test
+  fun givenRemoteDeletedMessage_whenIGetPosition_thenIExpectNoPosition() {
+    insert(alice, 1)
+    insert(alice, 2, remoteDeleted = true)
+
+    assertEquals(-1, mms.getMessagePositionInConversation(threadId, 2, alice))
+    assertEquals(1, mms.getMessagePositionInConversation(threadId, 1, alice))
+  }
+
+  @Test
+  fun givenSharedTimestamp_whenIGetPosition_thenIExpectSameResultAsWalkingTheConversation() {
+    insert(alice, 1)
+    insert(bob, 2)
+    insert(alice, 2)
+    insert(bob, 2)
+    insert(alice, 3)
+
+    assertMatchesConversation(alice, 2)
+    assertMatchesConversation(bob, 2)
+    assertMatchesConversation(alice, 1)
+  }
+
+  @Test
+  fun givenStoryReplies_whenIGetPosition_thenIExpectRepliesToBeSkipped() {
+    insert(alice, 1)
+    insert(alice, 2, parentStoryId = 10)
+    insert(alice, 3)
+
+    assertEquals(1, mms.getMessagePositionInConversation(threadId, 1, alice))
+    assertEquals(-1, mms.getMessagePositionInConversation(threadId, 2, alice))
+  }
+
+  /**
+   * Not a correctness test so much as a way to see how the lookup scales. Timings are logged for a message near the end of threads
+   * of increasing size, along with how long walking the conversation takes to find the same message.
+   *
+   * Ignored by default, since inserting 200k messages makes it far too slow for every run. Remove the annotation to run it by hand.
+   */
+  @Ignore("Benchmark, run by hand")
+  @Test
+  fun benchmark_positionLookupAcrossThreadSizes() {
+    var inserted = 0
+
+    for (size in listOf(1_000, 10_000, 50_000, 200_000)) {
+      SignalDatabase.rawDatabase.beginTransaction()
+      try {
+        while (inserted < size) {
+          insert(if (inserted % 2 == 0) alice else bob, 1_000L + inserted)
+          inserted++
+        }
+        SignalDatabase.rawDatabase.setTransactionSuccessful()
+      } finally {
+        SignalDatabase.rawDatabase.endTransaction()
+      }
+
+      val oldest = 1_000L
+
+      val lookupStart = System.nanoTime()
+      val position = mms.getMessagePositionInConversation(threadId, oldest, alice)
+      val lookupTime = System.nanoTime() - lookupStart
+
+      val walkStart = System.nanoTime()
+      val walkPosition = walkConversation(alice, oldest)
+      val walkTime = System.nanoTime() - walkStart
+
+      assertEquals(walkPosition, position)
+      Log.i(TAG, "[$size messages] lookup: ${lookupTime / 1_000} us, walk: ${walkTime / 1_000} us")
+    }
+  }
+
+  private fun assertMatchesConversation(recipientId: RecipientId, receivedTimestamp: Long) {
+    assertEquals(walkConversation(recipientId, receivedTimestamp), mms.getMessagePositionInConversation(threadId, receivedTimestamp, recipientId))
+  }
+
+  /**
+   * What the position lookup used to do: walk the conversation until finding the message.
+   */
+  private fun walkConversation(recipientId: RecipientId, receivedTimestamp: Long): Int {
+    mms.getConversation(threadId).use { cursor ->
+      while (cursor.moveToNext()) {
+        if (cursor.requireLong(MessageTable.DATE_RECEIVED) == receivedTimestamp && cursor.requireLong(MessageTable.RECIPIENT_ID) == recipientId.toLong()) {
+          return if (cursor.requireBoolean(MessageTable.REMOTE_DELETED)) -1 else cursor.position
+        }
+      }
+    }
+
+    return -1
+  }
+
+  private fun insert(recipientId: RecipientId, receivedTimestamp: Long, remoteDeleted: Boolean = false, parentStoryId: Long = 0) {
+    SignalDatabase.rawDatabase.insert(
+      MessageTable.TABLE_NAME,
+      null,
+      contentValuesOf(
+        MessageTable.THREAD_ID to threadId,
+        MessageTable.RECIPIENT_ID to recipientId.toLong(),
+        MessageTable.DATE_SENT to receivedTimestamp,
+        MessageTable.DATE_RECEIVED to receivedTimestamp,
+        MessageTable.TYPE to MessageTypes.BASE_INBOX_TYPE,
+        MessageTable.REMOTE_DELETED to if (remoteDeleted) 1 else 0,
+        MessageTable.PARENT_STORY_ID to parentStoryId
+      )
+    )
+  }
+}
@@ -1,8 +1,10 @@
 package org.thoughtcrime.securesms.database
 
 import androidx.test.ext.junit.runners.AndroidJUnit4
+import junit.framework.Assert.assertEquals
 import junit.framework.Assert.assertFalse
 import junit.framework.Assert.assertTrue
+import org.junit.After
 import org.junit.Before
 import org.junit.Test
 import org.junit.runner.RunWith
@@ -21,6 +23,12 @@ class SQLiteDatabaseTest {
   @Before
   fun setup() {
     db = SignalDatabase.instance!!.signalWritableDatabase
+    db.execSQL("CREATE TEMP TABLE IF NOT EXISTS savepoint_test (value INTEGER)")
+  }
+
+  @After
+  fun tearDown() {
+    db.execSQL("DROP TABLE IF EXISTS savepoint_test")
   }
 
   @Test
@@ -180,4 +188,72 @@ class SQLiteDatabaseTest {
     assertTrue(hasRun1.get())
     assertTrue(hasRun2.get())
   }
+
+  @Test
+  fun runInSavepoint_onlyRollsBackTheFailedSavepoint() {
+    db.beginTransaction()
+
+    db.runInSavepoint("test") { insertValue(1) }
+
+    try {
+      db.runInSavepoint("test") {
+        insertValue(2)
+        throw IllegalStateException()
+      }
+    } catch (e: IllegalStateException) {
+      // Expected
+    }
+
+    db.runInSavepoint("test") { insertValue(3) }
+
+    db.setTransactionSuccessful()
+    db.endTransaction()
+
+    assertEquals(listOf(1, 3), readValues())
+  }
+
+  @Test
+  fun runInSavepoint_discardsTasksFromTheFailedSavepoint() {
+    val keptRun = AtomicBoolean(false)
+    val discardedRun = AtomicBoolean(false)
+    val failedRun = AtomicBoolean(false)
+
+    db.beginTransaction()
+
+    db.runInSavepoint("test") { db.runPostSuccessfulTransaction { keptRun.set(true) } }
+
+    try {
+      db.runInSavepoint("test") {
+        db.runPostSuccessfulTransaction { discardedRun.set(true) }
+        db.runPostFailedTransaction("key") { failedRun.set(true) }
+        throw IllegalStateException()
+      }
+    } catch (e: IllegalStateException) {
+      // Expected
+    }
+
+    assertTrue(failedRun.get())
+
+    db.setTransactionSuccessful()
+    db.endTransaction()
+
+    assertTrue(keptRun.get())
+    assertFalse(discardedRun.get())
+  }
+
+  private fun insertValue(value: Int) {
+    db.execSQL("INSERT INTO savepoint_test (value) VALUES ($value)")
+  }
+
+  private fun readValues(): List<Int> {
+    val values = mutableListOf<Int>()
+
+    db.rawQuery("SELECT value FROM savepoint_test ORDER BY value", arrayOf<String>()).use { cursor ->
+      while (cursor.moveToNext()) {
+        values += cursor.getInt(0)
+      }
+    }
+
+    return values
+  }
 }
@@ -0,0 +1,110 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.signal.core.util.requireLong
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.search.MessageSearchResult
+import org.thoughtcrime.securesms.search.SearchRepository
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class SearchTableTest {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipient: Recipient
+
+  @Before
+  fun setUp() {
+    recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID())))
+  }
+
+  @Test
+  fun givenMessagesWithDifferentRelevance_whenISearch_thenIExpectTheMostRelevantFirstAndTiesNewestFirst() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    val olderTie = MmsHelper.insert(recipient = recipient, threadId = threadId, body = "banana")
+    val weak = MmsHelper.insert(recipient = recipient, threadId = threadId, body = "an apple and a banana with plenty of other words around it")
+    val strong = MmsHelper.insert(recipient = recipient, threadId = threadId, body = "banana banana banana")
+    val newerTie = MmsHelper.insert(recipient = recipient, threadId = threadId, body = "banana")
+    MmsHelper.insert(recipient = recipient, threadId = threadId, body = "cherry")
+
+    // WHEN
+    val results = queryMessageIds("banana")
+
+    // THEN
+    assertEquals(listOf(strong, newerTie, olderTie, weak), results)
+  }
+
+  @Test
+  fun givenManyMatches_whenISearch_thenIExpectChunksInRankOrderThatEachExtendTheLast() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    for (i in 0 until 120) {
+      MmsHelper.insert(recipient = recipient, threadId = threadId, body = "banana " + "filler ".repeat(i % 7))
+    }
+
+    val updates = mutableListOf<MessageSearchResult>()
+    val finished = CountDownLatch(3)
+
+    // WHEN
+    SearchRepository("Note to Self").queryMessages("banana") { result ->
+      synchronized(updates) { updates.add(result) }
+      finished.countDown()
+    }
+
+    // THEN
+    assertTrue(finished.await(10, TimeUnit.SECONDS))
+
+    val ids = synchronized(updates) { updates.map { update -> update.results.map { it.messageId } } }
+    assertEquals(listOf(50, 100, 120), ids.map { it.size })
+    assertEquals(ids[0], ids[1].subList(0, 50))
+    assertEquals(ids[1], ids[2].subList(0, 100))
+    assertEquals(queryMessageIds("banana"), ids[2])
+  }
+
+  @Test
+  fun givenAnIndexBeingRebuilt_whenIChangeMessagesTheBackfillHasNotReachedYet_thenIExpectTheIndexToStayIntact() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    val indexed = MmsHelper.insert(recipient = recipient, threadId = threadId, body = "banana one")
+    val updated = MmsHelper.insert(recipient = recipient, threadId = threadId, body = "banana two")
+    val deleted = MmsHelper.insert(recipient = recipient, threadId = threadId, body = "banana three")
+    val endId = SignalDatabase.messages.nextId
+
+    SignalDatabase.messageSearch.clearIndex()
+    SignalDatabase.messageSearch.indexMissingMessages(1, updated)
+
+    // WHEN
+    SignalDatabase.rawDatabase.execSQL("UPDATE ${MessageTable.TABLE_NAME} SET ${MessageTable.BODY} = ? WHERE ${MessageTable.ID} = ?", arrayOf("kiwi", updated))
+    SignalDatabase.rawDatabase.execSQL("DELETE FROM ${MessageTable.TABLE_NAME} WHERE ${MessageTable.ID} = ?", arrayOf(deleted))
+    SignalDatabase.messageSearch.indexMissingMessages(updated, endId)
+
+    // THEN
+    SignalDatabase.rawDatabase.execSQL("INSERT INTO ${SearchTable.MMS_FTS_TABLE_NAME} (${SearchTable.MMS_FTS_TABLE_NAME}, rank) VALUES ('integrity-check', 1)")
+
+    assertEquals(listOf(indexed), queryMessageIds("banana"))
+    assertEquals(listOf(updated), queryMessageIds("kiwi"))
+  }
+
+  private fun queryMessageIds(query: String): List<Long> {
+    val ids = mutableListOf<Long>()
+
+    SignalDatabase.messageSearch.queryMessages(query)!!.use { cursor ->
+      while (cursor.moveToNext()) {
+        ids += cursor.requireLong(SearchTable.MESSAGE_ID)
+      }
+    }
+
+    return ids
+  }
+}
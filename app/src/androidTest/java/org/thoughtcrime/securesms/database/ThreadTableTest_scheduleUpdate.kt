@@ -0,0 +1,89 @@
+package org.thoughtcrime.securesms.database
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.Rule
+import org.junit.Test
+import org.thoughtcrime.securesms.recipients.Recipient
+import org.thoughtcrime.securesms.testing.SignalDatabaseRule
+import org.whispersystems.signalservice.api.push.ServiceId
+import java.util.UUID
+
+@Suppress("ClassName")
+class ThreadTableTest_scheduleUpdate {
+
+  @Rule
+  @JvmField
+  val databaseRule = SignalDatabaseRule()
+
+  private lateinit var recipient: Recipient
+
+  @Before
+  fun setUp() {
+    recipient = Recipient.resolved(SignalDatabase.recipients.getOrInsertFromServiceId(ServiceId.from(UUID.randomUUID())))
+  }
+
+  @Test
+  fun givenAMessageInsertedInATransaction_whenTheTransactionCommits_thenIExpectTheSnippetToBeUpdated() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    var snippetBeforeCommit: String? = null
+
+    // WHEN
+    SignalDatabase.runInTransaction {
+      MmsHelper.insert(recipient = recipient, threadId = threadId, body = "hello")
+      MmsHelper.insert(recipient = recipient, threadId = threadId, body = "hello")
+      snippetBeforeCommit = SignalDatabase.threads.getThreadRecord(threadId)?.body
+    }
+
+    // THEN
+    assertEquals("", snippetBeforeCommit)
+    assertEquals("hello", SignalDatabase.threads.getThreadRecord(threadId)?.body)
+  }
+
+  @Test
+  fun givenAnUnpinnedThread_whenIDeleteTheLastMessage_thenIExpectTheThreadToBeDeleted() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    val firstMessageId = MmsHelper.insert(recipient = recipient, threadId = threadId)
+    val secondMessageId = MmsHelper.insert(recipient = recipient, threadId = threadId)
+    SignalDatabase.threads.pinConversations(listOf(threadId))
+
+    SignalDatabase.messages.deleteMessage(firstMessageId)
+    assertNotNull(SignalDatabase.threads.getThreadRecord(threadId))
+
+    // WHEN
+    SignalDatabase.threads.unpinConversations(listOf(threadId))
+    SignalDatabase.messages.deleteMessage(secondMessageId)
+
+    // THEN
+    assertNull(SignalDatabase.threads.getThreadRecord(threadId))
+  }
+
+  @Test
+  fun givenAnUpdateScheduledInARolledBackTransaction_whenAnotherTransactionCommits_thenIExpectTheUpdateToBeDropped() {
+    // GIVEN
+    val threadId = SignalDatabase.threads.getOrCreateThreadIdFor(recipient)
+    MmsHelper.insert(recipient = recipient, threadId = threadId)
+    SignalDatabase.threads.archiveConversation(threadId)
+
+    val db = SignalDatabase.instance!!.signalWritableDatabase
+    db.beginTransaction()
+    try {
+      SignalDatabase.threads.scheduleUpdate(threadId, unarchive = true)
+    } finally {
+      db.endTransaction()
+    }
+
+    // WHEN
+    SignalDatabase.runInTransaction {
+      SignalDatabase.threads.scheduleUpdate(threadId, unarchive = false)
+    }
+
+    // THEN
+    assertTrue(SignalDatabase.threads.getThreadRecord(threadId)!!.isArchived)
+  }
+}
@@ -55,6 +55,7 @@ import org.thoughtcrime.securesms.dependencies.ApplicationDependencyProvider;
 import org.thoughtcrime.securesms.emoji.EmojiSource;
 import org.thoughtcrime.securesms.emoji.JumboEmoji;
 import org.thoughtcrime.securesms.gcm.FcmJobService;
+import org.thoughtcrime.securesms.jobs.AttachmentGarbageCollectionJob;
 import org.thoughtcrime.securesms.jobs.CheckServiceReachabilityJob;
 import org.thoughtcrime.securesms.jobs.DownloadLatestEmojiDataJob;
 import org.thoughtcrime.securesms.jobs.EmojiSearchIndexDownloadJob;
@@ -279,6 +280,7 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
     ApplicationDependencies.getMessageNotifier().clearVisibleThread();
     ApplicationDependencies.getFrameRateTracker().stop();
     ApplicationDependencies.getDeadlockDetector().stop();
+    SignalExecutors.BOUNDED.execute(() -> ApplicationDependencies.getJobManager().flush());
   }
 
   @MainThread
@@ -572,6 +574,7 @@ public class ApplicationContext extends MultiDexApplication implements AppForegr
   private void initializeCleanup() {
     int deleted = SignalDatabase.attachments().deleteAbandonedPreuploadedAttachments();
     Log.i(TAG, "Deleted " + deleted + " abandoned attachments.");
+    AttachmentGarbageCollectionJob.enqueue();
   }
 
   private void initializeGlideCodecs() {
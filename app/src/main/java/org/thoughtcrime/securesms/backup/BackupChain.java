@@ -0,0 +1,382 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.content.Context;
+import android.net.Uri;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.protobuf.ByteString;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.crypto.AttachmentSecret;
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernEncryptingPartOutputStream;
+import org.thoughtcrime.securesms.database.NoExternalStorageException;
+import org.thoughtcrime.securesms.util.BackupUtil;
+import org.thoughtcrime.securesms.util.FeatureFlags;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Incremental backups are regular backup files that leave out any attachment data that's already
+ * in the backup they're based on (their parent), and refer to it by hash instead. Every backup has
+ * a random id in its header, and incremental backups also have the id of their parent, so the files
+ * form a chain that starts with a full backup.
+ *
+ * Only attachment data is incremental. Rows, preferences, stickers and avatars are written in full
+ * every time, so the newest backup in a chain has the whole database, and only needs the older ones
+ * for attachment data.
+ *
+ * Making incremental backups is behind {@link FeatureFlags#incrementalBackups()}. Restoring them
+ * always works.
+ */
+public final class BackupChain {
+
+  private static final String TAG = Log.tag(BackupChain.class);
+
+  /**
+   * The most backups a chain can have, including the full backup at the start of it.
+   */
+  public static final int MAX_LENGTH = 7;
+
+  private static final String MANIFEST_FILE_NAME = "backup_manifest";
+
+  private BackupChain() {}
+
+  /**
+   * @return The backup the next backup should be based on, or null if the next backup should be a
+   *         full backup.
+   */
+  public static @Nullable Parent findParent(@NonNull Context context, @NonNull String passphrase) {
+    if (!FeatureFlags.incrementalBackups()) {
+      return null;
+    }
+
+    try {
+      List<Uri> backups = getAllBackupUrisNewestFirst();
+
+      if (backups.isEmpty()) {
+        Log.i(TAG, "No previous backups, making a full backup.");
+        return null;
+      }
+
+      Uri                 latest = backups.get(0);
+      BackupProtos.Header header = readHeader(context, latest);
+
+      if (!header.hasBackupId()) {
+        Log.i(TAG, "Latest backup predates incremental backups, making a full backup.");
+        return null;
+      }
+
+      List<Uri> chain = resolve(context, latest, backups);
+
+      if (chain.size() >= MAX_LENGTH) {
+        Log.i(TAG, "Chain is at its maximum length, making a full backup.");
+        return null;
+      }
+
+      Set<String> attachmentHashes = readManifest(context, header.getBackupId());
+
+      if (attachmentHashes == null) {
+        Log.i(TAG, "No manifest for the latest backup, reading its chain of " + chain.size() + " backups.");
+        attachmentHashes = readAttachmentHashes(context, chain, passphrase);
+        saveManifest(context, header.getBackupId(), attachmentHashes);
+      }
+
+      return new Parent(header.getBackupId(), attachmentHashes);
+    } catch (IOException | NoExternalStorageException e) {
+      Log.w(TAG, "Unable to base the next backup on the latest one, making a full backup.", e);
+      return null;
+    }
+  }
+
+  /**
+   * The backups it's based on are looked for next to the given backup, when it's a file, and in the
+   * backup directory, if one has been chosen.
+   *
+   * @return The backups needed to restore the given one, oldest first, and ending with it.
+   * @throws MissingParentException If a backup it's based on can't be found in either place.
+   */
+  public static @NonNull List<Uri> resolveForRestore(@NonNull Context context, @NonNull Uri backup) throws IOException {
+    if (!readHeader(context, backup).hasParentBackupId()) {
+      return Collections.singletonList(backup);
+    }
+
+    return resolve(context, backup, getRestoreCandidates(backup));
+  }
+
+  /**
+   * @return The given backups, plus all of the backups they're based on.
+   */
+  public static @NonNull Set<Uri> withAncestors(@NonNull Context context, @NonNull List<Uri> backups, @NonNull List<Uri> candidates) {
+    Set<Uri> required = new LinkedHashSet<>(backups);
+
+    for (Uri backup : backups) {
+      try {
+        required.addAll(resolve(context, backup, candidates));
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to resolve the backups needed for " + backup, e);
+      }
+    }
+
+    return required;
+  }
+
+  /**
+   * Finds the backups needed to restore the given one among the candidates.
+   *
+   * @return The backups, oldest first, and ending with the given one.
+   */
+  static @NonNull List<Uri> resolve(@NonNull Context context, @NonNull Uri backup, @NonNull List<Uri> candidates) throws IOException {
+    return resolve(backup, candidates, uri -> readHeader(context, uri));
+  }
+
+  /**
+   * Same as {@link #resolve(Context, Uri, List)}, but for backups identified by anything that the
+   * given reader can read a header from.
+   */
+  static @NonNull <T> List<T> resolve(@NonNull T backup, @NonNull List<T> candidates, @NonNull HeaderReader<T> headerReader) throws IOException {
+    BackupProtos.Header header = headerReader.readHeader(backup);
+
+    if (!header.hasParentBackupId()) {
+      return Collections.singletonList(backup);
+    }
+
+    Map<ByteString, T>          byId    = new HashMap<>();
+    Map<T, BackupProtos.Header> headers = new HashMap<>();
+
+    for (T candidate : candidates) {
+      try {
+        BackupProtos.Header candidateHeader = headerReader.readHeader(candidate);
+
+        if (candidateHeader.hasBackupId()) {
+          byId.put(candidateHeader.getBackupId(), candidate);
+          headers.put(candidate, candidateHeader);
+        }
+      } catch (IOException e) {
+        Log.w(TAG, "Unable to read the header of " + candidate, e);
+      }
+    }
+
+    LinkedList<T> chain = new LinkedList<>();
+    chain.add(backup);
+
+    while (header.hasParentBackupId()) {
+      T parent = byId.get(header.getParentBackupId());
+
+      if (parent == null) {
+        throw new MissingParentException();
+      }
+
+      if (chain.contains(parent) || chain.size() > candidates.size()) {
+        throw new IOException("Backup chain has a cycle!");
+      }
+
+      chain.addFirst(parent);
+      header = headers.get(parent);
+    }
+
+    return chain;
+  }
+
+  /**
+   * @return The hashes of all of the attachment data stored in the given backups.
+   */
+  static @NonNull Set<String> readAttachmentHashes(@NonNull Context context, @NonNull List<Uri> backups, @NonNull String passphrase) throws IOException {
+    Set<String> hashes = new HashSet<>();
+
+    for (Uri backup : backups) {
+      try (InputStream is = FullBackupImporter.getInputStream(context, backup)) {
+        BackupRecordInputStream  inputStream = new BackupRecordInputStream(is, passphrase);
+        BackupProtos.BackupFrame frame;
+
+        while (!(frame = inputStream.readFrame()).getEnd()) {
+          if (frame.hasAttachment()) {
+            BackupProtos.Attachment attachment = frame.getAttachment();
+
+            if (!attachment.getReference()) {
+              if (attachment.hasDataHash()) {
+                hashes.add(attachment.getDataHash());
+              }
+              inputStream.skipAttachment(attachment.getLength());
+            }
+          } else if (frame.hasSticker()) {
+            inputStream.skipAttachment(frame.getSticker().getLength());
+          } else if (frame.hasAvatar()) {
+            inputStream.skipAttachment(frame.getAvatar().getLength());
+          }
+        }
+      }
+    }
+
+    return hashes;
+  }
+
+  /**
+   * Remembers the attachment data that's in a backup that was just made and the ones it's based on,
+   * so that {@link #findParent} doesn't have to read them all to base the next backup on it. Only
+   * the latest backup is remembered, and only while incremental backups are enabled.
+   */
+  static void saveManifest(@NonNull Context context, @NonNull ByteString backupId, @NonNull Set<String> attachmentHashes) {
+    if (!FeatureFlags.incrementalBackups()) {
+      return;
+    }
+
+    File manifestFile  = getManifestFile(context);
+    File temporaryFile = new File(manifestFile.getParentFile(), MANIFEST_FILE_NAME + ".tmp");
+
+    if (temporaryFile.exists() && !temporaryFile.delete()) {
+      Log.w(TAG, "Unable to delete an old temporary manifest.");
+      return;
+    }
+
+    try (OutputStream out = ModernEncryptingPartOutputStream.createFor(getAttachmentSecret(context), temporaryFile, true).second) {
+      BackupProtos.BackupManifest.newBuilder()
+                                 .setBackupId(backupId)
+                                 .addAllAttachmentHashes(attachmentHashes)
+                                 .build()
+                                 .writeTo(out);
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to save the manifest.", e);
+      temporaryFile.delete();
+      return;
+    }
+
+    if (!temporaryFile.renameTo(manifestFile)) {
+      Log.w(TAG, "Unable to replace the manifest.");
+      temporaryFile.delete();
+    }
+  }
+
+  public static void deleteManifest(@NonNull Context context) {
+    File manifestFile = getManifestFile(context);
+
+    if (manifestFile.exists() && !manifestFile.delete()) {
+      Log.w(TAG, "Unable to delete the manifest.");
+    }
+  }
+
+  /**
+   * @return The hashes of the attachment data in the given backup and the ones it's based on, or
+   *         null if they weren't saved after that backup was made.
+   */
+  static @Nullable Set<String> readManifest(@NonNull Context context, @NonNull ByteString backupId) {
+    File manifestFile = getManifestFile(context);
+
+    if (!manifestFile.exists()) {
+      return null;
+    }
+
+    try (InputStream in = ModernDecryptingPartInputStream.createFor(getAttachmentSecret(context), manifestFile, 0)) {
+      BackupProtos.BackupManifest manifest = BackupProtos.BackupManifest.parseFrom(in);
+
+      if (!manifest.getBackupId().equals(backupId)) {
+        Log.i(TAG, "Manifest is for a different backup.");
+        return null;
+      }
+
+      return new HashSet<>(manifest.getAttachmentHashesList());
+    } catch (IOException e) {
+      Log.w(TAG, "Unable to read the manifest.", e);
+      return null;
+    }
+  }
+
+  private static @NonNull File getManifestFile(@NonNull Context context) {
+    return new File(context.getFilesDir(), MANIFEST_FILE_NAME);
+  }
+
+  private static @NonNull AttachmentSecret getAttachmentSecret(@NonNull Context context) {
+    return AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret();
+  }
+
+  private static @NonNull BackupProtos.Header readHeader(@NonNull Context context, @NonNull Uri backup) throws IOException {
+    try (InputStream is = FullBackupImporter.getInputStream(context, backup)) {
+      return BackupRecordInputStream.readHeader(is);
+    }
+  }
+
+  private static @NonNull List<Uri> getAllBackupUrisNewestFirst() throws NoExternalStorageException {
+    List<Uri> uris = new LinkedList<>();
+
+    for (BackupUtil.BackupInfo backup : BackupUtil.getAllBackupsNewestFirst()) {
+      uris.add(backup.getUri());
+    }
+
+    return uris;
+  }
+
+  private static @NonNull List<Uri> getRestoreCandidates(@NonNull Uri backup) {
+    Set<Uri> candidates = new LinkedHashSet<>();
+
+    if ("file".equals(backup.getScheme()) && backup.getPath() != null) {
+      File directory = new File(backup.getPath()).getParentFile();
+
+      if (directory != null) {
+        for (BackupUtil.BackupInfo info : BackupUtil.getAllBackupsNewestFirst(directory)) {
+          candidates.add(info.getUri());
+        }
+      }
+    }
+
+    try {
+      candidates.addAll(getAllBackupUrisNewestFirst());
+    } catch (NoExternalStorageException e) {
+      Log.w(TAG, "Unable to look in the backup directory for older backups.", e);
+    }
+
+    return new ArrayList<>(candidates);
+  }
+
+  interface HeaderReader<T> {
+    @NonNull BackupProtos.Header readHeader(@NonNull T backup) throws IOException;
+  }
+
+  /**
+   * The backup that a new incremental backup will be based on.
+   */
+  public static final class Parent {
+    private final ByteString  backupId;
+    private final Set<String> attachmentHashes;
+
+    Parent(@NonNull ByteString backupId, @NonNull Set<String> attachmentHashes) {
+      this.backupId         = backupId;
+      this.attachmentHashes = attachmentHashes;
+    }
+
+    @NonNull ByteString getBackupId() {
+      return backupId;
+    }
+
+    /**
+     * @return The hashes of the attachment data that's available from this backup and the ones it's
+     *         based on.
+     */
+    public @NonNull Set<String> getAttachmentHashes() {
+      return attachmentHashes;
+    }
+  }
+
+  /**
+   * Thrown when an incremental backup can't be restored because a backup it's based on is missing.
+   */
+  public static final class MissingParentException extends IOException {
+    MissingParentException() {
+      super("A backup that this backup is based on is missing!");
+    }
+  }
+}
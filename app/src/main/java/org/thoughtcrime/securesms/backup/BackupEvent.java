@@ -10,11 +10,21 @@ public class BackupEvent {
   private final Type type;
   private final long count;
   private final long estimatedTotalCount;
+  private final long bytes;
+  private final long bytesPerSecond;
+  private final long estimatedTimeRemainingMs;
 
   public BackupEvent(Type type, long count, long estimatedTotalCount) {
-    this.type                = type;
-    this.count               = count;
-    this.estimatedTotalCount = estimatedTotalCount;
+    this(type, count, estimatedTotalCount, 0, 0, -1);
+  }
+
+  public BackupEvent(Type type, long count, long estimatedTotalCount, long bytes, long bytesPerSecond, long estimatedTimeRemainingMs) {
+    this.type                     = type;
+    this.count                    = count;
+    this.estimatedTotalCount      = estimatedTotalCount;
+    this.bytes                    = bytes;
+    this.bytesPerSecond           = bytesPerSecond;
+    this.estimatedTimeRemainingMs = estimatedTimeRemainingMs;
   }
 
   public Type getType() {
@@ -29,6 +39,24 @@ public class BackupEvent {
     return estimatedTotalCount;
   }
 
+  /**
+   * @return How many bytes have been written or read so far.
+   */
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getBytesPerSecond() {
+    return bytesPerSecond;
+  }
+
+  /**
+   * @return The estimated time until completion, or -1 if it isn't known yet.
+   */
+  public long getEstimatedTimeRemainingMs() {
+    return estimatedTimeRemainingMs;
+  }
+
   public double getCompletionPercentage() {
     if (estimatedTotalCount == 0) {
       return 0;
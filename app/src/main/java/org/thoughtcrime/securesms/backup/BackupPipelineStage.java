@@ -0,0 +1,223 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import org.signal.core.util.logging.Log;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One stage of the backup export pipeline. Tasks are run in the order they're submitted on a
+ * single dedicated thread, and at most a fixed number may be waiting at once, so a fast producer
+ * will block in {@link #submit(Task)} until this stage catches up.
+ *
+ * If a task fails, every remaining task is skipped, and the failure is rethrown to the producer on
+ * its next call to {@link #submit(Task)} or {@link #finish()}. Tasks that are skipped, either after
+ * a failure or because the stage was aborted, have {@link Task#onDiscard()} called instead, so that
+ * anything they hold on to can be released.
+ *
+ * A producer blocked in {@link #submit(Task)} gives up as soon as the stage fails or is aborted. If
+ * this stage's own thread is stuck (say, submitting to a downstream stage that has stopped), then
+ * {@link #abort()} interrupts it after a short wait, so it can't be left blocked forever.
+ */
+final class BackupPipelineStage {
+
+  private static final String TAG = Log.tag(BackupPipelineStage.class);
+
+  private static final Task END = () -> {};
+
+  private static final long SUBMIT_POLL_MS   = 100;
+  private static final long ABORT_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(5);
+
+  private final String              name;
+  private final BlockingQueue<Task> queue;
+  private final Thread              thread;
+
+  private volatile Throwable failure;
+  private volatile long      busyNanos;
+  private volatile long      submitWaitNanos;
+
+  BackupPipelineStage(@NonNull String name, int capacity) {
+    this.name   = name;
+    this.queue  = new ArrayBlockingQueue<>(capacity);
+    this.thread = new Thread(this::runLoop, "signal-backup-" + name);
+
+    thread.start();
+  }
+
+  /**
+   * Queues a task to be run on this stage's thread, blocking if the queue is full. Stops waiting and
+   * throws if the stage fails or is aborted in the meantime.
+   */
+  void submit(@NonNull Task task) throws IOException {
+    throwIfFailed();
+
+    long start = System.nanoTime();
+    try {
+      while (!queue.offer(task, SUBMIT_POLL_MS, TimeUnit.MILLISECONDS)) {
+        throwIfFailed();
+      }
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while submitting to " + name);
+    }
+    submitWaitNanos += System.nanoTime() - start;
+  }
+
+  /**
+   * Waits for every submitted task to finish, and then stops the thread.
+   */
+  void finish() throws IOException {
+    submit(END);
+
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while finishing " + name);
+    }
+
+    throwIfFailed();
+  }
+
+  /**
+   * Stops the thread as soon as possible without running anything else that's queued. If the task
+   * that's currently running doesn't finish in time, the thread is interrupted. Safe to call after
+   * {@link #finish()}.
+   */
+  void abort() {
+    abort(ABORT_TIMEOUT_MS);
+  }
+
+  @VisibleForTesting
+  void abort(long timeoutMs) {
+    if (failure == null) {
+      failure = new IOException("Aborted");
+    }
+
+    discardQueued();
+
+    if (!thread.isAlive()) {
+      return;
+    }
+
+    // A blocked producer may fill the space we just made, so keep clearing until END fits
+    while (!queue.offer(END)) {
+      discardQueued();
+    }
+
+    try {
+      thread.join(timeoutMs);
+
+      if (thread.isAlive()) {
+        Log.w(TAG, "Stage " + name + " didn't stop within " + timeoutMs + " ms. Interrupting.");
+        thread.interrupt();
+        thread.join(timeoutMs);
+      }
+    } catch (InterruptedException e) {
+      Log.w(TAG, "Interrupted while aborting " + name);
+    }
+
+    // A producer may have slipped a task in after END
+    if (!thread.isAlive()) {
+      discardQueued();
+    }
+  }
+
+  /**
+   * @return How long this stage has spent running tasks.
+   */
+  long getBusyMs() {
+    return TimeUnit.NANOSECONDS.toMillis(busyNanos);
+  }
+
+  /**
+   * @return How long the producer has spent blocked, waiting for this stage to make room.
+   */
+  long getSubmitWaitMs() {
+    return TimeUnit.NANOSECONDS.toMillis(submitWaitNanos);
+  }
+
+  private void runLoop() {
+    while (true) {
+      Task task;
+
+      try {
+        task = queue.take();
+      } catch (InterruptedException e) {
+        failure = e;
+        return;
+      }
+
+      if (task == END) {
+        return;
+      }
+
+      if (failure != null) {
+        discard(task);
+        continue;
+      }
+
+      long start = System.nanoTime();
+      try {
+        task.run();
+      } catch (Throwable t) {
+        Log.w(TAG, "Stage " + name + " failed.", t);
+        failure = t;
+      }
+      busyNanos += System.nanoTime() - start;
+    }
+  }
+
+  private void discardQueued() {
+    List<Task> skipped = new ArrayList<>(queue.size());
+    queue.drainTo(skipped);
+
+    for (Task task : skipped) {
+      if (task != END) {
+        discard(task);
+      }
+    }
+  }
+
+  private void discard(@NonNull Task task) {
+    try {
+      task.onDiscard();
+    } catch (Throwable t) {
+      Log.w(TAG, "Failed to discard a task in " + name, t);
+    }
+  }
+
+  private void throwIfFailed() throws IOException {
+    Throwable failure = this.failure;
+
+    if (failure == null) {
+      return;
+    }
+
+    if (failure instanceof IOException) {
+      throw (IOException) failure;
+    } else if (failure instanceof RuntimeException) {
+      throw (RuntimeException) failure;
+    } else if (failure instanceof Error) {
+      throw (Error) failure;
+    } else {
+      throw new IOException(failure);
+    }
+  }
+
+  interface Task {
+    void run() throws IOException;
+
+    /**
+     * Called instead of {@link #run()} if the task is skipped. Should release anything the task
+     * would have released after running, like any streams it was going to read.
+     */
+    default void onDiscard() throws IOException { }
+  }
+}
@@ -0,0 +1,98 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import org.greenrobot.eventbus.EventBus;
+
+/**
+ * Turns per-item backup progress into a trickle of {@link BackupEvent}s. Callers can report every
+ * row, and an event will only be posted once enough time has passed since the last one. Most calls
+ * just bump a counter and return; the clock is only checked every {@link #CHECK_INTERVAL_ITEMS}
+ * items, or after {@link #CHECK_INTERVAL_BYTES}, so large attachments still make progress.
+ *
+ * Not thread safe. Progress should be reported from one thread.
+ */
+public final class BackupProgressReporter {
+
+  private static final long MIN_POST_INTERVAL_MS = 250;
+  private static final int  CHECK_INTERVAL_ITEMS = 64;
+  private static final long CHECK_INTERVAL_BYTES = 512 * 1024;
+
+  private final BackupEvent.Type type;
+  private final long             estimatedTotalCount;
+  private final Clock            clock;
+  private final Poster           poster;
+  private final long             startTime;
+
+  private int  itemsSinceCheck;
+  private long bytesAtCheck;
+  private long lastPostTime;
+
+  public BackupProgressReporter(@NonNull BackupEvent.Type type, long estimatedTotalCount) {
+    this(type, estimatedTotalCount, System::currentTimeMillis, event -> EventBus.getDefault().post(event));
+  }
+
+  @VisibleForTesting
+  BackupProgressReporter(@NonNull BackupEvent.Type type, long estimatedTotalCount, @NonNull Clock clock, @NonNull Poster poster) {
+    this.type                = type;
+    this.estimatedTotalCount = estimatedTotalCount;
+    this.clock               = clock;
+    this.poster              = poster;
+    this.startTime           = clock.currentTimeMillis();
+    this.lastPostTime        = startTime - MIN_POST_INTERVAL_MS;
+  }
+
+  /**
+   * @param count How many items have been processed so far.
+   * @param bytes How many bytes have been processed so far.
+   */
+  public void onProgress(long count, long bytes) {
+    if (++itemsSinceCheck < CHECK_INTERVAL_ITEMS && bytes - bytesAtCheck < CHECK_INTERVAL_BYTES) {
+      return;
+    }
+
+    itemsSinceCheck = 0;
+    bytesAtCheck    = bytes;
+
+    long now = clock.currentTimeMillis();
+
+    if (now - lastPostTime >= MIN_POST_INTERVAL_MS) {
+      post(count, bytes, now);
+    }
+  }
+
+  /**
+   * Posts the current progress right away, regardless of when the last event was posted.
+   */
+  public void postNow(long count, long bytes) {
+    itemsSinceCheck = 0;
+    bytesAtCheck    = bytes;
+
+    post(count, bytes, clock.currentTimeMillis());
+  }
+
+  private void post(long count, long bytes, long now) {
+    lastPostTime = now;
+
+    long elapsed        = Math.max(now - startTime, 1);
+    long bytesPerSecond = bytes * 1000 / elapsed;
+    long remaining      = -1;
+
+    if (estimatedTotalCount > 0 && count > 0) {
+      remaining = Math.max(estimatedTotalCount - count, 0) * elapsed / count;
+    }
+
+    poster.post(new BackupEvent(type, count, estimatedTotalCount, bytes, bytesPerSecond, remaining));
+  }
+
+  @VisibleForTesting
+  interface Clock {
+    long currentTimeMillis();
+  }
+
+  @VisibleForTesting
+  interface Poster {
+    void post(@NonNull BackupEvent event);
+  }
+}
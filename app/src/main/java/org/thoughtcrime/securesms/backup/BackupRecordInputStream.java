@@ -14,6 +14,8 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -25,35 +27,29 @@ import javax.crypto.spec.SecretKeySpec;
 
 class BackupRecordInputStream extends FullBackupBase.BackupStream {
 
-  private final InputStream in;
-  private final Cipher      cipher;
-  private final Mac         mac;
+  private static final int MAX_HEADER_LENGTH = 64 * 1024;
+  private static final int VERIFY_CHUNK_SIZE = 64 * 1024;
+  private static final int MAX_POOLED_CHUNKS = 32;
+
+  private final InputStream         in;
+  private final BackupProtos.Header header;
+  private final Cipher              cipher;
+  private final Mac                 mac;
+  private final SecretKeySpec       macKeySpec;
+
+  private final BlockingQueue<byte[]> freeChunks = new ArrayBlockingQueue<>(MAX_POOLED_CHUNKS);
 
   private final byte[] cipherKey;
 
   private final byte[] iv;
   private       int    counter;
+  private       long   bytesRead;
 
   BackupRecordInputStream(@NonNull InputStream in, @NonNull String passphrase) throws IOException {
     try {
-      this.in = in;
-
-      byte[] headerLengthBytes = new byte[4];
-      StreamUtil.readFully(in, headerLengthBytes);
-
-      int    headerLength = Conversions.byteArrayToInt(headerLengthBytes);
-      byte[] headerFrame  = new byte[headerLength];
-      StreamUtil.readFully(in, headerFrame);
-
-      BackupProtos.BackupFrame frame = BackupProtos.BackupFrame.parseFrom(headerFrame);
-
-      if (!frame.hasHeader()) {
-        throw new IOException("Backup stream does not start with header!");
-      }
-
-      BackupProtos.Header header = frame.getHeader();
-
-      this.iv = header.getIv().toByteArray();
+      this.in     = in;
+      this.header = readHeader(in);
+      this.iv     = header.getIv().toByteArray();
 
       if (iv.length != 16) {
         throw new IOException("Invalid IV length!");
@@ -67,8 +63,9 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
       byte[] macKey  = split[1];
 
       this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
-      this.mac    = Mac.getInstance("HmacSHA256");
-      this.mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+      this.macKeySpec = new SecretKeySpec(macKey, "HmacSHA256");
+      this.mac        = Mac.getInstance("HmacSHA256");
+      this.mac.init(macKeySpec);
 
       this.counter = Conversions.byteArrayToInt(iv);
     } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
@@ -76,10 +73,120 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
     }
   }
 
+  /**
+   * Reads the unencrypted header at the start of a backup stream. Doesn't need the passphrase.
+   */
+  static @NonNull BackupProtos.Header readHeader(@NonNull InputStream in) throws IOException {
+    byte[] headerLengthBytes = new byte[4];
+    StreamUtil.readFully(in, headerLengthBytes);
+
+    int headerLength = Conversions.byteArrayToInt(headerLengthBytes);
+
+    if (headerLength <= 0 || headerLength > MAX_HEADER_LENGTH) {
+      throw new IOException("Invalid header length: " + headerLength);
+    }
+
+    byte[] headerFrame = new byte[headerLength];
+    StreamUtil.readFully(in, headerFrame);
+
+    BackupProtos.BackupFrame frame = BackupProtos.BackupFrame.parseFrom(headerFrame);
+
+    if (!frame.hasHeader()) {
+      throw new IOException("Backup stream does not start with header!");
+    }
+
+    return frame.getHeader();
+  }
+
+  @NonNull BackupProtos.Header getHeader() {
+    return header;
+  }
+
   BackupProtos.BackupFrame readFrame() throws IOException {
     return readFrame(in);
   }
 
+  /**
+   * @return How many bytes of frames and attachments have been read so far, not counting the header.
+   */
+  long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * Skips over attachment data without decrypting it or checking its MAC.
+   */
+  void skipAttachment(int length) throws IOException {
+    counter++;
+    bytesRead += length + 10;
+
+    long remaining = length + 10;
+
+    while (remaining > 0) {
+      long skipped = in.skip(remaining);
+
+      if (skipped <= 0) {
+        if (in.read() == -1) throw new IOException("File ended early!");
+        skipped = 1;
+      }
+
+      remaining -= skipped;
+    }
+  }
+
+  /**
+   * Checks an attachment's MAC without decrypting it, which is all that's needed to verify it. The
+   * MAC is computed on the given stage, so this can keep reading while it's being checked, and
+   * attachments given to different stages can be checked at the same time.
+   *
+   * A bad MAC is reported as a {@link BadMacException} from the stage, not from this method.
+   */
+  void verifyAttachmentMac(int length, @NonNull BackupPipelineStage stage, @NonNull String description) throws IOException {
+    Mac attachmentMac;
+
+    try {
+      Conversions.intToByteArray(iv, 0, counter++);
+
+      attachmentMac = Mac.getInstance("HmacSHA256");
+      attachmentMac.init(macKeySpec);
+      attachmentMac.update(iv);
+    } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+      throw new AssertionError(e);
+    }
+
+    while (length > 0) {
+      byte[] chunk = freeChunks.poll();
+
+      if (chunk == null) {
+        chunk = new byte[VERIFY_CHUNK_SIZE];
+      }
+
+      int read = Math.min(chunk.length, length);
+      StreamUtil.readFully(in, chunk, read);
+
+      byte[] data = chunk;
+      stage.submit(() -> {
+        attachmentMac.update(data, 0, read);
+        freeChunks.offer(data);
+      });
+
+      length    -= read;
+      bytesRead += read;
+    }
+
+    byte[] theirMac = new byte[10];
+    StreamUtil.readFully(in, theirMac);
+    bytesRead += theirMac.length;
+
+    stage.submit(() -> {
+      byte[] ourMac = ByteUtil.trim(attachmentMac.doFinal(), 10);
+
+      if (!MessageDigest.isEqual(ourMac, theirMac)) {
+        throw new BadMacException("Bad MAC for " + description);
+      }
+    });
+  }
+
   void readAttachmentTo(OutputStream out, int length) throws IOException {
     try {
       Conversions.intToByteArray(iv, 0, counter++);
@@ -100,7 +207,8 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
           out.write(plaintext, 0, plaintext.length);
         }
 
-        length -= read;
+        length    -= read;
+        bytesRead += read;
       }
 
       byte[] plaintext = cipher.doFinal();
@@ -116,6 +224,7 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
 
       try {
         StreamUtil.readFully(in, theirMac);
+        bytesRead += theirMac.length;
       } catch (IOException e) {
         throw new IOException(e);
       }
@@ -136,6 +245,8 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
       byte[] frame = new byte[Conversions.byteArrayToInt(length)];
       StreamUtil.readFully(in, frame);
 
+      bytesRead += length.length + frame.length;
+
       byte[] theirMac = new byte[10];
       System.arraycopy(frame, frame.length - 10, theirMac, 0, theirMac.length);
 
@@ -157,5 +268,11 @@ class BackupRecordInputStream extends FullBackupBase.BackupStream {
     }
   }
 
-  static class BadMacException extends IOException {}
+  static class BadMacException extends IOException {
+    BadMacException() {}
+
+    BadMacException(@NonNull String message) {
+      super(message);
+    }
+  }
 }
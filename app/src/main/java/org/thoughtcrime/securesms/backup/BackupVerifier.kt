@@ -1,42 +1,67 @@
 package org.thoughtcrime.securesms.backup
 
-import org.greenrobot.eventbus.EventBus
 import org.signal.core.util.logging.Log
 import org.thoughtcrime.securesms.backup.BackupProtos.BackupFrame
 import java.io.IOException
 import java.io.InputStream
-import java.io.OutputStream
 
 /**
  * Given a backup file, run over it and verify it will decrypt properly when attempting to import it.
+ *
+ * Frames are read and checked in order on the calling thread. Attachment data only has its MAC
+ * checked, without being decrypted, and that's spread across a few worker threads so that several
+ * attachments can be checked while the file is still being read.
  */
 object BackupVerifier {
 
   private val TAG = Log.tag(BackupVerifier::class.java)
 
+  private const val WORKER_QUEUE_CAPACITY = 8
+
+  /**
+   * @param availableHashes For incremental backups, the hashes of the attachment data in the backups it's based on.
+   */
   @JvmStatic
+  @JvmOverloads
   @Throws(IOException::class)
-  fun verifyFile(cipherStream: InputStream, passphrase: String, expectedCount: Long): Boolean {
+  fun verifyFile(cipherStream: InputStream, passphrase: String, expectedCount: Long, availableHashes: Set<String> = emptySet()): Boolean {
     val inputStream = BackupRecordInputStream(cipherStream, passphrase)
+    val seenHashes = HashSet<String>()
+    val progress = BackupProgressReporter(BackupEvent.Type.PROGRESS_VERIFYING, expectedCount)
+    val workers = List(getWorkerCount()) { BackupPipelineStage("verifier-$it", WORKER_QUEUE_CAPACITY) }
+
+    try {
+      var count = 0L
+      var frame: BackupFrame = inputStream.readFrame()
+
+      while (!frame.end) {
+        val worker = workers[(count % workers.size).toInt()]
 
-    var count = 0L
-    var frame: BackupFrame = inputStream.readFrame()
+        val verified = when {
+          frame.hasAttachment() && frame.attachment.reference -> verifyReference(frame.attachment, availableHashes, seenHashes)
+          frame.hasAttachment() -> verifyAttachment(frame.attachment, inputStream, worker).also { if (it && frame.attachment.hasDataHash()) seenHashes += frame.attachment.dataHash }
+          frame.hasSticker() -> verifySticker(frame.sticker, inputStream, worker)
+          frame.hasAvatar() -> verifyAvatar(frame.avatar, inputStream, worker)
+          else -> true
+        }
 
-    while (!frame.end) {
-      val verified = when {
-        frame.hasAttachment() -> verifyAttachment(frame.attachment, inputStream)
-        frame.hasSticker() -> verifySticker(frame.sticker, inputStream)
-        frame.hasAvatar() -> verifyAvatar(frame.avatar, inputStream)
-        else -> true
+        if (!verified) {
+          return false
+        }
+
+        progress.onProgress(++count, inputStream.bytesRead)
+
+        frame = inputStream.readFrame()
       }
 
-      if (!verified) {
+      try {
+        workers.forEach { it.finish() }
+      } catch (e: IOException) {
+        Log.w(TAG, "Bad attachment data", e)
         return false
       }
-
-      EventBus.getDefault().post(BackupEvent(BackupEvent.Type.PROGRESS_VERIFYING, ++count, expectedCount))
-
-      frame = inputStream.readFrame()
+    } finally {
+      workers.forEach { it.abort() }
     }
 
     cipherStream.close()
@@ -44,9 +69,13 @@ object BackupVerifier {
     return true
   }
 
-  private fun verifyAttachment(attachment: BackupProtos.Attachment, inputStream: BackupRecordInputStream): Boolean {
+  private fun getWorkerCount(): Int {
+    return (Runtime.getRuntime().availableProcessors() - 1).coerceIn(1, 4)
+  }
+
+  private fun verifyAttachment(attachment: BackupProtos.Attachment, inputStream: BackupRecordInputStream, worker: BackupPipelineStage): Boolean {
     try {
-      inputStream.readAttachmentTo(NullOutputStream, attachment.length)
+      inputStream.verifyAttachmentMac(attachment.length, worker, "attachment id: ${attachment.attachmentId}")
     } catch (e: IOException) {
       Log.w(TAG, "Bad attachment id: ${attachment.attachmentId} len: ${attachment.length}", e)
       return false
@@ -55,9 +84,18 @@ object BackupVerifier {
     return true
   }
 
-  private fun verifySticker(sticker: BackupProtos.Sticker, inputStream: BackupRecordInputStream): Boolean {
+  private fun verifyReference(attachment: BackupProtos.Attachment, availableHashes: Set<String>, seenHashes: Set<String>): Boolean {
+    if (attachment.dataHash in seenHashes || attachment.dataHash in availableHashes) {
+      return true
+    }
+
+    Log.w(TAG, "Missing referenced data for attachment id: ${attachment.attachmentId}")
+    return false
+  }
+
+  private fun verifySticker(sticker: BackupProtos.Sticker, inputStream: BackupRecordInputStream, worker: BackupPipelineStage): Boolean {
     try {
-      inputStream.readAttachmentTo(NullOutputStream, sticker.length)
+      inputStream.verifyAttachmentMac(sticker.length, worker, "sticker id: ${sticker.rowId}")
     } catch (e: IOException) {
       Log.w(TAG, "Bad sticker id: ${sticker.rowId} len: ${sticker.length}", e)
       return false
@@ -65,19 +103,13 @@ object BackupVerifier {
     return true
   }
 
-  private fun verifyAvatar(avatar: BackupProtos.Avatar, inputStream: BackupRecordInputStream): Boolean {
+  private fun verifyAvatar(avatar: BackupProtos.Avatar, inputStream: BackupRecordInputStream, worker: BackupPipelineStage): Boolean {
     try {
-      inputStream.readAttachmentTo(NullOutputStream, avatar.length)
+      inputStream.verifyAttachmentMac(avatar.length, worker, "avatar id: ${avatar.recipientId}")
     } catch (e: IOException) {
       Log.w(TAG, "Bad avatar id: ${avatar.recipientId} len: ${avatar.length}", e)
       return false
     }
     return true
   }
-
-  private object NullOutputStream : OutputStream() {
-    override fun write(b: Int) = Unit
-    override fun write(b: ByteArray?) = Unit
-    override fun write(b: ByteArray?, off: Int, len: Int) = Unit
-  }
 }
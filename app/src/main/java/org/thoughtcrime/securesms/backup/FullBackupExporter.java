@@ -63,9 +63,11 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -101,7 +103,9 @@ public class FullBackupExporter extends FullBackupBase {
       SenderKeyTable.TABLE_NAME,
       SenderKeySharedTable.TABLE_NAME,
       PendingRetryReceiptTable.TABLE_NAME,
-      AvatarPickerDatabase.TABLE_NAME
+      AvatarPickerDatabase.TABLE_NAME,
+      AttachmentTable.BLOB_TABLE_NAME,
+      AttachmentTable.TOMBSTONE_TABLE_NAME
   );
 
   public static BackupEvent export(@NonNull Context context,
@@ -109,11 +113,12 @@ public class FullBackupExporter extends FullBackupBase {
                             @NonNull SQLiteDatabase input,
                             @NonNull File output,
                             @NonNull String passphrase,
+                            @Nullable BackupChain.Parent parent,
                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
     try (OutputStream outputStream = new FileOutputStream(output)) {
-      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, parent, true, true, cancellationSignal);
     }
   }
 
@@ -123,11 +128,12 @@ public class FullBackupExporter extends FullBackupBase {
                             @NonNull SQLiteDatabase input,
                             @NonNull DocumentFile output,
                             @NonNull String passphrase,
+                            @Nullable BackupChain.Parent parent,
                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
     try (OutputStream outputStream = Objects.requireNonNull(context.getContentResolver().openOutputStream(output.getUri()))) {
-      return internalExport(context, attachmentSecret, input, outputStream, passphrase, true, cancellationSignal);
+      return internalExport(context, attachmentSecret, input, outputStream, passphrase, parent, true, true, cancellationSignal);
     }
   }
 
@@ -138,7 +144,7 @@ public class FullBackupExporter extends FullBackupBase {
                               @NonNull String passphrase)
       throws IOException
   {
-    EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, passphrase, false, () -> false));
+    EventBus.getDefault().post(internalExport(context, attachmentSecret, input, outputStream, passphrase, null, false, false, () -> false));
   }
 
   private static BackupEvent internalExport(@NonNull Context context,
@@ -146,11 +152,13 @@ public class FullBackupExporter extends FullBackupBase {
                                             @NonNull SQLiteDatabase input,
                                             @NonNull OutputStream fileOutputStream,
                                             @NonNull String passphrase,
+                                            @Nullable BackupChain.Parent parent,
                                             boolean closeOutputStream,
+                                            boolean saveManifest,
                                             @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
-    BackupFrameOutputStream outputStream          = new BackupFrameOutputStream(fileOutputStream, passphrase);
+    BackupFrameOutputStream outputStream          = new BackupFrameOutputStream(fileOutputStream, passphrase, parent);
     int                     count                 = 0;
     long                    estimatedCountOutside;
 
@@ -164,55 +172,65 @@ public class FullBackupExporter extends FullBackupBase {
       final long estimatedCount = calculateCount(context, input, tables);
       estimatedCountOutside = estimatedCount;
 
+      BackupProgressReporter progress = new BackupProgressReporter(BackupEvent.Type.PROGRESS, estimatedCount);
+
       Stopwatch stopwatch = new Stopwatch("Backup");
 
       for (String table : tables) {
         throwIfCanceled(cancellationSignal);
         if (table.equals(MessageTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringMmsMessage, null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, FullBackupExporter::isNonExpiringMmsMessage, null, count, progress, cancellationSignal);
         } else if (table.equals(ReactionTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, new MessageId(CursorUtil.requireLong(cursor, ReactionTable.MESSAGE_ID))), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, new MessageId(CursorUtil.requireLong(cursor, ReactionTable.MESSAGE_ID))), null, count, progress, cancellationSignal);
         } else if (table.equals(MentionTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, CursorUtil.requireLong(cursor, MentionTable.MESSAGE_ID)), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, CursorUtil.requireLong(cursor, MentionTable.MESSAGE_ID)), null, count, progress, cancellationSignal);
         } else if (table.equals(GroupReceiptTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptTable.MMS_ID))), null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptTable.MMS_ID))), null, count, progress, cancellationSignal);
         } else if (table.equals(AttachmentTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMmsMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.MMS_ID))), (cursor, innerCount) -> exportAttachment(attachmentSecret, cursor, outputStream, innerCount, progress), count, progress, cancellationSignal);
         } else if (table.equals(StickerTable.TABLE_NAME)) {
-          count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount, estimatedCount), count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, cursor -> true, (cursor, innerCount) -> exportSticker(attachmentSecret, cursor, outputStream, innerCount, progress), count, progress, cancellationSignal);
         } else if (!TABLE_CONTENT_BLOCKLIST.contains(table)) {
-          count = exportTable(table, input, outputStream, null, null, count, estimatedCount, cancellationSignal);
+          count = exportTable(table, input, outputStream, null, null, count, progress, cancellationSignal);
         }
         stopwatch.split("table::" + table);
       }
 
       for (BackupProtos.SharedPreference preference : TextSecurePreferences.getPreferencesToSaveToBackup(context)) {
         throwIfCanceled(cancellationSignal);
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+        progress.onProgress(++count, outputStream.getEncodedBytes());
         outputStream.write(preference);
       }
 
       stopwatch.split("prefs");
 
-      count = exportKeyValues(outputStream, SignalStore.getKeysToIncludeInBackup(), count, estimatedCount, cancellationSignal);
+      count = exportKeyValues(outputStream, SignalStore.getKeysToIncludeInBackup(), count, progress, cancellationSignal);
 
       stopwatch.split("key_values");
 
       for (AvatarHelper.Avatar avatar : AvatarHelper.getAvatars(context)) {
         throwIfCanceled(cancellationSignal);
         if (avatar != null) {
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-          try (InputStream inputStream = avatar.getInputStream()) {
-            outputStream.write(avatar.getFilename(), inputStream, avatar.getLength());
-          }
+          progress.onProgress(++count, outputStream.getEncodedBytes());
+          outputStream.write(avatar.getFilename(), avatar.getInputStream(), avatar.getLength());
         }
       }
 
       stopwatch.split("avatars");
-      stopwatch.stop(TAG);
 
       outputStream.writeEnd();
+      outputStream.finish();
+
+      stopwatch.split("finish");
+
+      if (saveManifest) {
+        BackupChain.saveManifest(context, outputStream.getBackupId(), outputStream.getAttachmentHashes());
+        stopwatch.split("manifest");
+      }
+      stopwatch.stop(TAG);
     } finally {
+      outputStream.abort();
+
       if (closeOutputStream) {
         outputStream.close();
       }
@@ -381,7 +399,7 @@ public class FullBackupExporter extends FullBackupBase {
                                  @Nullable Predicate<Cursor> predicate,
                                  @Nullable PostProcessor postProcess,
                                  int count,
-                                 long estimatedCount,
+                                 @NonNull BackupProgressReporter progress,
                                  @NonNull BackupCancellationSignal cancellationSignal)
       throws IOException
   {
@@ -421,7 +439,7 @@ public class FullBackupExporter extends FullBackupBase {
 
           statement.append(')');
 
-          EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+          progress.onProgress(++count, outputStream.getEncodedBytes());
           outputStream.write(statementBuilder.setStatement(statement.toString()).build());
 
           if (postProcess != null) {
@@ -438,23 +456,34 @@ public class FullBackupExporter extends FullBackupBase {
                                       @NonNull Cursor cursor,
                                       @NonNull BackupFrameOutputStream outputStream,
                                       int count,
-                                      long estimatedCount)
+                                      @NonNull BackupProgressReporter progress)
       throws IOException
   {
     long rowId    = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.ROW_ID));
     long uniqueId = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.UNIQUE_ID));
     long size     = cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentTable.SIZE));
 
-    String data   = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentTable.DATA));
-    byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_RANDOM));
+    String data     = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentTable.DATA));
+    byte[] random   = cursor.getBlob(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_RANDOM));
+    String dataHash = cursor.getString(cursor.getColumnIndexOrThrow(AttachmentTable.DATA_HASH));
 
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+    progress.onProgress(++count, outputStream.getEncodedBytes());
     if (!TextUtils.isEmpty(data) && size > 0) {
-      try (InputStream inputStream = openAttachmentStream(attachmentSecret, random, data)) {
-        outputStream.write(new AttachmentId(rowId, uniqueId), inputStream, size);
+      if (outputStream.canReference(dataHash)) {
+        outputStream.writeAttachmentReference(new AttachmentId(rowId, uniqueId), dataHash);
+        return count;
+      }
+
+      InputStream inputStream;
+
+      try {
+        inputStream = openAttachmentStream(attachmentSecret, random, data);
       } catch (FileNotFoundException e) {
         Log.w(TAG, "Missing attachment", e);
+        return count;
       }
+
+      outputStream.write(new AttachmentId(rowId, uniqueId), dataHash, inputStream, size);
     }
 
     return count;
@@ -464,7 +493,7 @@ public class FullBackupExporter extends FullBackupBase {
                                    @NonNull Cursor cursor,
                                    @NonNull BackupFrameOutputStream outputStream,
                                    int count,
-                                   long estimatedCount)
+                                   @NonNull BackupProgressReporter progress)
       throws IOException
   {
     long rowId = cursor.getLong(cursor.getColumnIndexOrThrow(StickerTable._ID));
@@ -474,12 +503,18 @@ public class FullBackupExporter extends FullBackupBase {
     byte[] random = cursor.getBlob(cursor.getColumnIndexOrThrow(StickerTable.FILE_RANDOM));
 
     if (!TextUtils.isEmpty(data) && size > 0) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
-      try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0)) {
-        outputStream.writeSticker(rowId, inputStream, size);
+      progress.onProgress(++count, outputStream.getEncodedBytes());
+
+      InputStream inputStream;
+
+      try {
+        inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, new File(data), 0);
       } catch (FileNotFoundException e) {
         Log.w(TAG, "Missing sticker", e);
+        return count;
       }
+
+      outputStream.writeSticker(rowId, inputStream, size);
     }
 
     return count;
@@ -492,7 +527,7 @@ public class FullBackupExporter extends FullBackupBase {
   private static int exportKeyValues(@NonNull BackupFrameOutputStream outputStream,
                                      @NonNull List<String> keysToIncludeInBackup,
                                      int count,
-                                     long estimatedCount,
+                                     @NonNull BackupProgressReporter progress,
                                      BackupCancellationSignal cancellationSignal) throws IOException
   {
     KeyValueDataSet dataSet = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication())
@@ -533,7 +568,7 @@ public class FullBackupExporter extends FullBackupBase {
         throw new AssertionError("Unknown type: " + type);
       }
 
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count, estimatedCount));
+      progress.onProgress(++count, outputStream.getEncodedBytes());
       outputStream.write(builder.build());
     }
 
@@ -567,17 +602,43 @@ public class FullBackupExporter extends FullBackupBase {
     return false;
   }
 
+  /**
+   * Encrypts and writes backup frames. The work is split across three threads so that each can run
+   * while the others are busy:
+   *
+   * - The caller reads the database and builds the frames.
+   * - The encoder stage serializes and encrypts frames (and reads attachments) in the order they
+   *   were given, so the output is exactly what it would be if it were all done on one thread.
+   * - The writer stage writes the ciphertext to disk.
+   *
+   * Stream writes take ownership of the provided stream, and close it once it's been written, or
+   * once it's skipped because the pipeline failed or was aborted.
+   * Nothing is guaranteed to be written until {@link #finish()} returns.
+   */
   private static class BackupFrameOutputStream extends BackupStream {
 
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
+    private static final int ENCODER_CAPACITY = 32;
+    private static final int WRITER_CAPACITY  = 16;
+
+    private final OutputStream          fileOutputStream;
+    private final BackupPipelineStage   encoder;
+    private final BackupPipelineStage   writer;
+    private final PipelinedOutputStream outputStream;
+    private final Cipher                cipher;
+    private final Mac                   mac;
 
     private final byte[] cipherKey;
     private final byte[] iv;
     private       int    counter;
+    private volatile long encodedBytes;
 
-    private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase) throws IOException {
+    private final ByteString backupId;
+    private final boolean    incremental;
+
+    /** Hashes of attachment data in this backup and the ones it's based on. */
+    private final Set<String> availableHashes;
+
+    private BackupFrameOutputStream(@NonNull OutputStream output, @NonNull String passphrase, @Nullable BackupChain.Parent parent) throws IOException {
       try {
         byte[]   salt    = Util.getSecretBytes(32);
         byte[]   key     = getBackupKey(passphrase, salt);
@@ -587,101 +648,216 @@ public class FullBackupExporter extends FullBackupBase {
         this.cipherKey = split[0];
         byte[] macKey  = split[1];
 
-        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = output;
-        this.iv           = Util.getSecretBytes(16);
-        this.counter      = Conversions.byteArrayToInt(iv);
+        this.cipher           = Cipher.getInstance("AES/CTR/NoPadding");
+        this.mac              = Mac.getInstance("HmacSHA256");
+        this.fileOutputStream = output;
+        this.iv               = Util.getSecretBytes(16);
+        this.counter          = Conversions.byteArrayToInt(iv);
 
         mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
 
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                           .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
-                                                .build().toByteArray();
+        this.backupId         = ByteString.copyFrom(Util.getSecretBytes(16));
+
+        BackupProtos.Header.Builder headerBuilder = BackupProtos.Header.newBuilder()
+                                                                       .setIv(ByteString.copyFrom(iv))
+                                                                       .setSalt(ByteString.copyFrom(salt))
+                                                                       .setBackupId(backupId);
+
+        if (parent != null) {
+          headerBuilder.setParentBackupId(parent.getBackupId());
+        }
+
+        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(headerBuilder).build().toByteArray();
 
-        outputStream.write(Conversions.intToByteArray(header.length));
-        outputStream.write(header);
+        output.write(Conversions.intToByteArray(header.length));
+        output.write(header);
       } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
         throw new AssertionError(e);
       }
+
+      this.incremental     = parent != null;
+      this.availableHashes = parent != null ? new HashSet<>(parent.getAttachmentHashes()) : new HashSet<>();
+      this.writer          = new BackupPipelineStage("writer", WRITER_CAPACITY);
+      this.encoder         = new BackupPipelineStage("encoder", ENCODER_CAPACITY);
+      this.outputStream    = new PipelinedOutputStream(output, writer, WRITER_CAPACITY);
     }
 
     public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+      writeFrame(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
     }
 
     public void write(BackupProtos.KeyValue keyValue) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
+      writeFrame(BackupProtos.BackupFrame.newBuilder().setKeyValue(keyValue).build());
     }
 
     public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+      writeFrame(BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
     }
 
     public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
+      BackupProtos.BackupFrame frame;
+
       try {
-        write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                    .setAvatar(BackupProtos.Avatar.newBuilder()
-                                                                                  .setRecipientId(avatarName)
-                                                                                  .setLength(Util.toIntExact(size))
-                                                                                  .build())
-                                                    .build());
+        frame = BackupProtos.BackupFrame.newBuilder()
+                                        .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                      .setRecipientId(avatarName)
+                                                                      .setLength(Util.toIntExact(size))
+                                                                      .build())
+                                        .build();
       } catch (ArithmeticException e) {
         Log.w(TAG, "Unable to write avatar to backup", e);
+        in.close();
         throw new InvalidBackupStreamException();
       }
 
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
+      writeFrameWithStream(frame, in, size);
     }
 
-    public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
+    public void write(@NonNull AttachmentId attachmentId, @Nullable String dataHash, @NonNull InputStream in, long size) throws IOException {
+      BackupProtos.BackupFrame frame;
+
       try {
-        write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                    .setAttachment(BackupProtos.Attachment.newBuilder()
-                                                                                          .setRowId(attachmentId.getRowId())
-                                                                                          .setAttachmentId(attachmentId.getUniqueId())
-                                                                                          .setLength(Util.toIntExact(size))
-                                                                                          .build())
-                                                    .build());
+        BackupProtos.Attachment.Builder attachment = BackupProtos.Attachment.newBuilder()
+                                                                            .setRowId(attachmentId.getRowId())
+                                                                            .setAttachmentId(attachmentId.getUniqueId())
+                                                                            .setLength(Util.toIntExact(size));
+
+        if (dataHash != null) {
+          attachment.setDataHash(dataHash);
+        }
+
+        frame = BackupProtos.BackupFrame.newBuilder().setAttachment(attachment).build();
       } catch (ArithmeticException e) {
         Log.w(TAG, "Unable to write " + attachmentId + " to backup", e);
+        in.close();
         throw new InvalidBackupStreamException();
       }
 
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
+      writeFrameWithStream(frame, in, size);
+
+      if (dataHash != null) {
+        availableHashes.add(dataHash);
       }
     }
 
+    /**
+     * @return True if attachment data with the given hash is already in this backup or the one it's
+     *         based on, and can be written with {@link #writeAttachmentReference} instead. Always
+     *         false for full backups.
+     */
+    boolean canReference(@Nullable String dataHash) {
+      return incremental && dataHash != null && availableHashes.contains(dataHash);
+    }
+
+    void writeAttachmentReference(@NonNull AttachmentId attachmentId, @NonNull String dataHash) throws IOException {
+      writeFrame(BackupProtos.BackupFrame.newBuilder()
+                                         .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                               .setRowId(attachmentId.getRowId())
+                                                                               .setAttachmentId(attachmentId.getUniqueId())
+                                                                               .setDataHash(dataHash)
+                                                                               .setReference(true)
+                                                                               .build())
+                                         .build());
+    }
+
+    @NonNull ByteString getBackupId() {
+      return backupId;
+    }
+
+    /**
+     * @return The hashes of the attachment data in this backup and the ones it's based on.
+     */
+    @NonNull Set<String> getAttachmentHashes() {
+      return availableHashes;
+    }
+
     public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
+      BackupProtos.BackupFrame frame;
+
       try {
-        write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                    .setSticker(BackupProtos.Sticker.newBuilder()
-                                                                                    .setRowId(rowId)
-                                                                                    .setLength(Util.toIntExact(size))
-                                                                                    .build())
-                                                    .build());
+        frame = BackupProtos.BackupFrame.newBuilder()
+                                        .setSticker(BackupProtos.Sticker.newBuilder()
+                                                                        .setRowId(rowId)
+                                                                        .setLength(Util.toIntExact(size))
+                                                                        .build())
+                                        .build();
       } catch (ArithmeticException e) {
         Log.w(TAG, "Unable to write sticker to backup", e);
+        in.close();
         throw new InvalidBackupStreamException();
       }
 
-      if (writeStream(in) != size) {
-        throw new IOException("Size mismatch!");
-      }
+      writeFrameWithStream(frame, in, size);
     }
 
     void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
-                                                  .build());
+      writeFrame(BackupProtos.BackupFrame.newBuilder()
+                                         .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
+                                         .build());
     }
 
     void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+      writeFrame(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+    }
+
+    /**
+     * Waits for everything to be encrypted and written, rethrowing any error that happened along
+     * the way.
+     */
+    void finish() throws IOException {
+      encoder.finish();
+      outputStream.finish();
+
+      long writtenBytes = outputStream.getBytesWritten();
+
+      Log.i(TAG, "[Pipeline] Reader waited " + encoder.getSubmitWaitMs() + " ms for the encoder. " +
+                 "Encoder was busy for " + encoder.getBusyMs() + " ms (" + throughput(encodedBytes, encoder.getBusyMs()) + "), and waited " + writer.getSubmitWaitMs() + " ms for the writer. " +
+                 "Writer was busy for " + writer.getBusyMs() + " ms (" + throughput(writtenBytes, writer.getBusyMs()) + ").");
+    }
+
+    /**
+     * @return How much data the encoder has written so far. Safe to call from any thread.
+     */
+    long getEncodedBytes() {
+      return encodedBytes;
+    }
+
+    /**
+     * Stops the pipeline without finishing anything that's still pending. Does nothing if
+     * {@link #finish()} has already completed.
+     */
+    void abort() {
+      encoder.abort();
+      writer.abort();
+    }
+
+    private void writeFrame(@NonNull BackupProtos.BackupFrame frame) throws IOException {
+      encoder.submit(() -> write(outputStream, frame));
+    }
+
+    private void writeFrameWithStream(@NonNull BackupProtos.BackupFrame frame, @NonNull InputStream in, long size) throws IOException {
+      try {
+        encoder.submit(new BackupPipelineStage.Task() {
+          @Override
+          public void run() throws IOException {
+            try (InputStream stream = in) {
+              write(outputStream, frame);
+
+              if (writeStream(stream) != size) {
+                throw new IOException("Size mismatch!");
+              }
+            }
+          }
+
+          @Override
+          public void onDiscard() throws IOException {
+            in.close();
+          }
+        });
+      } catch (IOException e) {
+        in.close();
+        throw e;
+      }
     }
 
     /**
@@ -716,6 +892,8 @@ public class FullBackupExporter extends FullBackupBase {
         byte[] attachmentDigest = mac.doFinal();
         outputStream.write(attachmentDigest, 0, 10);
 
+        encodedBytes += total;
+
         return total;
       } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
         throw new AssertionError(e);
@@ -734,15 +912,24 @@ public class FullBackupExporter extends FullBackupBase {
         out.write(length);
         out.write(frameCiphertext);
         out.write(frameMac, 0, 10);
+
+        encodedBytes += frameCiphertext.length;
       } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
         throw new AssertionError(e);
       }
     }
 
-
     public void close() throws IOException {
-      outputStream.flush();
-      outputStream.close();
+      fileOutputStream.flush();
+      fileOutputStream.close();
+    }
+
+    private static @NonNull String throughput(long bytes, long busyMs) {
+      if (busyMs <= 0) {
+        return bytes + " bytes";
+      }
+
+      return String.format(Locale.US, "%d bytes, %.1f MB/s", bytes, (bytes / 1024f / 1024f) / (busyMs / 1000f));
     }
   }
 
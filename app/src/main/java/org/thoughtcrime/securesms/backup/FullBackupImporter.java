@@ -9,9 +9,11 @@ import android.net.Uri;
 import android.util.Pair;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
 
 import net.zetetic.database.sqlcipher.SQLiteDatabase;
+import net.zetetic.database.sqlcipher.SQLiteStatement;
 
 import org.greenrobot.eventbus.EventBus;
 import org.signal.core.util.SqlUtil;
@@ -40,6 +42,7 @@ import org.thoughtcrime.securesms.util.BackupUtil;
 import org.thoughtcrime.securesms.util.SecurePreferenceManager;
 
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -48,15 +51,18 @@ import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class FullBackupImporter extends FullBackupBase {
@@ -68,42 +74,73 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull Uri uri, @NonNull String passphrase)
       throws IOException
   {
+    List<Uri> chain = BackupChain.resolveForRestore(context, uri);
+
     try (InputStream is = getInputStream(context, uri)) {
-      importFile(context, attachmentSecret, db, is, passphrase);
+      importFile(context, attachmentSecret, db, is, passphrase, chain.subList(0, chain.size() - 1));
     }
   }
 
   public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase)
       throws IOException
+  {
+    importFile(context, attachmentSecret, db, is, passphrase, Collections.emptyList());
+  }
+
+  /**
+   * @param ancestors The backups that this one is based on, oldest first. Attachment data that isn't
+   *                  in this backup is restored from them.
+   */
+  private static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                 @NonNull SQLiteDatabase db, @NonNull InputStream is, @NonNull String passphrase,
+                                 @NonNull List<Uri> ancestors)
+      throws IOException
   {
     int count = 0;
 
+    Map<String, AttachmentData>   restoredData      = new HashMap<>();
+    Map<String, List<Attachment>> pendingReferences = new HashMap<>();
+    List<String>                  deferredTriggers  = new LinkedList<>();
+
     SQLiteDatabase keyValueDatabase = KeyValueDatabase.getInstance(ApplicationDependencies.getApplication()).getSqlCipherDatabase();
 
     db.beginTransaction();
     keyValueDatabase.beginTransaction();
-    try {
+    try (StatementCache statementCache = new StatementCache(db)) {
       BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
+      BackupProgressReporter  progress    = new BackupProgressReporter(BackupEvent.Type.PROGRESS, 0);
 
       dropAllTables(db);
 
+      progress.postNow(0, 0);
+
       BackupFrame frame;
 
       while (!(frame = inputStream.readFrame()).getEnd()) {
-        if (count % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count, 0));
-        count++;
+        progress.onProgress(count++, inputStream.getBytesRead());
 
         if      (frame.hasVersion())    processVersion(db, frame.getVersion());
-        else if (frame.hasStatement())  processStatement(db, frame.getStatement());
+        else if (frame.hasStatement())  processStatement(db, frame.getStatement(), statementCache, deferredTriggers);
         else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
+        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream, restoredData, pendingReferences);
         else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream);
         else if (frame.hasAvatar())     processAvatar(context, db, frame.getAvatar(), inputStream);
         else if (frame.hasKeyValue())   processKeyValue(frame.getKeyValue());
         else                            count--;
       }
 
+      long rowMs = TimeUnit.NANOSECONDS.toMillis(statementCache.getExecuteNanos());
+      Log.i(TAG, "Inserted " + statementCache.getExecuteCount() + " rows in " + rowMs + " ms (" + (statementCache.getExecuteCount() * 1000 / Math.max(rowMs, 1)) + " rows/sec).");
+
+      if (!pendingReferences.isEmpty()) {
+        restoreReferencedAttachments(context, attachmentSecret, db, passphrase, ancestors, pendingReferences);
+      }
+
+      if (!deferredTriggers.isEmpty()) {
+        createDeferredTriggers(db, deferredTriggers);
+      }
+
       db.setTransactionSuccessful();
       keyValueDatabase.setTransactionSuccessful();
     } finally {
@@ -114,7 +151,7 @@ public class FullBackupImporter extends FullBackupBase {
     EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count, 0));
   }
 
-  private static @NonNull InputStream getInputStream(@NonNull Context context, @NonNull Uri uri) throws IOException{
+  static @NonNull InputStream getInputStream(@NonNull Context context, @NonNull Uri uri) throws IOException {
     if (BackupUtil.isUserSelectionRequired(context) || uri.getScheme().equals("content")) {
       return Objects.requireNonNull(context.getContentResolver().openInputStream(uri));
     } else {
@@ -130,46 +167,210 @@ public class FullBackupImporter extends FullBackupBase {
     db.setVersion(version.getVersion());
   }
 
-  private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
-    boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchTable.MMS_FTS_TABLE_NAME + "_");
-    boolean isForEmojiSecretTable  = statement.getStatement().contains(EmojiSearchTable.TABLE_NAME + "_");
-    boolean isForSqliteSecretTable = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
+  private static void processStatement(@NonNull SQLiteDatabase db, @NonNull SqlStatement statement, @NonNull StatementCache statementCache, @NonNull List<String> deferredTriggers) {
+    if (statement.getParametersCount() > 0) {
+      statementCache.execute(statement);
+      return;
+    }
 
-    if (isForMmsFtsSecretTable || isForEmojiSecretTable || isForSqliteSecretTable) {
+    if (isIgnoredStatement(statement.getStatement())) {
       Log.i(TAG, "Ignoring import for statement: " + statement.getStatement());
       return;
     }
 
-    List<Object> parameters = new LinkedList<>();
+    if (isSearchIndexTrigger(statement.getStatement()) || isAttachmentBlobTrigger(statement.getStatement())) {
+      deferredTriggers.add(statement.getStatement());
+      return;
+    }
+
+    db.execSQL(statement.getStatement());
+  }
+
+  @VisibleForTesting
+  static boolean isIgnoredStatement(@NonNull String statement) {
+    boolean isForMmsFtsSecretTable = statement.contains(SearchTable.MMS_FTS_TABLE_NAME + "_");
+    boolean isForEmojiSecretTable  = statement.contains(EmojiSearchTable.TABLE_NAME + "_");
+    boolean isForSqliteSecretTable = statement.toLowerCase(Locale.US).startsWith("create table sqlite_");
+
+    return isForMmsFtsSecretTable || isForEmojiSecretTable || isForSqliteSecretTable;
+  }
+
+  /**
+   * Triggers that keep the message search index up to date. Creating these after all of the rows
+   * are in, and then building the index in one go, is much faster than updating it for every row.
+   */
+  @VisibleForTesting
+  static boolean isSearchIndexTrigger(@NonNull String statement) {
+    return statement.regionMatches(true, 0, "CREATE TRIGGER", 0, "CREATE TRIGGER".length()) &&
+           statement.contains(SearchTable.MMS_FTS_TABLE_NAME);
+  }
+
+  /**
+   * Triggers that keep count of the attachments using each file. The paths to every file change as
+   * attachments are restored, so it's simpler to count them up once everything is in place.
+   */
+  @VisibleForTesting
+  static boolean isAttachmentBlobTrigger(@NonNull String statement) {
+    return statement.regionMatches(true, 0, "CREATE TRIGGER", 0, "CREATE TRIGGER".length()) &&
+           statement.contains(AttachmentTable.BLOB_TABLE_NAME);
+  }
+
+  private static void createDeferredTriggers(@NonNull SQLiteDatabase db, @NonNull List<String> triggers) {
+    for (String trigger : triggers) {
+      db.execSQL(trigger);
+    }
+
+    if (SqlUtil.tableExists(db, SearchTable.MMS_FTS_TABLE_NAME)) {
+      long start = System.currentTimeMillis();
+      db.execSQL("INSERT INTO " + SearchTable.MMS_FTS_TABLE_NAME + " (" + SearchTable.MMS_FTS_TABLE_NAME + ") VALUES ('rebuild')");
+      Log.i(TAG, "Rebuilt the search index in " + (System.currentTimeMillis() - start) + " ms.");
+    }
+
+    if (SqlUtil.tableExists(db, AttachmentTable.BLOB_TABLE_NAME)) {
+      db.delete(AttachmentTable.BLOB_TABLE_NAME, null, null);
+      db.execSQL(AttachmentTable.BACKFILL_BLOBS);
+    }
+  }
+
+  private static void processAttachment(@NonNull Context context,
+                                        @NonNull AttachmentSecret attachmentSecret,
+                                        @NonNull SQLiteDatabase db,
+                                        @NonNull Attachment attachment,
+                                        @NonNull BackupRecordInputStream inputStream,
+                                        @NonNull Map<String, AttachmentData> restoredData,
+                                        @NonNull Map<String, List<Attachment>> pendingReferences)
+      throws IOException
+  {
+    if (attachment.getReference()) {
+      AttachmentData data = restoredData.get(attachment.getDataHash());
+
+      if (data != null) {
+        updateAttachmentData(db, attachment, data);
+      } else {
+        List<Attachment> pending = pendingReferences.get(attachment.getDataHash());
+
+        if (pending == null) {
+          pending = new LinkedList<>();
+          pendingReferences.put(attachment.getDataHash(), pending);
+        }
+
+        pending.add(attachment);
+      }
+
+      return;
+    }
+
+    AttachmentData data = readAttachmentData(context, attachmentSecret, attachment, inputStream);
+
+    if (data != null && attachment.hasDataHash()) {
+      restoredData.put(attachment.getDataHash(), data);
+    }
+
+    updateAttachmentData(db, attachment, data);
+  }
+
+  /**
+   * Looks through the backups that this one is based on, newest first, for the attachment data it
+   * refers to. Anything that can't be found is cleared, the same as an attachment with a bad MAC.
+   */
+  private static void restoreReferencedAttachments(@NonNull Context context,
+                                                   @NonNull AttachmentSecret attachmentSecret,
+                                                   @NonNull SQLiteDatabase db,
+                                                   @NonNull String passphrase,
+                                                   @NonNull List<Uri> ancestors,
+                                                   @NonNull Map<String, List<Attachment>> pendingReferences)
+      throws IOException
+  {
+    Log.i(TAG, "Restoring " + pendingReferences.size() + " attachments from " + ancestors.size() + " older backups.");
+
+    for (int i = ancestors.size() - 1; i >= 0 && !pendingReferences.isEmpty(); i--) {
+      try (InputStream is = getInputStream(context, ancestors.get(i))) {
+        readReferencedData(is, passphrase, pendingReferences, (attachment, inputStream, references) -> {
+          AttachmentData data = readAttachmentData(context, attachmentSecret, attachment, inputStream);
+
+          for (Attachment reference : references) {
+            updateAttachmentData(db, reference, data);
+          }
+        });
+      }
+    }
+
+    if (!pendingReferences.isEmpty()) {
+      Log.w(TAG, "Unable to find the data for " + pendingReferences.size() + " attachments! Can't restore them.");
 
-    for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
-      if      (parameter.hasStringParamter())   parameters.add(parameter.getStringParamter());
-      else if (parameter.hasDoubleParameter())  parameters.add(parameter.getDoubleParameter());
-      else if (parameter.hasIntegerParameter()) parameters.add(parameter.getIntegerParameter());
-      else if (parameter.hasBlobParameter())    parameters.add(parameter.getBlobParameter().toByteArray());
-      else if (parameter.hasNullparameter())    parameters.add(null);
+      for (List<Attachment> pending : pendingReferences.values()) {
+        for (Attachment reference : pending) {
+          updateAttachmentData(db, reference, null);
+        }
+      }
     }
+  }
 
-    if (parameters.size() > 0) db.execSQL(statement.getStatement(), parameters.toArray());
-    else                       db.execSQL(statement.getStatement());
+  /**
+   * Reads one of the backups that this one is based on, and hands the reader the data for any
+   * pending references it has, removing them from the pending references. Everything else is skipped.
+   */
+  static void readReferencedData(@NonNull InputStream is,
+                                 @NonNull String passphrase,
+                                 @NonNull Map<String, List<Attachment>> pendingReferences,
+                                 @NonNull ReferencedDataReader reader)
+      throws IOException
+  {
+    BackupRecordInputStream inputStream = new BackupRecordInputStream(is, passphrase);
+    BackupFrame             frame;
+
+    while (!pendingReferences.isEmpty() && !(frame = inputStream.readFrame()).getEnd()) {
+      if (frame.hasAttachment()) {
+        Attachment attachment = frame.getAttachment();
+
+        if (attachment.getReference()) {
+          continue;
+        }
+
+        List<Attachment> pending = attachment.hasDataHash() ? pendingReferences.remove(attachment.getDataHash()) : null;
+
+        if (pending != null) {
+          reader.read(attachment, inputStream, pending);
+        } else {
+          inputStream.skipAttachment(attachment.getLength());
+        }
+      } else if (frame.hasSticker()) {
+        inputStream.skipAttachment(frame.getSticker().getLength());
+      } else if (frame.hasAvatar()) {
+        inputStream.skipAttachment(frame.getAvatar().getLength());
+      }
+    }
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  /**
+   * @return The restored data, or null if it couldn't be restored.
+   */
+  private static @Nullable AttachmentData readAttachmentData(@NonNull Context context,
+                                                             @NonNull AttachmentSecret attachmentSecret,
+                                                             @NonNull Attachment attachment,
+                                                             @NonNull BackupRecordInputStream inputStream)
       throws IOException
   {
     File                       dataFile = AttachmentTable.newFile(context);
     Pair<byte[], OutputStream> output   = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
 
-    ContentValues contentValues = new ContentValues();
-
     try {
       inputStream.readAttachmentTo(output.second, attachment.getLength());
-
-      contentValues.put(AttachmentTable.DATA, dataFile.getAbsolutePath());
-      contentValues.put(AttachmentTable.DATA_RANDOM, output.first);
+      return new AttachmentData(dataFile, output.first);
     } catch (BackupRecordInputStream.BadMacException e) {
       Log.w(TAG, "Bad MAC for attachment " + attachment.getAttachmentId() + "! Can't restore it.", e);
       dataFile.delete();
+      return null;
+    }
+  }
+
+  private static void updateAttachmentData(@NonNull SQLiteDatabase db, @NonNull Attachment attachment, @Nullable AttachmentData data) {
+    ContentValues contentValues = new ContentValues();
+
+    if (data != null) {
+      contentValues.put(AttachmentTable.DATA, data.file.getAbsolutePath());
+      contentValues.put(AttachmentTable.DATA_RANDOM, data.random);
+    } else {
       contentValues.put(AttachmentTable.DATA, (String) null);
       contentValues.put(AttachmentTable.DATA_RANDOM, (String) null);
     }
@@ -345,6 +546,107 @@ public class FullBackupImporter extends FullBackupBase {
     return new ArrayList<>(dropOrder);
   }
 
+  /**
+   * Compiled statements, keyed by their SQL. The exporter uses the same statement for every row in a
+   * table, so each one only needs to be compiled once.
+   */
+  private static final class StatementCache implements Closeable {
+
+    private final SQLiteDatabase               db;
+    private final Map<String, SQLiteStatement> statements = new HashMap<>();
+    private final Set<String>                  ignored    = new HashSet<>();
+
+    private long executeCount;
+    private long executeNanos;
+
+    private StatementCache(@NonNull SQLiteDatabase db) {
+      this.db = db;
+    }
+
+    void execute(@NonNull SqlStatement statement) {
+      SQLiteStatement compiled = get(statement.getStatement());
+
+      if (compiled == null) {
+        return;
+      }
+
+      long start = System.nanoTime();
+
+      compiled.clearBindings();
+
+      for (int i = 0; i < statement.getParametersCount(); i++) {
+        SqlStatement.SqlParameter parameter = statement.getParameters(i);
+
+        if      (parameter.hasStringParamter())   compiled.bindString(i + 1, parameter.getStringParamter());
+        else if (parameter.hasDoubleParameter())  compiled.bindDouble(i + 1, parameter.getDoubleParameter());
+        else if (parameter.hasIntegerParameter()) compiled.bindLong(i + 1, parameter.getIntegerParameter());
+        else if (parameter.hasBlobParameter())    compiled.bindBlob(i + 1, parameter.getBlobParameter().toByteArray());
+        else                                      compiled.bindNull(i + 1);
+      }
+
+      compiled.execute();
+
+      executeNanos += System.nanoTime() - start;
+      executeCount++;
+    }
+
+    long getExecuteCount() {
+      return executeCount;
+    }
+
+    long getExecuteNanos() {
+      return executeNanos;
+    }
+
+    /**
+     * @return The compiled statement, or null if the statement should be ignored.
+     */
+    private @Nullable SQLiteStatement get(@NonNull String sql) {
+      SQLiteStatement statement = statements.get(sql);
+
+      if (statement != null || ignored.contains(sql)) {
+        return statement;
+      }
+
+      if (isIgnoredStatement(sql)) {
+        Log.i(TAG, "Ignoring import for statement: " + sql);
+        ignored.add(sql);
+        return null;
+      }
+
+      statement = db.compileStatement(sql);
+      statements.put(sql, statement);
+
+      return statement;
+    }
+
+    @Override
+    public void close() {
+      for (SQLiteStatement statement : statements.values()) {
+        statement.close();
+      }
+
+      statements.clear();
+    }
+  }
+
+  private static final class AttachmentData {
+    private final File   file;
+    private final byte[] random;
+
+    private AttachmentData(@NonNull File file, @NonNull byte[] random) {
+      this.file   = file;
+      this.random = random;
+    }
+  }
+
+  interface ReferencedDataReader {
+    /**
+     * Called with the input stream positioned at the attachment's data, which must be read or skipped.
+     */
+    void read(@NonNull Attachment attachment, @NonNull BackupRecordInputStream inputStream, @NonNull List<Attachment> references) throws IOException;
+  }
+
   public static class DatabaseDowngradeException extends IOException {
     DatabaseDowngradeException(int currentVersion, int backupVersion) {
       super("Tried to import a backup with version " + backupVersion + " into a database with version " + currentVersion);
@@ -0,0 +1,100 @@
+package org.thoughtcrime.securesms.backup;
+
+import androidx.annotation.NonNull;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * An {@link OutputStream} that collects writes into fixed-size chunks and hands them off to a
+ * {@link BackupPipelineStage} to be written to the underlying stream on another thread. Must only
+ * be written to from one thread at a time.
+ *
+ * Nothing is guaranteed to have reached the underlying stream until {@link #finish()} returns.
+ */
+final class PipelinedOutputStream extends OutputStream {
+
+  private static final int CHUNK_SIZE = 64 * 1024;
+
+  private final OutputStream          output;
+  private final BackupPipelineStage   stage;
+  private final BlockingQueue<byte[]> freeChunks;
+
+  private byte[] chunk;
+  private int    chunkLength;
+  private long   bytesWritten;
+
+  /**
+   * @param maxChunksInFlight Should match the capacity of the stage, so that chunks can be recycled
+   *                          rather than allocated every time.
+   */
+  PipelinedOutputStream(@NonNull OutputStream output, @NonNull BackupPipelineStage stage, int maxChunksInFlight) {
+    this.output     = output;
+    this.stage      = stage;
+    this.freeChunks = new ArrayBlockingQueue<>(maxChunksInFlight + 1);
+    this.chunk      = new byte[CHUNK_SIZE];
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    write(new byte[] { (byte) b }, 0, 1);
+  }
+
+  @Override
+  public void write(@NonNull byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      int copied = Math.min(len, CHUNK_SIZE - chunkLength);
+
+      System.arraycopy(b, off, chunk, chunkLength, copied);
+      chunkLength  += copied;
+      bytesWritten += copied;
+      off          += copied;
+      len          -= copied;
+
+      if (chunkLength == CHUNK_SIZE) {
+        submitChunk();
+      }
+    }
+  }
+
+  /**
+   * Hands off whatever has been collected so far. Doesn't wait for it to be written.
+   */
+  @Override
+  public void flush() throws IOException {
+    if (chunkLength > 0) {
+      submitChunk();
+    }
+  }
+
+  /**
+   * Writes out everything that has been collected and waits until it's all been written to the
+   * underlying stream. Does not close the underlying stream.
+   */
+  void finish() throws IOException {
+    flush();
+    stage.submit(output::flush);
+    stage.finish();
+  }
+
+  long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  private void submitChunk() throws IOException {
+    byte[] full   = chunk;
+    int    length = chunkLength;
+
+    stage.submit(() -> {
+      output.write(full, 0, length);
+      freeChunks.offer(full);
+    });
+
+    byte[] recycled = freeChunks.poll();
+
+    chunk       = recycled != null ? recycled : new byte[CHUNK_SIZE];
+    chunkLength = 0;
+  }
+}
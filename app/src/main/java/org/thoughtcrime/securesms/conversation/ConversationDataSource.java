@@ -21,11 +21,12 @@ import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.Mention;
 import org.thoughtcrime.securesms.database.model.MessageId;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.database.model.MmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.ReactionRecord;
 import org.thoughtcrime.securesms.database.model.UpdateDescription;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.payments.Payment;
-import org.thoughtcrime.securesms.recipients.Recipient;
+import org.thoughtcrime.securesms.recipients.LiveRecipientCache;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.signalservice.api.push.ServiceId;
@@ -102,68 +103,85 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
     CallHelper          callHelper       = new CallHelper();
     Set<ServiceId>      referencedIds    = new HashSet<>();
 
-    try (MessageTable.Reader reader = MessageTable.mmsReaderFor(SignalDatabase.messages().getConversation(threadId, start, length))) {
-      MessageRecord record;
-      while ((record = reader.getNext()) != null && !cancellationSignal.isCanceled()) {
-        records.add(record);
-        mentionHelper.add(record);
-        quotedHelper.add(record);
-        reactionHelper.add(record);
-        attachmentHelper.add(record);
-        paymentHelper.add(record);
-        callHelper.add(record);
-
-        UpdateDescription description = record.getUpdateDisplayBody(context, null);
-        if (description != null) {
-          referencedIds.addAll(description.getMentioned());
+    LiveRecipientCache.Batch recipientBatch = ApplicationDependencies.getRecipientCache().beginBatch();
+
+    try {
+      try (MessageTable.Reader reader = MessageTable.mmsReaderFor(SignalDatabase.messages().getConversation(threadId, start, length))) {
+        MessageRecord record;
+        while ((record = reader.getNext()) != null && !cancellationSignal.isCanceled()) {
+          records.add(record);
+          mentionHelper.add(record);
+          quotedHelper.add(record);
+          reactionHelper.add(record);
+          attachmentHelper.add(record);
+          paymentHelper.add(record);
+          callHelper.add(record);
+
+          recipientBatch.add(record.getRecipient().getId());
+          recipientBatch.add(record.getIndividualRecipient().getId());
+
+          if (record instanceof MmsMessageRecord && ((MmsMessageRecord) record).getQuote() != null) {
+            recipientBatch.add(((MmsMessageRecord) record).getQuote().getAuthor());
+          }
+
+          UpdateDescription description = record.getUpdateDisplayBody(context, null);
+          if (description != null) {
+            referencedIds.addAll(description.getMentioned());
+          }
         }
       }
-    }
 
-    if (messageRequestData.includeWarningUpdateMessage() && (start + length >= size())) {
-      records.add(new InMemoryMessageRecord.NoGroupsInCommon(threadId, messageRequestData.isGroup()));
-    }
+      if (messageRequestData.includeWarningUpdateMessage() && (start + length >= size())) {
+        records.add(new InMemoryMessageRecord.NoGroupsInCommon(threadId, messageRequestData.isGroup()));
+      }
 
-    if (showUniversalExpireTimerUpdate) {
-      records.add(new InMemoryMessageRecord.UniversalExpireTimerUpdate(threadId));
-    }
+      if (showUniversalExpireTimerUpdate) {
+        records.add(new InMemoryMessageRecord.UniversalExpireTimerUpdate(threadId));
+      }
 
-    stopwatch.split("messages");
+      stopwatch.split("messages");
 
-    mentionHelper.fetchMentions(context);
-    stopwatch.split("mentions");
+      mentionHelper.fetchMentions(context);
+      stopwatch.split("mentions");
 
-    quotedHelper.fetchQuotedState();
-    stopwatch.split("is-quoted");
+      quotedHelper.fetchQuotedState();
+      stopwatch.split("is-quoted");
 
-    reactionHelper.fetchReactions();
-    stopwatch.split("reactions");
+      reactionHelper.fetchReactions();
+      stopwatch.split("reactions");
 
-    records = reactionHelper.buildUpdatedModels(records);
-    stopwatch.split("reaction-models");
+      records = reactionHelper.buildUpdatedModels(records);
+      stopwatch.split("reaction-models");
 
-    attachmentHelper.fetchAttachments();
-    stopwatch.split("attachments");
+      attachmentHelper.fetchAttachments();
+      stopwatch.split("attachments");
 
-    records = attachmentHelper.buildUpdatedModels(context, records);
-    stopwatch.split("attachment-models");
+      records = attachmentHelper.buildUpdatedModels(context, records);
+      stopwatch.split("attachment-models");
 
-    paymentHelper.fetchPayments();
-    stopwatch.split("payments");
+      paymentHelper.fetchPayments();
+      stopwatch.split("payments");
 
-    records = paymentHelper.buildUpdatedModels(records);
-    stopwatch.split("payment-models");
+      records = paymentHelper.buildUpdatedModels(records);
+      stopwatch.split("payment-models");
 
-    callHelper.fetchCalls();
-    stopwatch.split("calls");
+      callHelper.fetchCalls();
+      stopwatch.split("calls");
 
-    records = callHelper.buildUpdatedModels(records);
-    stopwatch.split("call-models");
+      records = callHelper.buildUpdatedModels(records);
+      stopwatch.split("call-models");
 
-    for (ServiceId serviceId : referencedIds) {
-      Recipient.resolved(RecipientId.from(serviceId));
+      for (ServiceId serviceId : referencedIds) {
+        recipientBatch.add(RecipientId.from(serviceId));
+      }
+
+      recipientBatch.addAll(mentionHelper.getMentionedRecipientIds());
+      recipientBatch.addAll(reactionHelper.getReactionAuthors());
+      recipientBatch.resolve();
+      stopwatch.split("recipient-resolves");
+    } finally {
+      recipientBatch.close();
     }
-    stopwatch.split("recipient-resolves");
 
     List<ConversationMessage> messages = Stream.of(records)
                                                .map(m -> ConversationMessageFactory.createWithUnresolvedData(context, m, mentionHelper.getMentions(m.getId()), quotedHelper.isQuoted(m.getId())))
@@ -252,6 +270,18 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
     @Nullable List<Mention> getMentions(long id) {
       return messageIdToMentions.get(id);
     }
+
+    @NonNull Set<RecipientId> getMentionedRecipientIds() {
+      Set<RecipientId> recipientIds = new HashSet<>();
+
+      for (List<Mention> mentions : messageIdToMentions.values()) {
+        for (Mention mention : mentions) {
+          recipientIds.add(mention.getRecipientId());
+        }
+      }
+
+      return recipientIds;
+    }
   }
 
   private static class QuotedHelper {
@@ -329,6 +359,18 @@ public class ConversationDataSource implements PagedDataSource<MessageId, Conver
       messageIdToReactions = SignalDatabase.reactions().getReactionsForMessages(messageIds);
     }
 
+    @NonNull Set<RecipientId> getReactionAuthors() {
+      Set<RecipientId> authors = new HashSet<>();
+
+      for (List<ReactionRecord> reactions : messageIdToReactions.values()) {
+        for (ReactionRecord reaction : reactions) {
+          authors.add(reaction.getAuthor());
+        }
+      }
+
+      return authors;
+    }
+
     public @NonNull List<MessageRecord> buildUpdatedModels(@NonNull List<MessageRecord> records) {
       return records.stream()
                     .map(record -> {
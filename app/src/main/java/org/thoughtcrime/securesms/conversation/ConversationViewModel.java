@@ -52,6 +52,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 import io.reactivex.rxjava3.android.schedulers.AndroidSchedulers;
@@ -112,7 +113,17 @@ public class ConversationViewModel extends ViewModel {
     this.events                         = new SingleLiveEvent<>();
     this.pagingController               = new ProxyPagingController<>();
     this.conversationObserver           = pagingController::onDataInvalidated;
-    this.messageUpdateObserver          = pagingController::onDataItemChanged;
+    this.messageUpdateObserver          = new DatabaseObserver.MessageObserver() {
+      @Override
+      public void onMessageChanged(@NonNull MessageId messageId) {
+        pagingController.onDataItemChanged(messageId);
+      }
+
+      @Override
+      public void onMessagesChanged(@NonNull Set<MessageId> messageIds) {
+        pagingController.onDataItemsChanged(messageIds);
+      }
+    };
     this.messageInsertObserver          = messageId -> pagingController.onDataItemInserted(messageId, 0);
     this.toolbarBottom                  = new MutableLiveData<>();
     this.inlinePlayerHeight             = new MutableLiveData<>();
@@ -0,0 +1,195 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.Conversions;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Random-access reads of a file written by {@link ModernEncryptingPartOutputStream}.
+ *
+ * Unlike {@link ModernDecryptingPartInputStream}, the file is only opened and the key only derived
+ * once. Reads go straight to the right spot in the file, since the CTR counter for any position can
+ * be calculated directly, and a few of the most recently decrypted chunks are kept around, because
+ * media players tend to make lots of small reads close to each other.
+ */
+public final class ModernDecryptingPartChannel implements Closeable {
+
+  private static final int CHUNK_SIZE        = 64 * 1024;
+  private static final int MAX_CACHED_CHUNKS = 4;
+  private static final int RANDOM_LENGTH     = 32;
+
+  private final FileInputStream  inputStream;
+  private final FileChannel      channel;
+  private final long             dataOffset;
+  private final SecretKeySpec    key;
+  private final Cipher           cipher;
+  private final byte[]           iv;
+  private final Map<Long, Chunk> chunks;
+
+  private byte[] spareBuffer;
+
+  /**
+   * For files that start with the random part of their key.
+   */
+  public static ModernDecryptingPartChannel createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull File file) throws IOException {
+    return new ModernDecryptingPartChannel(attachmentSecret, null, file);
+  }
+
+  public static ModernDecryptingPartChannel createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file) throws IOException {
+    return new ModernDecryptingPartChannel(attachmentSecret, random, file);
+  }
+
+  private ModernDecryptingPartChannel(@NonNull AttachmentSecret attachmentSecret, @Nullable byte[] random, @NonNull File file) throws IOException {
+    this.inputStream = new FileInputStream(file);
+    this.channel     = inputStream.getChannel();
+    this.iv          = new byte[16];
+    this.chunks      = new LinkedHashMap<>(MAX_CACHED_CHUNKS + 1, 0.75f, true);
+
+    try {
+      if (random == null) {
+        random = new byte[RANDOM_LENGTH];
+
+        if (readFully(ByteBuffer.wrap(random), 0) != RANDOM_LENGTH) {
+          throw new IOException("Prematurely reached end of stream!");
+        }
+
+        this.dataOffset = RANDOM_LENGTH;
+      } else {
+        this.dataOffset = 0;
+      }
+
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      this.key    = new SecretKeySpec(mac.doFinal(random), "AES");
+      this.cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException e) {
+      inputStream.close();
+      throw new AssertionError(e);
+    } catch (IOException e) {
+      inputStream.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Reads up to length bytes of plaintext, starting at the given plaintext position.
+   *
+   * @return The number of bytes read, which is only less than length at the end of the file, or -1
+   *         if the position is at or past the end of the file.
+   */
+  public synchronized int read(long position, @NonNull byte[] buffer, int offset, int length) throws IOException {
+    int totalRead = 0;
+
+    while (length > 0) {
+      Chunk chunk         = getChunk(position / CHUNK_SIZE);
+      int   chunkPosition = (int) (position % CHUNK_SIZE);
+
+      if (chunkPosition >= chunk.length) {
+        break;
+      }
+
+      int read = Math.min(length, chunk.length - chunkPosition);
+
+      System.arraycopy(chunk.data, chunkPosition, buffer, offset, read);
+
+      position  += read;
+      offset    += read;
+      length    -= read;
+      totalRead += read;
+    }
+
+    return totalRead == 0 && length > 0 ? -1 : totalRead;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    chunks.clear();
+    channel.close();
+    inputStream.close();
+  }
+
+  private @NonNull Chunk getChunk(long chunkIndex) throws IOException {
+    Chunk chunk = chunks.get(chunkIndex);
+
+    if (chunk != null) {
+      return chunk;
+    }
+
+    byte[] data       = spareBuffer != null ? spareBuffer : new byte[CHUNK_SIZE];
+    long   chunkStart = chunkIndex * CHUNK_SIZE;
+    int    read       = readFully(ByteBuffer.wrap(data), dataOffset + chunkStart);
+
+    spareBuffer = null;
+
+    try {
+      Conversions.longTo4ByteArray(iv, 12, chunkStart / 16);
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+      cipher.doFinal(data, 0, read, data, 0);
+    } catch (InvalidKeyException | InvalidAlgorithmParameterException e) {
+      throw new AssertionError(e);
+    } catch (GeneralSecurityException e) {
+      throw new IOException(e);
+    }
+
+    chunk = new Chunk(data, read);
+    chunks.put(chunkIndex, chunk);
+
+    if (chunks.size() > MAX_CACHED_CHUNKS) {
+      Iterator<Chunk> iterator = chunks.values().iterator();
+
+      spareBuffer = iterator.next().data;
+      iterator.remove();
+    }
+
+    return chunk;
+  }
+
+  private int readFully(@NonNull ByteBuffer buffer, long position) throws IOException {
+    int total = 0;
+
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + total);
+
+      if (read == -1) {
+        break;
+      }
+
+      total += read;
+    }
+
+    return total;
+  }
+
+  private static final class Chunk {
+    private final byte[] data;
+    private final int    length;
+
+    private Chunk(@NonNull byte[] data, int length) {
+      this.data   = data;
+      this.length = length;
+    }
+  }
+}
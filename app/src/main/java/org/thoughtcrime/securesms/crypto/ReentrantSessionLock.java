@@ -6,6 +6,12 @@ import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An implementation of {@link SignalSessionLock} that is backed by a {@link ReentrantLock}.
+ *
+ * This is deliberately one lock for every session rather than one per address. Decrypting a message
+ * can save the sender's identity, and an identity change archives the sessions of all of that
+ * sender's devices, which would live under other per-address locks. Decryption also already runs
+ * under this lock for the whole of a database transaction, so per-address locks wouldn't let any
+ * more of it run in parallel.
  */
 public enum ReentrantSessionLock implements SignalSessionLock {
 
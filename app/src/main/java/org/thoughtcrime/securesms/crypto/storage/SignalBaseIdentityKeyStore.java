@@ -287,6 +287,9 @@ public class SignalBaseIdentityKeyStore {
         identityDatabase.saveIdentity(addressName, recipientId, identityKey, verifiedStatus, firstUse, timestamp, nonBlockingApproval);
         cache.put(addressName, new IdentityStoreRecord(addressName, identityKey, verifiedStatus, firstUse, timestamp, nonBlockingApproval));
       });
+
+      // If we're part of a larger transaction that gets rolled back, the cache would otherwise keep an identity that was never saved
+      SignalDatabase.runPostFailedTransaction("SignalBaseIdentityKeyStore:" + addressName, () -> invalidate(addressName));
     }
 
     public void setApproval(@NonNull String addressName, @NonNull RecipientId recipientId, boolean nonblockingApproval) {
@@ -77,6 +77,7 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -84,6 +85,7 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 public class AttachmentTable extends DatabaseTable {
@@ -118,13 +120,25 @@ public class AttachmentTable extends DatabaseTable {
           static final String WIDTH                  = "width";
           static final String HEIGHT                 = "height";
           static final String CAPTION                = "caption";
-          static final String DATA_HASH              = "data_hash";
+  public  static final String DATA_HASH              = "data_hash";
           static final String VISUAL_HASH            = "blur_hash";
           static final String TRANSFORM_PROPERTIES   = "transform_properties";
           static final String DISPLAY_ORDER          = "display_order";
           static final String UPLOAD_TIMESTAMP       = "upload_timestamp";
           static final String CDN_NUMBER             = "cdn_number";
 
+  public  static final String BLOB_TABLE_NAME        = "attachment_blob";
+  private static final String BLOB_REF_COUNT         = "ref_count";
+  private static final String BLOB_QUOTE_REF_COUNT   = "quote_ref_count";
+
+  public  static final String TOMBSTONE_TABLE_NAME   = "attachment_tombstone";
+  private static final String TOMBSTONE_ID           = "_id";
+  private static final String TOMBSTONE_TIMESTAMP    = "timestamp";
+  private static final String TOMBSTONE_ATTEMPTS     = "delete_attempts";
+
+  private static final long   TOMBSTONE_RETRY_BACKOFF     = TimeUnit.HOURS.toMillis(1);
+  private static final int    TOMBSTONE_MAX_BACKOFF_SHIFT = 7;
+
   private static final String DIRECTORY              = "parts";
 
   public static final int TRANSFER_PROGRESS_DONE              = 0;
@@ -135,8 +149,7 @@ public class AttachmentTable extends DatabaseTable {
 
   public static final long PREUPLOAD_MESSAGE_ID = -8675309;
 
-  private static final String PART_ID_WHERE     = ROW_ID + " = ? AND " + UNIQUE_ID + " = ?";
-  private static final String PART_ID_WHERE_NOT = ROW_ID + " != ? AND " + UNIQUE_ID + " != ?";
+  private static final String PART_ID_WHERE = ROW_ID + " = ? AND " + UNIQUE_ID + " = ?";
 
   private static final String[] PROJECTION = new String[] {ROW_ID,
                                                            MMS_ID, CONTENT_TYPE, NAME, CONTENT_DISPOSITION,
@@ -193,9 +206,85 @@ public class AttachmentTable extends DatabaseTable {
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + TRANSFER_STATE + ");",
     "CREATE INDEX IF NOT EXISTS part_sticker_pack_id_index ON " + TABLE_NAME + " (" + STICKER_PACK_ID + ");",
     "CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ");",
-    "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");"
+    "CREATE INDEX IF NOT EXISTS part_data_index ON " + TABLE_NAME + " (" + DATA + ");",
+    "CREATE INDEX IF NOT EXISTS attachment_blob_data_hash_index ON " + BLOB_TABLE_NAME + " (" + DATA_HASH + ");",
+    "CREATE INDEX IF NOT EXISTS attachment_tombstone_timestamp_index ON " + TOMBSTONE_TABLE_NAME + " (" + TOMBSTONE_TIMESTAMP + ");"
+  };
+
+  /**
+   * One row per file on disk that's referenced by an attachment. Any number of attachments with the same data can share a file, and the
+   * triggers below keep count of how many point at each one, so figuring out whether a file can be deleted is a single lookup. Quotes only
+   * hold a weak reference to their file and are counted separately.
+   */
+  public static final String CREATE_BLOB_TABLE = "CREATE TABLE " + BLOB_TABLE_NAME + " (" + DATA                 + " TEXT PRIMARY KEY, " +
+                                                                                            DATA_HASH            + " TEXT DEFAULT NULL, " +
+                                                                                            DATA_RANDOM          + " BLOB DEFAULT NULL, " +
+                                                                                            SIZE                 + " INTEGER DEFAULT 0, " +
+                                                                                            BLOB_REF_COUNT       + " INTEGER DEFAULT 0, " +
+                                                                                            BLOB_QUOTE_REF_COUNT + " INTEGER DEFAULT 0)";
+
+  /**
+   * Files that lost their last reference, quotes included, and when. Written by a trigger, so that the files can be cleaned up later on without
+   * having to look through the whole parts directory. See {@link #collectTombstones(long, int)}.
+   */
+  public static final String CREATE_TOMBSTONE_TABLE = "CREATE TABLE " + TOMBSTONE_TABLE_NAME + " (" + TOMBSTONE_ID        + " INTEGER PRIMARY KEY, " +
+                                                                                                      DATA                + " TEXT UNIQUE NOT NULL, " +
+                                                                                                      TOMBSTONE_TIMESTAMP + " INTEGER NOT NULL, " +
+                                                                                                      TOMBSTONE_ATTEMPTS  + " INTEGER DEFAULT 0)";
+
+  public static final String[] CREATE_TRIGGERS = {
+    "CREATE TRIGGER attachment_blob_part_insert AFTER INSERT ON " + TABLE_NAME + " WHEN new." + DATA + " IS NOT NULL BEGIN " +
+      "INSERT OR IGNORE INTO " + BLOB_TABLE_NAME + " (" + DATA + ", " + DATA_HASH + ", " + DATA_RANDOM + ", " + SIZE + ") VALUES (new." + DATA + ", new." + DATA_HASH + ", new." + DATA_RANDOM + ", new." + SIZE + "); " +
+      addBlobReference("new") +
+    "END;",
+
+    "CREATE TRIGGER attachment_blob_part_delete AFTER DELETE ON " + TABLE_NAME + " WHEN old." + DATA + " IS NOT NULL BEGIN " +
+      removeBlobReference("old") +
+    "END;",
+
+    "CREATE TRIGGER attachment_blob_part_move AFTER UPDATE OF " + DATA + ", " + QUOTE + " ON " + TABLE_NAME + " WHEN old." + DATA + " IS NOT new." + DATA + " OR old." + QUOTE + " IS NOT new." + QUOTE + " BEGIN " +
+      removeBlobReference("old") +
+      "INSERT OR IGNORE INTO " + BLOB_TABLE_NAME + " (" + DATA + ", " + DATA_HASH + ", " + DATA_RANDOM + ", " + SIZE + ") SELECT new." + DATA + ", new." + DATA_HASH + ", new." + DATA_RANDOM + ", new." + SIZE + " WHERE new." + DATA + " IS NOT NULL; " +
+      addBlobReference("new") +
+    "END;",
+
+    "CREATE TRIGGER attachment_blob_part_rewrite AFTER UPDATE OF " + DATA_HASH + ", " + DATA_RANDOM + ", " + SIZE + " ON " + TABLE_NAME + " WHEN new." + DATA + " IS NOT NULL AND old." + DATA + " IS new." + DATA + " BEGIN " +
+      "UPDATE " + BLOB_TABLE_NAME + " SET " + DATA_HASH + " = IFNULL(new." + DATA_HASH + ", " + DATA_HASH + "), " + DATA_RANDOM + " = IFNULL(new." + DATA_RANDOM + ", " + DATA_RANDOM + "), " + SIZE + " = new." + SIZE + " WHERE " + DATA + " = new." + DATA + "; " +
+    "END;",
+
+    "CREATE TRIGGER attachment_blob_tombstone AFTER UPDATE OF " + BLOB_REF_COUNT + ", " + BLOB_QUOTE_REF_COUNT + " ON " + BLOB_TABLE_NAME + " WHEN (old." + BLOB_REF_COUNT + " > 0 OR old." + BLOB_QUOTE_REF_COUNT + " > 0) AND new." + BLOB_REF_COUNT + " <= 0 AND new." + BLOB_QUOTE_REF_COUNT + " <= 0 BEGIN " +
+      "INSERT OR REPLACE INTO " + TOMBSTONE_TABLE_NAME + " (" + DATA + ", " + TOMBSTONE_TIMESTAMP + ") VALUES (new." + DATA + ", CAST(strftime('%s', 'now') AS INTEGER) * 1000); " +
+    "END;",
+
+    "CREATE TRIGGER attachment_blob_revive AFTER UPDATE OF " + BLOB_REF_COUNT + ", " + BLOB_QUOTE_REF_COUNT + " ON " + BLOB_TABLE_NAME + " WHEN old." + BLOB_REF_COUNT + " <= 0 AND old." + BLOB_QUOTE_REF_COUNT + " <= 0 AND (new." + BLOB_REF_COUNT + " > 0 OR new." + BLOB_QUOTE_REF_COUNT + " > 0) BEGIN " +
+      "DELETE FROM " + TOMBSTONE_TABLE_NAME + " WHERE " + DATA + " = new." + DATA + "; " +
+    "END;",
+
+    "CREATE TRIGGER attachment_blob_delete AFTER DELETE ON " + BLOB_TABLE_NAME + " BEGIN " +
+      "DELETE FROM " + TOMBSTONE_TABLE_NAME + " WHERE " + DATA + " = old." + DATA + "; " +
+    "END;"
   };
 
+  /**
+   * Fills the blob table from scratch. Only valid while the blob table is empty.
+   */
+  public static final String BACKFILL_BLOBS = "INSERT INTO " + BLOB_TABLE_NAME + " (" + DATA + ", " + DATA_HASH + ", " + DATA_RANDOM + ", " + SIZE + ", " + BLOB_REF_COUNT + ", " + BLOB_QUOTE_REF_COUNT + ") " +
+                                              "SELECT " + DATA + ", MAX(" + DATA_HASH + "), MAX(" + DATA_RANDOM + "), MAX(" + SIZE + "), SUM(" + QUOTE + " IS NOT 1), SUM(" + QUOTE + " IS 1) " +
+                                              "FROM " + TABLE_NAME + " WHERE " + DATA + " NOT NULL GROUP BY " + DATA;
+
+  private static String addBlobReference(@NonNull String row) {
+    return "UPDATE " + BLOB_TABLE_NAME + " SET " + DATA_HASH + " = IFNULL(" + DATA_HASH + ", " + row + "." + DATA_HASH + "), " +
+                                                 BLOB_REF_COUNT + " = " + BLOB_REF_COUNT + " + (" + row + "." + QUOTE + " IS NOT 1), " +
+                                                 BLOB_QUOTE_REF_COUNT + " = " + BLOB_QUOTE_REF_COUNT + " + (" + row + "." + QUOTE + " IS 1) " +
+           "WHERE " + DATA + " = " + row + "." + DATA + "; ";
+  }
+
+  private static String removeBlobReference(@NonNull String row) {
+    return "UPDATE " + BLOB_TABLE_NAME + " SET " + BLOB_REF_COUNT + " = " + BLOB_REF_COUNT + " - (" + row + "." + QUOTE + " IS NOT 1), " +
+                                                 BLOB_QUOTE_REF_COUNT + " = " + BLOB_QUOTE_REF_COUNT + " - (" + row + "." + QUOTE + " IS 1) " +
+           "WHERE " + DATA + " = " + row + "." + DATA + "; ";
+  }
+
   private final AttachmentSecret attachmentSecret;
 
   public AttachmentTable(Context context, SignalDatabase databaseHelper, AttachmentSecret attachmentSecret) {
@@ -343,16 +432,13 @@ public class AttachmentTable extends DatabaseTable {
 
     db.beginTransaction();
     try {
-      try (Cursor cursor = db.query(TABLE_NAME, new String[] { DATA, CONTENT_TYPE, ROW_ID, UNIQUE_ID }, MMS_ID + " = ?", new String[] { mmsId + "" }, null, null, null)) {
-        while (cursor.moveToNext()) {
-          deleteAttachmentOnDisk(CursorUtil.requireString(cursor, DATA),
-                                 CursorUtil.requireString(cursor, CONTENT_TYPE),
-                                 new AttachmentId(CursorUtil.requireLong(cursor, ROW_ID),
-                                                  CursorUtil.requireLong(cursor, UNIQUE_ID)));
-        }
+      List<AttachmentFile> files       = getAttachmentFilesForMessage(db, mmsId);
+      int                  deleteCount = db.delete(TABLE_NAME, MMS_ID + " = ?", new String[] { mmsId + "" });
+
+      for (AttachmentFile file : files) {
+        deleteAttachmentOnDisk(file.data, file.contentType, file.attachmentId);
       }
 
-      int deleteCount = db.delete(TABLE_NAME, MMS_ID + " = ?", new String[] { mmsId + "" });
       notifyAttachmentListeners();
       db.setTransactionSuccessful();
 
@@ -396,14 +482,7 @@ public class AttachmentTable extends DatabaseTable {
 
     db.beginTransaction();
     try {
-      try (Cursor cursor = db.query(TABLE_NAME, new String[] { DATA, CONTENT_TYPE, ROW_ID, UNIQUE_ID }, MMS_ID + " = ?", new String[] { mmsId + "" }, null, null, null)) {
-        while (cursor != null && cursor.moveToNext()) {
-          deleteAttachmentOnDisk(CursorUtil.requireString(cursor, DATA),
-                                 CursorUtil.requireString(cursor, CONTENT_TYPE),
-                                 new AttachmentId(CursorUtil.requireLong(cursor, ROW_ID),
-                                                  CursorUtil.requireLong(cursor, UNIQUE_ID)));
-        }
-      }
+      List<AttachmentFile> files = getAttachmentFilesForMessage(db, mmsId);
 
       ContentValues values = new ContentValues();
       values.put(DATA, (String) null);
@@ -419,6 +498,11 @@ public class AttachmentTable extends DatabaseTable {
       values.put(CONTENT_TYPE, MediaUtil.VIEW_ONCE);
 
       db.update(TABLE_NAME, values, MMS_ID + " = ?", new String[] { mmsId + "" });
+
+      for (AttachmentFile file : files) {
+        deleteAttachmentOnDisk(file.data, file.contentType, file.attachmentId);
+      }
+
       notifyAttachmentListeners();
 
       long threadId = SignalDatabase.messages().getThreadIdForMessage(mmsId);
@@ -457,7 +541,12 @@ public class AttachmentTable extends DatabaseTable {
     }
   }
 
-  public void trimAllAbandonedAttachments() {
+  /**
+   * Deletes attachments whose message no longer exists. Their files are left for {@link #collectTombstones(long, int)}.
+   *
+   * @return The number of attachments deleted.
+   */
+  public int trimAllAbandonedAttachments() {
     SQLiteDatabase db              = databaseHelper.getSignalWritableDatabase();
     String         selectAllMmsIds = "SELECT " + MessageTable.ID + " FROM " + MessageTable.TABLE_NAME;
     String         where           = MMS_ID + " != " + PREUPLOAD_MESSAGE_ID + " AND " + MMS_ID + " NOT IN (" + selectAllMmsIds + ")";
@@ -466,6 +555,78 @@ public class AttachmentTable extends DatabaseTable {
     if (deletes > 0) {
       Log.i(TAG, "Trimmed " + deletes + " abandoned attachments.");
     }
+
+    return deletes;
+  }
+
+  /**
+   * Deletes the files for up to limit tombstones written before the cutoff, as long as nothing has started using them again since.
+   * Files that can't be deleted are pushed back by an hour, doubling with every failed attempt up to about a week, so that they're
+   * retried later instead of being handed back right away.
+   *
+   * @return The number of tombstones that were processed. Anything less than limit means there are none left from before the cutoff.
+   */
+  public int collectTombstones(long cutoff, int limit) {
+    SQLiteDatabase       db         = databaseHelper.getSignalWritableDatabase();
+    Map<String, Integer> candidates = new LinkedHashMap<>();
+    int                  deleted    = 0;
+
+    db.beginTransaction();
+    try {
+      try (Cursor cursor = db.query(TOMBSTONE_TABLE_NAME, new String[] { DATA, TOMBSTONE_ATTEMPTS }, TOMBSTONE_TIMESTAMP + " < ?", SqlUtil.buildArgs(cutoff), null, null, TOMBSTONE_TIMESTAMP, String.valueOf(limit))) {
+        while (cursor.moveToNext()) {
+          candidates.put(CursorUtil.requireString(cursor, DATA), CursorUtil.requireInt(cursor, TOMBSTONE_ATTEMPTS));
+        }
+      }
+
+      for (Map.Entry<String, Integer> candidate : candidates.entrySet()) {
+        String data = candidate.getKey();
+
+        if (hasAnyReference(db, data)) {
+          db.delete(TOMBSTONE_TABLE_NAME, DATA + " = ?", new String[] { data });
+          continue;
+        }
+
+        File file = new File(data);
+
+        if (file.delete() || !file.exists()) {
+          db.delete(BLOB_TABLE_NAME, DATA + " = ?", new String[] { data });
+          db.delete(TOMBSTONE_TABLE_NAME, DATA + " = ?", new String[] { data });
+          deleted++;
+        } else {
+          int  attempts = candidate.getValue() + 1;
+          long backoff  = TOMBSTONE_RETRY_BACKOFF << Math.min(attempts - 1, TOMBSTONE_MAX_BACKOFF_SHIFT);
+
+          Log.w(TAG, "[collectTombstones] Failed to delete " + data + " (attempt " + attempts + "). Trying again in " + backoff + " ms.");
+
+          ContentValues values = new ContentValues(2);
+          values.put(TOMBSTONE_TIMESTAMP, System.currentTimeMillis() + backoff);
+          values.put(TOMBSTONE_ATTEMPTS, attempts);
+
+          db.update(TOMBSTONE_TABLE_NAME, values, DATA + " = ?", new String[] { data });
+        }
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    if (candidates.size() > 0) {
+      Log.i(TAG, "[collectTombstones] Deleted " + deleted + " files for " + candidates.size() + " tombstones.");
+    }
+
+    return candidates.size();
+  }
+
+  /**
+   * @return True if there are tombstones written at or after the cutoff, which {@link #collectTombstones(long, int)} would skip for now.
+   *         Files that already failed to delete don't count, since they're on their own, much longer, schedule.
+   */
+  public boolean hasTombstonesSince(long cutoff) {
+    try (Cursor cursor = databaseHelper.getSignalReadableDatabase().query(TOMBSTONE_TABLE_NAME, new String[] { TOMBSTONE_ID }, TOMBSTONE_TIMESTAMP + " >= ? AND " + TOMBSTONE_ATTEMPTS + " = 0", SqlUtil.buildArgs(cutoff), null, null, null, "1")) {
+      return cursor != null && cursor.moveToFirst();
+    }
   }
 
   public int deleteAbandonedAttachmentFiles() {
@@ -496,19 +657,192 @@ public class AttachmentTable extends DatabaseTable {
       new File(filePath).delete();
     }
 
+    databaseHelper.getSignalWritableDatabase().delete(BLOB_TABLE_NAME, BLOB_REF_COUNT + " <= 0 AND " + BLOB_QUOTE_REF_COUNT + " <= 0 AND " + DATA + " NOT IN (SELECT " + DATA + " FROM " + TOMBSTONE_TABLE_NAME + ")", null);
+
     return onDiskButNotInDatabase.size();
   }
 
+  /**
+   * Checks every file's reference counts against the attachments that actually point at it, fixing any that have drifted, and merges
+   * files that have the same contents but ended up stored separately. Files that nothing points at anymore, not even a quote, are deleted,
+   * unless they're still waiting on a tombstone.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  public @NonNull BlobRepairResult repairBlobs() {
+    SQLiteDatabase db            = databaseHelper.getSignalWritableDatabase();
+    List<File>     filesToDelete = new LinkedList<>();
+    int            corrected;
+    int            merged;
+
+    db.beginTransaction();
+    try {
+      corrected = recountBlobReferences(db);
+      merged    = mergeDuplicateBlobs(db);
+
+      try (Cursor cursor = db.query(BLOB_TABLE_NAME, new String[] { DATA }, BLOB_REF_COUNT + " <= 0 AND " + BLOB_QUOTE_REF_COUNT + " <= 0 AND " + DATA + " NOT IN (SELECT " + DATA + " FROM " + TOMBSTONE_TABLE_NAME + ")", null, null, null, null)) {
+        while (cursor.moveToNext()) {
+          filesToDelete.add(new File(CursorUtil.requireString(cursor, DATA)));
+        }
+      }
+
+      for (File file : filesToDelete) {
+        clearWeakReferences(db, file.getAbsolutePath());
+        db.delete(BLOB_TABLE_NAME, DATA + " = ?", new String[] { file.getAbsolutePath() });
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    for (File file : filesToDelete) {
+      file.delete();
+    }
+
+    String query = "SELECT COUNT(*), " +
+                          "TOTAL(" + BLOB_REF_COUNT + " + " + BLOB_QUOTE_REF_COUNT + "), " +
+                          "TOTAL(" + SIZE + "), " +
+                          "TOTAL(" + SIZE + " * (" + BLOB_REF_COUNT + " + " + BLOB_QUOTE_REF_COUNT + " - 1)) " +
+                   "FROM " + BLOB_TABLE_NAME;
+
+    try (Cursor cursor = db.rawQuery(query, null)) {
+      cursor.moveToFirst();
+
+      BlobRepairResult result = new BlobRepairResult(cursor.getInt(0),
+                                                     cursor.getLong(1),
+                                                     cursor.getLong(2),
+                                                     cursor.getLong(3),
+                                                     corrected,
+                                                     merged,
+                                                     filesToDelete.size());
+      Log.i(TAG, "[repairBlobs] " + result);
+      return result;
+    }
+  }
+
+  /**
+   * @return The number of files whose counts were wrong, including any that were missing from the blob table entirely.
+   */
+  private static int recountBlobReferences(@NonNull SQLiteDatabase db) {
+    db.execSQL("INSERT OR IGNORE INTO " + BLOB_TABLE_NAME + " (" + DATA + ", " + DATA_HASH + ", " + DATA_RANDOM + ", " + SIZE + ") " +
+               "SELECT " + DATA + ", MAX(" + DATA_HASH + "), MAX(" + DATA_RANDOM + "), MAX(" + SIZE + ") " +
+               "FROM " + TABLE_NAME + " WHERE " + DATA + " NOT NULL GROUP BY " + DATA);
+
+    String query = "SELECT " + DATA + ", " +
+                          "(SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + TABLE_NAME + "." + DATA + " = " + BLOB_TABLE_NAME + "." + DATA + " AND " + QUOTE + " IS NOT 1) AS actual_ref_count, " +
+                          "(SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE " + TABLE_NAME + "." + DATA + " = " + BLOB_TABLE_NAME + "." + DATA + " AND " + QUOTE + " IS 1) AS actual_quote_ref_count " +
+                   "FROM " + BLOB_TABLE_NAME + " " +
+                   "WHERE " + BLOB_REF_COUNT + " IS NOT actual_ref_count OR " + BLOB_QUOTE_REF_COUNT + " IS NOT actual_quote_ref_count";
+
+    int corrected = 0;
+
+    try (Cursor cursor = db.rawQuery(query, null)) {
+      while (cursor.moveToNext()) {
+        String        data   = CursorUtil.requireString(cursor, DATA);
+        ContentValues values = new ContentValues(2);
+
+        values.put(BLOB_REF_COUNT, CursorUtil.requireLong(cursor, "actual_ref_count"));
+        values.put(BLOB_QUOTE_REF_COUNT, CursorUtil.requireLong(cursor, "actual_quote_ref_count"));
+
+        Log.w(TAG, "[recountBlobReferences] Fixing reference counts for " + data);
+        corrected += db.update(BLOB_TABLE_NAME, values, DATA + " = ?", new String[] { data });
+      }
+    }
+
+    return corrected;
+  }
+
+  /**
+   * Points everything that uses a file with the same contents as another file at whichever one has the most references already.
+   *
+   * @return The number of files that are no longer needed.
+   */
+  private static int mergeDuplicateBlobs(@NonNull SQLiteDatabase db) {
+    String inUse = BLOB_REF_COUNT + " + " + BLOB_QUOTE_REF_COUNT + " > 0";
+    String query = "SELECT " + DATA + ", " + DATA_HASH + ", " + DATA_RANDOM + " " +
+                   "FROM " + BLOB_TABLE_NAME + " " +
+                   "WHERE " + inUse + " AND " + DATA_HASH + " IN (" +
+                     "SELECT " + DATA_HASH + " FROM " + BLOB_TABLE_NAME + " WHERE " + DATA_HASH + " NOT NULL AND " + inUse + " GROUP BY " + DATA_HASH + " HAVING COUNT(*) > 1" +
+                   ") " +
+                   "ORDER BY " + DATA_HASH + ", " + BLOB_REF_COUNT + " DESC";
+
+    Map<String, List<Pair<String, byte[]>>> filesByHash = new HashMap<>();
+
+    try (Cursor cursor = db.rawQuery(query, null)) {
+      while (cursor.moveToNext()) {
+        String                     hash  = CursorUtil.requireString(cursor, DATA_HASH);
+        List<Pair<String, byte[]>> files = filesByHash.get(hash);
+
+        if (files == null) {
+          files = new LinkedList<>();
+          filesByHash.put(hash, files);
+        }
+
+        files.add(new Pair<>(CursorUtil.requireString(cursor, DATA), CursorUtil.requireBlob(cursor, DATA_RANDOM)));
+      }
+    }
+
+    int merged = 0;
+
+    for (List<Pair<String, byte[]>> files : filesByHash.values()) {
+      Pair<String, byte[]> target = null;
+
+      for (Pair<String, byte[]> file : files) {
+        if (new File(file.first).exists()) {
+          target = file;
+          break;
+        }
+      }
+
+      if (target == null) {
+        continue;
+      }
+
+      ContentValues values = new ContentValues(2);
+      values.put(DATA, target.first);
+      values.put(DATA_RANDOM, target.second);
+
+      for (Pair<String, byte[]> file : files) {
+        if (file != target) {
+          db.update(TABLE_NAME, values, DATA + " = ?", new String[] { file.first });
+          merged++;
+        }
+      }
+    }
+
+    return merged;
+  }
+
   @SuppressWarnings("ResultOfMethodCallIgnored")
   void deleteAllAttachments() {
     SQLiteDatabase database = databaseHelper.getSignalWritableDatabase();
     database.delete(TABLE_NAME, null, null);
+    database.delete(BLOB_TABLE_NAME, null, null);
 
     FileUtils.deleteDirectoryContents(context.getDir(DIRECTORY, Context.MODE_PRIVATE));
 
     notifyAttachmentListeners();
   }
 
+  private static @NonNull List<AttachmentFile> getAttachmentFilesForMessage(@NonNull SQLiteDatabase db, long mmsId) {
+    List<AttachmentFile> files = new LinkedList<>();
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] { DATA, CONTENT_TYPE, ROW_ID, UNIQUE_ID }, MMS_ID + " = ?", new String[] { mmsId + "" }, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        files.add(new AttachmentFile(CursorUtil.requireString(cursor, DATA),
+                                     CursorUtil.requireString(cursor, CONTENT_TYPE),
+                                     new AttachmentId(CursorUtil.requireLong(cursor, ROW_ID),
+                                                      CursorUtil.requireLong(cursor, UNIQUE_ID))));
+      }
+    }
+
+    return files;
+  }
+
+  /**
+   * Deletes the file if nothing other than quotes still points at it. Must be called after the attachment itself has been deleted or
+   * cleared, so that it's no longer counted as a reference.
+   */
   private void deleteAttachmentOnDisk(@Nullable String data,
                                       @Nullable String contentType,
                                       @NonNull AttachmentId attachmentId)
@@ -519,41 +853,23 @@ public class AttachmentTable extends DatabaseTable {
       throw new IllegalStateException("Must be in a transaction!");
     }
 
-    DataUsageResult dataUsage = getAttachmentFileUsages(data, attachmentId);
-
-    if (dataUsage.hasStrongReference()) {
-      Log.i(TAG, "[deleteAttachmentOnDisk] Attachment in use. Skipping deletion. " + data + " " + attachmentId);
-      return;
-    }
+    if (!TextUtils.isEmpty(data)) {
+      if (hasStrongReference(db, data)) {
+        Log.i(TAG, "[deleteAttachmentOnDisk] Attachment in use. Skipping deletion. " + data + " " + attachmentId);
+        return;
+      }
 
-    Log.i(TAG, "[deleteAttachmentOnDisk] No other strong uses of this attachment. Safe to delete. " + data + " " + attachmentId);
+      Log.i(TAG, "[deleteAttachmentOnDisk] No other strong uses of this attachment. Safe to delete. " + data + " " + attachmentId);
 
-    if (!TextUtils.isEmpty(data)) {
       if (new File(data).delete()) {
         Log.i(TAG, "[deleteAttachmentOnDisk] Deleted attachment file. " + data + " " + attachmentId);
 
-        List<AttachmentId> removableWeakReferences = dataUsage.getRemovableWeakReferences();
-
-        if (removableWeakReferences.size() > 0) {
-          Log.i(TAG, String.format(Locale.US, "[deleteAttachmentOnDisk] Deleting %d weak references for %s", removableWeakReferences.size(), data));
-          int deletedCount = 0;
-
-          for (AttachmentId weakReference : removableWeakReferences) {
-            Log.i(TAG, String.format("[deleteAttachmentOnDisk] Clearing weak reference for %s %s", data, weakReference));
-            ContentValues values = new ContentValues();
-            values.putNull(DATA);
-            values.putNull(DATA_RANDOM);
-            values.putNull(DATA_HASH);
-            deletedCount += db.update(TABLE_NAME, values, PART_ID_WHERE, weakReference.toStrings());
-          }
-
-          String logMessage = String.format(Locale.US, "[deleteAttachmentOnDisk] Cleared %d/%d weak references for %s", deletedCount, removableWeakReferences.size(), data);
-          if (deletedCount != removableWeakReferences.size()) {
-            Log.w(TAG, logMessage);
-          } else {
-            Log.i(TAG, logMessage);
-          }
+        int weakReferences = clearWeakReferences(db, data);
+        if (weakReferences > 0) {
+          Log.i(TAG, String.format(Locale.US, "[deleteAttachmentOnDisk] Cleared %d weak references for %s", weakReferences, data));
         }
+
+        db.delete(BLOB_TABLE_NAME, DATA + " = ?", new String[] { data });
       } else {
         Log.w(TAG, "[deleteAttachmentOnDisk] Failed to delete attachment. " + data + " " + attachmentId);
       }
@@ -564,31 +880,48 @@ public class AttachmentTable extends DatabaseTable {
     }
   }
 
-  private @NonNull DataUsageResult getAttachmentFileUsages(@Nullable String data, @NonNull AttachmentId attachmentId) {
-    SQLiteDatabase database = databaseHelper.getSignalReadableDatabase();
-
-    if (!database.inTransaction()) {
-      throw new IllegalArgumentException("Must be in a transaction!");
+  /**
+   * Whether any non-quote attachment points at the file. Falls back to looking at the attachments themselves if the file somehow isn't in
+   * the blob table, rather than risk deleting something that's still in use.
+   */
+  private static boolean hasStrongReference(@NonNull SQLiteDatabase db, @NonNull String data) {
+    try (Cursor cursor = db.query(BLOB_TABLE_NAME, new String[] { BLOB_REF_COUNT }, DATA + " = ?", new String[] { data }, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return CursorUtil.requireLong(cursor, BLOB_REF_COUNT) > 0;
+      }
     }
 
-    if (data == null) return DataUsageResult.NOT_IN_USE;
+    Log.w(TAG, "[hasStrongReference] No blob entry for " + data);
 
-    String             selection = DATA + " = ? AND " + UNIQUE_ID + " != ? AND " + ROW_ID + " != ?";
-    String[]           args      = {data, Long.toString(attachmentId.getUniqueId()), Long.toString(attachmentId.getRowId())};
-    List<AttachmentId> quoteRows = new LinkedList<>();
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] { ROW_ID }, DATA + " = ? AND " + QUOTE + " IS NOT 1", new String[] { data }, null, null, null, "1")) {
+      return cursor != null && cursor.moveToFirst();
+    }
+  }
 
-    try (Cursor cursor = database.query(TABLE_NAME, new String[]{ROW_ID, UNIQUE_ID, QUOTE}, selection, args, null, null, null, null)) {
-      while (cursor.moveToNext()) {
-        boolean isQuote = cursor.getInt(cursor.getColumnIndexOrThrow(QUOTE)) == 1;
-        if (isQuote) {
-          quoteRows.add(new AttachmentId(cursor.getLong(cursor.getColumnIndexOrThrow(ROW_ID)), cursor.getLong(cursor.getColumnIndexOrThrow(UNIQUE_ID))));
-        } else {
-          return DataUsageResult.IN_USE;
-        }
+  /**
+   * Like {@link #hasStrongReference(SQLiteDatabase, String)}, but quotes count too.
+   */
+  private static boolean hasAnyReference(@NonNull SQLiteDatabase db, @NonNull String data) {
+    try (Cursor cursor = db.query(BLOB_TABLE_NAME, new String[] { BLOB_REF_COUNT, BLOB_QUOTE_REF_COUNT }, DATA + " = ?", new String[] { data }, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return CursorUtil.requireLong(cursor, BLOB_REF_COUNT) > 0 || CursorUtil.requireLong(cursor, BLOB_QUOTE_REF_COUNT) > 0;
       }
     }
 
-    return new DataUsageResult(quoteRows);
+    Log.w(TAG, "[hasAnyReference] No blob entry for " + data);
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] { ROW_ID }, DATA + " = ?", new String[] { data }, null, null, null, "1")) {
+      return cursor != null && cursor.moveToFirst();
+    }
+  }
+
+  private static int clearWeakReferences(@NonNull SQLiteDatabase db, @NonNull String data) {
+    ContentValues values = new ContentValues();
+    values.putNull(DATA);
+    values.putNull(DATA_RANDOM);
+    values.putNull(DATA_HASH);
+
+    return db.update(TABLE_NAME, values, DATA + " = ?", new String[] { data });
   }
 
   public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull InputStream inputStream)
@@ -598,7 +931,7 @@ public class AttachmentTable extends DatabaseTable {
     SQLiteDatabase     database     = databaseHelper.getSignalWritableDatabase();
     ContentValues      values       = new ContentValues();
     DataInfo           oldInfo      = getAttachmentDataFileInfo(attachmentId, DATA);
-    DataInfo           dataInfo     = setAttachmentData(inputStream, attachmentId);
+    DataInfo           dataInfo     = setAttachmentData(inputStream);
     File               transferFile = getTransferFile(databaseHelper.getSignalReadableDatabase(), attachmentId);
 
     if (oldInfo != null) {
@@ -621,8 +954,7 @@ public class AttachmentTable extends DatabaseTable {
     values.put(TRANSFORM_PROPERTIES, TransformProperties.forSkipTransform().serialize());
 
     if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
-      //noinspection ResultOfMethodCallIgnored
-      dataInfo.file.delete();
+      Log.w(TAG, "[insertAttachmentsForPlaceholder] Attachment " + attachmentId + " no longer exists. Leaving its data for the garbage collector.");
     } else {
       long threadId = SignalDatabase.messages().getThreadIdForMessage(mmsId);
 
@@ -830,9 +1162,7 @@ public class AttachmentTable extends DatabaseTable {
       }
     }
 
-    DataInfo dataInfo = setAttachmentData(destination,
-                                          mediaStream.getStream(),
-                                          databaseAttachment.getAttachmentId());
+    DataInfo dataInfo = setAttachmentData(destination, mediaStream.getStream());
 
     ContentValues contentValues = new ContentValues();
     contentValues.put(SIZE, dataInfo.length);
@@ -1052,25 +1382,23 @@ public class AttachmentTable extends DatabaseTable {
 
   }
 
-  private @NonNull DataInfo setAttachmentData(@NonNull Uri uri,
-                                              @Nullable AttachmentId attachmentId)
+  private @NonNull DataInfo setAttachmentData(@NonNull Uri uri)
       throws MmsException
   {
     try {
       InputStream inputStream = PartAuthority.getAttachmentStream(context, uri);
-      return setAttachmentData(inputStream, attachmentId);
+      return setAttachmentData(inputStream);
     } catch (IOException e) {
       throw new MmsException(e);
     }
   }
 
-  private @NonNull DataInfo setAttachmentData(@NonNull InputStream in,
-                                              @Nullable AttachmentId attachmentId)
+  private @NonNull DataInfo setAttachmentData(@NonNull InputStream in)
       throws MmsException
   {
     try {
       File dataFile = newFile();
-      return setAttachmentData(dataFile, in, attachmentId);
+      return setAttachmentData(dataFile, in);
     } catch (IOException e) {
       throw new MmsException(e);
     }
@@ -1091,8 +1419,7 @@ public class AttachmentTable extends DatabaseTable {
   }
 
   private @NonNull DataInfo setAttachmentData(@NonNull File destination,
-                                              @NonNull InputStream in,
-                                              @Nullable AttachmentId attachmentId)
+                                              @NonNull InputStream in)
       throws MmsException
   {
     try {
@@ -1113,7 +1440,7 @@ public class AttachmentTable extends DatabaseTable {
 
       db.beginTransaction();
       try {
-        Optional<DataInfo> sharedDataInfo = findDuplicateDataFileInfo(db, hash, attachmentId);
+        Optional<DataInfo> sharedDataInfo = findDuplicateDataFileInfo(db, hash, destination);
         if (sharedDataInfo.isPresent()) {
           Log.i(TAG, "[setAttachmentData] Duplicate data file found! " + sharedDataInfo.get().file.getAbsolutePath());
           if (!destination.equals(sharedDataInfo.get().file) && destination.delete()) {
@@ -1123,6 +1450,7 @@ public class AttachmentTable extends DatabaseTable {
           return sharedDataInfo.get();
         } else {
           Log.i(TAG, "[setAttachmentData] No matching attachment data found. " + destination.getAbsolutePath());
+          addPendingTombstone(db, destination, length, out.first, hash);
           db.setTransactionSuccessful();
         }
       } finally {
@@ -1135,55 +1463,63 @@ public class AttachmentTable extends DatabaseTable {
     }
   }
 
+  /**
+   * Tombstones a file that was just written, unless something already points at it. The first attachment to reference the file clears
+   * the tombstone again, so it only gets collected if nothing ever does. If the surrounding transaction is rolled back, the tombstone goes
+   * with it, so the file is deleted right away instead.
+   */
+  private static void addPendingTombstone(@NonNull SQLiteDatabase db, @NonNull File file, long length, @NonNull byte[] random, @NonNull String hash) {
+    String data = file.getAbsolutePath();
+
+    try (Cursor cursor = db.query(BLOB_TABLE_NAME, new String[] { DATA }, DATA + " = ? AND (" + BLOB_REF_COUNT + " > 0 OR " + BLOB_QUOTE_REF_COUNT + " > 0)", new String[] { data }, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return;
+      }
+    }
+
+    ContentValues blobValues = new ContentValues(4);
+    blobValues.put(DATA, data);
+    blobValues.put(DATA_HASH, hash);
+    blobValues.put(DATA_RANDOM, random);
+    blobValues.put(SIZE, length);
+
+    db.insertWithOnConflict(BLOB_TABLE_NAME, null, blobValues, SQLiteDatabase.CONFLICT_IGNORE);
+
+    ContentValues tombstoneValues = new ContentValues(2);
+    tombstoneValues.put(DATA, data);
+    tombstoneValues.put(TOMBSTONE_TIMESTAMP, System.currentTimeMillis());
+
+    db.insertWithOnConflict(TOMBSTONE_TABLE_NAME, null, tombstoneValues, SQLiteDatabase.CONFLICT_REPLACE);
+
+    db.runPostFailedTransaction("AttachmentTable:pending:" + data, () -> {
+      if (file.delete()) {
+        Log.i(TAG, "[addPendingTombstone] Deleted file from a rolled back transaction. " + data);
+      }
+    });
+  }
+
+  /**
+   * Finds another file that's in use and has the same contents, if there is one.
+   */
   private static @NonNull Optional<DataInfo> findDuplicateDataFileInfo(@NonNull SQLiteDatabase database,
                                                                        @NonNull String hash,
-                                                                       @Nullable AttachmentId excludedAttachmentId)
+                                                                       @NonNull File destination)
   {
     if (!database.inTransaction()) {
       throw new IllegalArgumentException("Must be in a transaction!");
     }
 
-    Pair<String, String[]> selectorArgs = buildSharedFileSelectorArgs(hash, excludedAttachmentId);
-    try (Cursor cursor = database.query(TABLE_NAME,
-                                        new String[]{DATA, DATA_RANDOM, SIZE, TRANSFORM_PROPERTIES},
-                                        selectorArgs.first,
-                                        selectorArgs.second,
-                                        null,
-                                        null,
-                                        null,
-                                        "1"))
-    {
-      if (cursor == null || !cursor.moveToFirst()) return Optional.empty();
-
-      if (cursor.getCount() > 0) {
-        DataInfo dataInfo = new DataInfo(new File(CursorUtil.requireString(cursor, DATA)),
-                                         CursorUtil.requireLong(cursor, SIZE),
-                                         CursorUtil.requireBlob(cursor, DATA_RANDOM),
-                                         hash);
-        return Optional.of(dataInfo);
-      } else {
-        return Optional.empty();
-      }
-    }
-  }
+    String   selection = DATA_HASH + " = ? AND " + DATA + " != ? AND (" + BLOB_REF_COUNT + " > 0 OR " + BLOB_QUOTE_REF_COUNT + " > 0)";
+    String[] args      = new String[] { hash, destination.getAbsolutePath() };
 
-  private static Pair<String, String[]> buildSharedFileSelectorArgs(@NonNull String newHash,
-                                                                    @Nullable AttachmentId attachmentId)
-  {
-    final String   selector;
-    final String[] selection;
+    try (Cursor cursor = database.query(BLOB_TABLE_NAME, new String[] { DATA, DATA_RANDOM, SIZE }, selection, args, null, null, null, "1")) {
+      if (cursor == null || !cursor.moveToFirst()) return Optional.empty();
 
-    if (attachmentId == null) {
-      selector  = DATA_HASH + " = ?";
-      selection = new String[]{newHash};
-    } else {
-      selector  = PART_ID_WHERE_NOT + " AND " + DATA_HASH + " = ?";
-      selection = new String[]{Long.toString(attachmentId.getRowId()),
-                               Long.toString(attachmentId.getUniqueId()),
-                               newHash};
+      return Optional.of(new DataInfo(new File(CursorUtil.requireString(cursor, DATA)),
+                                      CursorUtil.requireLong(cursor, SIZE),
+                                      CursorUtil.requireBlob(cursor, DATA_RANDOM),
+                                      hash));
     }
-
-    return Pair.create(selector, selection);
   }
 
   public List<DatabaseAttachment> getAttachments(@NonNull Cursor cursor) {
@@ -1297,7 +1633,7 @@ public class AttachmentTable extends DatabaseTable {
       long           uniqueId        = System.currentTimeMillis();
 
       if (attachment.getUri() != null) {
-        dataInfo = setAttachmentData(attachment.getUri(), null);
+        dataInfo = setAttachmentData(attachment.getUri());
         Log.d(TAG, "Wrote part to file: " + dataInfo.file.getAbsolutePath());
       }
 
@@ -1458,36 +1794,75 @@ public class AttachmentTable extends DatabaseTable {
     }
   }
 
-  private static final class DataUsageResult {
-    private final boolean            hasStrongReference;
-    private final List<AttachmentId> removableWeakReferences;
+  public static final class BlobRepairResult {
+    private final int  blobCount;
+    private final long referenceCount;
+    private final long bytesOnDisk;
+    private final long bytesSaved;
+    private final int  correctedCount;
+    private final int  mergedCount;
+    private final int  deletedCount;
 
-    private static final DataUsageResult IN_USE     = new DataUsageResult(true, Collections.emptyList());
-    private static final DataUsageResult NOT_IN_USE = new DataUsageResult(false, Collections.emptyList());
+    private BlobRepairResult(int blobCount, long referenceCount, long bytesOnDisk, long bytesSaved, int correctedCount, int mergedCount, int deletedCount) {
+      this.blobCount      = blobCount;
+      this.referenceCount = referenceCount;
+      this.bytesOnDisk    = bytesOnDisk;
+      this.bytesSaved     = bytesSaved;
+      this.correctedCount = correctedCount;
+      this.mergedCount    = mergedCount;
+      this.deletedCount   = deletedCount;
+    }
 
-    DataUsageResult(@NonNull List<AttachmentId> removableWeakReferences) {
-      this(false, removableWeakReferences);
+    /** Files that are still in use. */
+    public int getBlobCount() {
+      return blobCount;
     }
 
-    private DataUsageResult(boolean hasStrongReference, @NonNull List<AttachmentId> removableWeakReferences) {
-      if (hasStrongReference && removableWeakReferences.size() > 0) {
-        throw new AssertionError();
-      }
-      this.hasStrongReference      = hasStrongReference;
-      this.removableWeakReferences = removableWeakReferences;
+    /** Attachments, including quotes, that point at those files. */
+    public long getReferenceCount() {
+      return referenceCount;
     }
 
-    boolean hasStrongReference() {
-      return hasStrongReference;
+    public long getBytesOnDisk() {
+      return bytesOnDisk;
     }
 
-    /**
-     * Entries in here can be removed from the database.
-     * <p>
-     * Only possible to be non-empty when {@link #hasStrongReference} is false.
-     */
-    @NonNull List<AttachmentId> getRemovableWeakReferences() {
-      return removableWeakReferences;
+    /** What it would have taken to store a copy of the data for every attachment, minus what's actually stored. */
+    public long getBytesSaved() {
+      return bytesSaved;
+    }
+
+    /** Files whose reference counts were wrong. Should always be zero. */
+    public int getCorrectedCount() {
+      return correctedCount;
+    }
+
+    /** Files that were replaced by an identical file. */
+    public int getMergedCount() {
+      return mergedCount;
+    }
+
+    /** Files that were deleted because nothing pointed at them anymore. */
+    public int getDeletedCount() {
+      return deletedCount;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return String.format(Locale.US, "%d files, %d references, %d bytes on disk, %d bytes saved. Corrected: %d, merged: %d, deleted: %d",
+                           blobCount, referenceCount, bytesOnDisk, bytesSaved, correctedCount, mergedCount, deletedCount);
+    }
+  }
+
+  private static final class AttachmentFile {
+    private final String       data;
+    private final String       contentType;
+    private final AttachmentId attachmentId;
+
+    private AttachmentFile(@Nullable String data, @Nullable String contentType, @NonNull AttachmentId attachmentId) {
+      this.data         = data;
+      this.contentType  = contentType;
+      this.attachmentId = attachmentId;
     }
   }
 
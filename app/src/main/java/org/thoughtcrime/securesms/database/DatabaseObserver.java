@@ -7,27 +7,49 @@ import androidx.annotation.VisibleForTesting;
 
 import org.jetbrains.annotations.NotNull;
 import org.signal.core.util.concurrent.SignalExecutors;
+import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.model.MessageId;
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
 import org.thoughtcrime.securesms.util.concurrent.SerialExecutor;
 
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Allows listening to database changes to varying degrees of specificity.
  *
  * A replacement for the observer system in {@link DatabaseTable}. We should move to this over time.
+ *
+ * Notifications aren't delivered one at a time. They're held for a short window, roughly a frame,
+ * and any duplicates within that window are merged, so a burst of writes (like processing a large
+ * backlog of messages) results in a handful of deliveries rather than one per write. Message
+ * observers are given the set of messages that changed in the window.
+ *
+ * Within a window, message inserts are delivered first, then message updates, then everything
+ * else, so the order in which different kinds of notifications were emitted isn't preserved. The
+ * window is timed on a single "signal-database-observer" thread that lives as long as the process.
  */
 public class DatabaseObserver {
 
+  private static final String TAG = Log.tag(DatabaseObserver.class);
+
+  private static final long DELIVERY_WINDOW_MS = 16;
+
   private static final String KEY_CONVERSATION          = "Conversation:";
   private static final String KEY_VERBOSE_CONVERSATION  = "VerboseConversation:";
   private static final String KEY_CONVERSATION_LIST     = "ConversationList";
@@ -41,10 +63,11 @@ public class DatabaseObserver {
   private static final String KEY_MESSAGE_INSERT        = "MessageInsert:";
   private static final String KEY_NOTIFICATION_PROFILES = "NotificationProfiles";
   private static final String KEY_RECIPIENT             = "Recipient";
-  private static final String KEY_STORY_OBSERVER        = "Story";
+  private static final String KEY_STORY_OBSERVER        = "Story:";
 
-  private final Application application;
-  private final Executor    executor;
+  private final Application              application;
+  private final Executor                 executor;
+  private final ScheduledExecutorService deliveryTimer;
 
   private final Set<Observer>                   conversationListObservers;
   private final Map<Long, Set<Observer>>        conversationObservers;
@@ -60,9 +83,28 @@ public class DatabaseObserver {
   private final Set<Observer>                   notificationProfileObservers;
   private final Map<RecipientId, Set<Observer>> storyObservers;
 
+  private final Object                    pendingLock            = new Object();
+  private final Map<String, Runnable>     pendingNotifications   = new LinkedHashMap<>();
+  private final Set<MessageId>            pendingMessageUpdates  = new LinkedHashSet<>();
+  private final Map<Long, Set<MessageId>> pendingMessageInserts  = new LinkedHashMap<>();
+  private final AtomicLong                notificationsEmitted   = new AtomicLong();
+  private final AtomicLong                notificationsDelivered = new AtomicLong();
+
+  private boolean deliveryScheduled;
+
   public DatabaseObserver(Application application) {
+    this(application, new ScheduledThreadPoolExecutor(1, r -> new Thread(r, "signal-database-observer")));
+  }
+
+  /**
+   * @param deliveryTimer Used to wait out the delivery window. Tests can pass one that never fires,
+   *                      and deliver with {@link #flush()} instead.
+   */
+  @VisibleForTesting
+  DatabaseObserver(Application application, ScheduledExecutorService deliveryTimer) {
     this.application                  = application;
     this.executor                     = new SerialExecutor(SignalExecutors.BOUNDED);
+    this.deliveryTimer                = deliveryTimer;
     this.conversationListObservers    = new HashSet<>();
     this.conversationObservers        = new HashMap<>();
     this.verboseConversationObservers = new HashMap<>();
@@ -249,17 +291,30 @@ public class DatabaseObserver {
   }
 
   public void notifyMessageUpdateObservers(@NonNull MessageId messageId) {
-    runPostSuccessfulTransaction(KEY_MESSAGE_UPDATE + messageId.toString(), () -> {
-      messageUpdateObservers.stream().forEach(l -> l.onMessageChanged(messageId));
+    SignalDatabase.runPostSuccessfulTransaction(KEY_MESSAGE_UPDATE + messageId.toString(), () -> {
+      notificationsEmitted.incrementAndGet();
+
+      synchronized (pendingLock) {
+        pendingMessageUpdates.add(messageId);
+        scheduleDelivery();
+      }
     });
   }
 
   public void notifyMessageInsertObservers(long threadId, @NonNull MessageId messageId) {
-    runPostSuccessfulTransaction(KEY_MESSAGE_INSERT + messageId, () -> {
-      Set<MessageObserver> listeners = messageInsertObservers.get(threadId);
+    SignalDatabase.runPostSuccessfulTransaction(KEY_MESSAGE_INSERT + messageId, () -> {
+      notificationsEmitted.incrementAndGet();
 
-      if (listeners != null) {
-        listeners.stream().forEach(l -> l.onMessageChanged(messageId));
+      synchronized (pendingLock) {
+        Set<MessageId> messageIds = pendingMessageInserts.get(threadId);
+
+        if (messageIds == null) {
+          messageIds = new LinkedHashSet<>();
+          pendingMessageInserts.put(threadId, messageIds);
+        }
+
+        messageIds.add(messageId);
+        scheduleDelivery();
       }
     });
   }
@@ -270,32 +325,131 @@ public class DatabaseObserver {
     });
   }
 
+  /**
+   * Refreshes the recipient once the current transaction commits. If it's rolled back instead, the
+   * recipient's cache entries are corrected so they don't hold on to the discarded changes.
+   */
   public void notifyRecipientChanged(@NonNull RecipientId recipientId) {
     SignalDatabase.runPostSuccessfulTransaction(KEY_RECIPIENT + recipientId.serialize(), () -> {
       Recipient.live(recipientId).refresh();
     });
+
+    SignalDatabase.runPostFailedTransaction(KEY_RECIPIENT + recipientId.serialize(), () -> {
+      ApplicationDependencies.getRecipientCache().onRolledBack(recipientId);
+    });
   }
 
   public void notifyStoryObservers(@NonNull RecipientId recipientId) {
-    runPostSuccessfulTransaction(KEY_STORY_OBSERVER, () -> {
+    runPostSuccessfulTransaction(KEY_STORY_OBSERVER + recipientId.serialize(), () -> {
       notifyMapped(storyObservers, recipientId);
     });
   }
 
   public void notifyStoryObservers(@NonNull Collection<RecipientId> recipientIds) {
     for (RecipientId recipientId : recipientIds) {
-      runPostSuccessfulTransaction(KEY_STORY_OBSERVER, () -> {
+      runPostSuccessfulTransaction(KEY_STORY_OBSERVER + recipientId.serialize(), () -> {
         notifyMapped(storyObservers, recipientId);
       });
     }
   }
 
+  /**
+   * @return The number of notifications that have been requested, after transaction-level
+   *         de-duplication. Compare to {@link #getNotificationsDelivered()} to see how many were
+   *         merged away.
+   */
+  public long getNotificationsEmitted() {
+    return notificationsEmitted.get();
+  }
+
+  /**
+   * @return The number of notifications that have actually been delivered to observers, counting
+   *         each key (or each message id, for message observers) once per delivery window.
+   */
+  public long getNotificationsDelivered() {
+    return notificationsDelivered.get();
+  }
+
   private void runPostSuccessfulTransaction(@NonNull String dedupeKey, @NonNull Runnable runnable) {
     SignalDatabase.runPostSuccessfulTransaction(dedupeKey, () -> {
-      executor.execute(runnable);
+      notificationsEmitted.incrementAndGet();
+
+      synchronized (pendingLock) {
+        pendingNotifications.put(dedupeKey, runnable);
+        scheduleDelivery();
+      }
     });
   }
 
+  private void scheduleDelivery() {
+    if (!deliveryScheduled) {
+      deliveryScheduled = true;
+      deliveryTimer.schedule(() -> executor.execute(this::deliverPending), DELIVERY_WINDOW_MS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Delivers everything that's been merged so far. Must be run on the {@link #executor}, which is
+   * what keeps it from racing with observer registration.
+   */
+  private void deliverPending() {
+    Map<Long, Set<MessageId>> messageInserts;
+    Set<MessageId>            messageUpdates;
+    Map<String, Runnable>     notifications;
+
+    synchronized (pendingLock) {
+      messageInserts = new LinkedHashMap<>(pendingMessageInserts);
+      messageUpdates = new LinkedHashSet<>(pendingMessageUpdates);
+      notifications  = new LinkedHashMap<>(pendingNotifications);
+
+      pendingMessageInserts.clear();
+      pendingMessageUpdates.clear();
+      pendingNotifications.clear();
+
+      deliveryScheduled = false;
+    }
+
+    long delivered = 0;
+
+    for (Map.Entry<Long, Set<MessageId>> entry : messageInserts.entrySet()) {
+      Set<MessageObserver> listeners  = messageInsertObservers.get(entry.getKey());
+      Set<MessageId>       messageIds = Collections.unmodifiableSet(entry.getValue());
+
+      if (listeners != null) {
+        for (MessageObserver listener : listeners) {
+          listener.onMessagesChanged(messageIds);
+        }
+      }
+
+      delivered += messageIds.size();
+    }
+
+    if (!messageUpdates.isEmpty()) {
+      Set<MessageId> messageIds = Collections.unmodifiableSet(messageUpdates);
+
+      for (MessageObserver listener : messageUpdateObservers) {
+        listener.onMessagesChanged(messageIds);
+      }
+
+      delivered += messageIds.size();
+    }
+
+    for (Runnable notification : notifications.values()) {
+      notification.run();
+    }
+
+    delivered += notifications.size();
+
+    if (delivered > 0) {
+      long total   = notificationsDelivered.addAndGet(delivered);
+      long emitted = notificationsEmitted.get();
+
+      if (total / 1000 != (total - delivered) / 1000) {
+        Log.d(TAG, "Delivered " + total + " notifications out of " + emitted + " emitted.");
+      }
+    }
+  }
+
   private <K, V> void registerMapped(@NonNull Map<K, Set<V>> map, @NonNull K key, @NonNull V listener) {
     Set<V> listeners = map.get(key);
 
@@ -330,10 +484,13 @@ public class DatabaseObserver {
   }
 
   /**
-   * Blocks until the executor is empty. Only intended to be used for testing.
+   * Delivers any pending notifications and blocks until the executor is empty. Only intended to be
+   * used for testing.
    */
   @VisibleForTesting
   void flush() {
+    executor.execute(this::deliverPending);
+
     CountDownLatch latch = new CountDownLatch(1);
     executor.execute(latch::countDown);
 
@@ -354,5 +511,15 @@ public class DatabaseObserver {
 
   public interface MessageObserver {
     void onMessageChanged(@NonNull MessageId messageId);
+
+    /**
+     * Called with every message that changed within a delivery window. By default, this just calls
+     * {@link #onMessageChanged(MessageId)} for each of them.
+     */
+    default void onMessagesChanged(@NonNull Set<MessageId> messageIds) {
+      for (MessageId messageId : messageIds) {
+        onMessageChanged(messageId);
+      }
+    }
   }
 }
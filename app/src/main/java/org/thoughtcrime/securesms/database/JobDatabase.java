@@ -5,6 +5,7 @@ import android.content.ContentValues;
 import android.database.Cursor;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.annimon.stream.Stream;
 
@@ -15,6 +16,7 @@ import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.crypto.DatabaseSecret;
 import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider;
+import org.thoughtcrime.securesms.jobmanager.impl.BinaryDataSerializer;
 import org.thoughtcrime.securesms.jobmanager.persistence.ConstraintSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
@@ -199,7 +201,7 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     contentValues.put(Jobs.IS_RUNNING, isRunning ? 1 : 0);
     contentValues.put(Jobs.RUN_ATTEMPT, runAttempt);
     contentValues.put(Jobs.NEXT_RUN_ATTEMPT_TIME, nextRunAttemptTime);
-    contentValues.put(Jobs.SERIALIZED_DATA, serializedData);
+    putSerializedData(contentValues, Jobs.SERIALIZED_DATA, serializedData);
 
     String   query = Jobs.JOB_SPEC_ID + " = ?";
     String[] args  = new String[]{ id };
@@ -224,28 +226,7 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     db.beginTransaction();
 
     try {
-      Stream.of(jobs)
-            .filterNot(JobSpec::isMemoryOnly)
-            .forEach(job -> {
-              ContentValues values = new ContentValues();
-              values.put(Jobs.JOB_SPEC_ID, job.getId());
-              values.put(Jobs.FACTORY_KEY, job.getFactoryKey());
-              values.put(Jobs.QUEUE_KEY, job.getQueueKey());
-              values.put(Jobs.CREATE_TIME, job.getCreateTime());
-              values.put(Jobs.NEXT_RUN_ATTEMPT_TIME, job.getNextRunAttemptTime());
-              values.put(Jobs.RUN_ATTEMPT, job.getRunAttempt());
-              values.put(Jobs.MAX_ATTEMPTS, job.getMaxAttempts());
-              values.put(Jobs.LIFESPAN, job.getLifespan());
-              values.put(Jobs.SERIALIZED_DATA, job.getSerializedData());
-              values.put(Jobs.SERIALIZED_INPUT_DATA, job.getSerializedInputData());
-              values.put(Jobs.IS_RUNNING, job.isRunning() ? 1 : 0);
-
-              String   query = Jobs.JOB_SPEC_ID + " = ?";
-              String[] args  = new String[]{ job.getId() };
-
-              db.update(Jobs.TABLE_NAME, values, query, args);
-            });
-
+      updateJobSpecs(db, jobs);
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -258,15 +239,32 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     db.beginTransaction();
 
     try {
-      for (String jobId : jobIds) {
-        String[] arg = new String[]{jobId};
+      deleteJobSpecs(db, jobIds);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  /**
+   * Applies a batch of deletes, inserts and updates in a single transaction, in that order.
+   */
+  public synchronized void writeChanges(@NonNull List<FullSpec> inserts, @NonNull List<JobSpec> updates, @NonNull List<String> deletes) {
+    SQLiteDatabase db = getWritableDatabase();
 
-        db.delete(Jobs.TABLE_NAME, Jobs.JOB_SPEC_ID + " = ?", arg);
-        db.delete(Constraints.TABLE_NAME, Constraints.JOB_SPEC_ID + " = ?", arg);
-        db.delete(Dependencies.TABLE_NAME, Dependencies.JOB_SPEC_ID + " = ?", arg);
-        db.delete(Dependencies.TABLE_NAME, Dependencies.DEPENDS_ON_JOB_SPEC_ID + " = ?", arg);
+    db.beginTransaction();
+
+    try {
+      deleteJobSpecs(db, deletes);
+
+      for (FullSpec fullSpec : inserts) {
+        insertJobSpec(db, fullSpec.getJobSpec());
+        insertConstraintSpecs(db, fullSpec.getConstraintSpecs());
+        insertDependencySpecs(db, fullSpec.getDependencySpecs());
       }
 
+      updateJobSpecs(db, updates);
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
@@ -297,6 +295,41 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     return dependencies;
   }
 
+  private void updateJobSpecs(@NonNull SQLiteDatabase db, @NonNull List<JobSpec> jobs) {
+    Stream.of(jobs)
+          .filterNot(JobSpec::isMemoryOnly)
+          .forEach(job -> {
+            ContentValues values = new ContentValues();
+            values.put(Jobs.JOB_SPEC_ID, job.getId());
+            values.put(Jobs.FACTORY_KEY, job.getFactoryKey());
+            values.put(Jobs.QUEUE_KEY, job.getQueueKey());
+            values.put(Jobs.CREATE_TIME, job.getCreateTime());
+            values.put(Jobs.NEXT_RUN_ATTEMPT_TIME, job.getNextRunAttemptTime());
+            values.put(Jobs.RUN_ATTEMPT, job.getRunAttempt());
+            values.put(Jobs.MAX_ATTEMPTS, job.getMaxAttempts());
+            values.put(Jobs.LIFESPAN, job.getLifespan());
+            putSerializedData(values, Jobs.SERIALIZED_DATA, job.getSerializedData());
+            putSerializedData(values, Jobs.SERIALIZED_INPUT_DATA, job.getSerializedInputData());
+            values.put(Jobs.IS_RUNNING, job.isRunning() ? 1 : 0);
+
+            String   query = Jobs.JOB_SPEC_ID + " = ?";
+            String[] args  = new String[]{ job.getId() };
+
+            db.update(Jobs.TABLE_NAME, values, query, args);
+          });
+  }
+
+  private void deleteJobSpecs(@NonNull SQLiteDatabase db, @NonNull List<String> jobIds) {
+    for (String jobId : jobIds) {
+      String[] arg = new String[]{jobId};
+
+      db.delete(Jobs.TABLE_NAME, Jobs.JOB_SPEC_ID + " = ?", arg);
+      db.delete(Constraints.TABLE_NAME, Constraints.JOB_SPEC_ID + " = ?", arg);
+      db.delete(Dependencies.TABLE_NAME, Dependencies.JOB_SPEC_ID + " = ?", arg);
+      db.delete(Dependencies.TABLE_NAME, Dependencies.DEPENDS_ON_JOB_SPEC_ID + " = ?", arg);
+    }
+  }
+
   private void insertJobSpec(@NonNull SQLiteDatabase db, @NonNull JobSpec job) {
     if (job.isMemoryOnly()) {
       return;
@@ -311,8 +344,8 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
     contentValues.put(Jobs.RUN_ATTEMPT, job.getRunAttempt());
     contentValues.put(Jobs.MAX_ATTEMPTS, job.getMaxAttempts());
     contentValues.put(Jobs.LIFESPAN, job.getLifespan());
-    contentValues.put(Jobs.SERIALIZED_DATA, job.getSerializedData());
-    contentValues.put(Jobs.SERIALIZED_INPUT_DATA, job.getSerializedInputData());
+    putSerializedData(contentValues, Jobs.SERIALIZED_DATA, job.getSerializedData());
+    putSerializedData(contentValues, Jobs.SERIALIZED_INPUT_DATA, job.getSerializedInputData());
     contentValues.put(Jobs.IS_RUNNING, job.isRunning() ? 1 : 0);
 
     db.insertWithOnConflict(Jobs.TABLE_NAME, null, contentValues, SQLiteDatabase.CONFLICT_IGNORE);
@@ -349,12 +382,34 @@ public class JobDatabase extends SQLiteOpenHelper implements SignalDatabaseOpenH
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.RUN_ATTEMPT)),
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.MAX_ATTEMPTS)),
                        cursor.getLong(cursor.getColumnIndexOrThrow(Jobs.LIFESPAN)),
-                       cursor.getString(cursor.getColumnIndexOrThrow(Jobs.SERIALIZED_DATA)),
-                       cursor.getString(cursor.getColumnIndexOrThrow(Jobs.SERIALIZED_INPUT_DATA)),
+                       getSerializedData(cursor, Jobs.SERIALIZED_DATA),
+                       getSerializedData(cursor, Jobs.SERIALIZED_INPUT_DATA),
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.IS_RUNNING)) == 1,
                        false);
   }
 
+  /**
+   * Binary job data (see {@link BinaryDataSerializer}) is stored as a BLOB so that it isn't mangled
+   * by text encoding. Legacy JSON data continues to be stored as TEXT.
+   */
+  private static void putSerializedData(@NonNull ContentValues values, @NonNull String column, @Nullable String serialized) {
+    if (BinaryDataSerializer.isBinary(serialized)) {
+      values.put(column, BinaryDataSerializer.toBytes(serialized));
+    } else {
+      values.put(column, serialized);
+    }
+  }
+
+  private static @Nullable String getSerializedData(@NonNull Cursor cursor, @NonNull String column) {
+    int index = cursor.getColumnIndexOrThrow(column);
+
+    if (cursor.getType(index) == Cursor.FIELD_TYPE_BLOB) {
+      return BinaryDataSerializer.fromBytes(cursor.getBlob(index));
+    } else {
+      return cursor.getString(index);
+    }
+  }
+
   private @NonNull ConstraintSpec constraintSpecFromCursor(@NonNull Cursor cursor) {
     return new ConstraintSpec(cursor.getString(cursor.getColumnIndexOrThrow(Constraints.JOB_SPEC_ID)),
                               cursor.getString(cursor.getColumnIndexOrThrow(Constraints.FACTORY_KEY)),
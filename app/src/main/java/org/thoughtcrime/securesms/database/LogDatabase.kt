@@ -2,10 +2,10 @@ package org.thoughtcrime.securesms.database
 
 import android.annotation.SuppressLint
 import android.app.Application
-import android.content.ContentValues
 import android.database.Cursor
 import net.zetetic.database.sqlcipher.SQLiteDatabase
 import net.zetetic.database.sqlcipher.SQLiteOpenHelper
+import net.zetetic.database.sqlcipher.SQLiteStatement
 import org.signal.core.util.CursorUtil
 import org.signal.core.util.SqlUtil
 import org.signal.core.util.Stopwatch
@@ -17,6 +17,7 @@ import org.thoughtcrime.securesms.crypto.DatabaseSecretProvider
 import org.thoughtcrime.securesms.database.model.LogEntry
 import org.thoughtcrime.securesms.util.ByteUnit
 import java.io.Closeable
+import java.util.TreeMap
 import java.util.concurrent.TimeUnit
 import kotlin.math.abs
 
@@ -51,6 +52,9 @@ class LogDatabase private constructor(
     private val DEFAULT_LIFESPAN = TimeUnit.DAYS.toMillis(3)
     private val LONGER_LIFESPAN = TimeUnit.DAYS.toMillis(21)
 
+    private val BUCKET_DURATION = TimeUnit.MINUTES.toMillis(1)
+    private const val READER_PAGE_SIZE = 1000
+
     private const val DATABASE_VERSION = 2
     private const val DATABASE_NAME = "signal-logs.db"
 
@@ -71,6 +75,8 @@ class LogDatabase private constructor(
       )
     """.trimIndent()
 
+    private const val INSERT = "INSERT INTO $TABLE_NAME ($CREATED_AT, $KEEP_LONGER, $BODY, $SIZE) VALUES (?, ?, ?, ?)"
+
     private val CREATE_INDEXES = arrayOf(
       "CREATE INDEX keep_longer_index ON $TABLE_NAME ($KEEP_LONGER)",
       "CREATE INDEX log_created_at_keep_longer_index ON $TABLE_NAME ($CREATED_AT, $KEEP_LONGER)"
@@ -95,6 +101,9 @@ class LogDatabase private constructor(
     }
   }
 
+  private var insertStatement: SQLiteStatement? = null
+  private val sizes = BucketSizes()
+
   override fun onCreate(db: SQLiteDatabase) {
     Log.i(TAG, "onCreate()")
     db.execSQL(CREATE_TABLE)
@@ -120,36 +129,73 @@ class LogDatabase private constructor(
     return writableDatabase
   }
 
+  /**
+   * Only ever called from the logger's write thread, which is what lets us hang on to a single compiled insert statement.
+   */
   fun insert(logs: List<LogEntry>, currentTime: Long) {
     val db = writableDatabase
 
-    db.beginTransaction()
-    try {
-      logs.forEach { log ->
-        db.insert(TABLE_NAME, null, buildValues(log))
+    // Always take the size lock before starting a transaction, otherwise we could deadlock with trimToSize()
+    synchronized(sizes) {
+      sizes.ensureLoaded()
+
+      db.beginTransaction()
+      try {
+        val statement = insertStatement ?: db.compileStatement(INSERT).also { insertStatement = it }
+
+        for (log in logs) {
+          statement.bindLong(1, log.createdAt)
+          statement.bindLong(2, if (log.keepLonger) 1 else 0)
+          statement.bindString(3, log.body)
+          statement.bindLong(4, log.body.length.toLong())
+          statement.executeInsert()
+        }
+
+        deleteExpired(db, currentTime - DEFAULT_LIFESPAN, false)
+        deleteExpired(db, currentTime - LONGER_LIFESPAN, true)
+
+        db.setTransactionSuccessful()
+      } catch (e: RuntimeException) {
+        sizes.invalidate()
+        throw e
+      } finally {
+        db.endTransaction()
       }
 
-      db.delete(
-        TABLE_NAME,
-        "($CREATED_AT < ? AND $KEEP_LONGER = ?) OR ($CREATED_AT < ? AND $KEEP_LONGER = ?)",
-        SqlUtil.buildArgs(currentTime - DEFAULT_LIFESPAN, 0, currentTime - LONGER_LIFESPAN, 1)
-      )
+      for (log in logs) {
+        sizes.add(log.createdAt, log.keepLonger, log.body.length.toLong())
+      }
+    }
+  }
 
-      db.setTransactionSuccessful()
-    } finally {
-      db.endTransaction()
+  /**
+   * Deletes everything older than the bucket containing [cutoff], which means we may keep up to one bucket's worth of logs longer than we otherwise would.
+   * In exchange, the size counters stay exact, and we can skip the delete entirely when there's nothing old enough.
+   */
+  private fun deleteExpired(db: SQLiteDatabase, cutoff: Long, keepLonger: Boolean) {
+    val cutoffBucket = bucketOf(cutoff)
+
+    if (sizes.removeBefore(cutoffBucket, keepLonger)) {
+      db.delete(TABLE_NAME, "$CREATED_AT < ? AND $KEEP_LONGER = ?", SqlUtil.buildArgs(cutoffBucket * BUCKET_DURATION, if (keepLonger) 1 else 0))
     }
   }
 
   fun deleteLogs() {
     val db = writableDatabase
 
-    db.delete(TABLE_NAME, null, null)
+    synchronized(sizes) {
+      db.delete(TABLE_NAME, null, null)
+      sizes.clear()
+    }
     db.execSQL("VACUUM")
   }
 
+  /**
+   * Reads every log created before [time], in the order they were written. Rows are read a page at a time by ID, so exporting a large log never requires
+   * the whole result to be loaded (or even counted) up front.
+   */
   fun getAllBeforeTime(time: Long): Reader {
-    return CursorReader(readableDatabase.query(TABLE_NAME, arrayOf(BODY), "$CREATED_AT < ?", SqlUtil.buildArgs(time), null, null, null))
+    return PagedReader(time)
   }
 
   fun getRangeBeforeTime(start: Int, length: Int, time: Long): List<String> {
@@ -164,55 +210,44 @@ class LogDatabase private constructor(
     return lines
   }
 
+  /**
+   * Trims the database down to [MAX_FILE_SIZE]. We keep a running total of log sizes per [BUCKET_DURATION], so this never needs to scan the table to figure
+   * out how much to delete -- it's just dropping the oldest buckets until we're under the limit, followed by a single indexed delete.
+   */
   fun trimToSize() {
-    val currentTime = System.currentTimeMillis()
     val stopwatch = Stopwatch("trim")
 
-    val sizeOfSpecialLogs: Long = getSize("$KEEP_LONGER = ?", arrayOf("1"))
-    val remainingSize = MAX_FILE_SIZE - sizeOfSpecialLogs
+    synchronized(sizes) {
+      sizes.ensureLoaded()
+      stopwatch.split("load-sizes")
 
-    stopwatch.split("keepers-size")
-
-    if (remainingSize <= 0) {
-      if (abs(remainingSize) > MAX_FILE_SIZE / 2) {
-        // Not only are KEEP_LONGER logs putting us over the storage limit, it's doing it by a lot! Delete half.
-        val logCount = readableDatabase.getTableRowCount(TABLE_NAME)
-        writableDatabase.execSQL("DELETE FROM $TABLE_NAME WHERE $ID < (SELECT MAX($ID) FROM (SELECT $ID FROM $TABLE_NAME LIMIT ${logCount / 2}))")
-      } else {
-        writableDatabase.delete(TABLE_NAME, "$KEEP_LONGER = ?", arrayOf("0"))
-      }
-      return
-    }
+      val sizeOfSpecialLogs: Long = sizes.keepLongerTotal
+      val remainingSize = MAX_FILE_SIZE - sizeOfSpecialLogs
 
-    val sizeDiffThreshold = MAX_FILE_SIZE * 0.01
-
-    var lhs: Long = currentTime - DEFAULT_LIFESPAN
-    var rhs: Long = currentTime
-    var mid: Long = 0
-    var sizeOfChunk: Long
-
-    while (lhs < rhs - 2) {
-      mid = (lhs + rhs) / 2
-      sizeOfChunk = getSize("$CREATED_AT > ? AND $CREATED_AT < ? AND $KEEP_LONGER = ?", SqlUtil.buildArgs(mid, currentTime, 0))
-
-      if (sizeOfChunk > remainingSize) {
-        lhs = mid
-      } else if (sizeOfChunk < remainingSize) {
-        if (remainingSize - sizeOfChunk < sizeDiffThreshold) {
-          break
+      if (remainingSize <= 0) {
+        if (abs(remainingSize) > MAX_FILE_SIZE / 2) {
+          // Not only are KEEP_LONGER logs putting us over the storage limit, it's doing it by a lot! Delete half.
+          val logCount = readableDatabase.getTableRowCount(TABLE_NAME)
+          writableDatabase.execSQL("DELETE FROM $TABLE_NAME WHERE $ID < (SELECT MAX($ID) FROM (SELECT $ID FROM $TABLE_NAME LIMIT ${logCount / 2}))")
+          sizes.invalidate()
         } else {
-          rhs = mid
+          writableDatabase.delete(TABLE_NAME, "$KEEP_LONGER = ?", arrayOf("0"))
+          sizes.removeBefore(Long.MAX_VALUE, false)
         }
-      } else {
-        break
+        return
       }
-    }
 
-    stopwatch.split("binary-search")
+      val cutoffBucket = sizes.findTrimCutoff(remainingSize)
+      stopwatch.split("find-cutoff")
 
-    writableDatabase.delete(TABLE_NAME, "$CREATED_AT < ? AND $KEEP_LONGER = ?", SqlUtil.buildArgs(mid, 0))
+      if (cutoffBucket != null) {
+        sizes.removeBefore(cutoffBucket, false)
+        writableDatabase.delete(TABLE_NAME, "$CREATED_AT < ? AND $KEEP_LONGER = ?", SqlUtil.buildArgs(cutoffBucket * BUCKET_DURATION, 0))
+      }
+
+      stopwatch.split("delete")
+    }
 
-    stopwatch.split("delete")
     stopwatch.stop(TAG)
   }
 
@@ -227,44 +262,138 @@ class LogDatabase private constructor(
   }
 
   fun clearKeepLonger() {
-    writableDatabase.delete(TABLE_NAME)
-      .where("$KEEP_LONGER = ?", 1)
-      .run()
-  }
+    synchronized(sizes) {
+      writableDatabase.delete(TABLE_NAME)
+        .where("$KEEP_LONGER = ?", 1)
+        .run()
 
-  private fun buildValues(log: LogEntry): ContentValues {
-    return ContentValues().apply {
-      put(CREATED_AT, log.createdAt)
-      put(KEEP_LONGER, if (log.keepLonger) 1 else 0)
-      put(BODY, log.body)
-      put(SIZE, log.body.length)
-    }
-  }
-
-  private fun getSize(query: String?, args: Array<String>?): Long {
-    readableDatabase.query(TABLE_NAME, arrayOf("SUM($SIZE)"), query, args, null, null, null).use { cursor ->
-      return if (cursor.moveToFirst()) {
-        cursor.getLong(0)
-      } else {
-        0
-      }
+      sizes.removeBefore(Long.MAX_VALUE, true)
     }
   }
 
   interface Reader : Iterator<String>, Closeable
 
-  class CursorReader(private val cursor: Cursor) : Reader {
+  private inner class PagedReader(private val time: Long) : Reader {
+    private var cursor: Cursor? = null
+    private var lastId: Long = -1
+    private var exhausted = false
+
     override fun hasNext(): Boolean {
-      return !cursor.isLast && cursor.count > 0
+      if (exhausted) {
+        return false
+      }
+
+      if (cursor?.isLast != false) {
+        cursor?.close()
+        cursor = readableDatabase.query(TABLE_NAME, arrayOf(ID, BODY), "$CREATED_AT < ? AND $ID > ?", SqlUtil.buildArgs(time, lastId), null, null, "$ID ASC", READER_PAGE_SIZE.toString())
+
+        if (cursor!!.count == 0) {
+          exhausted = true
+          close()
+          return false
+        }
+      }
+
+      return true
     }
 
     override fun next(): String {
-      cursor.moveToNext()
-      return CursorUtil.requireString(cursor, BODY)
+      if (!hasNext()) {
+        throw NoSuchElementException()
+      }
+
+      val current = cursor!!
+      current.moveToNext()
+      lastId = CursorUtil.requireLong(current, ID)
+      return CursorUtil.requireString(current, BODY)
     }
 
     override fun close() {
-      cursor.close()
+      cursor?.close()
+      cursor = null
+    }
+  }
+
+  /**
+   * Running totals of the size of the logs in each [BUCKET_DURATION], split by whether they're kept longer. Loaded from disk once, and then kept up to date
+   * as we insert and delete. All access must be synchronized on this object.
+   */
+  private inner class BucketSizes {
+    private val normal = TreeMap<Long, Long>()
+    private val keepLonger = TreeMap<Long, Long>()
+    private var loaded = false
+
+    val keepLongerTotal: Long
+      get() = keepLonger.values.sum()
+
+    fun ensureLoaded() {
+      if (loaded) {
+        return
+      }
+
+      normal.clear()
+      keepLonger.clear()
+
+      readableDatabase.query(TABLE_NAME, arrayOf("$CREATED_AT / $BUCKET_DURATION AS bucket", KEEP_LONGER, "SUM($SIZE)"), null, null, "bucket, $KEEP_LONGER", null, null).use { cursor ->
+        while (cursor.moveToNext()) {
+          val map = if (cursor.getInt(1) == 1) keepLonger else normal
+          map[cursor.getLong(0)] = cursor.getLong(2)
+        }
+      }
+
+      loaded = true
     }
+
+    fun add(createdAt: Long, isKeepLonger: Boolean, size: Long) {
+      val map = if (isKeepLonger) keepLonger else normal
+      val bucket = bucketOf(createdAt)
+      map[bucket] = (map[bucket] ?: 0) + size
+    }
+
+    /**
+     * Forgets every bucket before [bucket].
+     *
+     * @return True if there was anything to forget.
+     */
+    fun removeBefore(bucket: Long, isKeepLonger: Boolean): Boolean {
+      val head = (if (isKeepLonger) keepLonger else normal).headMap(bucket)
+      val hadAny = head.isNotEmpty()
+      head.clear()
+      return hadAny
+    }
+
+    /**
+     * @return The earliest bucket that can be kept such that the normal logs will fit in [maxSize], or null if they already fit.
+     */
+    fun findTrimCutoff(maxSize: Long): Long? {
+      var size = normal.values.sum()
+
+      if (size <= maxSize) {
+        return null
+      }
+
+      for ((bucket, bucketSize) in normal) {
+        size -= bucketSize
+        if (size <= maxSize) {
+          return bucket + 1
+        }
+      }
+
+      return normal.lastKey() + 1
+    }
+
+    fun clear() {
+      normal.clear()
+      keepLonger.clear()
+      loaded = true
+    }
+
+    fun invalidate() {
+      loaded = false
+    }
+  }
+
+  private fun bucketOf(createdAt: Long): Long {
+    return Math.floorDiv(createdAt, BUCKET_DURATION)
   }
 }
@@ -76,6 +76,7 @@ import org.thoughtcrime.securesms.database.model.databaseprotos.ThreadMergeEvent
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
 import org.thoughtcrime.securesms.groups.GroupMigrationMembershipChange;
 import org.thoughtcrime.securesms.insights.InsightsConstants;
+import org.thoughtcrime.securesms.jobs.AttachmentGarbageCollectionJob;
 import org.thoughtcrime.securesms.jobs.TrimThreadJob;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.thoughtcrime.securesms.linkpreview.LinkPreview;
@@ -437,7 +438,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
 
     long threadId = getThreadIdForMessage(id);
-    SignalDatabase.threads().update(threadId, false);
+    SignalDatabase.threads().scheduleUpdate(threadId, false);
     notifyConversationListeners(threadId);
   }
 
@@ -474,7 +475,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
 
     long threadId = getThreadIdForMessage(messageId);
 
-    SignalDatabase.threads().update(threadId, true);
+    SignalDatabase.threads().scheduleUpdate(threadId, true);
     notifyConversationListeners(threadId);
 
     return new InsertResult(messageId, threadId);
@@ -634,7 +635,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
       SignalDatabase.threads().incrementUnread(threadId, 1, 0);
     }
 
-    SignalDatabase.threads().update(threadId, !keepThreadArchived);
+    SignalDatabase.threads().scheduleUpdate(threadId, !keepThreadArchived);
 
     notifyConversationListeners(threadId);
     TrimThreadJob.enqueueAsync(threadId);
@@ -656,7 +657,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
       SignalDatabase.threads().incrementUnread(threadId, 1, 0);
     }
 
-    SignalDatabase.threads().update(threadId, !keepThreadArchived);
+    SignalDatabase.threads().scheduleUpdate(threadId, !keepThreadArchived);
 
     notifyConversationListeners(threadId);
     ApplicationDependencies.getDatabaseObserver().notifyMessageUpdateObservers(new MessageId(messageId));
@@ -708,7 +709,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
         SignalDatabase.threads().incrementUnread(threadId, 1, 0);
       }
       boolean keepThreadArchived = SignalStore.settings().shouldKeepMutedChatsArchived() && recipient.isMuted();
-      SignalDatabase.threads().update(threadId, !keepThreadArchived);
+      SignalDatabase.threads().scheduleUpdate(threadId, !keepThreadArchived);
 
       db.setTransactionSuccessful();
     } finally {
@@ -785,7 +786,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
       }
 
       final boolean keepThreadArchived = SignalStore.settings().shouldKeepMutedChatsArchived() && recipient.isMuted();
-      SignalDatabase.threads().update(threadId, !keepThreadArchived);
+      SignalDatabase.threads().scheduleUpdate(threadId, !keepThreadArchived);
 
       db.setTransactionSuccessful();
     } finally {
@@ -946,7 +947,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
 
       if (!silent) {
         final boolean keepThreadArchived = SignalStore.settings().shouldKeepMutedChatsArchived() && (recipient.isMuted() || (groupRecipient != null && groupRecipient.isMuted()));
-        SignalDatabase.threads().update(threadId, !keepThreadArchived);
+        SignalDatabase.threads().scheduleUpdate(threadId, !keepThreadArchived);
       }
 
       if (message.getSubscriptionId() != -1) {
@@ -1099,7 +1100,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
                      .filter(Objects::nonNull)
                      .forEach(threadId -> {
                        TrimThreadJob.enqueueAsync(threadId);
-                       SignalDatabase.threads().update(threadId, true);
+                       SignalDatabase.threads().scheduleUpdate(threadId, true);
                        notifyConversationListeners(threadId);
                      });
   }
@@ -1890,7 +1891,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
       disassociateStoryQuotes(messageId);
 
       threadId = getThreadIdForMessage(messageId);
-      SignalDatabase.threads().update(threadId, false);
+      SignalDatabase.threads().scheduleUpdate(threadId, false);
 
       db.setTransactionSuccessful();
     } finally {
@@ -1958,7 +1959,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
       db.endTransaction();
     }
 
-    SignalDatabase.threads().update(threadId, false);
+    SignalDatabase.threads().scheduleUpdate(threadId, false);
     notifyConversationListeners(threadId);
   }
 
@@ -2423,7 +2424,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
     if (!MessageTypes.isPaymentsActivated(mailbox) && !MessageTypes.isPaymentsRequestToActivate(mailbox) && !MessageTypes.isExpirationTimerUpdate(mailbox) && !retrieved.getStoryType().isStory() && isNotStoryGroupReply) {
       boolean incrementUnreadMentions = !retrieved.getMentions().isEmpty() && retrieved.getMentions().stream().anyMatch(m -> m.getRecipientId().equals(Recipient.self().getId()));
       SignalDatabase.threads().incrementUnread(threadId, 1, incrementUnreadMentions ? 1 : 0);
-      SignalDatabase.threads().update(threadId, !keepThreadArchived);
+      SignalDatabase.threads().scheduleUpdate(threadId, !keepThreadArchived);
     }
 
     notifyConversationListeners(threadId);
@@ -2573,7 +2574,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
 
     SignalDatabase.threads().incrementUnread(threadId, 1, 0);
     boolean keepThreadArchived = SignalStore.settings().shouldKeepMutedChatsArchived() && Recipient.resolved(recipientId).isMuted();
-    SignalDatabase.threads().update(threadId, !keepThreadArchived);
+    SignalDatabase.threads().scheduleUpdate(threadId, !keepThreadArchived);
 
     notifyConversationListeners(threadId);
 
@@ -2597,7 +2598,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
 
     SignalDatabase.threads().incrementUnread(threadId, 1, 0);
     boolean keepThreadArchived = SignalStore.settings().shouldKeepMutedChatsArchived() && Recipient.resolved(recipientId).isMuted();
-    SignalDatabase.threads().update(threadId, !keepThreadArchived);
+    SignalDatabase.threads().scheduleUpdate(threadId, !keepThreadArchived);
 
     notifyConversationListeners(threadId);
 
@@ -2611,7 +2612,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
       SignalDatabase.threads().incrementUnread(threadId, 1, 0);
     }
 
-    SignalDatabase.threads().update(threadId, true);
+    SignalDatabase.threads().scheduleUpdate(threadId, true);
 
     TrimThreadJob.enqueueAsync(threadId);
   }
@@ -2933,7 +2934,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
 
       if (updateThread) {
         SignalDatabase.threads().setLastScrolled(contentValuesThreadId, 0);
-        SignalDatabase.threads().update(threadId, unarchive);
+        SignalDatabase.threads().scheduleUpdate(threadId, unarchive);
       }
     }
   }
@@ -3140,15 +3141,17 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
       getWritableDatabase().delete(TABLE_NAME, EXPORTED + " = ?", SqlUtil.buildArgs(MessageExportStatus.EXPORTED));
 
       for (final long threadId : threadsToUpdate) {
-        SignalDatabase.threads().update(threadId, false);
+        SignalDatabase.threads().scheduleUpdate(threadId, false);
       }
 
-      SignalDatabase.attachments().deleteAbandonedAttachmentFiles();
+      SignalDatabase.attachments().trimAllAbandonedAttachments();
 
       setTransactionSuccessful();
     } finally {
       endTransaction();
     }
+
+    AttachmentGarbageCollectionJob.enqueue();
   }
 
   void deleteThreads(@NonNull Set<Long> threadIds) {
@@ -3797,27 +3800,48 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
     return -1;
   }
 
+  /**
+   * Retrieves the position of the message with the provided received timestamp and author in the
+   * query results you'd get from calling {@link #getConversation(long)}.
+   *
+   * Messages with the same received timestamp are ordered newest-insert first, which is the order
+   * the conversation query walks them in. If there are several matching messages, the first one in
+   * that order is used.
+   *
+   * @return The position, or -1 if there's no match or the matching message was remote-deleted.
+   */
   public int getMessagePositionInConversation(long threadId, long receivedTimestamp, @NonNull RecipientId recipientId) {
-    String[] projection = new String[]{ DATE_RECEIVED, RECIPIENT_ID, REMOTE_DELETED};
-    String   order      = DATE_RECEIVED + " DESC";
-    String   selection  = THREAD_ID + " = " + threadId + " AND " + STORY_TYPE + " = 0" + " AND " + PARENT_STORY_ID + " <= 0";
+    boolean  isOwnNumber     = Recipient.resolved(recipientId).isSelf();
+    String   targetSelection = THREAD_ID + " = ? AND " + DATE_RECEIVED + " = ? AND " + STORY_TYPE + " = 0 AND " + PARENT_STORY_ID + " <= 0";
+    String[] targetArgs      = SqlUtil.buildArgs(threadId, receivedTimestamp);
 
-    try (Cursor cursor = getReadableDatabase().query(TABLE_NAME, projection, selection, null, null, null, order)) {
-      boolean isOwnNumber = Recipient.resolved(recipientId).isSelf();
+    if (!isOwnNumber) {
+      targetSelection += " AND " + RECIPIENT_ID + " = ?";
+      targetArgs       = SqlUtil.appendArg(targetArgs, recipientId.serialize());
+    }
 
-      while (cursor != null && cursor.moveToNext()) {
-        boolean timestampMatches   = cursor.getLong(0) == receivedTimestamp;
-        boolean recipientIdMatches = recipientId.equals(RecipientId.from(cursor.getLong(1)));
+    long targetId;
 
-        if (timestampMatches && (recipientIdMatches || isOwnNumber)) {
-          if (CursorUtil.requireBoolean(cursor, REMOTE_DELETED)) {
-            return -1;
-          } else {
-            return cursor.getPosition();
-          }
-        }
+    try (Cursor cursor = getReadableDatabase().query(TABLE_NAME, new String[] { ID, REMOTE_DELETED }, targetSelection, targetArgs, null, null, ID + " DESC", "1")) {
+      if (cursor == null || !cursor.moveToFirst() || CursorUtil.requireBoolean(cursor, REMOTE_DELETED)) {
+        return -1;
       }
+
+      targetId = CursorUtil.requireLong(cursor, ID);
     }
+
+    // Everything that sorts before the target: newer messages, and messages with the same timestamp that were inserted after it.
+    // Fully covered by mms_thread_story_parent_story_index, so this never has to touch the table itself.
+    String   countSelection = THREAD_ID + " = ? AND " + STORY_TYPE + " = 0 AND " + PARENT_STORY_ID + " <= 0 AND " +
+                              DATE_RECEIVED + " >= ? AND (" + DATE_RECEIVED + " > ? OR " + ID + " > ?)";
+    String[] countArgs      = SqlUtil.buildArgs(threadId, receivedTimestamp, receivedTimestamp, targetId);
+
+    try (Cursor cursor = getReadableDatabase().query(TABLE_NAME, COUNT, countSelection, countArgs, null, null, null)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getInt(0);
+      }
+    }
+
     return -1;
   }
 
@@ -4115,7 +4139,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
       messageUpdates = incrementReceiptCountInternal(syncMessageId, timestamp, receiptType, messageQualifier);
 
       for (MessageUpdate messageUpdate : messageUpdates) {
-        threadTable.update(messageUpdate.getThreadId(), false);
+        threadTable.scheduleUpdate(messageUpdate.getThreadId(), false);
       }
 
       db.setTransactionSuccessful();
@@ -4158,7 +4182,7 @@ public class MessageTable extends DatabaseTable implements MessageTypes, Recipie
       }
 
       for (MessageUpdate update : messageUpdates) {
-        threadTable.updateSilently(update.getThreadId(), false);
+        threadTable.scheduleUpdate(update.getThreadId(), false, false);
       }
 
       db.setTransactionSuccessful();
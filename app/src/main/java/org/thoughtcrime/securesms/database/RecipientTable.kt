@@ -53,6 +53,7 @@ import org.thoughtcrime.securesms.database.GroupTable.ShowAsStoryState
 import org.thoughtcrime.securesms.database.IdentityTable.VerifiedStatus
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.groups
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.identities
+import org.thoughtcrime.securesms.database.SignalDatabase.Companion.runPostFailedTransaction
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.runPostSuccessfulTransaction
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.sessions
 import org.thoughtcrime.securesms.database.SignalDatabase.Companion.threads
@@ -489,6 +490,15 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
           StorageSyncHelper.scheduleSyncForDataChange()
           RecipientId.clearCache()
         }
+
+        // Affected ids are covered by notifyRecipientChanged(), but inserted and merged-away ids need their cache entries fixed too if an
+        // outer transaction is rolled back
+        val rolledBackIds: Set<RecipientId> = if (result.requiredInsert) result.oldIds + result.finalId else result.oldIds
+        rolledBackIds.forEach { id ->
+          runPostFailedTransaction("RecipientTable:rolled-back:${id.serialize()}") {
+            ApplicationDependencies.getRecipientCache().onRolledBack(id)
+          }
+        }
       }
     }
 
@@ -757,6 +767,25 @@ open class RecipientTable(context: Context, databaseHelper: SignalDatabase) : Da
     }
   }
 
+  /**
+   * Reads many records at once, using as few queries as possible. Unlike [getRecord], IDs that don't exist (including ones that were remapped) are
+   * left out of the results rather than throwing.
+   */
+  fun getRecords(ids: Collection<RecipientId>): Map<RecipientId, RecipientRecord> {
+    val results: MutableMap<RecipientId, RecipientRecord> = HashMap(ids.size)
+
+    for (query in SqlUtil.buildCollectionQuery(ID, ids.map { it.serialize() })) {
+      readableDatabase.query(TABLE_NAME, RECIPIENT_PROJECTION, query.where, query.whereArgs, null, null, null).use { cursor ->
+        while (cursor.moveToNext()) {
+          val record = getRecord(context, cursor)
+          results[record.id] = record
+        }
+      }
+    }
+
+    return results
+  }
+
   fun getRecordForSync(id: RecipientId): RecipientRecord? {
     val query = "$TABLE_NAME.$ID = ?"
     val args = arrayOf(id.serialize())
@@ -50,10 +50,14 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
 
   private static final ThreadLocal<Set<Runnable>> PENDING_POST_SUCCESSFUL_TRANSACTION_TASKS;
   private static final ThreadLocal<Set<Runnable>> POST_SUCCESSFUL_TRANSACTION_TASKS;
+  private static final ThreadLocal<Set<Runnable>> PENDING_POST_FAILED_TRANSACTION_TASKS;
+  private static final ThreadLocal<Set<Runnable>> POST_FAILED_TRANSACTION_TASKS;
 
   static {
     PENDING_POST_SUCCESSFUL_TRANSACTION_TASKS = new ThreadLocal<>();
     POST_SUCCESSFUL_TRANSACTION_TASKS         = new ThreadLocal<>();
+    PENDING_POST_FAILED_TRANSACTION_TASKS     = new ThreadLocal<>();
+    POST_FAILED_TRANSACTION_TASKS             = new ThreadLocal<>();
 
     PENDING_POST_SUCCESSFUL_TRANSACTION_TASKS.set(new LinkedHashSet<>());
   }
@@ -148,6 +152,64 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
     }
   }
 
+  /**
+   * Allows you to enqueue a task to be run after the active transaction is rolled back, so that any in-memory state that was built up
+   * alongside it can be thrown away. There can only be one task enqueued for a given dedupe key.
+   * If the transaction succeeds, the task is discarded.
+   * If there is no current transaction open, there's nothing to roll back, and the task is discarded.
+   */
+  public void runPostFailedTransaction(@NonNull String dedupeKey, @NonNull Runnable task) {
+    if (wrapped.inTransaction()) {
+      getTasks(PENDING_POST_FAILED_TRANSACTION_TASKS).add(new DedupedRunnable(dedupeKey, task));
+    }
+  }
+
+  /**
+   * Runs the operation inside a savepoint of the current transaction. If it throws, only the writes it made are rolled back, the
+   * post-successful-transaction tasks it enqueued are discarded, its post-failed-transaction tasks are run, and the exception is rethrown.
+   * Either way, the surrounding transaction carries on.
+   *
+   * The savepoint statements go through {@link #rawExecSQL(String)}, because {@link #execSQL(String)} treats anything starting with
+   * ROLLBACK as the end of the whole transaction.
+   */
+  public void runInSavepoint(@NonNull String name, @NonNull Runnable operation) {
+    if (!wrapped.inTransaction()) {
+      throw new IllegalStateException("Savepoints must be used inside of a transaction!");
+    }
+
+    Set<Runnable> successfulTasksBefore = new HashSet<>(getPendingPostSuccessfulTransactionTasks());
+    Set<Runnable> failedTasksBefore     = new HashSet<>(getTasks(PENDING_POST_FAILED_TRANSACTION_TASKS));
+
+    rawExecSQL("SAVEPOINT " + name);
+
+    try {
+      operation.run();
+    } catch (RuntimeException | Error e) {
+      try {
+        rawExecSQL("ROLLBACK TO " + name);
+        rawExecSQL("RELEASE " + name);
+      } catch (RuntimeException rollbackFailure) {
+        e.addSuppressed(rollbackFailure);
+      }
+
+      getPendingPostSuccessfulTransactionTasks().retainAll(successfulTasksBefore);
+
+      Set<Runnable> failedTasks = getTasks(PENDING_POST_FAILED_TRANSACTION_TASKS);
+      Set<Runnable> rolledBack  = new LinkedHashSet<>(failedTasks);
+
+      rolledBack.removeAll(failedTasksBefore);
+      failedTasks.retainAll(failedTasksBefore);
+
+      for (Runnable task : rolledBack) {
+        task.run();
+      }
+
+      throw e;
+    }
+
+    rawExecSQL("RELEASE " + name);
+  }
+
   private @NonNull Set<Runnable> getPendingPostSuccessfulTransactionTasks() {
     Set<Runnable> tasks = PENDING_POST_SUCCESSFUL_TRANSACTION_TASKS.get();
 
@@ -170,6 +232,17 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
     return tasks;
   }
 
+  private static @NonNull Set<Runnable> getTasks(@NonNull ThreadLocal<Set<Runnable>> threadLocal) {
+    Set<Runnable> tasks = threadLocal.get();
+
+    if (tasks == null) {
+      tasks = new LinkedHashSet<>();
+      threadLocal.set(tasks);
+    }
+
+    return tasks;
+  }
+
   private interface Returnable<E> {
     E run();
   }
@@ -299,11 +372,18 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
             tasks.clear();
             tasks.addAll(pendingTasks);
             pendingTasks.clear();
+            getTasks(PENDING_POST_FAILED_TRANSACTION_TASKS).clear();
           }
 
           @Override
           public void onRollback() {
             getPendingPostSuccessfulTransactionTasks().clear();
+
+            Set<Runnable> pendingTasks = getTasks(PENDING_POST_FAILED_TRANSACTION_TASKS);
+            Set<Runnable> tasks        = getTasks(POST_FAILED_TRANSACTION_TASKS);
+            tasks.clear();
+            tasks.addAll(pendingTasks);
+            pendingTasks.clear();
           }
         });
       });
@@ -319,6 +399,12 @@ public class SQLiteDatabase implements SupportSQLiteDatabase {
       r.run();
     }
     tasks.clear();
+
+    Set<Runnable> failedTasks = getTasks(POST_FAILED_TRANSACTION_TASKS);
+    for (Runnable r : new HashSet<>(failedTasks)) {
+      r.run();
+    }
+    failedTasks.clear();
   }
 
   public void setTransactionSuccessful() {
@@ -25,6 +25,7 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     const val MESSAGE_RECIPIENT = "message_recipient"
     const val IS_MMS = "is_mms"
     const val MESSAGE_ID = "message_id"
+    const val RANK = "search_rank"
     const val SNIPPET_WRAP = "..."
 
     @Language("sql")
@@ -32,6 +33,13 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       "CREATE VIRTUAL TABLE $MMS_FTS_TABLE_NAME USING fts5($BODY, $THREAD_ID UNINDEXED, content=${MessageTable.TABLE_NAME}, content_rowid=${MessageTable.ID})",
     )
 
+    private const val DOCSIZE_TABLE_NAME = "${MMS_FTS_TABLE_NAME}_docsize"
+
+    /**
+     * The delete and update triggers only remove a message from the index if it's actually in there. Telling FTS5 to delete a row it never
+     * indexed corrupts the index, which would otherwise happen to any message that changes before
+     * [org.thoughtcrime.securesms.jobs.RebuildMessageSearchIndexJob] has reached it.
+     */
     @Language("sql")
     val CREATE_TRIGGERS = arrayOf(
       """
@@ -40,18 +48,23 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         END;
       """,
       """
-        CREATE TRIGGER mms_ad AFTER DELETE ON ${MessageTable.TABLE_NAME} BEGIN
+        CREATE TRIGGER mms_ad AFTER DELETE ON ${MessageTable.TABLE_NAME} WHEN old.${MessageTable.ID} IN (SELECT id FROM $DOCSIZE_TABLE_NAME) BEGIN
           INSERT INTO $MMS_FTS_TABLE_NAME($MMS_FTS_TABLE_NAME, $ID, $BODY, $THREAD_ID) VALUES('delete', old.${MessageTable.ID}, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID});
         END;
       """,
       """
         CREATE TRIGGER mms_au AFTER UPDATE ON ${MessageTable.TABLE_NAME} BEGIN
-          INSERT INTO $MMS_FTS_TABLE_NAME($MMS_FTS_TABLE_NAME, $ID, $BODY, $THREAD_ID) VALUES('delete', old.${MessageTable.ID}, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID});
+          INSERT INTO $MMS_FTS_TABLE_NAME($MMS_FTS_TABLE_NAME, $ID, $BODY, $THREAD_ID) SELECT 'delete', old.${MessageTable.ID}, old.${MessageTable.BODY}, old.${MessageTable.THREAD_ID} WHERE old.${MessageTable.ID} IN (SELECT id FROM $DOCSIZE_TABLE_NAME);
           INSERT INTO $MMS_FTS_TABLE_NAME($ID, $BODY, $THREAD_ID) VALUES (new.${MessageTable.ID}, new.${MessageTable.BODY}, new.${MessageTable.THREAD_ID});
           END;
       """
     )
 
+    /**
+     * The most relevant messages matching the search (using FTS5's built-in bm25 ranking, where lower is better), with ties broken by the newest
+     * message first. The search is only run once, so callers that want to show results early should read them off the cursor as they go rather
+     * than querying again for later results.
+     */
     @Language("sql")
     private const val MESSAGES_QUERY = """
       SELECT 
@@ -62,6 +75,7 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         $MMS_FTS_TABLE_NAME.$THREAD_ID, 
         $MMS_FTS_TABLE_NAME.$BODY, 
         $MMS_FTS_TABLE_NAME.$ID AS $MESSAGE_ID, 
+        $MMS_FTS_TABLE_NAME.rank AS $RANK, 
         1 AS $IS_MMS 
       FROM 
         ${MessageTable.TABLE_NAME} 
@@ -71,7 +85,7 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         $MMS_FTS_TABLE_NAME MATCH ? AND 
         ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.GROUP_V2_BIT} = 0 AND 
         ${MessageTable.TABLE_NAME}.${MessageTable.TYPE} & ${MessageTypes.SPECIAL_TYPE_PAYMENTS_NOTIFICATION} = 0 
-      ORDER BY ${MessageTable.DATE_RECEIVED} DESC 
+      ORDER BY $RANK ASC, $MESSAGE_ID DESC 
       LIMIT 500
     """
 
@@ -98,6 +112,9 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     """
   }
 
+  /**
+   * @return Messages matching the query, most relevant first.
+   */
   fun queryMessages(query: String): Cursor? {
     val fullTextSearchQuery = createFullTextSearchQuery(query)
     return if (fullTextSearchQuery.isEmpty()) {
@@ -117,35 +134,33 @@ class SearchTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
   }
 
   /**
-   * Re-adds every message to the index. It's fine to insert the same message twice; the table will naturally de-dupe.
-   *
-   * In order to prevent the database from locking up with super large inserts, this will perform the re-index in batches of the size you specify.
-   * It is not guaranteed that every batch will be the same size, but rather that the batches will be _no larger_ than the specified size.
-   *
-   * Warning: This is a potentially extremely-costly operation! It can take 10+ seconds on large installs and/or slow devices.
-   * Be smart about where you call this.
+   * Empties the index, so that it can be filled again from scratch by [indexMissingMessages]. Unlike a full 'rebuild', this is quick no matter
+   * how many messages there are.
    */
-  fun rebuildIndex(batchSize: Long = 10_000L) {
-    val maxId: Long = SignalDatabase.messages.nextId
-
-    Log.i(TAG, "Re-indexing. Operating on ID's 1-$maxId in steps of $batchSize.")
+  fun clearIndex() {
+    writableDatabase.execSQL("INSERT INTO $MMS_FTS_TABLE_NAME ($MMS_FTS_TABLE_NAME) VALUES ('delete-all')")
+  }
 
-    for (i in 1..maxId step batchSize) {
-      Log.i(TAG, "Reindexing ID's [$i, ${i + batchSize})")
-      writableDatabase.execSQL(
-        """
-        INSERT INTO $MMS_FTS_TABLE_NAME ($ID, $BODY) 
-            SELECT 
-              ${MessageTable.ID}, 
-              ${MessageTable.BODY}
-            FROM 
-              ${MessageTable.TABLE_NAME} 
-            WHERE 
-              ${MessageTable.ID} >= $i AND
-              ${MessageTable.ID} < ${i + batchSize}
-        """.trimIndent()
-      )
-    }
+  /**
+   * Adds any messages with IDs in [startId, endId) that aren't already in the index. Messages that are already indexed are skipped, so this is
+   * safe to run while the triggers are indexing new messages. See [org.thoughtcrime.securesms.jobs.RebuildMessageSearchIndexJob].
+   */
+  fun indexMissingMessages(startId: Long, endId: Long) {
+    writableDatabase.execSQL(
+      """
+      INSERT INTO $MMS_FTS_TABLE_NAME ($ID, $BODY, $THREAD_ID) 
+        SELECT 
+          ${MessageTable.ID}, 
+          ${MessageTable.BODY}, 
+          ${MessageTable.THREAD_ID} 
+        FROM 
+          ${MessageTable.TABLE_NAME} 
+        WHERE 
+          ${MessageTable.ID} >= $startId AND 
+          ${MessageTable.ID} < $endId AND 
+          ${MessageTable.ID} NOT IN (SELECT id FROM $DOCSIZE_TABLE_NAME WHERE id >= $startId AND id < $endId)
+      """.trimIndent()
+    )
   }
 
   private fun createFullTextSearchQuery(query: String): String {
@@ -101,6 +101,8 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     db.execSQL(RemoteMegaphoneTable.CREATE_TABLE)
     db.execSQL(PendingPniSignatureMessageTable.CREATE_TABLE)
     db.execSQL(CallTable.CREATE_TABLE)
+    db.execSQL(AttachmentTable.CREATE_BLOB_TABLE)
+    db.execSQL(AttachmentTable.CREATE_TOMBSTONE_TABLE)
     executeStatements(db, SearchTable.CREATE_TABLE)
     executeStatements(db, RemappedRecordTables.CREATE_TABLE)
     executeStatements(db, MessageSendLogTables.CREATE_TABLE)
@@ -130,6 +132,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
     executeStatements(db, SearchTable.CREATE_TRIGGERS)
     executeStatements(db, MessageSendLogTables.CREATE_TRIGGERS)
     executeStatements(db, ReactionTable.CREATE_TRIGGERS)
+    executeStatements(db, AttachmentTable.CREATE_TRIGGERS)
 
     DistributionListTables.insertInitialDistributionListAtCreationTime(db)
 
@@ -245,6 +248,11 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
       instance!!.signalReadableDatabase.runPostSuccessfulTransaction(task)
     }
 
+    @JvmStatic
+    fun runPostFailedTransaction(dedupeKey: String, task: Runnable) {
+      instance!!.signalReadableDatabase.runPostFailedTransaction(dedupeKey, task)
+    }
+
     @JvmStatic
     fun databaseFileExists(context: Context): Boolean {
       return context.getDatabasePath(DATABASE_NAME).exists()
@@ -273,6 +281,7 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
 
         instance!!.rawWritableDatabase.close()
         triggerDatabaseAccess()
+        instance!!.threadTable.clearPinnedCache()
       }
     }
 
@@ -297,6 +306,15 @@ open class SignalDatabase(private val context: Application, databaseSecret: Data
       }
     }
 
+    /**
+     * Runs [operation] in a savepoint of the current transaction, so that if it throws, only its own writes are rolled back.
+     * See [SQLiteDatabase.runInSavepoint].
+     */
+    @JvmStatic
+    fun runInSavepoint(name: String, operation: Runnable) {
+      instance!!.signalWritableDatabase.runInSavepoint(name, operation)
+    }
+
     @get:JvmStatic
     @get:JvmName("attachments")
     val attachments: AttachmentTable
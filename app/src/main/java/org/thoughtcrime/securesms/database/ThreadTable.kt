@@ -42,6 +42,7 @@ import org.thoughtcrime.securesms.database.model.MmsMessageRecord
 import org.thoughtcrime.securesms.database.model.ThreadRecord
 import org.thoughtcrime.securesms.groups.BadGroupIdException
 import org.thoughtcrime.securesms.groups.GroupId
+import org.thoughtcrime.securesms.jobs.AttachmentGarbageCollectionJob
 import org.thoughtcrime.securesms.keyvalue.SignalStore
 import org.thoughtcrime.securesms.mms.SlideDeck
 import org.thoughtcrime.securesms.mms.StickerSlide
@@ -169,8 +170,29 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
     const val NO_TRIM_BEFORE_DATE_SET: Long = 0
     const val NO_TRIM_MESSAGE_COUNT_SET = Int.MAX_VALUE
+
+    private const val KEY_PENDING_UPDATES = "ThreadTable:pending-updates"
+    private const val KEY_PINNED_CACHE = "ThreadTable:pinned-cache"
+  }
+
+  /**
+   * Threads that have been marked with [scheduleUpdate] in the current transaction, and how they should be updated once it commits. Cleared
+   * if the transaction is rolled back instead.
+   */
+  private val pendingUpdates: ThreadLocal<MutableMap<Long, PendingUpdate>> = object : ThreadLocal<MutableMap<Long, PendingUpdate>>() {
+    override fun initialValue(): MutableMap<Long, PendingUpdate> = LinkedHashMap()
   }
 
+  private val pinnedCacheLock = Any()
+
+  /**
+   * Bumped by [clearPinnedCache], so that a read that was already underway when the pins changed doesn't put stale values back in the cache.
+   */
+  private var pinnedCacheGeneration: Long = 0
+
+  @Volatile
+  private var pinnedThreadIds: Set<Long>? = null
+
   private fun createThreadForRecipient(recipientId: RecipientId, group: Boolean, distributionType: Int): Long {
     if (recipientId.isUnknown) {
       throw AssertionError("Cannot create a thread for an unknown recipient!")
@@ -296,14 +318,15 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
     val deletes = writableDatabase.withinTransaction {
       messages.deleteAbandonedMessages()
-      attachments.trimAllAbandonedAttachments()
+      val trimmed = attachments.trimAllAbandonedAttachments()
       groupReceipts.deleteAbandonedRows()
       mentions.deleteAbandonedMentions()
-      return@withinTransaction attachments.deleteAbandonedAttachmentFiles()
+      return@withinTransaction trimmed
     }
 
     if (deletes > 0) {
       Log.i(TAG, "Trim all threads caused $deletes attachments to be deleted.")
+      AttachmentGarbageCollectionJob.enqueue()
     }
 
     notifyAttachmentListeners()
@@ -318,14 +341,15 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     val deletes = writableDatabase.withinTransaction {
       trimThreadInternal(threadId, length, trimBeforeDate)
       messages.deleteAbandonedMessages()
-      attachments.trimAllAbandonedAttachments()
+      val trimmed = attachments.trimAllAbandonedAttachments()
       groupReceipts.deleteAbandonedRows()
       mentions.deleteAbandonedMentions()
-      return@withinTransaction attachments.deleteAbandonedAttachmentFiles()
+      return@withinTransaction trimmed
     }
 
     if (deletes > 0) {
       Log.i(TAG, "Trim thread $threadId caused $deletes attachments to be deleted.")
+      AttachmentGarbageCollectionJob.enqueue()
     }
 
     notifyAttachmentListeners()
@@ -780,6 +804,10 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
           .run()
       }
 
+      if (archive) {
+        clearPinnedCache()
+      }
+
       recipientIds = getRecipientIdsForThreadIds(threadIds)
       recipients.markNeedsSyncWithoutRefresh(recipientIds)
     }
@@ -912,6 +940,39 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       }
   }
 
+  private fun isPinned(threadId: Long): Boolean {
+    pinnedThreadIds?.let { return it.contains(threadId) }
+
+    val generation: Long = synchronized(pinnedCacheLock) { pinnedCacheGeneration }
+    val pinned: Set<Long> = getPinnedThreadIds().toSet()
+
+    // Values read inside a transaction may include changes that end up getting rolled back, so they're never cached
+    if (!writableDatabase.inTransaction()) {
+      synchronized(pinnedCacheLock) {
+        if (generation == pinnedCacheGeneration) {
+          pinnedThreadIds = pinned
+        }
+      }
+    }
+
+    return pinned.contains(threadId)
+  }
+
+  /**
+   * Must be called whenever the pinned column, or the set of threads, changes.
+   */
+  fun clearPinnedCache() {
+    invalidatePinnedCache()
+    SignalDatabase.runPostSuccessfulTransaction(KEY_PINNED_CACHE) { invalidatePinnedCache() }
+  }
+
+  private fun invalidatePinnedCache() {
+    synchronized(pinnedCacheLock) {
+      pinnedCacheGeneration++
+      pinnedThreadIds = null
+    }
+  }
+
   fun restorePins(threadIds: Collection<Long>) {
     Log.d(TAG, "Restoring pinned threads " + StringUtil.join(threadIds, ","))
     pinConversations(threadIds, true)
@@ -940,6 +1001,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
           .where("$ID = ?", threadId)
           .run()
       }
+
+      clearPinnedCache()
     }
 
     notifyConversationListListeners()
@@ -961,6 +1024,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
           .where("$ID = ?", threadId)
           .run()
       }
+
+      clearPinnedCache()
     }
 
     notifyConversationListListeners()
@@ -1029,6 +1094,9 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       db.delete(TABLE_NAME)
         .where("$ID = ?", threadId)
         .run()
+
+      pendingUpdates.get()!!.remove(threadId)
+      clearPinnedCache()
     }
 
     notifyConversationListListeners()
@@ -1045,6 +1113,9 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
       SqlUtil.buildCollectionQuery(ID, selectedConversations)
         .forEach { db.delete(TABLE_NAME, it.where, it.whereArgs) }
+
+      pendingUpdates.get()!!.keys.removeAll(selectedConversations)
+      clearPinnedCache()
     }
 
     notifyConversationListListeners()
@@ -1058,6 +1129,9 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
       messages.deleteAllThreads()
       drafts.clearAllDrafts()
       db.delete(TABLE_NAME, null, null)
+
+      pendingUpdates.get()!!.clear()
+      clearPinnedCache()
     }
 
     notifyConversationListListeners()
@@ -1259,6 +1333,8 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
 
         pinnedPosition++
       }
+
+      clearPinnedCache()
     }
 
     notifyConversationListListeners()
@@ -1319,10 +1395,58 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
     )
   }
 
+  /**
+   * Like [update], except that if there's a transaction open, the thread is only marked as needing an update, and the update happens once
+   * the transaction commits. However many times a thread is marked in a transaction, it's only updated once.
+   *
+   * Use this instead of [update] when you don't need to know whether the thread was deleted.
+   */
+  @JvmOverloads
+  fun scheduleUpdate(threadId: Long, unarchive: Boolean, notifyListeners: Boolean = true) {
+    if (!writableDatabase.inTransaction()) {
+      update(threadId = threadId, unarchive = unarchive, allowDeletion = true, notifyListeners = notifyListeners)
+      return
+    }
+
+    val pending: MutableMap<Long, PendingUpdate> = pendingUpdates.get()!!
+    val existing: PendingUpdate? = pending[threadId]
+
+    pending[threadId] = PendingUpdate(
+      unarchive = unarchive || existing?.unarchive == true,
+      notifyListeners = notifyListeners || existing?.notifyListeners == true
+    )
+
+    SignalDatabase.runPostSuccessfulTransaction(KEY_PENDING_UPDATES) { runPendingUpdates() }
+    SignalDatabase.runPostFailedTransaction(KEY_PENDING_UPDATES) { pendingUpdates.get()!!.clear() }
+  }
+
+  private fun runPendingUpdates() {
+    val pending: MutableMap<Long, PendingUpdate> = pendingUpdates.get()!!
+
+    if (pending.isEmpty()) {
+      return
+    }
+
+    // Copy and clear first, since updating a thread can open transactions of its own
+    val updates: Map<Long, PendingUpdate> = LinkedHashMap(pending)
+    pending.clear()
+
+    var notifyListeners = false
+
+    for ((threadId, update) in updates) {
+      update(threadId = threadId, unarchive = update.unarchive, allowDeletion = true, notifyListeners = false)
+      notifyListeners = notifyListeners || update.notifyListeners
+    }
+
+    if (notifyListeners) {
+      notifyConversationListListeners()
+    }
+  }
+
   private fun update(threadId: Long, unarchive: Boolean, allowDeletion: Boolean, notifyListeners: Boolean): Boolean {
     val meaningfulMessages = messages.hasMeaningfulMessage(threadId)
 
-    val isPinned = getPinnedThreadIds().contains(threadId)
+    val isPinned = isPinned(threadId)
     val shouldDelete = allowDeletion && !isPinned && !messages.containsStories(threadId)
 
     if (!meaningfulMessages) {
@@ -1468,6 +1592,12 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
         .where("$ID = ?", secondary.threadId)
         .run()
 
+      val pendingSecondaryUpdate: PendingUpdate? = pendingUpdates.get()!!.remove(secondary.threadId)
+      if (pendingSecondaryUpdate != null) {
+        scheduleUpdate(primary.threadId, pendingSecondaryUpdate.unarchive, pendingSecondaryUpdate.notifyListeners)
+      }
+      clearPinnedCache()
+
       if (primary.expiresIn != secondary.expiresIn) {
         val values = ContentValues()
         if (primary.expiresIn == 0L) {
@@ -1826,4 +1956,6 @@ class ThreadTable(context: Context, databaseHelper: SignalDatabase) : DatabaseTa
   )
 
   data class MergeResult(val threadId: Long, val previousThreadId: Long, val neededMerge: Boolean)
+
+  private data class PendingUpdate(val unarchive: Boolean, val notifyListeners: Boolean)
 }
@@ -27,6 +27,11 @@ import org.thoughtcrime.securesms.database.helpers.migration.V168_SingleMessageT
 import org.thoughtcrime.securesms.database.helpers.migration.V169_EmojiSearchIndexRank
 import org.thoughtcrime.securesms.database.helpers.migration.V170_CallTableMigration
 import org.thoughtcrime.securesms.database.helpers.migration.V171_ThreadForeignKeyFix
+import org.thoughtcrime.securesms.database.helpers.migration.V172_AttachmentBlobs
+import org.thoughtcrime.securesms.database.helpers.migration.V173_AttachmentTombstones
+import org.thoughtcrime.securesms.database.helpers.migration.V174_AttachmentQuoteTombstones
+import org.thoughtcrime.securesms.database.helpers.migration.V175_AttachmentTombstoneAttempts
+import org.thoughtcrime.securesms.database.helpers.migration.V176_GuardedSearchTriggers
 
 /**
  * Contains all of the database migrations for [SignalDatabase]. Broken into a separate file for cleanliness.
@@ -35,7 +40,7 @@ object SignalDatabaseMigrations {
 
   val TAG: String = Log.tag(SignalDatabaseMigrations.javaClass)
 
-  const val DATABASE_VERSION = 171
+  const val DATABASE_VERSION = 176
 
   @JvmStatic
   fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
@@ -130,6 +135,26 @@ object SignalDatabaseMigrations {
     if (oldVersion < 171) {
       V171_ThreadForeignKeyFix.migrate(context, db, oldVersion, newVersion)
     }
+
+    if (oldVersion < 172) {
+      V172_AttachmentBlobs.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 173) {
+      V173_AttachmentTombstones.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 174) {
+      V174_AttachmentQuoteTombstones.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 175) {
+      V175_AttachmentTombstoneAttempts.migrate(context, db, oldVersion, newVersion)
+    }
+
+    if (oldVersion < 176) {
+      V176_GuardedSearchTriggers.migrate(context, db, oldVersion, newVersion)
+    }
   }
 
   @JvmStatic
@@ -0,0 +1,88 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+import org.signal.core.util.Stopwatch
+import org.signal.core.util.logging.Log
+
+/**
+ * Adds a table with one row per attachment file, along with triggers that keep count of how many attachments point at each one. That way
+ * we don't need to search the whole part table to figure out if a file can be deleted.
+ */
+object V172_AttachmentBlobs : SignalDatabaseMigration {
+
+  private val TAG = Log.tag(V172_AttachmentBlobs::class.java)
+
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    val stopwatch = Stopwatch("migration")
+
+    db.execSQL(
+      """
+      CREATE TABLE attachment_blob (
+        _data TEXT PRIMARY KEY,
+        data_hash TEXT DEFAULT NULL,
+        data_random BLOB DEFAULT NULL,
+        data_size INTEGER DEFAULT 0,
+        ref_count INTEGER DEFAULT 0,
+        quote_ref_count INTEGER DEFAULT 0
+      )
+      """
+    )
+
+    db.execSQL(
+      """
+      INSERT INTO attachment_blob (_data, data_hash, data_random, data_size, ref_count, quote_ref_count)
+      SELECT _data, MAX(data_hash), MAX(data_random), MAX(data_size), SUM(quote IS NOT 1), SUM(quote IS 1)
+      FROM part
+      WHERE _data NOT NULL
+      GROUP BY _data
+      """
+    )
+    stopwatch.split("backfill")
+
+    db.execSQL("CREATE INDEX attachment_blob_data_hash_index ON attachment_blob (data_hash)")
+    stopwatch.split("index")
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_blob_part_insert AFTER INSERT ON part WHEN new._data IS NOT NULL
+      BEGIN
+        INSERT OR IGNORE INTO attachment_blob (_data, data_hash, data_random, data_size) VALUES (new._data, new.data_hash, new.data_random, new.data_size);
+        UPDATE attachment_blob SET data_hash = IFNULL(data_hash, new.data_hash), ref_count = ref_count + (new.quote IS NOT 1), quote_ref_count = quote_ref_count + (new.quote IS 1) WHERE _data = new._data;
+      END
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_blob_part_delete AFTER DELETE ON part WHEN old._data IS NOT NULL
+      BEGIN
+        UPDATE attachment_blob SET ref_count = ref_count - (old.quote IS NOT 1), quote_ref_count = quote_ref_count - (old.quote IS 1) WHERE _data = old._data;
+      END
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_blob_part_move AFTER UPDATE OF _data, quote ON part WHEN old._data IS NOT new._data OR old.quote IS NOT new.quote
+      BEGIN
+        UPDATE attachment_blob SET ref_count = ref_count - (old.quote IS NOT 1), quote_ref_count = quote_ref_count - (old.quote IS 1) WHERE _data = old._data;
+        INSERT OR IGNORE INTO attachment_blob (_data, data_hash, data_random, data_size) SELECT new._data, new.data_hash, new.data_random, new.data_size WHERE new._data IS NOT NULL;
+        UPDATE attachment_blob SET data_hash = IFNULL(data_hash, new.data_hash), ref_count = ref_count + (new.quote IS NOT 1), quote_ref_count = quote_ref_count + (new.quote IS 1) WHERE _data = new._data;
+      END
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_blob_part_rewrite AFTER UPDATE OF data_hash, data_random, data_size ON part WHEN new._data IS NOT NULL AND old._data IS new._data
+      BEGIN
+        UPDATE attachment_blob SET data_hash = IFNULL(new.data_hash, data_hash), data_random = IFNULL(new.data_random, data_random), data_size = new.data_size WHERE _data = new._data;
+      END
+      """
+    )
+    stopwatch.split("triggers")
+
+    stopwatch.stop(TAG)
+  }
+}
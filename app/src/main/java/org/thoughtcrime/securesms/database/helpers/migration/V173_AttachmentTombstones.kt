@@ -0,0 +1,51 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Keeps track of attachment files that lost their last reference, so that they can be cleaned up a little at a time instead of by
+ * comparing the whole parts directory against the database.
+ */
+object V173_AttachmentTombstones : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL(
+      """
+      CREATE TABLE attachment_tombstone (
+        _id INTEGER PRIMARY KEY,
+        _data TEXT UNIQUE NOT NULL,
+        timestamp INTEGER NOT NULL
+      )
+      """
+    )
+
+    db.execSQL("CREATE INDEX attachment_tombstone_timestamp_index ON attachment_tombstone (timestamp)")
+
+    db.execSQL(
+      """
+      INSERT INTO attachment_tombstone (_data, timestamp)
+      SELECT _data, CAST(strftime('%s', 'now') AS INTEGER) * 1000
+      FROM attachment_blob
+      WHERE ref_count <= 0 AND quote_ref_count <= 0
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_blob_tombstone AFTER UPDATE OF ref_count ON attachment_blob WHEN old.ref_count > 0 AND new.ref_count <= 0
+      BEGIN
+        INSERT OR REPLACE INTO attachment_tombstone (_data, timestamp) VALUES (new._data, CAST(strftime('%s', 'now') AS INTEGER) * 1000);
+      END
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_blob_delete AFTER DELETE ON attachment_blob
+      BEGIN
+        DELETE FROM attachment_tombstone WHERE _data = old._data;
+      END
+      """
+    )
+  }
+}
@@ -0,0 +1,39 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Quotes keep an attachment file alive too, so a file only gets a tombstone once both its reference counts reach zero, and loses it
+ * again as soon as anything starts referencing it.
+ */
+object V174_AttachmentQuoteTombstones : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("DROP TRIGGER IF EXISTS attachment_blob_tombstone")
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_blob_tombstone AFTER UPDATE OF ref_count, quote_ref_count ON attachment_blob WHEN (old.ref_count > 0 OR old.quote_ref_count > 0) AND new.ref_count <= 0 AND new.quote_ref_count <= 0
+      BEGIN
+        INSERT OR REPLACE INTO attachment_tombstone (_data, timestamp) VALUES (new._data, CAST(strftime('%s', 'now') AS INTEGER) * 1000);
+      END
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER attachment_blob_revive AFTER UPDATE OF ref_count, quote_ref_count ON attachment_blob WHEN old.ref_count <= 0 AND old.quote_ref_count <= 0 AND (new.ref_count > 0 OR new.quote_ref_count > 0)
+      BEGIN
+        DELETE FROM attachment_tombstone WHERE _data = new._data;
+      END
+      """
+    )
+
+    db.execSQL(
+      """
+      DELETE FROM attachment_tombstone
+      WHERE _data IN (SELECT _data FROM attachment_blob WHERE ref_count > 0 OR quote_ref_count > 0)
+      """
+    )
+  }
+}
@@ -0,0 +1,13 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Counts failed attempts at deleting a tombstoned file, so that they can be retried on a growing schedule instead of every few minutes.
+ */
+object V175_AttachmentTombstoneAttempts : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("ALTER TABLE attachment_tombstone ADD COLUMN delete_attempts INTEGER DEFAULT 0")
+  }
+}
@@ -0,0 +1,32 @@
+package org.thoughtcrime.securesms.database.helpers.migration
+
+import android.app.Application
+import net.zetetic.database.sqlcipher.SQLiteDatabase
+
+/**
+ * Only removes messages from the search index if they're actually in it, so that messages can be updated or deleted safely while the index
+ * is being backfilled.
+ */
+object V176_GuardedSearchTriggers : SignalDatabaseMigration {
+  override fun migrate(context: Application, db: SQLiteDatabase, oldVersion: Int, newVersion: Int) {
+    db.execSQL("DROP TRIGGER IF EXISTS mms_ad")
+    db.execSQL("DROP TRIGGER IF EXISTS mms_au")
+
+    db.execSQL(
+      """
+      CREATE TRIGGER mms_ad AFTER DELETE ON mms WHEN old._id IN (SELECT id FROM mms_fts_docsize) BEGIN
+        INSERT INTO mms_fts(mms_fts, rowid, body, thread_id) VALUES('delete', old._id, old.body, old.thread_id);
+      END
+      """
+    )
+
+    db.execSQL(
+      """
+      CREATE TRIGGER mms_au AFTER UPDATE ON mms BEGIN
+        INSERT INTO mms_fts(mms_fts, rowid, body, thread_id) SELECT 'delete', old._id, old.body, old.thread_id WHERE old._id IN (SELECT id FROM mms_fts_docsize);
+        INSERT INTO mms_fts(rowid, body, thread_id) VALUES (new._id, new.body, new.thread_id);
+      END
+      """
+    )
+  }
+}
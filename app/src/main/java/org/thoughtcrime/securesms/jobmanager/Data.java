@@ -7,6 +7,10 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 
 import org.thoughtcrime.securesms.util.Base64;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -18,6 +22,9 @@ public class Data {
 
   public static final Data EMPTY = new Data.Builder().build();
 
+  private static final byte STRING_NULL = 0;
+  private static final byte STRING_TEXT = 1;
+
   @JsonProperty private final Map<String, String>    strings;
   @JsonProperty private final Map<String, String[]>  stringArrays;
   @JsonProperty private final Map<String, Integer>   integers;
@@ -30,6 +37,7 @@ public class Data {
   @JsonProperty private final Map<String, double[]>  doubleArrays;
   @JsonProperty private final Map<String, Boolean>   booleans;
   @JsonProperty private final Map<String, boolean[]> booleanArrays;
+  @JsonProperty private final Map<String, byte[]>    blobs;
 
   public Data(@JsonProperty("strings")       @NonNull Map<String, String>    strings,
               @JsonProperty("stringArrays")  @NonNull Map<String, String[]>  stringArrays,
@@ -42,7 +50,8 @@ public class Data {
               @JsonProperty("doubles")       @NonNull Map<String, Double>    doubles,
               @JsonProperty("doubleArrays")  @NonNull Map<String, double[]>  doubleArrays,
               @JsonProperty("booleans")      @NonNull Map<String, Boolean>   booleans,
-              @JsonProperty("booleanArrays") @NonNull Map<String, boolean[]> booleanArrays)
+              @JsonProperty("booleanArrays") @NonNull Map<String, boolean[]> booleanArrays,
+              @JsonProperty("blobs")         @Nullable Map<String, byte[]>   blobs)
   {
     this.strings       = strings;
     this.stringArrays  = stringArrays;
@@ -56,6 +65,7 @@ public class Data {
     this.doubleArrays  = doubleArrays;
     this.booleans      = booleans;
     this.booleanArrays = booleanArrays;
+    this.blobs         = blobs != null ? blobs : new HashMap<>();
   }
 
   public boolean hasString(@NonNull String key) {
@@ -246,6 +256,290 @@ public class Data {
   }
 
 
+  public boolean hasBlob(@NonNull String key) {
+    return blobs.containsKey(key) || strings.containsKey(key);
+  }
+
+  /**
+   * Returns a value stored with {@link Builder#putBlob(String, byte[])}. Also reads values that
+   * were stored as base64 strings with {@link Builder#putBlobAsString(String, byte[])}, so jobs can
+   * switch over without a migration.
+   */
+  public byte[] getBlob(@NonNull String key) {
+    if (blobs.containsKey(key)) {
+      return blobs.get(key);
+    }
+
+    return getStringAsBlob(key);
+  }
+
+
+  /**
+   * Writes this data in the compact binary layout read by {@link #readBinary(DataInputStream)}.
+   * Each map is written as an entry count followed by its entries, in a fixed order. Blobs stored
+   * via {@link Builder#putBlob(String, byte[])} are written as raw bytes, and strings are always
+   * written as text.
+   */
+  public void writeBinary(@NonNull DataOutputStream out) throws IOException {
+    out.writeInt(strings.size());
+    for (Map.Entry<String, String> entry : strings.entrySet()) {
+      out.writeUTF(entry.getKey());
+      writeString(out, entry.getValue());
+    }
+
+    out.writeInt(stringArrays.size());
+    for (Map.Entry<String, String[]> entry : stringArrays.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue().length);
+      for (String value : entry.getValue()) {
+        writeString(out, value);
+      }
+    }
+
+    out.writeInt(integers.size());
+    for (Map.Entry<String, Integer> entry : integers.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue());
+    }
+
+    out.writeInt(integerArrays.size());
+    for (Map.Entry<String, int[]> entry : integerArrays.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue().length);
+      for (int value : entry.getValue()) {
+        out.writeInt(value);
+      }
+    }
+
+    out.writeInt(longs.size());
+    for (Map.Entry<String, Long> entry : longs.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeLong(entry.getValue());
+    }
+
+    out.writeInt(longArrays.size());
+    for (Map.Entry<String, long[]> entry : longArrays.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue().length);
+      for (long value : entry.getValue()) {
+        out.writeLong(value);
+      }
+    }
+
+    out.writeInt(floats.size());
+    for (Map.Entry<String, Float> entry : floats.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeFloat(entry.getValue());
+    }
+
+    out.writeInt(floatArrays.size());
+    for (Map.Entry<String, float[]> entry : floatArrays.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue().length);
+      for (float value : entry.getValue()) {
+        out.writeFloat(value);
+      }
+    }
+
+    out.writeInt(doubles.size());
+    for (Map.Entry<String, Double> entry : doubles.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeDouble(entry.getValue());
+    }
+
+    out.writeInt(doubleArrays.size());
+    for (Map.Entry<String, double[]> entry : doubleArrays.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue().length);
+      for (double value : entry.getValue()) {
+        out.writeDouble(value);
+      }
+    }
+
+    out.writeInt(booleans.size());
+    for (Map.Entry<String, Boolean> entry : booleans.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeBoolean(entry.getValue());
+    }
+
+    out.writeInt(booleanArrays.size());
+    for (Map.Entry<String, boolean[]> entry : booleanArrays.entrySet()) {
+      out.writeUTF(entry.getKey());
+      out.writeInt(entry.getValue().length);
+      for (boolean value : entry.getValue()) {
+        out.writeBoolean(value);
+      }
+    }
+
+    out.writeInt(blobs.size());
+    for (Map.Entry<String, byte[]> entry : blobs.entrySet()) {
+      out.writeUTF(entry.getKey());
+      writeBytes(out, entry.getValue());
+    }
+  }
+
+  /**
+   * Reads data written by {@link #writeBinary(DataOutputStream)}.
+   *
+   * @param hasBlobs False for the first version of the layout, which had no blob map and instead
+   *                 stored anything that looked like base64 as raw bytes inside the strings.
+   */
+  public static @NonNull Data readBinary(@NonNull DataInputStream in, boolean hasBlobs) throws IOException {
+    Builder builder = new Builder();
+
+    int count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      builder.strings.put(in.readUTF(), readString(in));
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String   key   = in.readUTF();
+      String[] value = new String[in.readInt()];
+      for (int j = 0; j < value.length; j++) {
+        value[j] = readString(in);
+      }
+      builder.stringArrays.put(key, value);
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      builder.integers.put(in.readUTF(), in.readInt());
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String key   = in.readUTF();
+      int[]  value = new int[in.readInt()];
+      for (int j = 0; j < value.length; j++) {
+        value[j] = in.readInt();
+      }
+      builder.integerArrays.put(key, value);
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      builder.longs.put(in.readUTF(), in.readLong());
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String key   = in.readUTF();
+      long[] value = new long[in.readInt()];
+      for (int j = 0; j < value.length; j++) {
+        value[j] = in.readLong();
+      }
+      builder.longArrays.put(key, value);
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      builder.floats.put(in.readUTF(), in.readFloat());
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String  key   = in.readUTF();
+      float[] value = new float[in.readInt()];
+      for (int j = 0; j < value.length; j++) {
+        value[j] = in.readFloat();
+      }
+      builder.floatArrays.put(key, value);
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      builder.doubles.put(in.readUTF(), in.readDouble());
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String   key   = in.readUTF();
+      double[] value = new double[in.readInt()];
+      for (int j = 0; j < value.length; j++) {
+        value[j] = in.readDouble();
+      }
+      builder.doubleArrays.put(key, value);
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      builder.booleans.put(in.readUTF(), in.readBoolean());
+    }
+
+    count = in.readInt();
+    for (int i = 0; i < count; i++) {
+      String    key   = in.readUTF();
+      boolean[] value = new boolean[in.readInt()];
+      for (int j = 0; j < value.length; j++) {
+        value[j] = in.readBoolean();
+      }
+      builder.booleanArrays.put(key, value);
+    }
+
+    if (hasBlobs) {
+      count = in.readInt();
+      for (int i = 0; i < count; i++) {
+        builder.blobs.put(in.readUTF(), readBytes(in));
+      }
+    }
+
+    return builder.build();
+  }
+
+  private static void writeString(@NonNull DataOutputStream out, @Nullable String value) throws IOException {
+    if (value == null) {
+      out.writeByte(STRING_NULL);
+      return;
+    }
+
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+
+    out.writeByte(STRING_TEXT);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static @Nullable String readString(@NonNull DataInputStream in) throws IOException {
+    byte type = in.readByte();
+
+    if (type == STRING_NULL) {
+      return null;
+    }
+
+    if (type != STRING_TEXT) {
+      throw new IOException("Unknown string type: " + type);
+    }
+
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static void writeBytes(@NonNull DataOutputStream out, @Nullable byte[] value) throws IOException {
+    if (value == null) {
+      out.writeInt(-1);
+      return;
+    }
+
+    out.writeInt(value.length);
+    out.write(value);
+  }
+
+  private static @Nullable byte[] readBytes(@NonNull DataInputStream in) throws IOException {
+    int length = in.readInt();
+
+    if (length < 0) {
+      return null;
+    }
+
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+
+    return bytes;
+  }
+
   private void throwIfAbsent(@NonNull Map map, @NonNull String key) {
     if (!map.containsKey(key)) {
       throw new IllegalStateException("Tried to retrieve a value with key '" + key + "', but it wasn't present.");
@@ -271,6 +565,7 @@ public class Data {
     private final Map<String, double[]>  doubleArrays  = new HashMap<>();
     private final Map<String, Boolean>   booleans      = new HashMap<>();
     private final Map<String, boolean[]> booleanArrays = new HashMap<>();
+    private final Map<String, byte[]>    blobs         = new HashMap<>();
 
     public Builder() { }
 
@@ -287,6 +582,7 @@ public class Data {
       doubleArrays.putAll(oldData.doubleArrays);
       booleans.putAll(oldData.booleans);
       booleanArrays.putAll(oldData.booleanArrays);
+      blobs.putAll(oldData.blobs);
     }
 
     public Builder putString(@NonNull String key, @Nullable String value) {
@@ -379,6 +675,15 @@ public class Data {
       return this;
     }
 
+    /**
+     * Stores the bytes as-is, rather than as a base64 string like
+     * {@link #putBlobAsString(String, byte[])}. Read them back with {@link Data#getBlob(String)}.
+     */
+    public Builder putBlob(@NonNull String key, @Nullable byte[] value) {
+      blobs.put(key, value);
+      return this;
+    }
+
     public Builder putBlobAsString(@NonNull String key, @Nullable byte[] value) {
       String serialized = value != null ? Base64.encodeBytes(value) : null;
       strings.put(key, serialized);
@@ -397,7 +702,8 @@ public class Data {
                       doubles,
                       doubleArrays,
                       booleans,
-                      booleanArrays);
+                      booleanArrays,
+                      blobs);
     }
   }
 
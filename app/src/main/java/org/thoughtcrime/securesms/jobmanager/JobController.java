@@ -24,13 +24,25 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 /**
  * Manages the queue of jobs. This is the only class that should write to {@link JobStorage} to
  * ensure consistency.
+ *
+ * The controller's monitor guards decisions that have to be atomic with respect to the storage
+ * (instance limits, dependency resolution, picking and claiming the next job). Work that doesn't
+ * need that guarantee, like serializing job data, instantiating constraints and talking to the
+ * {@link Scheduler}, is kept outside of it so that {@link JobRunner}s and the submitting thread
+ * spend as little time as possible waiting on each other.
+ *
+ * The monitor is deliberately not striped by queue. Runners pick the oldest eligible job across
+ * every queue and wait on this monitor when there is none, and instance limits and dependencies
+ * can span queues, so every one of those decisions needs a consistent view of all queues.
  */
 class JobController {
 
@@ -47,6 +59,8 @@ class JobController {
   private final Callback               callback;
   private final Map<String, Job>       runningJobs;
 
+  private long initTime;
+
   JobController(@NonNull Application application,
                 @NonNull JobStorage jobStorage,
                 @NonNull JobInstantiator jobInstantiator,
@@ -71,6 +85,7 @@ class JobController {
 
   @WorkerThread
   synchronized void init() {
+    initTime = System.currentTimeMillis();
     jobStorage.updateAllJobsToBePending();
     notifyAll();
   }
@@ -80,7 +95,7 @@ class JobController {
   }
 
   @WorkerThread
-  synchronized void submitNewJobChain(@NonNull List<List<Job>> chain) {
+  void submitNewJobChain(@NonNull List<List<Job>> chain) {
     chain = Stream.of(chain).filterNot(List::isEmpty).toList();
 
     if (chain.isEmpty()) {
@@ -88,58 +103,72 @@ class JobController {
       return;
     }
 
-    if (chainExceedsMaximumInstances(chain)) {
-      Job solo = chain.get(0).get(0);
-      jobTracker.onStateChange(solo, JobTracker.JobState.IGNORED);
-      Log.w(TAG, JobLogger.format(solo, "Already at the max instance count. Factory limit: " + solo.getParameters().getMaxInstancesForFactory() + ", Queue limit: " + solo.getParameters().getMaxInstancesForQueue() + ". Skipping."));
-      return;
+    Map<String, String> serializedData = serializeJobData(chain);
+
+    synchronized (this) {
+      if (chainExceedsMaximumInstances(chain)) {
+        Job solo = chain.get(0).get(0);
+        jobTracker.onStateChange(solo, JobTracker.JobState.IGNORED);
+        Log.w(TAG, JobLogger.format(solo, "Already at the max instance count. Factory limit: " + solo.getParameters().getMaxInstancesForFactory() + ", Queue limit: " + solo.getParameters().getMaxInstancesForQueue() + ". Skipping."));
+        return;
+      }
+
+      insertJobChain(chain, serializedData);
+      triggerOnSubmit(chain);
+      notifyAll();
     }
 
-    insertJobChain(chain);
-    triggerOnSubmit(chain);
-    notifyAll();
     scheduleJobs(chain.get(0));
   }
 
   @WorkerThread
-  synchronized void submitJobWithExistingDependencies(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
-    List<List<Job>> chain = Collections.singletonList(Collections.singletonList(job));
+  void submitJobWithExistingDependencies(@NonNull Job job, @NonNull Collection<String> dependsOn, @Nullable String dependsOnQueue) {
+    List<List<Job>> chain          = Collections.singletonList(Collections.singletonList(job));
+    String          serializedData = dataSerializer.serialize(job.serialize());
+    List<Job>       dependents;
+
+    synchronized (this) {
+      if (chainExceedsMaximumInstances(chain)) {
+        jobTracker.onStateChange(job, JobTracker.JobState.IGNORED);
+        Log.w(TAG, JobLogger.format(job, "Already at the max instance count. Factory limit: " + job.getParameters().getMaxInstancesForFactory() + ", Queue limit: " + job.getParameters().getMaxInstancesForQueue() + ". Skipping."));
+        return;
+      }
 
-    if (chainExceedsMaximumInstances(chain)) {
-      jobTracker.onStateChange(job, JobTracker.JobState.IGNORED);
-      Log.w(TAG, JobLogger.format(job, "Already at the max instance count. Factory limit: " + job.getParameters().getMaxInstancesForFactory() + ", Queue limit: " + job.getParameters().getMaxInstancesForQueue() + ". Skipping."));
-      return;
-    }
+      Set<String> allDependsOn   = new HashSet<>(dependsOn);
+      Set<String> aliveDependsOn = Stream.of(dependsOn)
+                                         .filter(id -> jobStorage.getJobSpec(id) != null)
+                                         .collect(Collectors.toSet());
 
-    Set<String> allDependsOn   = new HashSet<>(dependsOn);
-    Set<String> aliveDependsOn = Stream.of(dependsOn)
-                                       .filter(id -> jobStorage.getJobSpec(id) != null)
-                                       .collect(Collectors.toSet());
+      if (dependsOnQueue != null) {
+        List<String> inQueue = Stream.of(jobStorage.getJobsInQueue(dependsOnQueue))
+                                     .map(JobSpec::getId)
+                                     .toList();
 
-    if (dependsOnQueue != null) {
-      List<String> inQueue = Stream.of(jobStorage.getJobsInQueue(dependsOnQueue))
-                                   .map(JobSpec::getId)
-                                   .toList();
+        allDependsOn.addAll(inQueue);
+        aliveDependsOn.addAll(inQueue);
+      }
+
+      if (jobTracker.haveAnyFailed(allDependsOn)) {
+        Log.w(TAG, "This job depends on a job that failed! Failing this job immediately.");
+        dependents = onFailure(job);
+      } else {
+        FullSpec fullSpec = buildFullSpec(job, aliveDependsOn, serializedData);
+        jobStorage.insertJobs(Collections.singletonList(fullSpec));
 
-      allDependsOn.addAll(inQueue);
-      aliveDependsOn.addAll(inQueue);
+        triggerOnSubmit(chain);
+        notifyAll();
+        dependents = null;
+      }
     }
 
-    if (jobTracker.haveAnyFailed(allDependsOn)) {
-      Log.w(TAG, "This job depends on a job that failed! Failing this job immediately.");
-      List<Job> dependents = onFailure(job);
+    if (dependents != null) {
       job.setContext(application);
       job.onFailure();
       Stream.of(dependents).forEach(Job::onFailure);
       return;
     }
 
-    FullSpec fullSpec = buildFullSpec(job, aliveDependsOn);
-    jobStorage.insertJobs(Collections.singletonList(fullSpec));
-
     scheduleJobs(Collections.singletonList(job));
-    triggerOnSubmit(chain);
-    notifyAll();
   }
 
   @WorkerThread
@@ -192,14 +221,14 @@ class JobController {
   }
 
   @WorkerThread
-  synchronized List<JobSpec> findJobs(@NonNull Predicate<JobSpec> predicate) {
+  List<JobSpec> findJobs(@NonNull Predicate<JobSpec> predicate) {
     return Stream.of(jobStorage.getAllJobSpecs())
                  .filter(predicate::test)
                  .toList();
   }
 
   @WorkerThread
-  synchronized void onRetry(@NonNull Job job, long backoffInterval) {
+  void onRetry(@NonNull Job job, long backoffInterval) {
     if (backoffInterval <= 0) {
       throw new IllegalArgumentException("Invalid backoff interval! " + backoffInterval);
     }
@@ -208,8 +237,11 @@ class JobController {
     long   nextRunAttemptTime = System.currentTimeMillis() + backoffInterval;
     String serializedData     = dataSerializer.serialize(job.serialize());
 
-    jobStorage.updateJobAfterRetry(job.getId(), false, nextRunAttempt, nextRunAttemptTime, serializedData);
-    jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+    synchronized (this) {
+      jobStorage.updateJobAfterRetry(job.getId(), false, nextRunAttempt, nextRunAttemptTime, serializedData);
+      jobTracker.onStateChange(job, JobTracker.JobState.PENDING);
+      notifyAll();
+    }
 
     List<Constraint> constraints = Stream.of(jobStorage.getConstraintSpecs(job.getId()))
                                          .map(ConstraintSpec::getFactoryKey)
@@ -221,8 +253,6 @@ class JobController {
 
     Log.i(TAG, JobLogger.format(job, "Scheduling a retry in " + delay + " ms."));
     scheduler.schedule(delay, constraints);
-
-    notifyAll();
   }
 
   synchronized void onJobFinished(@NonNull Job job) {
@@ -230,20 +260,24 @@ class JobController {
   }
 
   @WorkerThread
-  synchronized void onSuccess(@NonNull Job job, @Nullable Data outputData) {
-    if (outputData != null) {
-      List<JobSpec> updates = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(job.getId()))
-                                    .map(DependencySpec::getJobId)
-                                    .map(jobStorage::getJobSpec)
-                                    .map(jobSpec -> mapToJobWithInputData(jobSpec, outputData))
-                                    .toList();
-
-      jobStorage.updateJobs(updates);
-    }
+  void onSuccess(@NonNull Job job, @Nullable Data outputData) {
+    String serializedOutputData = outputData != null ? dataSerializer.serialize(outputData) : null;
+
+    synchronized (this) {
+      if (serializedOutputData != null) {
+        List<JobSpec> updates = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(job.getId()))
+                                      .map(DependencySpec::getJobId)
+                                      .map(jobStorage::getJobSpec)
+                                      .map(jobSpec -> mapToJobWithInputData(jobSpec, serializedOutputData))
+                                      .toList();
+
+        jobStorage.updateJobs(updates);
+      }
 
-    jobStorage.deleteJob(job.getId());
-    jobTracker.onStateChange(job, JobTracker.JobState.SUCCESS);
-    notifyAll();
+      jobStorage.deleteJob(job.getId());
+      jobTracker.onStateChange(job, JobTracker.JobState.SUCCESS);
+      notifyAll();
+    }
   }
 
   /**
@@ -335,10 +369,16 @@ class JobController {
       info.append("None\n");
     }
 
+    long   skippedWrites  = jobStorage.getMemoryOnlySkippedWriteCount();
+    double minutesRunning = Math.max(1, System.currentTimeMillis() - initTime) / (double) TimeUnit.MINUTES.toMillis(1);
+
+    info.append("\n-- Storage\n");
+    info.append(String.format(Locale.US, "Memory-only writes skipped: %d (%.1f/min)\n", skippedWrites, skippedWrites / minutesRunning));
+
     return info.toString();
   }
 
-  synchronized boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
+  boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
     return jobStorage.areQueuesEmpty(queueKeys);
   }
 
@@ -375,14 +415,31 @@ class JobController {
           }));
   }
 
+  /**
+   * Serializes the data for every job in the chain, keyed by job ID. This is the most expensive part
+   * of submitting a job, and doesn't depend on any controller state, so it happens before taking
+   * the lock.
+   */
+  private @NonNull Map<String, String> serializeJobData(@NonNull List<List<Job>> chain) {
+    Map<String, String> serializedData = new HashMap<>();
+
+    for (List<Job> jobList : chain) {
+      for (Job job : jobList) {
+        serializedData.put(job.getId(), dataSerializer.serialize(job.serialize()));
+      }
+    }
+
+    return serializedData;
+  }
+
   @WorkerThread
-  private void insertJobChain(@NonNull List<List<Job>> chain) {
+  private void insertJobChain(@NonNull List<List<Job>> chain, @NonNull Map<String, String> serializedData) {
     List<FullSpec> fullSpecs = new LinkedList<>();
     List<String>   dependsOn = Collections.emptyList();
 
     for (List<Job> jobList : chain) {
       for (Job job : jobList) {
-        fullSpecs.add(buildFullSpec(job, dependsOn));
+        fullSpecs.add(buildFullSpec(job, dependsOn, serializedData.get(job.getId())));
       }
       dependsOn = Stream.of(jobList).map(Job::getId).toList();
     }
@@ -391,7 +448,7 @@ class JobController {
   }
 
   @WorkerThread
-  private @NonNull FullSpec buildFullSpec(@NonNull Job job, @NonNull Collection<String> dependsOn) {
+  private @NonNull FullSpec buildFullSpec(@NonNull Job job, @NonNull Collection<String> dependsOn, @NonNull String serializedData) {
     job.setRunAttempt(0);
 
     JobSpec jobSpec = new JobSpec(job.getId(),
@@ -402,7 +459,7 @@ class JobController {
                                   job.getRunAttempt(),
                                   job.getParameters().getMaxAttempts(),
                                   job.getParameters().getLifespan(),
-                                  dataSerializer.serialize(job.serialize()),
+                                  serializedData,
                                   null,
                                   false,
                                   job.getParameters().isMemoryOnly());
@@ -496,7 +553,7 @@ class JobController {
                   .build();
   }
 
-  private @NonNull JobSpec mapToJobWithInputData(@NonNull JobSpec jobSpec, @NonNull Data inputData) {
+  private @NonNull JobSpec mapToJobWithInputData(@NonNull JobSpec jobSpec, @NonNull String serializedInputData) {
     return new JobSpec(jobSpec.getId(),
                        jobSpec.getFactoryKey(),
                        jobSpec.getQueueKey(),
@@ -506,7 +563,7 @@ class JobController {
                        jobSpec.getMaxAttempts(),
                        jobSpec.getLifespan(),
                        jobSpec.getSerializedData(),
-                       dataSerializer.serialize(inputData),
+                       serializedInputData,
                        jobSpec.isRunning(),
                        jobSpec.isMemoryOnly());
   }
@@ -128,6 +128,8 @@ public class JobManager implements ConstraintObserver.Notifier {
       Log.w(TAG, ie);
     }
 
+    configuration.getJobStorage().flush();
+
     if (Build.VERSION.SDK_INT < 26) {
       application.stopService(new Intent(application, KeepAliveService.class));
     }
@@ -355,7 +357,7 @@ public class JobManager implements ConstraintObserver.Notifier {
   }
 
   /**
-   * Blocks until all pending operations are finished.
+   * Blocks until all pending operations are finished and have been written to disk.
    */
   @WorkerThread
   public void flush() {
@@ -365,6 +367,7 @@ public class JobManager implements ConstraintObserver.Notifier {
 
     try {
       latch.await();
+      configuration.getJobStorage().flush();
       Log.i(TAG, "Successfully flushed.");
     } catch (InterruptedException e) {
       Log.w(TAG, "Failed to finish flushing.", e);
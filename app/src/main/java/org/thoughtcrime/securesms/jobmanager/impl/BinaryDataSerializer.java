@@ -0,0 +1,91 @@
+package org.thoughtcrime.securesms.jobmanager.impl;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.jobmanager.Data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serializes {@link Data} into a compact binary format rather than JSON. Blobs stored with
+ * {@link Data.Builder#putBlob(String, byte[])} are written as raw bytes instead of base64.
+ *
+ * Because {@link Data.Serializer} deals in strings, the bytes are carried around as an ISO-8859-1
+ * string (one char per byte), which is stored as a BLOB by the job database. Every serialized
+ * value starts with {@link #MAGIC} followed by a version byte, so anything else is assumed to be
+ * legacy JSON and is read with {@link JsonDataSerializer}.
+ */
+public class BinaryDataSerializer implements Data.Serializer {
+
+  private static final String TAG = Log.tag(BinaryDataSerializer.class);
+
+  private static final byte MAGIC   = (byte) 0xB7;
+  private static final byte VERSION = 2;
+
+  private static final byte VERSION_WITHOUT_BLOBS = 1;
+
+  private final JsonDataSerializer legacySerializer = new JsonDataSerializer();
+
+  @Override
+  public @NonNull String serialize(@NonNull Data data) {
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream      out   = new DataOutputStream(bytes);
+
+      out.writeByte(MAGIC);
+      out.writeByte(VERSION);
+      data.writeBinary(out);
+      out.flush();
+
+      return fromBytes(bytes.toByteArray());
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to serialize.", e);
+      throw new AssertionError(e);
+    }
+  }
+
+  @Override
+  public @NonNull Data deserialize(@NonNull String serialized) {
+    if (!isBinary(serialized)) {
+      return legacySerializer.deserialize(serialized);
+    }
+
+    try {
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(toBytes(serialized)));
+
+      in.readByte();
+      byte version = in.readByte();
+
+      if (version != VERSION && version != VERSION_WITHOUT_BLOBS) {
+        throw new IOException("Unknown version: " + version);
+      }
+
+      return Data.readBinary(in, version != VERSION_WITHOUT_BLOBS);
+    } catch (IOException e) {
+      Log.e(TAG, "Failed to deserialize.", e);
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * @return True if the value was produced by this serializer, as opposed to legacy JSON.
+   */
+  public static boolean isBinary(@Nullable String serialized) {
+    return serialized != null && serialized.length() >= 2 && serialized.charAt(0) == (char) (MAGIC & 0xFF);
+  }
+
+  public static @NonNull byte[] toBytes(@NonNull String serialized) {
+    return serialized.getBytes(StandardCharsets.ISO_8859_1);
+  }
+
+  public static @NonNull String fromBytes(@NonNull byte[] bytes) {
+    return new String(bytes, StandardCharsets.ISO_8859_1);
+  }
+}
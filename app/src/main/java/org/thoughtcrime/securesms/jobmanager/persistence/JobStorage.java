@@ -65,4 +65,16 @@ public interface JobStorage {
 
   @WorkerThread
   @NonNull List<DependencySpec> getAllDependencySpecs();
+
+  /**
+   * @return The number of disk writes that were skipped because the job involved was memory-only.
+   */
+  long getMemoryOnlySkippedWriteCount();
+
+  /**
+   * Blocks until every mutation made so far has been written to disk. Implementations that write
+   * through immediately can treat this as a no-op.
+   */
+  @WorkerThread
+  void flush();
 }
@@ -0,0 +1,109 @@
+package org.thoughtcrime.securesms.jobs
+
+import androidx.annotation.VisibleForTesting
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.jobmanager.Data
+import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.jobmanager.impl.ChargingConstraint
+import org.thoughtcrime.securesms.jobmanager.impl.ChargingConstraintObserver
+import org.thoughtcrime.securesms.transport.RetryLaterException
+import java.util.concurrent.TimeUnit
+
+/**
+ * Deletes attachment files that nothing points at anymore, by working through the tombstones left behind when they lost their last
+ * reference.
+ *
+ * Only runs while charging, and each run only works for a little while before handing off to a new instance of the job. Tombstones are
+ * left alone until they're a few minutes old, in case the file is being picked up again by an attachment that's in the middle of being
+ * saved. If any are still too new once the older ones are done, the job retries once they're old enough. Files that couldn't be deleted
+ * don't keep the job around, they're picked up again by a later run once their backoff is up.
+ */
+class AttachmentGarbageCollectionJob private constructor(parameters: Parameters) : BaseJob(parameters) {
+
+  companion object {
+    private val TAG = Log.tag(AttachmentGarbageCollectionJob::class.java)
+
+    const val KEY = "AttachmentGarbageCollectionJob"
+
+    private const val BATCH_SIZE = 100
+    private val MAX_RUN_TIME = TimeUnit.SECONDS.toMillis(10)
+
+    @VisibleForTesting
+    internal val MIN_TOMBSTONE_AGE = TimeUnit.MINUTES.toMillis(5)
+
+    @JvmStatic
+    fun enqueue() {
+      ApplicationDependencies.getJobManager().add(AttachmentGarbageCollectionJob())
+    }
+  }
+
+  private constructor() : this(
+    Parameters.Builder()
+      .addConstraint(ChargingConstraint.KEY)
+      .setQueue(KEY)
+      .setMaxInstancesForQueue(2)
+      .setLifespan(Parameters.IMMORTAL)
+      .setMaxAttempts(Parameters.UNLIMITED)
+      .build()
+  )
+
+  override fun serialize(): Data = Data.EMPTY
+
+  override fun getFactoryKey(): String = KEY
+
+  override fun onFailure() = Unit
+
+  override fun onRun() {
+    val startTime = System.currentTimeMillis()
+    val cutoff = startTime - MIN_TOMBSTONE_AGE
+    var processed = 0
+
+    while (true) {
+      val batch = SignalDatabase.attachments.collectTombstones(cutoff, BATCH_SIZE)
+      processed += batch
+
+      if (batch < BATCH_SIZE) {
+        Log.i(TAG, "Processed $processed tombstones in ${System.currentTimeMillis() - startTime} ms.")
+
+        if (SignalDatabase.attachments.hasTombstonesSince(cutoff)) {
+          Log.i(TAG, "Some tombstones are still too new. Trying again later.")
+          throw RetryLaterException(MIN_TOMBSTONE_AGE)
+        }
+        return
+      }
+
+      if (isCanceled) {
+        Log.i(TAG, "Canceled after processing $processed tombstones.")
+        return
+      }
+
+      if (shouldYield(startTime)) {
+        Log.i(TAG, "Processed $processed tombstones. Continuing later.")
+        enqueue()
+        return
+      }
+    }
+  }
+
+  private fun shouldYield(startTime: Long): Boolean {
+    return !ChargingConstraintObserver.isCharging() || System.currentTimeMillis() - startTime > MAX_RUN_TIME
+  }
+
+  override fun onShouldRetry(e: Exception): Boolean = e is RetryLaterException
+
+  override fun getNextRunAttemptBackoff(pastAttemptCount: Int, exception: Exception): Long {
+    return if (exception is RetryLaterException && exception.backoff >= 0) {
+      exception.backoff
+    } else {
+      super.getNextRunAttemptBackoff(pastAttemptCount, exception)
+    }
+  }
+
+  class Factory : Job.Factory<AttachmentGarbageCollectionJob> {
+    override fun create(parameters: Parameters, data: Data): AttachmentGarbageCollectionJob {
+      return AttachmentGarbageCollectionJob(parameters)
+    }
+  }
+}
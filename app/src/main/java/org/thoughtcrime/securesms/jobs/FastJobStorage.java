@@ -6,6 +6,7 @@ import androidx.annotation.Nullable;
 import com.annimon.stream.Collectors;
 import com.annimon.stream.Stream;
 
+import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.database.JobDatabase;
 import org.thoughtcrime.securesms.jobmanager.Job;
@@ -18,31 +19,91 @@ import org.thoughtcrime.securesms.util.Util;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
-import java.util.Optional;
 import java.util.Set;
-
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+
+/**
+ * An in-memory cache of the {@link JobDatabase} that keeps the indexes needed to find the next
+ * runnable job without walking every stored job.
+ *
+ * Jobs are grouped by their queue (jobs without a queue form a queue of one), and each queue is
+ * kept sorted in created order. Only the head of each queue can ever run, so the heads that are
+ * not running and have no outstanding dependencies are tracked in a separate set that is kept up
+ * to date as jobs are inserted, updated and deleted.
+ *
+ * When created with a flush executor, writes to the {@link JobDatabase} are deferred and applied
+ * in batches instead of one transaction per mutation. A job that is inserted and deleted before
+ * the next flush never reaches disk at all. Callers that need the current state to be durable must
+ * call {@link #flush()}.
+ */
 public class FastJobStorage implements JobStorage {
 
   private static final String TAG = Log.tag(FastJobStorage.class);
 
   private final JobDatabase jobDatabase;
 
-  private final List<JobSpec>                     jobs;
+  private final Map<String, JobSpec>              jobsById;
+  private final Map<String, Long>                 insertionOrderById;
+  private final Map<String, TreeSet<JobSpec>>     jobsByQueue;
+  private final Map<String, JobSpec>              eligibleHeadsByQueue;
+  private final TreeSet<JobSpec>                  eligibleHeads;
   private final Map<String, List<ConstraintSpec>> constraintsByJobId;
   private final Map<String, List<DependencySpec>> dependenciesByJobId;
+  private final Map<String, List<DependencySpec>> dependentsByJobId;
+  private final Comparator<JobSpec>               createdOrder;
+
+  private final Executor    flushExecutor;
+  private final long        flushDelayMs;
+  private final Set<String> pendingInserts;
+  private final Set<String> pendingUpdates;
+  private final Set<String> pendingDeletes;
+  private final Object      flushLock;
+
+  private long    nextInsertionOrder;
+  private boolean flushScheduled;
+  private long    cancelledWrites;
+  private long    memoryOnlySkippedWrites;
 
   public FastJobStorage(@NonNull JobDatabase jobDatabase) {
-    this.jobDatabase         = jobDatabase;
-    this.jobs                = new ArrayList<>();
-    this.constraintsByJobId  = new HashMap<>();
-    this.dependenciesByJobId = new HashMap<>();
+    this(jobDatabase, null, 0);
+  }
+
+  /**
+   * @param flushExecutor If non-null, writes are batched and applied on this executor, at most once
+   *                      every {@code flushDelayMs}. If null, every write goes straight to disk.
+   */
+  public FastJobStorage(@NonNull JobDatabase jobDatabase, @Nullable Executor flushExecutor, long flushDelayMs) {
+    this.jobDatabase          = jobDatabase;
+    this.flushExecutor        = flushExecutor;
+    this.flushDelayMs         = flushDelayMs;
+    this.pendingInserts       = new LinkedHashSet<>();
+    this.pendingUpdates       = new LinkedHashSet<>();
+    this.pendingDeletes       = new LinkedHashSet<>();
+    this.flushLock            = new Object();
+    this.jobsById             = new LinkedHashMap<>();
+    this.insertionOrderById   = new HashMap<>();
+    this.jobsByQueue          = new HashMap<>();
+    this.eligibleHeadsByQueue = new HashMap<>();
+    this.constraintsByJobId   = new HashMap<>();
+    this.dependenciesByJobId  = new HashMap<>();
+    this.dependentsByJobId    = new HashMap<>();
+    this.createdOrder         = (j1, j2) -> {
+      int result = Long.compare(j1.getCreateTime(), j2.getCreateTime());
+      if (result != 0) {
+        return result;
+      }
+      return Long.compare(getInsertionOrder(j1), getInsertionOrder(j2));
+    };
+    this.eligibleHeads        = new TreeSet<>(createdOrder);
   }
 
   @Override
@@ -51,7 +112,9 @@ public class FastJobStorage implements JobStorage {
     List<ConstraintSpec> constraintSpecs = jobDatabase.getAllConstraintSpecs();
     List<DependencySpec> dependencySpecs = jobDatabase.getAllDependencySpecs();
 
-    jobs.addAll(jobSpecs);
+    for (JobSpec jobSpec : jobSpecs) {
+      addJob(jobSpec);
+    }
 
     for (ConstraintSpec constraintSpec: constraintSpecs) {
       List<ConstraintSpec> jobConstraints = Util.getOrDefault(constraintsByJobId, constraintSpec.getJobSpecId(), new LinkedList<>());
@@ -60,214 +123,225 @@ public class FastJobStorage implements JobStorage {
     }
 
     for (DependencySpec dependencySpec : dependencySpecs) {
-      List<DependencySpec> jobDependencies = Util.getOrDefault(dependenciesByJobId, dependencySpec.getJobId(), new LinkedList<>());
-      jobDependencies.add(dependencySpec);
-      dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+      addDependency(dependencySpec);
+    }
+
+    for (String queue : jobsByQueue.keySet()) {
+      updateEligibleHead(queue);
     }
   }
 
   @Override
   public synchronized void insertJobs(@NonNull List<FullSpec> fullSpecs) {
     List<FullSpec> durable = Stream.of(fullSpecs).filterNot(FullSpec::isMemoryOnly).toList();
+    memoryOnlySkippedWrites += fullSpecs.size() - durable.size();
+
     if (durable.size() > 0) {
-      jobDatabase.insertJobs(durable);
+      if (isWriteBehind()) {
+        for (FullSpec fullSpec : durable) {
+          pendingInserts.add(fullSpec.getJobSpec().getId());
+        }
+        scheduleFlush();
+      } else {
+        jobDatabase.insertJobs(durable);
+      }
     }
 
+    Set<String> affectedQueues = new HashSet<>();
+
     for (FullSpec fullSpec : fullSpecs) {
-      jobs.add(fullSpec.getJobSpec());
-      constraintsByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getConstraintSpecs());
-      dependenciesByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getDependencySpecs());
+      JobSpec jobSpec = fullSpec.getJobSpec();
+
+      addJob(jobSpec);
+      constraintsByJobId.put(jobSpec.getId(), fullSpec.getConstraintSpecs());
+
+      for (DependencySpec dependencySpec : fullSpec.getDependencySpecs()) {
+        addDependency(dependencySpec);
+      }
+
+      affectedQueues.add(getQueue(jobSpec));
+    }
+
+    for (String queue : affectedQueues) {
+      updateEligibleHead(queue);
     }
   }
 
   @Override
   public synchronized @Nullable JobSpec getJobSpec(@NonNull String id) {
-    for (JobSpec jobSpec : jobs) {
-      if (jobSpec.getId().equals(id)) {
-        return jobSpec;
-      }
-    }
-    return null;
+    return jobsById.get(id);
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
-    return new ArrayList<>(jobs);
+    return new ArrayList<>(jobsById.values());
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime) {
-    Optional<JobSpec> migrationJob = getMigrationJob();
+    JobSpec migrationJob = getMigrationJob();
 
-    if (migrationJob.isPresent() && !migrationJob.get().isRunning() && migrationJob.get().getNextRunAttemptTime() <= currentTime) {
-      return Collections.singletonList(migrationJob.get());
-    } else if (migrationJob.isPresent()) {
+    if (migrationJob != null && !migrationJob.isRunning() && migrationJob.getNextRunAttemptTime() <= currentTime) {
+      return Collections.singletonList(migrationJob);
+    } else if (migrationJob != null) {
       return Collections.emptyList();
     } else {
-      return Stream.of(jobs)
-                   .groupBy(jobSpec -> {
-                     String queueKey = jobSpec.getQueueKey();
-                     if (queueKey != null) {
-                       return queueKey;
-                     } else {
-                       return jobSpec.getId();
-                     }
-                   })
-                   .map(byQueueKey ->
-                     Stream.of(byQueueKey.getValue()).sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                           .findFirst()
-                           .orElse(null)
-                   )
-                   .withoutNulls()
-                   .filter(j -> {
-                     List<DependencySpec> dependencies = dependenciesByJobId.get(j.getId());
-                     return dependencies == null || dependencies.isEmpty();
-                   })
-                   .filterNot(JobSpec::isRunning)
-                   .filter(j -> j.getNextRunAttemptTime() <= currentTime)
-                   .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                   .toList();
+      List<JobSpec> pending = new LinkedList<>();
+
+      for (JobSpec head : eligibleHeads) {
+        if (head.getNextRunAttemptTime() <= currentTime) {
+          pending.add(head);
+        }
+      }
+
+      return pending;
     }
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getJobsInQueue(@NonNull String queue) {
-    return Stream.of(jobs)
+    TreeSet<JobSpec> jobsInQueue = jobsByQueue.get(queue);
+
+    if (jobsInQueue == null) {
+      return Collections.emptyList();
+    }
+
+    return Stream.of(jobsInQueue)
                  .filter(j -> queue.equals(j.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
                  .toList();
   }
 
-  private Optional<JobSpec> getMigrationJob() {
-    return Optional.ofNullable(Stream.of(jobs)
-                                       .filter(j -> Job.Parameters.MIGRATION_QUEUE_KEY.equals(j.getQueueKey()))
-                                       .filter(this::firstInQueue)
-                                       .findFirst()
-                                       .orElse(null));
-  }
+  private @Nullable JobSpec getMigrationJob() {
+    TreeSet<JobSpec> migrationQueue = jobsByQueue.get(Job.Parameters.MIGRATION_QUEUE_KEY);
 
-  private boolean firstInQueue(@NonNull JobSpec job) {
-    if (job.getQueueKey() == null) {
-      return true;
+    if (migrationQueue == null || migrationQueue.isEmpty()) {
+      return null;
     }
 
-    return Stream.of(jobs)
-                 .filter(j -> Util.equals(j.getQueueKey(), job.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList()
-                 .get(0)
-                 .equals(job);
+    JobSpec head = migrationQueue.first();
+    return Job.Parameters.MIGRATION_QUEUE_KEY.equals(head.getQueueKey()) ? head : null;
   }
 
   @Override
   public synchronized int getJobCountForFactory(@NonNull String factoryKey) {
-    return (int) Stream.of(jobs)
+    return (int) Stream.of(jobsById.values())
                        .filter(j -> j.getFactoryKey().equals(factoryKey))
                        .count();
   }
 
   @Override
   public synchronized int getJobCountForFactoryAndQueue(@NonNull String factoryKey, @NonNull String queueKey) {
-    return (int) Stream.of(jobs)
+    TreeSet<JobSpec> jobsInQueue = jobsByQueue.get(queueKey);
+
+    if (jobsInQueue == null) {
+      return 0;
+    }
+
+    return (int) Stream.of(jobsInQueue)
                        .filter(j -> factoryKey.equals(j.getFactoryKey()) &&
                                     queueKey.equals(j.getQueueKey()))
                        .count();
   }
 
   @Override
-  public boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
-    return Stream.of(jobs)
-                 .noneMatch(j -> j.getQueueKey() != null && queueKeys.contains(j.getQueueKey()));
+  public synchronized boolean areQueuesEmpty(@NonNull Set<String> queueKeys) {
+    for (String queueKey : queueKeys) {
+      if (!getJobsInQueue(queueKey).isEmpty()) {
+        return false;
+      }
+    }
+    return true;
   }
 
   @Override
   public synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
-    JobSpec job = getJobById(id);
-    if (job == null || !job.isMemoryOnly()) {
-      jobDatabase.updateJobRunningState(id, isRunning);
-    }
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      existing.getNextRunAttemptTime(),
-                                      existing.getRunAttempt(),
-                                      existing.getMaxAttempts(),
-                                      existing.getLifespan(),
-                                      existing.getSerializedData(),
-                                      existing.getSerializedInputData(),
-                                      isRunning,
-                                      existing.isMemoryOnly());
-        iter.set(updated);
+    JobSpec existing = getJobById(id);
+    if (isDurable(existing)) {
+      if (isWriteBehind()) {
+        markUpdated(existing);
+      } else {
+        jobDatabase.updateJobRunningState(id, isRunning);
       }
     }
+
+    if (existing != null) {
+      JobSpec updated = new JobSpec(existing.getId(),
+                                    existing.getFactoryKey(),
+                                    existing.getQueueKey(),
+                                    existing.getCreateTime(),
+                                    existing.getNextRunAttemptTime(),
+                                    existing.getRunAttempt(),
+                                    existing.getMaxAttempts(),
+                                    existing.getLifespan(),
+                                    existing.getSerializedData(),
+                                    existing.getSerializedInputData(),
+                                    isRunning,
+                                    existing.isMemoryOnly());
+      replaceJob(existing, updated);
+    }
   }
 
   @Override
   public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime, @NonNull String serializedData) {
-    JobSpec job = getJobById(id);
-    if (job == null || !job.isMemoryOnly()) {
-      jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData);
-    }
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      nextRunAttemptTime,
-                                      runAttempt,
-                                      existing.getMaxAttempts(),
-                                      existing.getLifespan(),
-                                      serializedData,
-                                      existing.getSerializedInputData(),
-                                      isRunning,
-                                      existing.isMemoryOnly());
-        iter.set(updated);
+    JobSpec existing = getJobById(id);
+    if (isDurable(existing)) {
+      if (isWriteBehind()) {
+        markUpdated(existing);
+      } else {
+        jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime, serializedData);
       }
     }
+
+    if (existing != null) {
+      JobSpec updated = new JobSpec(existing.getId(),
+                                    existing.getFactoryKey(),
+                                    existing.getQueueKey(),
+                                    existing.getCreateTime(),
+                                    nextRunAttemptTime,
+                                    runAttempt,
+                                    existing.getMaxAttempts(),
+                                    existing.getLifespan(),
+                                    serializedData,
+                                    existing.getSerializedInputData(),
+                                    isRunning,
+                                    existing.isMemoryOnly());
+      replaceJob(existing, updated);
+    }
   }
 
   @Override
   public synchronized void updateAllJobsToBePending() {
     jobDatabase.updateAllJobsToBePending();
 
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec updated  = new JobSpec(existing.getId(),
-                                     existing.getFactoryKey(),
-                                     existing.getQueueKey(),
-                                     existing.getCreateTime(),
-                                     existing.getNextRunAttemptTime(),
-                                     existing.getRunAttempt(),
-                                     existing.getMaxAttempts(),
-                                     existing.getLifespan(),
-                                     existing.getSerializedData(),
-                                     existing.getSerializedInputData(),
-                                     false,
-                                     existing.isMemoryOnly());
-      iter.set(updated);
+    for (JobSpec existing : new ArrayList<>(jobsById.values())) {
+      JobSpec updated = new JobSpec(existing.getId(),
+                                    existing.getFactoryKey(),
+                                    existing.getQueueKey(),
+                                    existing.getCreateTime(),
+                                    existing.getNextRunAttemptTime(),
+                                    existing.getRunAttempt(),
+                                    existing.getMaxAttempts(),
+                                    existing.getLifespan(),
+                                    existing.getSerializedData(),
+                                    existing.getSerializedInputData(),
+                                    false,
+                                    existing.isMemoryOnly());
+      replaceJob(existing, updated);
     }
   }
 
   @Override
-  public void updateJobs(@NonNull List<JobSpec> jobSpecs) {
+  public synchronized void updateJobs(@NonNull List<JobSpec> jobSpecs) {
     List<JobSpec> durable = new ArrayList<>(jobSpecs.size());
     for (JobSpec update : jobSpecs) {
       JobSpec found = getJobById(update.getId());
-      if (found == null || !found.isMemoryOnly()) {
+      if (!isDurable(found)) {
+        continue;
+      }
+
+      if (isWriteBehind()) {
+        markUpdated(found);
+      } else {
         durable.add(update);
       }
     }
@@ -276,15 +350,11 @@ public class FastJobStorage implements JobStorage {
       jobDatabase.updateJobs(durable);
     }
 
-    Map<String, JobSpec>  updates = Stream.of(jobSpecs).collect(Collectors.toMap(JobSpec::getId));
-    ListIterator<JobSpec> iter    = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec update   = updates.get(existing.getId());
+    for (JobSpec update : jobSpecs) {
+      JobSpec existing = jobsById.get(update.getId());
 
-      if (update != null) {
-        iter.set(update);
+      if (existing != null) {
+        replaceJob(existing, update);
       }
     }
   }
@@ -298,39 +368,79 @@ public class FastJobStorage implements JobStorage {
   public synchronized void deleteJobs(@NonNull List<String> jobIds) {
     List<String> durableIds = new ArrayList<>(jobIds.size());
     for (String id : jobIds) {
-      JobSpec job = getJobById(id);
-      if (job == null || !job.isMemoryOnly()) {
+      if (isDurable(getJobById(id))) {
         durableIds.add(id);
       }
     }
 
     if (durableIds.size() > 0) {
-      jobDatabase.deleteJobs(durableIds);
+      if (isWriteBehind()) {
+        for (String id : durableIds) {
+          pendingUpdates.remove(id);
+
+          if (pendingInserts.remove(id)) {
+            cancelledWrites++;
+          } else {
+            pendingDeletes.add(id);
+          }
+        }
+        scheduleFlush();
+      } else {
+        jobDatabase.deleteJobs(durableIds);
+      }
     }
 
-    Set<String> deleteIds = new HashSet<>(jobIds);
+    Set<String> affectedQueues = new HashSet<>();
 
-    Iterator<JobSpec> jobIter = jobs.iterator();
-    while (jobIter.hasNext()) {
-      if (deleteIds.contains(jobIter.next().getId())) {
-        jobIter.remove();
+    for (String jobId : jobIds) {
+      JobSpec job = jobsById.get(jobId);
+
+      if (job != null) {
+        String queue = getQueue(job);
+
+        removeEligibleHead(queue);
+        removeFromQueue(job);
+        jobsById.remove(jobId);
+        affectedQueues.add(queue);
       }
-    }
 
-    for (String jobId : jobIds) {
       constraintsByJobId.remove(jobId);
-      dependenciesByJobId.remove(jobId);
 
-      for (Map.Entry<String, List<DependencySpec>> entry : dependenciesByJobId.entrySet()) {
-        Iterator<DependencySpec> depedencyIter = entry.getValue().iterator();
+      List<DependencySpec> dependencies = dependenciesByJobId.remove(jobId);
+      if (dependencies != null) {
+        for (DependencySpec dependency : dependencies) {
+          List<DependencySpec> siblings = dependentsByJobId.get(dependency.getDependsOnJobId());
+          if (siblings != null) {
+            siblings.remove(dependency);
+          }
+        }
+      }
 
-        while (depedencyIter.hasNext()) {
-          if (depedencyIter.next().getDependsOnJobId().equals(jobId)) {
-            depedencyIter.remove();
+      List<DependencySpec> dependents = dependentsByJobId.remove(jobId);
+      if (dependents != null) {
+        for (DependencySpec dependent : dependents) {
+          List<DependencySpec> dependentDependencies = dependenciesByJobId.get(dependent.getJobId());
+          if (dependentDependencies != null) {
+            dependentDependencies.remove(dependent);
+          }
+
+          JobSpec dependentJob = jobsById.get(dependent.getJobId());
+          if (dependentJob != null) {
+            affectedQueues.add(getQueue(dependentJob));
           }
         }
       }
     }
+
+    for (String queue : affectedQueues) {
+      updateEligibleHead(queue);
+    }
+
+    for (String jobId : jobIds) {
+      if (!jobsById.containsKey(jobId)) {
+        insertionOrderById.remove(jobId);
+      }
+    }
   }
 
   @Override
@@ -368,28 +478,225 @@ public class FastJobStorage implements JobStorage {
   }
 
   private @NonNull List<DependencySpec> getSingleLayerOfDependencySpecsThatDependOnJob(@NonNull String jobSpecId) {
-    return Stream.of(dependenciesByJobId.entrySet())
-                 .map(Map.Entry::getValue)
-                 .flatMap(Stream::of)
-                 .filter(j -> j.getDependsOnJobId().equals(jobSpecId))
-                 .toList();
+    List<DependencySpec> dependents = dependentsByJobId.get(jobSpecId);
+    return dependents != null ? new ArrayList<>(dependents) : new ArrayList<>();
   }
 
   @Override
-  public @NonNull List<DependencySpec> getAllDependencySpecs() {
+  public synchronized @NonNull List<DependencySpec> getAllDependencySpecs() {
     return Stream.of(dependenciesByJobId)
                  .map(Map.Entry::getValue)
                  .flatMap(Stream::of)
                  .toList();
   }
 
+  @Override
+  public void flush() {
+    if (!isWriteBehind()) {
+      return;
+    }
+
+    synchronized (flushLock) {
+      List<FullSpec> inserts;
+      List<JobSpec>  updates;
+      List<String>   deletes;
+
+      synchronized (this) {
+        flushScheduled = false;
+
+        if (pendingInserts.isEmpty() && pendingUpdates.isEmpty() && pendingDeletes.isEmpty()) {
+          return;
+        }
+
+        inserts = new ArrayList<>(pendingInserts.size());
+        updates = new ArrayList<>(pendingUpdates.size());
+        deletes = new ArrayList<>(pendingDeletes);
+
+        for (String id : pendingInserts) {
+          JobSpec              job          = jobsById.get(id);
+          List<DependencySpec> dependencies = dependenciesByJobId.get(id);
+
+          inserts.add(new FullSpec(job,
+                                   Util.getOrDefault(constraintsByJobId, id, Collections.emptyList()),
+                                   dependencies != null ? new ArrayList<>(dependencies) : Collections.emptyList()));
+        }
+
+        for (String id : pendingUpdates) {
+          updates.add(jobsById.get(id));
+        }
+
+        pendingInserts.clear();
+        pendingUpdates.clear();
+        pendingDeletes.clear();
+      }
+
+      jobDatabase.writeChanges(inserts, updates, deletes);
+    }
+  }
+
+  /**
+   * @return The number of job inserts that were dropped because the job was deleted before the
+   *         insert was flushed to disk.
+   */
+  public synchronized long getCancelledWriteCount() {
+    return cancelledWrites;
+  }
+
+  /**
+   * @return The number of database writes that were skipped because the job was memory-only.
+   */
+  @Override
+  public synchronized long getMemoryOnlySkippedWriteCount() {
+    return memoryOnlySkippedWrites;
+  }
+
+  /**
+   * @return True if changes to the job should be written to disk. Unknown jobs are treated as
+   *         durable. Memory-only jobs are counted as a skipped write.
+   */
+  private boolean isDurable(@Nullable JobSpec job) {
+    if (job != null && job.isMemoryOnly()) {
+      memoryOnlySkippedWrites++;
+      return false;
+    }
+    return true;
+  }
+
+  private boolean isWriteBehind() {
+    return flushExecutor != null;
+  }
+
+  private void markUpdated(@Nullable JobSpec job) {
+    if (job == null || job.isMemoryOnly() || pendingInserts.contains(job.getId())) {
+      return;
+    }
+
+    pendingUpdates.add(job.getId());
+    scheduleFlush();
+  }
+
+  private void scheduleFlush() {
+    if (flushScheduled) {
+      return;
+    }
+
+    flushScheduled = true;
+    flushExecutor.execute(() -> {
+      if (flushDelayMs > 0) {
+        ThreadUtil.sleep(flushDelayMs);
+      }
+      flush();
+    });
+  }
+
   private JobSpec getJobById(@NonNull String id) {
-    for (JobSpec job : jobs) {
-      if (job.getId().equals(id)) {
-        return job;
+    JobSpec job = jobsById.get(id);
+    if (job == null) {
+      Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
+    }
+    return job;
+  }
+
+  /**
+   * Jobs without a queue key can run independently of everything else, so they're treated as a
+   * queue of their own, keyed by their ID.
+   */
+  private static @NonNull String getQueue(@NonNull JobSpec job) {
+    return job.getQueueKey() != null ? job.getQueueKey() : job.getId();
+  }
+
+  private long getInsertionOrder(@NonNull JobSpec job) {
+    Long order = insertionOrderById.get(job.getId());
+    return order != null ? order : Long.MAX_VALUE;
+  }
+
+  private void addJob(@NonNull JobSpec job) {
+    if (!insertionOrderById.containsKey(job.getId())) {
+      insertionOrderById.put(job.getId(), nextInsertionOrder++);
+    }
+
+    jobsById.put(job.getId(), job);
+
+    TreeSet<JobSpec> queue = jobsByQueue.get(getQueue(job));
+    if (queue == null) {
+      queue = new TreeSet<>(createdOrder);
+      jobsByQueue.put(getQueue(job), queue);
+    }
+    queue.add(job);
+  }
+
+  private void removeFromQueue(@NonNull JobSpec job) {
+    String           queueKey = getQueue(job);
+    TreeSet<JobSpec> queue    = jobsByQueue.get(queueKey);
+
+    if (queue != null) {
+      queue.remove(job);
+
+      if (queue.isEmpty()) {
+        jobsByQueue.remove(queueKey);
       }
     }
-    Log.w(TAG, "Was looking for job with ID JOB::" + id + ", but it doesn't exist in memory!");
-    return null;
+  }
+
+  /**
+   * Swaps out an existing job for an updated copy, keeping every index consistent. The updated job
+   * keeps the original insertion order so ties in create time are still broken the same way.
+   */
+  private void replaceJob(@NonNull JobSpec existing, @NonNull JobSpec updated) {
+    String oldQueue = getQueue(existing);
+    String newQueue = getQueue(updated);
+
+    removeEligibleHead(oldQueue);
+    removeFromQueue(existing);
+    addJob(updated);
+
+    updateEligibleHead(oldQueue);
+    if (!oldQueue.equals(newQueue)) {
+      updateEligibleHead(newQueue);
+    }
+  }
+
+  private void addDependency(@NonNull DependencySpec dependencySpec) {
+    List<DependencySpec> jobDependencies = dependenciesByJobId.get(dependencySpec.getJobId());
+    if (jobDependencies == null) {
+      jobDependencies = new LinkedList<>();
+      dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+    }
+    jobDependencies.add(dependencySpec);
+
+    List<DependencySpec> jobDependents = dependentsByJobId.get(dependencySpec.getDependsOnJobId());
+    if (jobDependents == null) {
+      jobDependents = new LinkedList<>();
+      dependentsByJobId.put(dependencySpec.getDependsOnJobId(), jobDependents);
+    }
+    jobDependents.add(dependencySpec);
+  }
+
+  private void removeEligibleHead(@NonNull String queue) {
+    JobSpec previous = eligibleHeadsByQueue.remove(queue);
+    if (previous != null) {
+      eligibleHeads.remove(previous);
+    }
+  }
+
+  /**
+   * Recomputes whether the head of the specified queue is able to run, which is the case when it
+   * isn't already running and has no outstanding dependencies.
+   */
+  private void updateEligibleHead(@NonNull String queue) {
+    removeEligibleHead(queue);
+
+    TreeSet<JobSpec> jobsInQueue = jobsByQueue.get(queue);
+    if (jobsInQueue == null || jobsInQueue.isEmpty()) {
+      return;
+    }
+
+    JobSpec              head         = jobsInQueue.first();
+    List<DependencySpec> dependencies = dependenciesByJobId.get(head.getId());
+
+    if (!head.isRunning() && (dependencies == null || dependencies.isEmpty())) {
+      eligibleHeads.add(head);
+      eligibleHeadsByQueue.put(queue, head);
+    }
   }
 }
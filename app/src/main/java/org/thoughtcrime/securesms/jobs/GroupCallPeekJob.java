@@ -27,7 +27,8 @@ public final class GroupCallPeekJob extends BaseJob {
     String             queue      = QUEUE + groupRecipientId.serialize();
     Parameters.Builder parameters = new Parameters.Builder()
                                                   .setQueue(queue)
-                                                  .addConstraint(DecryptionsDrainedConstraint.KEY);
+                                                  .addConstraint(DecryptionsDrainedConstraint.KEY)
+                                                  .setMemoryOnly(true);
 
     jobManager.cancelAllInQueue(queue);
 
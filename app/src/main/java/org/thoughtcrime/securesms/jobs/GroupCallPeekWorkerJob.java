@@ -22,6 +22,7 @@ final class GroupCallPeekWorkerJob extends BaseJob {
     this(new Parameters.Builder()
                        .setQueue(PushProcessMessageJob.getQueueName(groupRecipientId))
                        .setMaxInstancesForQueue(2)
+                       .setMemoryOnly(true)
                        .build(),
          groupRecipientId);
   }
@@ -13,6 +13,7 @@ import org.signal.core.util.Stopwatch;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.BuildConfig;
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.BackupChain;
 import org.thoughtcrime.securesms.backup.BackupEvent;
 import org.thoughtcrime.securesms.backup.BackupFileIOError;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
@@ -37,6 +38,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
 
@@ -123,16 +125,20 @@ public final class LocalBackupJob extends BaseJob {
       File tempFile = File.createTempFile(TEMP_BACKUP_FILE_PREFIX, TEMP_BACKUP_FILE_SUFFIX, backupDirectory);
 
       try {
-        Stopwatch   stopwatch     = new Stopwatch("backup-export");
+        Stopwatch          stopwatch = new Stopwatch("backup-export");
+        BackupChain.Parent parent    = BackupChain.findParent(context, backupPassword);
+        stopwatch.split("backup-find-parent");
+
         BackupEvent finishedEvent = FullBackupExporter.export(context,
                                                               AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
                                                               SignalDatabase.getBackupDatabase(),
                                                               tempFile,
                                                               backupPassword,
+                                                              parent,
                                                               this::isCanceled);
         stopwatch.split("backup-create");
 
-        boolean valid = BackupVerifier.verifyFile(new FileInputStream(tempFile), backupPassword, finishedEvent.getCount());
+        boolean valid = BackupVerifier.verifyFile(new FileInputStream(tempFile), backupPassword, finishedEvent.getCount(), parent != null ? parent.getAttachmentHashes() : Collections.emptySet());
         stopwatch.split("backup-verify");
         stopwatch.stop(TAG);
 
@@ -17,6 +17,7 @@ import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.BuildConfig;
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.BackupChain;
 import org.thoughtcrime.securesms.backup.BackupEvent;
 import org.thoughtcrime.securesms.backup.BackupFileIOError;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
@@ -35,8 +36,10 @@ import org.thoughtcrime.securesms.util.BackupUtil;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
@@ -140,16 +143,20 @@ public final class LocalBackupJobApi29 extends BaseJob {
       }
 
       try {
-        Stopwatch   stopwatch     = new Stopwatch("backup-export");
+        Stopwatch          stopwatch = new Stopwatch("backup-export");
+        BackupChain.Parent parent    = BackupChain.findParent(context, backupPassword);
+        stopwatch.split("backup-find-parent");
+
         BackupEvent finishedEvent = FullBackupExporter.export(context,
                                                               AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
                                                               SignalDatabase.getBackupDatabase(),
                                                               temporaryFile,
                                                               backupPassword,
+                                                              parent,
                                                               this::isCanceled);
         stopwatch.split("backup-create");
 
-        boolean valid = verifyBackup(backupPassword, temporaryFile, finishedEvent);
+        boolean valid = verifyBackup(backupPassword, temporaryFile, finishedEvent, parent != null ? parent.getAttachmentHashes() : Collections.emptySet());
 
         stopwatch.split("backup-verify");
         stopwatch.stop(TAG);
@@ -190,7 +197,7 @@ public final class LocalBackupJobApi29 extends BaseJob {
     }
   }
 
-  private boolean verifyBackup(String backupPassword, DocumentFile temporaryFile, BackupEvent finishedEvent) {
+  private boolean verifyBackup(String backupPassword, DocumentFile temporaryFile, BackupEvent finishedEvent, Set<String> availableHashes) {
     Boolean valid    = null;
     int     attempts = 0;
 
@@ -199,7 +206,7 @@ public final class LocalBackupJobApi29 extends BaseJob {
 
       try (InputStream cipherStream = context.getContentResolver().openInputStream(temporaryFile.getUri())) {
         try {
-          valid = BackupVerifier.verifyFile(cipherStream, backupPassword, finishedEvent.getCount());
+          valid = BackupVerifier.verifyFile(cipherStream, backupPassword, finishedEvent.getCount(), availableHashes);
         } catch (IOException e) {
           Log.w(TAG, "Unable to verify backup", e);
           valid = false;
@@ -21,6 +21,7 @@ public final class MarkerJob extends BaseJob {
   public MarkerJob(@Nullable String queue) {
     this(new Parameters.Builder()
                        .setQueue(queue)
+                       .setMemoryOnly(true)
                        .build());
   }
 
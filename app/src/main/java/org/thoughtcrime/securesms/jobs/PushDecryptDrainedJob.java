@@ -22,6 +22,7 @@ public class PushDecryptDrainedJob extends BaseJob {
   public PushDecryptDrainedJob() {
     this(new Parameters.Builder()
                        .setQueue(PushDecryptMessageJob.QUEUE)
+                       .setMemoryOnly(true)
                        .build());
   }
 
@@ -72,7 +72,7 @@ public final class PushDecryptMessageJob extends BaseJob {
 
   @Override
   public @NonNull Data serialize() {
-    return new Data.Builder().putBlobAsString(KEY_ENVELOPE, envelope.serialize())
+    return new Data.Builder().putBlob(KEY_ENVELOPE, envelope.serialize())
                              .putLong(KEY_SMS_MESSAGE_ID, smsMessageId)
                              .build();
   }
@@ -84,12 +84,24 @@ public final class PushDecryptMessageJob extends BaseJob {
 
   @Override
   public void onRun() throws RetryLaterException {
+    for (Job job : decrypt(context, envelope, smsMessageId)) {
+      ApplicationDependencies.getJobManager().add(job);
+    }
+  }
+
+  /**
+   * Decrypts the envelope and handles anything that needs to happen immediately after decryption.
+   * Does not enqueue anything itself.
+   *
+   * @return The jobs that must be enqueued to finish processing the message.
+   */
+  public static @NonNull List<Job> decrypt(@NonNull Context context, @NonNull SignalServiceEnvelope envelope, long smsMessageId) {
     List<Job>        jobs = new LinkedList<>();
     DecryptionResult result = MessageDecryptionUtil.decrypt(context, envelope);
 
     if (result.getState() == MessageState.DECRYPTED_OK && envelope.isStory() && !isStoryMessage(result)) {
       Log.w(TAG, "Envelope was flagged as a story, but it did not have any story-related content! Dropping.");
-      return;
+      return jobs;
     }
 
     if (result.getContent() != null) {
@@ -110,9 +122,7 @@ public final class PushDecryptMessageJob extends BaseJob {
 
     jobs.addAll(result.getJobs());
 
-    for (Job job: jobs) {
-      ApplicationDependencies.getJobManager().add(job);
-    }
+    return jobs;
   }
 
   @Override
@@ -124,13 +134,13 @@ public final class PushDecryptMessageJob extends BaseJob {
   public void onFailure() {
   }
 
-  private void handleSenderKeyDistributionMessage(@NonNull SignalServiceAddress address, int deviceId, @NonNull SenderKeyDistributionMessage message) {
+  private static void handleSenderKeyDistributionMessage(@NonNull SignalServiceAddress address, int deviceId, @NonNull SenderKeyDistributionMessage message) {
     Log.i(TAG, "Processing SenderKeyDistributionMessage from " + address.getServiceId() + "." + deviceId);
     SignalServiceMessageSender sender = ApplicationDependencies.getSignalServiceMessageSender();
     sender.processSenderKeyDistributionMessage(new SignalProtocolAddress(address.getIdentifier(), deviceId), message);
   }
 
-  private void handlePniSignatureMessage(@NonNull SignalServiceAddress address, int deviceId, @NonNull SignalServicePniSignatureMessage pniSignatureMessage) {
+  private static void handlePniSignatureMessage(@NonNull SignalServiceAddress address, int deviceId, @NonNull SignalServicePniSignatureMessage pniSignatureMessage) {
     Log.i(TAG, "Processing PniSignatureMessage from " + address.getServiceId() + "." + deviceId);
 
     PNI pni = pniSignatureMessage.getPni();
@@ -164,7 +174,7 @@ public final class PushDecryptMessageJob extends BaseJob {
     }
   }
 
-  private boolean isStoryMessage(@NonNull DecryptionResult result) {
+  private static boolean isStoryMessage(@NonNull DecryptionResult result) {
     if (result.getContent() == null) {
       return false;
     }
@@ -197,7 +207,7 @@ public final class PushDecryptMessageJob extends BaseJob {
     @Override
     public @NonNull PushDecryptMessageJob create(@NonNull Parameters parameters, @NonNull Data data) {
       return new PushDecryptMessageJob(parameters,
-                                       SignalServiceEnvelope.deserialize(data.getStringAsBlob(KEY_ENVELOPE)),
+                                       SignalServiceEnvelope.deserialize(data.getBlob(KEY_ENVELOPE)),
                                        data.getLong(KEY_SMS_MESSAGE_ID));
     }
   }
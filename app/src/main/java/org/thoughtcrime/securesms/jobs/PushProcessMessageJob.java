@@ -20,14 +20,12 @@ import org.thoughtcrime.securesms.messages.MessageContentProcessor.ExceptionMeta
 import org.thoughtcrime.securesms.messages.MessageContentProcessor.MessageState;
 import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.recipients.RecipientId;
-import org.thoughtcrime.securesms.util.Base64;
 import org.thoughtcrime.securesms.util.GroupUtil;
 import org.whispersystems.signalservice.api.groupsv2.NoCredentialForRedemptionTimeException;
 import org.whispersystems.signalservice.api.messages.SignalServiceContent;
 import org.whispersystems.signalservice.api.messages.SignalServiceGroupV2;
 import org.whispersystems.signalservice.api.push.exceptions.PushNetworkException;
 
-import java.io.IOException;
 import java.util.Objects;
 import java.util.concurrent.TimeUnit;
 
@@ -167,7 +165,7 @@ public final class PushProcessMessageJob extends BaseJob {
                                        .putLong(KEY_TIMESTAMP, timestamp);
 
     if (messageState == MessageState.DECRYPTED_OK) {
-      dataBuilder.putString(KEY_MESSAGE_PLAINTEXT, Base64.encodeBytes(Objects.requireNonNull(content).serialize()));
+      dataBuilder.putBlob(KEY_MESSAGE_PLAINTEXT, Objects.requireNonNull(content).serialize());
     } else {
       Objects.requireNonNull(exceptionMetadata);
       dataBuilder.putString(KEY_EXCEPTION_SENDER, exceptionMetadata.getSender())
@@ -203,30 +201,26 @@ public final class PushProcessMessageJob extends BaseJob {
   public static final class Factory implements Job.Factory<PushProcessMessageJob> {
     @Override
     public @NonNull PushProcessMessageJob create(@NonNull Parameters parameters, @NonNull Data data) {
-      try {
-        MessageState state = MessageState.values()[data.getInt(KEY_MESSAGE_STATE)];
-
-        if (state == MessageState.DECRYPTED_OK) {
-          return new PushProcessMessageJob(parameters,
-                                           state,
-                                           SignalServiceContent.deserialize(Base64.decode(data.getString(KEY_MESSAGE_PLAINTEXT))),
-                                           null,
-                                           data.getLong(KEY_SMS_MESSAGE_ID),
-                                           data.getLong(KEY_TIMESTAMP));
-        } else {
-          ExceptionMetadata exceptionMetadata = new ExceptionMetadata(data.getString(KEY_EXCEPTION_SENDER),
-                                                                      data.getInt(KEY_EXCEPTION_DEVICE),
-                                                                      GroupId.parseNullableOrThrow(data.getStringOrDefault(KEY_EXCEPTION_GROUP_ID, null)));
-
-          return new PushProcessMessageJob(parameters,
-                                           state,
-                                           null,
-                                           exceptionMetadata,
-                                           data.getLong(KEY_SMS_MESSAGE_ID),
-                                           data.getLong(KEY_TIMESTAMP));
-        }
-      } catch (IOException e) {
-        throw new AssertionError(e);
+      MessageState state = MessageState.values()[data.getInt(KEY_MESSAGE_STATE)];
+
+      if (state == MessageState.DECRYPTED_OK) {
+        return new PushProcessMessageJob(parameters,
+                                         state,
+                                         SignalServiceContent.deserialize(data.getBlob(KEY_MESSAGE_PLAINTEXT)),
+                                         null,
+                                         data.getLong(KEY_SMS_MESSAGE_ID),
+                                         data.getLong(KEY_TIMESTAMP));
+      } else {
+        ExceptionMetadata exceptionMetadata = new ExceptionMetadata(data.getString(KEY_EXCEPTION_SENDER),
+                                                                    data.getInt(KEY_EXCEPTION_DEVICE),
+                                                                    GroupId.parseNullableOrThrow(data.getStringOrDefault(KEY_EXCEPTION_GROUP_ID, null)));
+
+        return new PushProcessMessageJob(parameters,
+                                         state,
+                                         null,
+                                         exceptionMetadata,
+                                         data.getLong(KEY_SMS_MESSAGE_ID),
+                                         data.getLong(KEY_TIMESTAMP));
       }
     }
   }
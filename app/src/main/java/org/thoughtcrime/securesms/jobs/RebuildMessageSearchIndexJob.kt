@@ -0,0 +1,126 @@
+package org.thoughtcrime.securesms.jobs
+
+import org.greenrobot.eventbus.EventBus
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.jobmanager.Data
+import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.jobmanager.impl.ChargingConstraint
+import org.thoughtcrime.securesms.jobmanager.impl.ChargingConstraintObserver
+import org.thoughtcrime.securesms.jobmanager.impl.DecryptionsDrainedConstraint
+import java.util.concurrent.TimeUnit
+
+/**
+ * Adds any messages that are missing from the full-text search index, a batch at a time.
+ *
+ * The index is emptied when the rebuild is enqueued, so that stale entries don't survive it. After that, the job only runs while charging
+ * and once the message backlog has been processed. Each run only works for a little while before handing off to a new instance of the job,
+ * which picks up at the last message it indexed. The search triggers stay in place the whole time, so new messages are indexed as usual, and
+ * only messages that existed when the rebuild started are backfilled. Messages that are updated before the backfill reaches them are indexed
+ * by the triggers, and skipped by the backfill.
+ */
+class RebuildMessageSearchIndexJob private constructor(
+  parameters: Parameters,
+  private val nextId: Long,
+  private val endId: Long
+) : BaseJob(parameters) {
+
+  companion object {
+    private val TAG = Log.tag(RebuildMessageSearchIndexJob::class.java)
+
+    const val KEY = "RebuildMessageSearchIndexJob"
+
+    private const val KEY_NEXT_ID = "next_id"
+    private const val KEY_END_ID = "end_id"
+
+    private const val BATCH_SIZE = 2_000L
+    private val MAX_RUN_TIME = TimeUnit.SECONDS.toMillis(30)
+
+    /**
+     * Clears the index and starts rebuilding it, replacing any rebuild that's in progress. Searches will only find messages that have been
+     * indexed again until the rebuild finishes.
+     */
+    @JvmStatic
+    fun enqueue() {
+      val jobManager = ApplicationDependencies.getJobManager()
+
+      jobManager.cancelAllInQueue(KEY)
+      SignalDatabase.messageSearch.clearIndex()
+      jobManager.add(RebuildMessageSearchIndexJob(1, SignalDatabase.messages.nextId))
+    }
+  }
+
+  private constructor(nextId: Long, endId: Long) : this(
+    Parameters.Builder()
+      .addConstraint(ChargingConstraint.KEY)
+      .addConstraint(DecryptionsDrainedConstraint.KEY)
+      .setQueue(KEY)
+      .setLifespan(Parameters.IMMORTAL)
+      .setMaxAttempts(Parameters.UNLIMITED)
+      .build(),
+    nextId,
+    endId
+  )
+
+  override fun serialize(): Data {
+    return Data.Builder()
+      .putLong(KEY_NEXT_ID, nextId)
+      .putLong(KEY_END_ID, endId)
+      .build()
+  }
+
+  override fun getFactoryKey(): String = KEY
+
+  override fun onFailure() = Unit
+
+  override fun onRun() {
+    val startTime = System.currentTimeMillis()
+    var id = nextId
+
+    while (id < endId) {
+      val batchEnd = minOf(id + BATCH_SIZE, endId)
+
+      SignalDatabase.messageSearch.indexMissingMessages(id, batchEnd)
+      id = batchEnd
+
+      EventBus.getDefault().postSticky(Progress(id, endId))
+
+      if (isCanceled) {
+        Log.i(TAG, "Canceled after indexing up to $id of $endId.")
+        return
+      }
+
+      if (id < endId && shouldYield(startTime)) {
+        Log.i(TAG, "Indexed up to $id of $endId. Continuing later.")
+        ApplicationDependencies.getJobManager().add(RebuildMessageSearchIndexJob(id, endId))
+        return
+      }
+    }
+
+    Log.i(TAG, "Finished indexing messages up to $endId in ${System.currentTimeMillis() - startTime} ms.")
+  }
+
+  private fun shouldYield(startTime: Long): Boolean {
+    return !ChargingConstraintObserver.isCharging() || System.currentTimeMillis() - startTime > MAX_RUN_TIME
+  }
+
+  override fun onShouldRetry(e: Exception): Boolean = false
+
+  /**
+   * Posted as a sticky event after every batch.
+   */
+  data class Progress(val indexedUpToId: Long, val endId: Long) {
+    val fraction: Float
+      get() = if (endId <= 1) 1f else (indexedUpToId - 1).toFloat() / (endId - 1)
+
+    val isComplete: Boolean
+      get() = indexedUpToId >= endId
+  }
+
+  class Factory : Job.Factory<RebuildMessageSearchIndexJob> {
+    override fun create(parameters: Parameters, data: Data): RebuildMessageSearchIndexJob {
+      return RebuildMessageSearchIndexJob(parameters, data.getLong(KEY_NEXT_ID), data.getLong(KEY_END_ID))
+    }
+  }
+}
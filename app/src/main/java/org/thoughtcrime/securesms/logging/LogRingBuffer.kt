@@ -0,0 +1,156 @@
+package org.thoughtcrime.securesms.logging
+
+/**
+ * A fixed-size buffer of pending log entries, shared between every thread that logs and the single thread that writes them out.
+ *
+ * Slots are allocated up front and reused, so logging a line doesn't allocate anything beyond what the caller passes in. If the buffer fills up faster
+ * than it can be written out, new entries are dropped and counted rather than making the caller wait.
+ *
+ * Entries are consumed in three steps:
+ * - [awaitBatch] blocks until there's something to write and returns how many entries are ready.
+ * - The writer reads those entries with [get], then calls [release] to hand the slots back.
+ * - Once the entries are actually persisted, the writer calls [markPersisted], which wakes up anyone waiting in [blockForFlushed].
+ */
+internal class LogRingBuffer(private val capacity: Int) {
+
+  class Slot {
+    var level: String = ""
+    var tag: String = ""
+    var message: String? = null
+    var timestamp: Long = 0
+    var threadString: String = ""
+    var throwable: Throwable? = null
+    var keepLonger: Boolean = false
+  }
+
+  private val slots = Array(capacity) { Slot() }
+  private val lock = Object()
+
+  private var head = 0
+  private var size = 0
+  private var flushRequested = false
+
+  private var added = 0L
+  private var persisted = 0L
+  private var droppedSinceRelease = 0L
+
+  /** The total number of entries that have been dropped because the buffer was full. */
+  var totalDropped = 0L
+    get() = synchronized(lock) { field }
+    private set
+
+  /**
+   * @return True if the entry was added, or false if it was dropped because the buffer was full.
+   */
+  fun add(level: String, tag: String, message: String?, timestamp: Long, threadString: String, throwable: Throwable?, keepLonger: Boolean): Boolean {
+    synchronized(lock) {
+      if (size == capacity) {
+        droppedSinceRelease++
+        totalDropped++
+        return false
+      }
+
+      slots[(head + size) % capacity].apply {
+        this.level = level
+        this.tag = tag
+        this.message = message
+        this.timestamp = timestamp
+        this.threadString = threadString
+        this.throwable = throwable
+        this.keepLonger = keepLonger
+      }
+
+      size++
+      added++
+
+      if (size == 1 || size == capacity / 2) {
+        lock.notifyAll()
+      }
+
+      return true
+    }
+  }
+
+  /**
+   * Blocks until there is at least one entry to write. If [batchWindowMs] is positive, it will then keep waiting for up to that long for more entries to
+   * arrive, unless the buffer gets half full or someone requests a flush.
+   *
+   * @return The number of entries that can be read with [get].
+   */
+  fun awaitBatch(batchWindowMs: Long): Int {
+    synchronized(lock) {
+      while (size == 0) {
+        lock.wait()
+      }
+
+      if (batchWindowMs > 0) {
+        val deadline = System.currentTimeMillis() + batchWindowMs
+        var remaining = batchWindowMs
+
+        while (remaining > 0 && size < capacity / 2 && !flushRequested) {
+          lock.wait(remaining)
+          remaining = deadline - System.currentTimeMillis()
+        }
+      }
+
+      flushRequested = false
+      return size
+    }
+  }
+
+  /**
+   * Returns the entry at [index], relative to the oldest entry. Only valid for entries covered by the last call to [awaitBatch], and only until they're
+   * released.
+   */
+  operator fun get(index: Int): Slot {
+    return slots[(head + index) % capacity]
+  }
+
+  /**
+   * Frees up the oldest [count] slots so they can be reused.
+   *
+   * @return The number of entries that were dropped since the last time this was called.
+   */
+  fun release(count: Int): Long {
+    synchronized(lock) {
+      for (i in 0 until count) {
+        slots[(head + i) % capacity].apply {
+          message = null
+          throwable = null
+        }
+      }
+
+      head = (head + count) % capacity
+      size -= count
+
+      val dropped = droppedSinceRelease
+      droppedSinceRelease = 0
+      return dropped
+    }
+  }
+
+  fun markPersisted(count: Int) {
+    synchronized(lock) {
+      persisted += count
+      lock.notifyAll()
+    }
+  }
+
+  /**
+   * Blocks until every entry added before this call has been persisted.
+   */
+  fun blockForFlushed() {
+    synchronized(lock) {
+      val target = added
+
+      if (persisted < target) {
+        flushRequested = true
+        lock.notifyAll()
+      }
+
+      while (persisted < target) {
+        lock.wait()
+      }
+    }
+  }
+}
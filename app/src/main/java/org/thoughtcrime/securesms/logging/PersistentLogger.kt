@@ -7,7 +7,6 @@ import org.signal.core.util.logging.Scrubber
 import org.thoughtcrime.securesms.BuildConfig
 import org.thoughtcrime.securesms.database.LogDatabase
 import org.thoughtcrime.securesms.database.model.LogEntry
-import org.thoughtcrime.securesms.logging.PersistentLogger.LogRequest
 import org.thoughtcrime.securesms.logging.PersistentLogger.WriteThread
 import java.io.ByteArrayOutputStream
 import java.io.PrintStream
@@ -22,14 +21,21 @@ import java.util.Locale
  * This class takes special care to do as little as possible on the main thread, instead letting the background thread do the work.
  *
  * The process looks something like:
- * - Main thread creates a [LogRequest] object and puts it in a queue
- * - The [WriteThread] constantly pulls from that queue, formats the logs, and writes them to the database.
+ * - The calling thread copies the log arguments into a preallocated slot in a [LogRingBuffer]. If the buffer is full, the entry is dropped and counted.
+ * - The [WriteThread] waits for entries to pile up for at most [flushIntervalMs], formats them, and writes them to the database in a single batch.
  */
-class PersistentLogger(
-  application: Application
+class PersistentLogger @JvmOverloads constructor(
+  application: Application,
+  bufferSize: Int = DEFAULT_BUFFER_SIZE,
+  private val flushIntervalMs: Long = DEFAULT_FLUSH_INTERVAL_MS
 ) : Log.Logger() {
 
   companion object {
+    private val TAG = Log.tag(PersistentLogger::class.java)
+
+    private const val DEFAULT_BUFFER_SIZE = 4096
+    private const val DEFAULT_FLUSH_INTERVAL_MS = 250L
+
     private const val LOG_V = "V"
     private const val LOG_D = "D"
     private const val LOG_I = "I"
@@ -37,16 +43,20 @@ class PersistentLogger(
     private const val LOG_E = "E"
   }
 
-  private val logEntries = LogRequests()
+  private val logEntries = LogRingBuffer(bufferSize)
   private val logDatabase = LogDatabase.getInstance(application)
   private val cachedThreadString: ThreadLocal<String> = ThreadLocal()
 
   init {
-    WriteThread(logEntries, logDatabase).apply {
+    WriteThread(logEntries, logDatabase, flushIntervalMs).apply {
       priority = Thread.MIN_PRIORITY
     }.start()
   }
 
+  /** The number of log entries that have been dropped because they were logged faster than they could be written. */
+  val droppedEntryCount: Long
+    get() = logEntries.totalDropped
+
   override fun v(tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
     write(LOG_V, tag, message, t, keepLonger)
   }
@@ -76,7 +86,7 @@ class PersistentLogger(
   }
 
   private fun write(level: String, tag: String?, message: String?, t: Throwable?, keepLonger: Boolean) {
-    logEntries.add(LogRequest(level, tag ?: "null", message, Date(), getThreadString(), t, keepLonger))
+    logEntries.add(level, tag ?: "null", message, System.currentTimeMillis(), getThreadString(), t, keepLonger)
   }
 
   private fun getThreadString(): String {
@@ -95,113 +105,97 @@ class PersistentLogger(
     return threadString!!
   }
 
-  private data class LogRequest(
-    val level: String,
-    val tag: String,
-    val message: String?,
-    val date: Date,
-    val threadString: String,
-    val throwable: Throwable?,
-    val keepLonger: Boolean
-  )
-
   private class WriteThread(
-    private val requests: LogRequests,
-    private val db: LogDatabase
+    private val requests: LogRingBuffer,
+    private val db: LogDatabase,
+    private val flushIntervalMs: Long
   ) : Thread("signal-logger") {
 
-    private val dateFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz", Locale.US)
-    private val buffer = mutableListOf<LogRequest>()
+    private val secondFormat = SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US)
+    private val zoneFormat = SimpleDateFormat("zzz", Locale.US)
+    private val reusableDate = Date()
+    private val entries = mutableListOf<LogEntry>()
+
+    private var cachedSecond = Long.MIN_VALUE
+    private var cachedSecondString = ""
+    private var cachedZoneString = ""
 
     override fun run() {
       while (true) {
-        requests.blockForRequests(buffer)
-        db.insert(buffer.flatMap { requestToEntries(it) }, System.currentTimeMillis())
-        buffer.clear()
-        requests.notifyFlushed()
+        val count = requests.awaitBatch(flushIntervalMs)
+
+        for (i in 0 until count) {
+          addEntries(requests[i])
+        }
+
+        val dropped = requests.release(count)
+
+        if (dropped > 0) {
+          val now = System.currentTimeMillis()
+          entries.add(LogEntry(createdAt = now, keepLonger = false, body = formatBody("log  ", now, LOG_W, TAG, "Dropped $dropped log entries because the buffer was full.")))
+        }
+
+        db.insert(entries, System.currentTimeMillis())
+        entries.clear()
+
+        requests.markPersisted(count)
       }
     }
 
-    fun requestToEntries(request: LogRequest): List<LogEntry> {
-      val out = mutableListOf<LogEntry>()
-
-      out.add(
+    private fun addEntries(request: LogRingBuffer.Slot) {
+      entries.add(
         LogEntry(
-          createdAt = request.date.time,
+          createdAt = request.timestamp,
           keepLonger = request.keepLonger,
-          body = formatBody(request.threadString, request.date, request.level, request.tag, request.message)
+          body = formatBody(request.threadString, request.timestamp, request.level, request.tag, request.message)
         )
       )
 
-      if (request.throwable != null) {
+      val throwable = request.throwable
+
+      if (throwable != null) {
         val outputStream = ByteArrayOutputStream()
-        request.throwable.printStackTrace(PrintStream(outputStream))
+        throwable.printStackTrace(PrintStream(outputStream))
 
         val trace = String(outputStream.toByteArray())
-        val lines = trace.split("\\n".toRegex()).toTypedArray()
 
-        val entries = lines.map { line ->
-          LogEntry(
-            createdAt = request.date.time,
-            keepLonger = request.keepLonger,
-            body = formatBody(request.threadString, request.date, request.level, request.tag, line)
+        for (line in trace.split('\n')) {
+          entries.add(
+            LogEntry(
+              createdAt = request.timestamp,
+              keepLonger = request.keepLonger,
+              body = formatBody(request.threadString, request.timestamp, request.level, request.tag, line)
+            )
           )
         }
-
-        out.addAll(entries)
       }
-
-      return out
-    }
-
-    fun formatBody(threadString: String, date: Date, level: String, tag: String, message: String?): String {
-      return "[${BuildConfig.VERSION_NAME}] [$threadString] ${dateFormat.format(date)} $level $tag: ${Scrubber.scrub(message ?: "")}"
     }
-  }
-
-  private class LogRequests {
-    val logs = mutableListOf<LogRequest>()
-    val logLock = Object()
-
-    var flushed = false
-    val flushedLock = Object()
 
-    fun add(entry: LogRequest) {
-      synchronized(logLock) {
-        logs.add(entry)
-        logLock.notify()
-      }
+    private fun formatBody(threadString: String, timestamp: Long, level: String, tag: String, message: String?): String {
+      return "[${BuildConfig.VERSION_NAME}] [$threadString] ${formatTimestamp(timestamp)} $level $tag: ${Scrubber.scrub(message ?: "")}"
     }
 
     /**
-     * Blocks until requests are available. When they are, the [buffer] will be populated with all pending requests.
-     * Note: This method gets hit a *lot*, which is why we're using a buffer instead of spamming out new lists every time.
+     * Equivalent to formatting with "yyyy-MM-dd HH:mm:ss.SSS zzz", but only runs the date formatters once per second of log time.
      */
-    fun blockForRequests(buffer: MutableList<LogRequest>) {
-      synchronized(logLock) {
-        while (logs.isEmpty()) {
-          logLock.wait()
-        }
-
-        buffer.addAll(logs)
-        logs.clear()
-        flushed = false
+    private fun formatTimestamp(timestamp: Long): String {
+      val second = Math.floorDiv(timestamp, 1000L)
+
+      if (second != cachedSecond) {
+        reusableDate.time = timestamp
+        cachedSecond = second
+        cachedSecondString = secondFormat.format(reusableDate)
+        cachedZoneString = zoneFormat.format(reusableDate)
       }
-    }
 
-    fun blockForFlushed() {
-      synchronized(flushedLock) {
-        while (!flushed) {
-          flushedLock.wait()
-        }
+      val millis = Math.floorMod(timestamp, 1000L)
+      val millisString = when {
+        millis < 10 -> "00$millis"
+        millis < 100 -> "0$millis"
+        else -> millis.toString()
       }
-    }
 
-    fun notifyFlushed() {
-      synchronized(flushedLock) {
-        flushed = true
-        flushedLock.notify()
-      }
+      return "$cachedSecondString.$millisString $cachedZoneString"
     }
   }
 }
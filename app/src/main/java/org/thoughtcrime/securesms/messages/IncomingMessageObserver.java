@@ -38,7 +38,6 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -55,6 +54,7 @@ public class IncomingMessageObserver {
 
   public static final  int  FOREGROUND_ID           = 313399;
   private static final long REQUEST_TIMEOUT_MINUTES = 1;
+  private static final int  MAX_BATCH_SIZE          = 30;
   private static final long OLD_REQUEST_WINDOW_MS   = TimeUnit.MINUTES.toMillis(5);
 
   private final Application                context;
@@ -252,15 +252,20 @@ public class IncomingMessageObserver {
           while (isConnectionNecessary()) {
             try {
               Log.d(TAG, "Reading message...");
-              Optional<SignalServiceEnvelope> result = signalWebSocket.readOrEmpty(TimeUnit.MINUTES.toMillis(REQUEST_TIMEOUT_MINUTES), envelope -> {
-                Log.i(TAG, "Retrieved envelope! " + envelope.getTimestamp());
+              boolean empty = signalWebSocket.readMessageBatch(TimeUnit.MINUTES.toMillis(REQUEST_TIMEOUT_MINUTES), MAX_BATCH_SIZE, envelopes -> {
+                for (SignalServiceEnvelope envelope : envelopes) {
+                  Log.i(TAG, "Retrieved envelope! " + envelope.getTimestamp());
+                }
+
                 try (Processor processor = ApplicationDependencies.getIncomingMessageProcessor().acquire()) {
-                  processor.processEnvelope(envelope);
+                  processor.processEnvelopes(envelopes);
                 }
+
+                ApplicationDependencies.getJobManager().flush();
               });
               attempts = 0;
 
-              if (!result.isPresent() && !networkDrained) {
+              if (empty && !networkDrained) {
                 Log.i(TAG, "Network was newly-drained. Enqueuing a job to listen for decryption draining.");
                 networkDrained = true;
                 ApplicationDependencies.getJobManager().add(new PushDecryptDrainedJob());
@@ -31,6 +31,9 @@ import org.whispersystems.signalservice.api.messages.SignalServiceGroupV2;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -41,6 +44,8 @@ public class IncomingMessageProcessor {
 
   private static final String TAG = Log.tag(IncomingMessageProcessor.class);
 
+  private static final String SAVEPOINT_ENVELOPE = "incoming_envelope";
+
   private final Application   context;
   private final ReentrantLock lock;
 
@@ -92,6 +97,93 @@ public class IncomingMessageProcessor {
       }
     }
 
+    /**
+     * Processes a batch of envelopes in order. If nothing is waiting to be decrypted, the batch is
+     * decrypted here, under a single session lock acquisition and in a single database transaction.
+     * Each envelope gets its own savepoint, so if one fails, only its writes (and anything it would
+     * have done after commit) are discarded. The envelopes before it are kept, and it and everything
+     * after it are handled as if they were passed to {@link #processEnvelope(SignalServiceEnvelope)},
+     * so nothing is decrypted twice.
+     */
+    public void processEnvelopes(@NonNull List<SignalServiceEnvelope> envelopes) {
+      if (needsToEnqueueDecryption()) {
+        for (SignalServiceEnvelope envelope : envelopes) {
+          processEnvelope(envelope);
+        }
+        return;
+      }
+
+      Stopwatch       stopwatch = new Stopwatch("batch");
+      List<List<Job>> decrypted = new ArrayList<>(envelopes.size());
+
+      try (SignalSessionLock.Lock unused = ReentrantSessionLock.INSTANCE.acquire()) {
+        stopwatch.split("lock");
+
+        SignalDatabase.runInTransaction(() -> {
+          for (SignalServiceEnvelope envelope : envelopes) {
+            List<Job> jobs = processEnvelopeInline(envelope);
+
+            if (jobs == null) {
+              break;
+            }
+
+            decrypted.add(jobs);
+          }
+        });
+      } catch (Exception e) {
+        Log.w(TAG, "Failed to commit a batch of " + envelopes.size() + " envelopes. Falling back to enqueueing all of them.", e);
+        decrypted.clear();
+      }
+
+      stopwatch.split("decrypt");
+
+      for (List<Job> jobs : decrypted) {
+        for (Job job : jobs) {
+          jobManager.add(job);
+        }
+      }
+
+      for (SignalServiceEnvelope envelope : envelopes.subList(decrypted.size(), envelopes.size())) {
+        processEnvelope(envelope);
+      }
+
+      stopwatch.split("enqueue");
+      stopwatch.stop(TAG);
+
+      Log.i(TAG, "Decrypted " + decrypted.size() + " of a batch of " + envelopes.size() + " envelopes.");
+    }
+
+    /**
+     * Must be called inside of a transaction.
+     *
+     * @return The jobs that must be enqueued to finish processing the envelope, or null if it
+     *         failed, in which case none of its database writes were kept.
+     */
+    private @Nullable List<Job> processEnvelopeInline(@NonNull SignalServiceEnvelope envelope) {
+      List<Job> jobs = new LinkedList<>();
+
+      try {
+        SignalDatabase.runInSavepoint(SAVEPOINT_ENVELOPE, () -> {
+          if (envelope.hasSourceUuid()) {
+            Recipient.externalPush(envelope.getSourceAddress());
+          }
+
+          if (envelope.isReceipt()) {
+            processReceipt(envelope);
+          } else if (envelope.isPreKeySignalMessage() || envelope.isSignalMessage() || envelope.isUnidentifiedSender() || envelope.isPlaintextContent()) {
+            jobs.addAll(PushDecryptMessageJob.decrypt(context, envelope, -1));
+          } else {
+            Log.w(TAG, "Received envelope of unknown type: " + envelope.getType());
+          }
+        });
+
+        return jobs;
+      } catch (Exception e) {
+        Log.w(TAG, "Failed to decrypt envelope " + envelope.getTimestamp() + ". Falling back to enqueueing it and the rest of the batch.", e);
+        return null;
+      }
+    }
+
     private @Nullable String processMessage(@NonNull SignalServiceEnvelope envelope) {
       return processMessageDeferred(envelope);
     }
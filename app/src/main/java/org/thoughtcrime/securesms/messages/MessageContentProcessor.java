@@ -792,7 +792,7 @@ public final class MessageContentProcessor {
                                                     false,
                                                     null);
       database.markAsSent(messageId, true);
-      SignalDatabase.threads().update(threadId, true);
+      SignalDatabase.threads().scheduleUpdate(threadId, true);
     }
 
     return threadId;
@@ -2450,7 +2450,7 @@ public final class MessageContentProcessor {
       database  = SignalDatabase.messages();
       database.markUnidentified(messageId, isUnidentified(message, recipient));
     }
-    SignalDatabase.threads().update(threadId, true);
+    SignalDatabase.threads().scheduleUpdate(threadId, true);
     database.markAsSent(messageId, true);
 
     if (expiresInMillis > 0) {
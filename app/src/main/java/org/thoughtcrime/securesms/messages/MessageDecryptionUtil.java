@@ -68,6 +68,9 @@ public final class MessageDecryptionUtil {
 
   private static final String TAG = Log.tag(MessageDecryptionUtil.class);
 
+  private static final String KEY_PRE_KEYS_SYNC               = "MessageDecryptionUtil:PreKeysSync";
+  private static final String KEY_INTERNAL_ERROR_NOTIFICATION = "MessageDecryptionUtil:InternalErrorNotification";
+
   private MessageDecryptionUtil() {}
 
   /**
@@ -76,7 +79,9 @@ public final class MessageDecryptionUtil {
    *
    * Excluding the data updated in our protocol stores that results from decrypting a message, this
    * method is side-effect free, preferring to return the decryption results to be handled by the
-   * caller.
+   * caller. The few side effects that can't be rolled back (enqueueing jobs, posting notifications,
+   * updating in-memory caches) are held until the active transaction commits, if there is one, so
+   * that decrypting a message again after a rollback doesn't repeat them.
    */
   public static @NonNull DecryptionResult decrypt(@NonNull Context context, @NonNull SignalServiceEnvelope envelope) {
     ServiceId aci = SignalStore.account().requireAci();
@@ -113,7 +118,7 @@ public final class MessageDecryptionUtil {
     List<Job>                     jobs          = new LinkedList<>();
 
     if (envelope.isPreKeySignalMessage()) {
-      PreKeysSyncJob.enqueue();
+      SignalDatabase.runPostSuccessfulTransaction(KEY_PRE_KEYS_SYNC, PreKeysSyncJob::enqueue);
     }
 
     try {
@@ -129,7 +134,7 @@ public final class MessageDecryptionUtil {
 
         if (FeatureFlags.retryReceipts()) {
           jobs.add(handleRetry(context, sender, envelope, e));
-          postInternalErrorNotification(context);
+          SignalDatabase.runPostSuccessfulTransaction(KEY_INTERNAL_ERROR_NOTIFICATION, () -> postInternalErrorNotification(context));
         } else {
           jobs.add(new AutomaticSessionResetJob(sender.getId(), e.getSenderDevice(), envelope.getTimestamp()));
         }
@@ -189,8 +194,10 @@ public final class MessageDecryptionUtil {
         break;
       case RESENDABLE:
         Log.w(TAG, "[" + envelope.getTimestamp() + "] Inserting into pending retries store because it's " + contentHint, true);
-        ApplicationDependencies.getPendingRetryReceiptCache().insert(sender.getId(), senderDevice, envelope.getTimestamp(), receivedTimestamp, threadId);
-        ApplicationDependencies.getPendingRetryReceiptManager().scheduleIfNecessary();
+        SignalDatabase.runPostSuccessfulTransaction(() -> {
+          ApplicationDependencies.getPendingRetryReceiptCache().insert(sender.getId(), senderDevice, envelope.getTimestamp(), receivedTimestamp, threadId);
+          ApplicationDependencies.getPendingRetryReceiptManager().scheduleIfNecessary();
+        });
         break;
       case IMPLICIT:
         Log.w(TAG, "[" + envelope.getTimestamp() + "] Not inserting any error because it's " + contentHint, true);
@@ -104,9 +104,10 @@ public class ApplicationMigrations {
     static final int SMS_MMS_MERGE                 = 71;
     static final int REBUILD_MESSAGE_FTS_INDEX     = 72;
     static final int UPDATE_SMS_JOBS               = 73;
+    static final int ATTACHMENT_CLEANUP_3          = 74;
   }
 
-  public static final int CURRENT_VERSION = 73;
+  public static final int CURRENT_VERSION = 74;
 
   /**
    * This *must* be called after the {@link JobManager} has been instantiated, but *before* the call
@@ -456,6 +457,10 @@ public class ApplicationMigrations {
       jobs.put(Version.UPDATE_SMS_JOBS, new UpdateSmsJobsMigrationJob());
     }
 
+    if (lastSeenVersion < Version.ATTACHMENT_CLEANUP_3) {
+      jobs.put(Version.ATTACHMENT_CLEANUP_3, new AttachmentCleanupMigrationJob());
+    }
+
     return jobs;
   }
 
@@ -3,12 +3,14 @@ package org.thoughtcrime.securesms.migrations;
 import androidx.annotation.NonNull;
 
 import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.AttachmentTable;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.jobmanager.Data;
 import org.thoughtcrime.securesms.jobmanager.Job;
 
 /**
- * Check for abandoned attachments and delete them.
+ * Check for abandoned attachments and delete them. Also repairs the attachment file reference counts
+ * and merges any identical files along the way.
  */
 public class AttachmentCleanupMigrationJob extends MigrationJob {
 
@@ -36,6 +38,9 @@ public class AttachmentCleanupMigrationJob extends MigrationJob {
 
   @Override
   public void performMigration() {
+    AttachmentTable.BlobRepairResult result = SignalDatabase.attachments().repairBlobs();
+    Log.i(TAG, "Repaired attachment files: " + result);
+
     int deletes = SignalDatabase.attachments().deleteAbandonedAttachmentFiles();
     Log.i(TAG, "Deleted " + deletes + " abandoned attachments.");
   }
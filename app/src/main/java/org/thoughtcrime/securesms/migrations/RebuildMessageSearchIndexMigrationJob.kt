@@ -1,12 +1,12 @@
 package org.thoughtcrime.securesms.migrations
 
 import org.signal.core.util.logging.Log
-import org.thoughtcrime.securesms.database.SignalDatabase
 import org.thoughtcrime.securesms.jobmanager.Data
 import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.jobs.RebuildMessageSearchIndexJob
 
 /**
- * Rebuilds the full-text search index for the messages table.
+ * Rebuilds the full-text search index for the messages table. The rebuild itself happens in the background, see [RebuildMessageSearchIndexJob].
  */
 internal class RebuildMessageSearchIndexMigrationJob(
   parameters: Parameters = Parameters.Builder().build()
@@ -22,9 +22,8 @@ internal class RebuildMessageSearchIndexMigrationJob(
   override fun isUiBlocking(): Boolean = false
 
   override fun performMigration() {
-    val startTime = System.currentTimeMillis()
-    SignalDatabase.messageSearch.rebuildIndex()
-    Log.d(TAG, "It took ${System.currentTimeMillis() - startTime} ms to rebuild the search index.")
+    Log.i(TAG, "Scheduling a rebuild of the search index.")
+    RebuildMessageSearchIndexJob.enqueue()
   }
 
   override fun shouldRetry(e: Exception): Boolean = false
@@ -7,6 +7,7 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Build;
 import android.os.Bundle;
+import android.text.format.DateUtils;
 import android.text.method.LinkMovementMethod;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -157,7 +158,13 @@ public class BackupsPreferenceFragment extends Fragment {
         progress.setIndeterminate(false);
         progress.setMax(100);
         progress.setProgress((int) completionPercentage);
-        progressSummary.setText(getString(R.string.BackupsPreferenceFragment__s_so_far, formatter.format(completionPercentage)));
+
+        if (event.getEstimatedTimeRemainingMs() >= 0) {
+          String remaining = DateUtils.formatElapsedTime(TimeUnit.MILLISECONDS.toSeconds(event.getEstimatedTimeRemainingMs()));
+          progressSummary.setText(getString(R.string.BackupsPreferenceFragment__s_so_far_s_left, formatter.format(completionPercentage), remaining));
+        } else {
+          progressSummary.setText(getString(R.string.BackupsPreferenceFragment__s_so_far, formatter.format(completionPercentage)));
+        }
       }
     } else if (event.getType() == BackupEvent.Type.FINISHED) {
       create.setEnabled(true);
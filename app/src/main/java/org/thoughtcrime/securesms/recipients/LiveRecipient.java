@@ -157,6 +157,21 @@ public final class LiveRecipient {
     return updated;
   }
 
+  /**
+   * Resolves the recipient using a record that's already been read, if it isn't resolved yet. Used
+   * when resolving many recipients at once.
+   */
+  @WorkerThread
+  void resolve(@NonNull RecipientRecord record) {
+    Recipient current = recipient.get();
+
+    if (!current.isResolving() || current.getId().isUnknown()) {
+      return;
+    }
+
+    set(createAndCacheRecipient(record));
+  }
+
   @WorkerThread
   public void refresh() {
     refresh(getId());
@@ -191,7 +206,10 @@ public final class LiveRecipient {
   }
 
   private @NonNull Recipient fetchAndCacheRecipientFromDisk(@NonNull RecipientId id) {
-    RecipientRecord  record  = recipientTable.getRecord(id);
+    return createAndCacheRecipient(recipientTable.getRecord(id));
+  }
+
+  private @NonNull Recipient createAndCacheRecipient(@NonNull RecipientRecord record) {
     RecipientDetails details;
     if (record.getGroupId() != null) {
       details = getGroupRecipientDetails(record);
@@ -7,6 +7,7 @@ import androidx.annotation.AnyThread;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 
 import org.signal.core.util.ThreadUtil;
 import org.signal.core.util.concurrent.SignalExecutors;
@@ -15,18 +16,22 @@ import org.thoughtcrime.securesms.database.RecipientTable;
 import org.thoughtcrime.securesms.database.RecipientTable.MissingRecipientException;
 import org.thoughtcrime.securesms.database.SignalDatabase;
 import org.thoughtcrime.securesms.database.ThreadTable;
+import org.thoughtcrime.securesms.database.model.RecipientRecord;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.keyvalue.SignalStore;
 import org.signal.core.util.CursorUtil;
-import org.thoughtcrime.securesms.util.LRUCache;
 import org.signal.core.util.Stopwatch;
+import org.thoughtcrime.securesms.util.StripedLruCache;
 import org.thoughtcrime.securesms.util.concurrent.FilteredExecutor;
 import org.whispersystems.signalservice.api.push.ACI;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
@@ -35,18 +40,20 @@ public final class LiveRecipientCache {
 
   private static final String TAG = Log.tag(LiveRecipientCache.class);
 
-  private static final int CACHE_MAX              = 1000;
+  private static final int CACHE_MAX              = 4000;
+  private static final int CACHE_STRIPES          = 16;
   private static final int THREAD_CACHE_WARM_MAX  = 500;
   private static final int CONTACT_CACHE_WARM_MAX = 50;
 
-  private final Context                         context;
-  private final RecipientTable                  recipientTable;
-  private final Map<RecipientId, LiveRecipient> recipients;
-  private final LiveRecipient                   unknown;
-  private final Executor                        resolveExecutor;
+  private final Context                                     context;
+  private final RecipientTable                              recipientTable;
+  private final StripedLruCache<RecipientId, LiveRecipient> recipients;
+  private final LiveRecipient                               unknown;
+  private final Executor                                    resolveExecutor;
 
   private final AtomicReference<RecipientId> localRecipientId;
   private final AtomicBoolean                warmedUp;
+  private final ThreadLocal<Batch>           currentBatch;
 
   public LiveRecipientCache(@NonNull Context context) {
     this(context, ThreadUtil.trace(new FilteredExecutor(SignalExecutors.newCachedBoundedExecutor("signal-recipients", 1, 4, 15), () -> !SignalDatabase.inTransaction())));
@@ -54,51 +61,173 @@ public final class LiveRecipientCache {
 
   @VisibleForTesting
   public LiveRecipientCache(@NonNull Context context, @NonNull Executor executor) {
-    this.context        = context.getApplicationContext();
-    this.recipientTable = SignalDatabase.recipients();
-    this.recipients     = new LRUCache<>(CACHE_MAX);
+    this.context           = context.getApplicationContext();
+    this.recipientTable    = SignalDatabase.recipients();
+    this.recipients        = new StripedLruCache<>(CACHE_MAX, CACHE_STRIPES);
     this.warmedUp          = new AtomicBoolean(false);
     this.localRecipientId  = new AtomicReference<>(null);
     this.unknown           = new LiveRecipient(context, Recipient.UNKNOWN);
     this.resolveExecutor   = executor;
+    this.currentBatch      = new ThreadLocal<>();
   }
 
   @AnyThread
   @NonNull LiveRecipient getLive(@NonNull RecipientId id) {
     if (id.isUnknown()) return unknown;
 
-    LiveRecipient live;
-    boolean       needsResolve;
+    LiveRecipient live = recipients.get(id);
 
-    synchronized (recipients) {
-      live = recipients.get(id);
+    if (live == null) {
+      LiveRecipient created  = new LiveRecipient(context, new Recipient(id));
+      LiveRecipient existing = recipients.putIfAbsent(id, created);
 
-      if (live == null) {
-        live = new LiveRecipient(context, new Recipient(id));
-        recipients.put(id, live);
-        needsResolve = true;
+      if (existing != null) {
+        live = existing;
       } else {
-        needsResolve = false;
+        live = created;
+        enqueueResolve(live);
+      }
+    }
+
+    return live;
+  }
+
+  /**
+   * Same as {@link #getLive(RecipientId)}, but for many recipients at once. Any that aren't already
+   * cached are resolved together in a single background task rather than one task each.
+   */
+  @AnyThread
+  @NonNull Map<RecipientId, LiveRecipient> getLive(@NonNull Collection<RecipientId> ids) {
+    List<LiveRecipient>             created = new ArrayList<>();
+    Map<RecipientId, LiveRecipient> results = getOrCreateLive(ids, created);
+
+    Batch batch = currentBatch.get();
+
+    if (batch != null) {
+      batch.deferred.addAll(created);
+    } else if (!created.isEmpty()) {
+      resolveExecutor.execute(() -> {
+        for (LiveRecipient live : created) {
+          live.resolve();
+        }
+      });
+    }
+
+    return results;
+  }
+
+  /**
+   * Starts a batch on the calling thread. Until it's resolved or closed, recipients that are first
+   * seen on this thread aren't resolved in the background one at a time. Instead, they're resolved
+   * together, along with anything added to the batch, when {@link Batch#resolve()} is called.
+   *
+   * Always close the batch, or background resolves will stay disabled for this thread.
+   */
+  @WorkerThread
+  public @NonNull Batch beginBatch() {
+    Batch batch = new Batch(currentBatch.get());
+    currentBatch.set(batch);
+    return batch;
+  }
+
+  /**
+   * Resolves all of the given recipients, reading the ones that aren't resolved yet from disk
+   * together, rather than with a query each.
+   */
+  @WorkerThread
+  void resolveAll(@NonNull Collection<RecipientId> ids) {
+    Map<RecipientId, LiveRecipient> unresolved = new HashMap<>();
+
+    for (LiveRecipient live : getOrCreateLive(ids, new ArrayList<>()).values()) {
+      if (live.get().isResolving() && !live.getId().isUnknown()) {
+        unresolved.put(live.getId(), live);
+      }
+    }
+
+    if (unresolved.isEmpty()) {
+      return;
+    }
+
+    Map<RecipientId, RecipientRecord> records = recipientTable.getRecords(unresolved.keySet());
+
+    for (LiveRecipient live : unresolved.values()) {
+      RecipientRecord record = records.get(live.getId());
+
+      if (record != null) {
+        live.resolve(record);
+      } else {
+        live.resolve();
       }
     }
+  }
+
+  private void enqueueResolve(@NonNull LiveRecipient live) {
+    Batch batch = currentBatch.get();
 
-    if (needsResolve) {
+    if (batch != null) {
+      batch.deferred.add(live);
+    } else {
       resolveExecutor.execute(live::resolve);
     }
+  }
 
-    return live;
+  private @NonNull Map<RecipientId, LiveRecipient> getOrCreateLive(@NonNull Collection<RecipientId> ids, @NonNull List<LiveRecipient> created) {
+    List<RecipientId> known = new ArrayList<>(ids.size());
+
+    for (RecipientId id : ids) {
+      if (!id.isUnknown()) {
+        known.add(id);
+      }
+    }
+
+    Map<RecipientId, LiveRecipient> results = recipients.getOrCreateAll(known, id -> new LiveRecipient(context, new Recipient(id)), created);
+
+    if (known.size() != ids.size()) {
+      results.put(RecipientId.UNKNOWN, unknown);
+    }
+
+    return results;
   }
 
   /**
    * Handles remapping cache entries when recipients are merged.
    */
   public void remap(@NonNull RecipientId oldId, @NonNull RecipientId newId) {
-    synchronized (recipients) {
-      if (recipients.containsKey(newId)) {
-        recipients.put(oldId, recipients.get(newId));
-      } else {
-        recipients.remove(oldId);
-      }
+    LiveRecipient newLive = recipients.peek(newId);
+
+    if (newLive != null) {
+      recipients.put(oldId, newLive);
+    } else {
+      recipients.remove(oldId);
+    }
+  }
+
+  /**
+   * Called when a transaction that created or changed the recipient has been rolled back, so that
+   * nothing cached still reflects the discarded writes. If the recipient's row was rolled back with
+   * it (or it had been remapped by a merge that was rolled back), its entry is dropped. Otherwise
+   * it's reloaded from disk, so anything observing it stays attached.
+   */
+  @WorkerThread
+  public void onRolledBack(@NonNull RecipientId id) {
+    RecipientIdCache.INSTANCE.remove(id);
+
+    LiveRecipient live = recipients.peek(id);
+
+    if (live == null) {
+      return;
+    }
+
+    if (!live.getId().equals(id)) {
+      recipients.remove(id);
+      return;
+    }
+
+    try {
+      live.refresh();
+    } catch (MissingRecipientException e) {
+      Log.i(TAG, "Recipient " + id + " was rolled back. Dropping it from the cache.");
+      recipients.remove(id);
     }
   }
 
@@ -111,22 +240,23 @@ public final class LiveRecipientCache {
   @AnyThread
   public void addToCache(@NonNull Collection<Recipient> newRecipients) {
     newRecipients.stream().filter(this::isValidForCache).forEach(recipient -> {
-      LiveRecipient live;
+      LiveRecipient live    = recipients.get(recipient.getId());
+      LiveRecipient created = null;
       boolean       needsResolve;
 
-      synchronized (recipients) {
-        live = recipients.get(recipient.getId());
-
-        if (live == null) {
-          live = new LiveRecipient(context, recipient);
-          recipients.put(recipient.getId(), live);
-          needsResolve = recipient.isResolving();
-        } else if (live.get().isResolving() || !recipient.isResolving()) {
-          live.set(recipient);
-          needsResolve = recipient.isResolving();
-        } else {
-          needsResolve = false;
-        }
+      if (live == null) {
+        created = new LiveRecipient(context, recipient);
+        live    = recipients.putIfAbsent(recipient.getId(), created);
+      }
+
+      if (live == null) {
+        live         = created;
+        needsResolve = recipient.isResolving();
+      } else if (live.get().isResolving() || !recipient.isResolving()) {
+        live.set(recipient);
+        needsResolve = recipient.isResolving();
+      } else {
+        needsResolve = false;
       }
 
       if (needsResolve) {
@@ -246,6 +376,8 @@ public final class LiveRecipientCache {
       }
 
       stopwatch.stop(TAG);
+
+      Log.d(TAG, "Cache stats after warm-up: " + getStats());
     });
   }
 
@@ -258,12 +390,86 @@ public final class LiveRecipientCache {
 
   @AnyThread
   public void clear() {
-    synchronized (recipients) {
-      recipients.clear();
-    }
+    Log.d(TAG, "Clearing cache. " + getStats());
+    recipients.clear();
+  }
+
+  /**
+   * @return Hit rate and lock contention for the cache, for logging.
+   */
+  @AnyThread
+  public @NonNull StripedLruCache.Stats getStats() {
+    return recipients.getStats();
   }
 
   private boolean isValidForCache(@NonNull Recipient recipient) {
     return !recipient.getId().isUnknown() && (recipient.hasServiceId() || recipient.getGroupId().isPresent());
   }
+
+  /**
+   * A set of recipients that are resolved together with as few queries as possible. See
+   * {@link #beginBatch()}.
+   */
+  public final class Batch implements AutoCloseable {
+    private final Batch               previous;
+    private final Set<RecipientId>    ids;
+    private final List<LiveRecipient> deferred;
+
+    private boolean finished;
+
+    private Batch(@Nullable Batch previous) {
+      this.previous = previous;
+      this.ids      = new LinkedHashSet<>();
+      this.deferred = new ArrayList<>();
+    }
+
+    public void add(@NonNull RecipientId id) {
+      ids.add(id);
+    }
+
+    public void addAll(@NonNull Collection<RecipientId> ids) {
+      this.ids.addAll(ids);
+    }
+
+    /**
+     * Ends the batch and resolves everything in it.
+     */
+    @WorkerThread
+    public void resolve() {
+      if (end()) {
+        for (LiveRecipient live : deferred) {
+          ids.add(live.getId());
+        }
+
+        resolveAll(ids);
+      }
+    }
+
+    /**
+     * Ends the batch if it hasn't been resolved, and goes back to resolving anything that was
+     * deferred in the background.
+     */
+    @Override
+    public void close() {
+      if (end()) {
+        for (LiveRecipient live : deferred) {
+          enqueueResolve(live);
+        }
+      }
+    }
+
+    private boolean end() {
+      if (finished) {
+        return false;
+      }
+
+      finished = true;
+
+      if (currentBatch.get() == this) {
+        currentBatch.set(previous);
+      }
+
+      return true;
+    }
+  }
 }
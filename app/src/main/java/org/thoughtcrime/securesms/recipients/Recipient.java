@@ -179,6 +179,8 @@ public class Recipient {
 
   @WorkerThread
   public static @NonNull List<Recipient> resolvedList(@NonNull Collection<RecipientId> ids) {
+    prefetch(ids);
+
     List<Recipient> recipients = new ArrayList<>(ids.size());
 
     for (RecipientId recipientId : ids) {
@@ -188,6 +190,17 @@ public class Recipient {
     return recipients;
   }
 
+  /**
+   * Makes sure all of the recipients are resolved, reading any that aren't from disk in bulk. Use
+   * this before calling {@link #resolved(RecipientId)} on many recipients.
+   */
+  @WorkerThread
+  public static void prefetch(@NonNull Collection<RecipientId> ids) {
+    if (!ids.isEmpty()) {
+      ApplicationDependencies.getRecipientCache().resolveAll(ids);
+    }
+  }
+
   @WorkerThread
   public static @NonNull Recipient distributionList(@NonNull DistributionListId distributionListId) {
     RecipientId id = SignalDatabase.recipients().getOrInsertFromDistributionListId(distributionListId);
@@ -71,6 +71,13 @@ final class RecipientIdCache {
     return null;
   }
 
+  /**
+   * Drops every lookup that leads to the given id.
+   */
+  synchronized void remove(@NonNull RecipientId recipientId) {
+    ids.values().removeIf(recipientId::equals);
+  }
+
   synchronized void clear() {
     ids.clear();
   }
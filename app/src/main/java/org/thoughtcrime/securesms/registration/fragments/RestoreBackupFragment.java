@@ -41,6 +41,7 @@ import org.signal.core.util.logging.Log;
 import org.thoughtcrime.securesms.AppInitialization;
 import org.thoughtcrime.securesms.LoggingFragment;
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.BackupChain;
 import org.thoughtcrime.securesms.backup.BackupEvent;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.FullBackupImporter;
@@ -65,8 +66,9 @@ import static org.thoughtcrime.securesms.registration.fragments.RegistrationView
 
 public final class RestoreBackupFragment extends LoggingFragment {
 
-  private static final String TAG                            = Log.tag(RestoreBackupFragment.class);
-  private static final short  OPEN_DOCUMENT_TREE_RESULT_CODE = 13782;
+  private static final String TAG                                 = Log.tag(RestoreBackupFragment.class);
+  private static final short  OPEN_DOCUMENT_TREE_RESULT_CODE      = 13782;
+  private static final short  OPEN_OLDER_BACKUPS_TREE_RESULT_CODE = 13783;
 
   private TextView                       restoreBackupSize;
   private TextView                       restoreBackupTime;
@@ -74,6 +76,8 @@ public final class RestoreBackupFragment extends LoggingFragment {
   private CircularProgressMaterialButton restoreButton;
   private View                           skipRestoreButton;
   private RegistrationViewModel          viewModel;
+  private BackupUtil.BackupInfo          pendingBackup;
+  private String                         pendingPassphrase;
 
   @Override
   public View onCreateView(LayoutInflater inflater, ViewGroup container,
@@ -154,6 +158,21 @@ public final class RestoreBackupFragment extends LoggingFragment {
 
       SafeNavigation.safeNavigate(Navigation.findNavController(requireView()),
                                   RestoreBackupFragmentDirections.actionBackupRestored());
+    } else if (requestCode == OPEN_OLDER_BACKUPS_TREE_RESULT_CODE && resultCode == Activity.RESULT_OK && data != null && data.getData() != null && pendingBackup != null) {
+      Uri backupDirectoryUri = data.getData();
+      int takeFlags          = Intent.FLAG_GRANT_READ_URI_PERMISSION |
+                               Intent.FLAG_GRANT_WRITE_URI_PERMISSION;
+
+      SignalStore.settings().setSignalBackupDirectory(backupDirectoryUri);
+      requireContext().getContentResolver()
+                      .takePersistableUriPermission(backupDirectoryUri, takeFlags);
+
+      Log.i(TAG, "Retrying backup restore with the chosen folder.");
+
+      restoreButton.setSpinning();
+      skipRestoreButton.setVisibility(View.INVISIBLE);
+
+      restoreAsynchronously(requireContext(), pendingBackup, pendingPassphrase);
     }
   }
 
@@ -303,6 +322,9 @@ public final class RestoreBackupFragment extends LoggingFragment {
         } catch (FullBackupImporter.DatabaseDowngradeException e) {
           Log.w(TAG, "Failed due to the backup being from a newer version of Signal.", e);
           return BackupImportResult.FAILURE_VERSION_DOWNGRADE;
+        } catch (BackupChain.MissingParentException e) {
+          Log.w(TAG, "Failed due to an older backup that this one is based on being missing.", e);
+          return BackupImportResult.FAILURE_MISSING_PARENT;
         } catch (IOException e) {
           Log.w(TAG, e);
           return BackupImportResult.FAILURE_UNKNOWN;
@@ -311,12 +333,19 @@ public final class RestoreBackupFragment extends LoggingFragment {
 
       @Override
       protected void onPostExecute(@NonNull BackupImportResult result) {
-        viewModel.markBackupCompleted();
         restoreButton.cancelSpinning();
         skipRestoreButton.setVisibility(View.VISIBLE);
 
         restoreBackupProgress.setText("");
 
+        if (result == BackupImportResult.FAILURE_MISSING_PARENT) {
+          // Nothing was restored, so the restore can be tried again once the older backups are found
+          handleMissingParent(context, backup, passphrase);
+          return;
+        }
+
+        viewModel.markBackupCompleted();
+
         switch (result) {
           case SUCCESS:
             Log.i(TAG, "Successful backup restore.");
@@ -332,6 +361,31 @@ public final class RestoreBackupFragment extends LoggingFragment {
     }.execute();
   }
 
+  private void handleMissingParent(@NonNull Context context, @NonNull BackupUtil.BackupInfo backup, @NonNull String passphrase) {
+    if (!BackupUtil.isUserSelectionRequired(context)) {
+      Toast.makeText(context, R.string.RestoreBackupFragment__an_older_backup_that_this_one_needs_is_missing, Toast.LENGTH_LONG).show();
+      return;
+    }
+
+    pendingBackup     = backup;
+    pendingPassphrase = passphrase;
+
+    new AlertDialog.Builder(context)
+                   .setTitle(R.string.RestoreBackupFragment__older_backups_needed)
+                   .setMessage(R.string.RestoreBackupFragment__this_backup_only_has_the_changes_since_an_older_backup)
+                   .setPositiveButton(R.string.RestoreBackupFragment__choose_folder, (dialog, which) -> {
+                     Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT_TREE);
+
+                     intent.addFlags(Intent.FLAG_GRANT_PERSISTABLE_URI_PERMISSION |
+                                     Intent.FLAG_GRANT_WRITE_URI_PERMISSION       |
+                                     Intent.FLAG_GRANT_READ_URI_PERMISSION);
+
+                     startActivityForResult(intent, OPEN_OLDER_BACKUPS_TREE_RESULT_CODE);
+                   })
+                   .setNegativeButton(android.R.string.cancel, null)
+                   .show();
+  }
+
   @Override
   public void onStart() {
     super.onStart();
@@ -415,6 +469,7 @@ public final class RestoreBackupFragment extends LoggingFragment {
   private enum BackupImportResult {
     SUCCESS,
     FAILURE_VERSION_DOWNGRADE,
+    FAILURE_MISSING_PARENT,
     FAILURE_UNKNOWN
   }
 
@@ -44,6 +44,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Consumer;
 
 import static org.thoughtcrime.securesms.database.SearchTable.SNIPPET_WRAP;
@@ -55,6 +56,8 @@ public class SearchRepository {
 
   private static final String TAG = Log.tag(SearchRepository.class);
 
+  private static final int MESSAGE_CHUNK_SIZE = 50;
+
   private final Context           context;
   private final String            noteToSelfTitle;
   private final SearchTable       searchDatabase;
@@ -66,6 +69,7 @@ public class SearchRepository {
 
   private final LatestPrioritizedSerialExecutor searchExecutor;
   private final Executor                        serialExecutor;
+  private final AtomicLong                      messageQueryGeneration;
 
   public SearchRepository(@NonNull String noteToSelfTitle) {
     this.context           = ApplicationDependencies.getApplication().getApplicationContext();
@@ -78,6 +82,7 @@ public class SearchRepository {
     this.contactRepository = new ContactRepository(context, noteToSelfTitle);
     this.searchExecutor    = new LatestPrioritizedSerialExecutor(SignalExecutors.BOUNDED);
     this.serialExecutor    = new SerialExecutor(SignalExecutors.BOUNDED);
+    this.messageQueryGeneration = new AtomicLong();
   }
 
   public void queryThreads(@NonNull String query, boolean unreadOnly, @NonNull Consumer<ThreadSearchResult> callback) {
@@ -102,14 +107,27 @@ public class SearchRepository {
     });
   }
 
+  /**
+   * Searches all messages, most relevant first. The search only runs once, but results are read off
+   * of it in chunks, and the callback is given everything found so far after each chunk, so the
+   * first results show up quickly even when there are a lot of matches. A search stops early if
+   * another one is started.
+   */
   public void queryMessages(@NonNull String query, @NonNull Consumer<MessageSearchResult> callback) {
+    long generation = messageQueryGeneration.incrementAndGet();
+
     searchExecutor.execute(0, () -> {
-      long   start      = System.currentTimeMillis();
-      String cleanQuery = FtsUtil.sanitize(query);
+      long                start      = System.currentTimeMillis();
+      String              cleanQuery = FtsUtil.sanitize(query);
+      List<MessageResult> messages   = new ArrayList<>();
+
+      if (!queryRankedMessages(cleanQuery, generation, messages, partial -> callback.accept(new MessageSearchResult(partial, query)))) {
+        Log.d(TAG, "[messages] Search was replaced after " + messages.size() + " results and " + (System.currentTimeMillis() - start) + " ms");
+        return;
+      }
 
-      List<MessageResult> messages        = queryMessages(cleanQuery);
       List<MessageResult> mentionMessages = queryMentions(sanitizeQueryAsTokens(query));
-      List<MessageResult> combined        = mergeMessagesAndMentions(messages, mentionMessages);
+      List<MessageResult> combined        = appendMentions(messages, mentionMessages);
 
       Log.d(TAG, "[messages] Search took " + (System.currentTimeMillis() - start) + " ms");
 
@@ -205,16 +223,47 @@ public class SearchRepository {
     }
   }
 
-  private @NonNull List<MessageResult> queryMessages(@NonNull String query) {
+  /**
+   * Reads message results into the given list, handing a copy of everything read so far to
+   * onChunk after every {@link #MESSAGE_CHUNK_SIZE} results.
+   *
+   * @return False if a newer search was started before this one finished.
+   */
+  private boolean queryRankedMessages(@NonNull String query, long generation, @NonNull List<MessageResult> results, @NonNull Consumer<List<MessageResult>> onChunk) {
     if (Util.isEmpty(query)) {
-      return Collections.emptyList();
+      return true;
     }
 
-    List<MessageResult> results;
+    MessageModelBuilder builder = new MessageModelBuilder();
+    List<MessageResult> chunk   = new ArrayList<>(MESSAGE_CHUNK_SIZE);
+
     try (Cursor cursor = searchDatabase.queryMessages(query)) {
-      results = readToList(cursor, new MessageModelBuilder());
+      if (cursor == null) {
+        return true;
+      }
+
+      while (cursor.moveToNext()) {
+        chunk.add(builder.build(cursor));
+
+        if (chunk.size() == MESSAGE_CHUNK_SIZE) {
+          if (generation != messageQueryGeneration.get()) {
+            return false;
+          }
+
+          results.addAll(updateMentionDisplayNames(chunk));
+          chunk = new ArrayList<>(MESSAGE_CHUNK_SIZE);
+
+          onChunk.accept(new ArrayList<>(results));
+        }
+      }
     }
 
+    results.addAll(updateMentionDisplayNames(chunk));
+
+    return generation == messageQueryGeneration.get();
+  }
+
+  private @NonNull List<MessageResult> updateMentionDisplayNames(@NonNull List<MessageResult> results) {
     List<Long> messageIds = new LinkedList<>();
     for (MessageResult result : results) {
       if (result.isMms()) {
@@ -418,6 +467,35 @@ public class SearchRepository {
     return combined;
   }
 
+  /**
+   * Adds mention matches after ranked message matches, since they don't have a rank of their own,
+   * skipping any that were already matched.
+   */
+  private static @NonNull List<MessageResult> appendMentions(@NonNull List<MessageResult> messages, @NonNull List<MessageResult> mentionMessages) {
+    Set<Long> includedMmsMessages = new HashSet<>();
+
+    for (MessageResult result : messages) {
+      if (result.isMms()) {
+        includedMmsMessages.add(result.getMessageId());
+      }
+    }
+
+    List<MessageResult> mentionsOnly = new ArrayList<>(mentionMessages.size());
+    for (MessageResult result : mentionMessages) {
+      if (!includedMmsMessages.contains(result.getMessageId())) {
+        mentionsOnly.add(result);
+      }
+    }
+
+    Collections.sort(mentionsOnly, Collections.reverseOrder((left, right) -> Long.compare(left.getReceivedTimestampMs(), right.getReceivedTimestampMs())));
+
+    List<MessageResult> combined = new ArrayList<>(messages.size() + mentionsOnly.size());
+    combined.addAll(messages);
+    combined.addAll(mentionsOnly);
+
+    return combined;
+  }
+
   private static class RecipientModelBuilder implements ModelBuilder<Recipient> {
 
     @Override
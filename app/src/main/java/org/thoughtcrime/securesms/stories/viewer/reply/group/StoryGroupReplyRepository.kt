@@ -36,7 +36,10 @@ class StoryGroupReplyRepository {
           val pagedData: ObservablePagedData<MessageId, ReplyBody> = PagedData.createForObservable(StoryGroupReplyDataSource(parentStoryId), PagingConfig.Builder().build())
           val controller: PagingController<MessageId> = pagedData.controller
 
-          val updateObserver = DatabaseObserver.MessageObserver { controller.onDataItemChanged(it) }
+          val updateObserver = object : DatabaseObserver.MessageObserver {
+            override fun onMessageChanged(messageId: MessageId) = controller.onDataItemChanged(messageId)
+            override fun onMessagesChanged(messageIds: Set<MessageId>) = controller.onDataItemsChanged(messageIds)
+          }
           val insertObserver = DatabaseObserver.MessageObserver { controller.onDataItemInserted(it, PagingController.POSITION_END) }
           val conversationObserver = DatabaseObserver.Observer { controller.onDataInvalidated() }
 
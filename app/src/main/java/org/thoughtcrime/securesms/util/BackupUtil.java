@@ -17,6 +17,7 @@ import org.signal.core.util.logging.Log;
 import org.signal.libsignal.protocol.util.ByteUtil;
 import org.thoughtcrime.securesms.BuildConfig;
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.BackupChain;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.dependencies.ApplicationDependencies;
@@ -31,6 +32,7 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.Set;
 
 public class BackupUtil {
 
@@ -95,9 +97,20 @@ public class BackupUtil {
 
     try {
       List<BackupInfo> backups = getAllBackupsNewestFirst();
+      List<Uri>        uris    = new ArrayList<>(backups.size());
+
+      for (BackupInfo backup : backups) {
+        uris.add(backup.getUri());
+      }
+
+      Set<Uri> required = BackupChain.withAncestors(ApplicationDependencies.getApplication(), uris.subList(0, Math.min(maxFiles, uris.size())), uris);
 
       for (int i = maxFiles; i < backups.size(); i++) {
-        backups.get(i).delete();
+        if (required.contains(backups.get(i).getUri())) {
+          Log.i(TAG, "Keeping an older backup that a newer backup is based on.");
+        } else {
+          backups.get(i).delete();
+        }
       }
     } catch (NoExternalStorageException e) {
       Log.w(TAG, e);
@@ -108,6 +121,7 @@ public class BackupUtil {
     BackupPassphrase.set(context, null);
     SignalStore.settings().setBackupEnabled(false);
     BackupUtil.deleteAllBackups();
+    BackupChain.deleteManifest(context);
 
     if (BackupUtil.isUserSelectionRequired(context)) {
       Uri backupLocationUri = SignalStore.settings().getSignalBackupDirectory();
@@ -129,7 +143,7 @@ public class BackupUtil {
     }
   }
 
-  private static List<BackupInfo> getAllBackupsNewestFirst() throws NoExternalStorageException {
+  public static List<BackupInfo> getAllBackupsNewestFirst() throws NoExternalStorageException {
     if (isUserSelectionRequired(ApplicationDependencies.getApplication())) {
       return getAllBackupsNewestFirstApi29();
     } else {
@@ -190,9 +204,20 @@ public class BackupUtil {
   }
 
   private static List<BackupInfo> getAllBackupsNewestFirstLegacy() throws NoExternalStorageException {
-    File             backupDirectory = StorageUtil.getOrCreateBackupDirectory();
-    File[]           files           = backupDirectory.listFiles();
-    List<BackupInfo> backups         = new ArrayList<>(files.length);
+    return getAllBackupsNewestFirst(StorageUtil.getOrCreateBackupDirectory());
+  }
+
+  /**
+   * @return The backups in the given directory, which doesn't have to be the backup directory.
+   */
+  public static @NonNull List<BackupInfo> getAllBackupsNewestFirst(@NonNull File directory) {
+    File[] files = directory.listFiles();
+
+    if (files == null) {
+      return Collections.emptyList();
+    }
+
+    List<BackupInfo> backups = new ArrayList<>(files.length);
 
     for (File file : files) {
       if (file.isFile() && file.getAbsolutePath().endsWith(".backup")) {
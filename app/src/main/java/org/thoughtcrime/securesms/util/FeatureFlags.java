@@ -104,6 +104,7 @@ public final class FeatureFlags {
   private static final String CHAT_FILTERS                      = "android.chat.filters.3";
   private static final String PAYPAL_ONE_TIME_DONATIONS         = "android.oneTimePayPalDonations.2";
   private static final String PAYPAL_RECURRING_DONATIONS        = "android.recurringPayPalDonations.2";
+  private static final String INCREMENTAL_BACKUPS               = "android.incrementalBackups";
 
   /**
    * We will only store remote values for flags in this set. If you want a flag to be controllable
@@ -157,7 +158,8 @@ public final class FeatureFlags {
       CDS_HARD_LIMIT,
       CHAT_FILTERS,
       PAYPAL_ONE_TIME_DONATIONS,
-      PAYPAL_RECURRING_DONATIONS
+      PAYPAL_RECURRING_DONATIONS,
+      INCREMENTAL_BACKUPS
   );
 
   @VisibleForTesting
@@ -527,6 +529,14 @@ public final class FeatureFlags {
     return getBoolean(CHAT_FILTERS, false);
   }
 
+  /**
+   * Whether local backups can be based on the previous backup, instead of always being full backups.
+   * Restoring them is always supported.
+   */
+  public static boolean incrementalBackups() {
+    return getBoolean(INCREMENTAL_BACKUPS, false);
+  }
+
   /** Only for rendering debug info. */
   public static synchronized @NonNull Map<String, Object> getMemoryValues() {
     return new TreeMap<>(REMOTE_VALUES);
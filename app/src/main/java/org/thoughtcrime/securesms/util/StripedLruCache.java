@@ -0,0 +1,353 @@
+package org.thoughtcrime.securesms.util;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe cache that's split into independently-locked stripes, so that lookups for different
+ * keys rarely wait on each other.
+ *
+ * Each stripe is a segmented LRU: new entries start out in a small probationary segment, and are only
+ * moved to the protected segment if they're used again. A burst of entries that are only looked at
+ * once (like scrolling past the members of a large group) will push out other probationary entries,
+ * but not the ones that are used repeatedly.
+ */
+public final class StripedLruCache<K, V> {
+
+  private static final float PROTECTED_RATIO = 0.8f;
+
+  private final Stripe<K, V>[] stripes;
+
+  private final AtomicLong hits       = new AtomicLong();
+  private final AtomicLong misses     = new AtomicLong();
+  private final AtomicLong evictions  = new AtomicLong();
+  private final AtomicLong contention = new AtomicLong();
+
+  /**
+   * @param maxSize     The maximum number of entries, across all stripes.
+   * @param stripeCount The number of stripes. Rounded up to a power of two.
+   */
+  @SuppressWarnings("unchecked")
+  public StripedLruCache(int maxSize, int stripeCount) {
+    int count = 1;
+
+    while (count < stripeCount) {
+      count <<= 1;
+    }
+
+    int stripeMax = Math.max(2, (maxSize + count - 1) / count);
+
+    this.stripes = new Stripe[count];
+
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new Stripe<>(stripeMax, evictions);
+    }
+  }
+
+  /**
+   * @return The value for the key, or null if there isn't one. Counts as a use of the entry.
+   */
+  public @Nullable V get(@NonNull K key) {
+    Stripe<K, V> stripe = stripeFor(key);
+
+    lock(stripe);
+    try {
+      V value = stripe.get(key);
+      (value != null ? hits : misses).incrementAndGet();
+      return value;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * @return The value for the key, or null if there isn't one. Doesn't promote the entry, or count
+   *         towards the stats.
+   */
+  public @Nullable V peek(@NonNull K key) {
+    Stripe<K, V> stripe = stripeFor(key);
+
+    lock(stripe);
+    try {
+      return stripe.peek(key);
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * Adds the value if there isn't already one for the key. Doesn't count towards the stats, since
+   * callers will have already looked the key up with {@link #get(Object)} and missed.
+   *
+   * @return The existing value, or null if the given value was added.
+   */
+  public @Nullable V putIfAbsent(@NonNull K key, @NonNull V value) {
+    Stripe<K, V> stripe = stripeFor(key);
+
+    lock(stripe);
+    try {
+      V existing = stripe.get(key);
+
+      if (existing == null) {
+        stripe.put(key, value);
+      }
+
+      return existing;
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  public void put(@NonNull K key, @NonNull V value) {
+    Stripe<K, V> stripe = stripeFor(key);
+
+    lock(stripe);
+    try {
+      stripe.remove(key);
+      stripe.put(key, value);
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  /**
+   * Looks up all of the keys, creating values for any that are missing, and only locks each stripe
+   * once.
+   *
+   * @param created Values that had to be created are added to this.
+   * @return The values for each of the keys.
+   */
+  public @NonNull Map<K, V> getOrCreateAll(@NonNull Collection<K> keys, @NonNull Factory<K, V> factory, @NonNull Collection<V> created) {
+    Map<Stripe<K, V>, List<K>> byStripe = new HashMap<>();
+
+    for (K key : keys) {
+      Stripe<K, V> stripe = stripeFor(key);
+      List<K>      list   = byStripe.get(stripe);
+
+      if (list == null) {
+        list = new ArrayList<>();
+        byStripe.put(stripe, list);
+      }
+
+      list.add(key);
+    }
+
+    Map<K, V> results = new HashMap<>(keys.size());
+
+    for (Map.Entry<Stripe<K, V>, List<K>> entry : byStripe.entrySet()) {
+      Stripe<K, V> stripe = entry.getKey();
+
+      lock(stripe);
+      try {
+        for (K key : entry.getValue()) {
+          V value = stripe.get(key);
+
+          if (value == null) {
+            misses.incrementAndGet();
+            value = factory.create(key);
+            stripe.put(key, value);
+            created.add(value);
+          } else {
+            hits.incrementAndGet();
+          }
+
+          results.put(key, value);
+        }
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+
+    return results;
+  }
+
+  public void remove(@NonNull K key) {
+    Stripe<K, V> stripe = stripeFor(key);
+
+    lock(stripe);
+    try {
+      stripe.remove(key);
+    } finally {
+      stripe.lock.unlock();
+    }
+  }
+
+  public void clear() {
+    for (Stripe<K, V> stripe : stripes) {
+      lock(stripe);
+      try {
+        stripe.clear();
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+  }
+
+  public int size() {
+    int size = 0;
+
+    for (Stripe<K, V> stripe : stripes) {
+      lock(stripe);
+      try {
+        size += stripe.size();
+      } finally {
+        stripe.lock.unlock();
+      }
+    }
+
+    return size;
+  }
+
+  public @NonNull Stats getStats() {
+    return new Stats(hits.get(), misses.get(), evictions.get(), contention.get());
+  }
+
+  private @NonNull Stripe<K, V> stripeFor(@NonNull K key) {
+    int hash = key.hashCode();
+    return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+  }
+
+  private void lock(@NonNull Stripe<K, V> stripe) {
+    if (!stripe.lock.tryLock()) {
+      contention.incrementAndGet();
+      stripe.lock.lock();
+    }
+  }
+
+  public interface Factory<K, V> {
+    @NonNull V create(@NonNull K key);
+  }
+
+  public static final class Stats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long contention;
+
+    private Stats(long hits, long misses, long evictions, long contention) {
+      this.hits       = hits;
+      this.misses     = misses;
+      this.evictions  = evictions;
+      this.contention = contention;
+    }
+
+    public long getHits() {
+      return hits;
+    }
+
+    public long getMisses() {
+      return misses;
+    }
+
+    public long getEvictions() {
+      return evictions;
+    }
+
+    /**
+     * @return The number of times a lookup had to wait for another thread to finish with a stripe.
+     */
+    public long getContention() {
+      return contention;
+    }
+
+    public float getHitRate() {
+      long total = hits + misses;
+      return total == 0 ? 0 : (float) hits / total;
+    }
+
+    @Override
+    public @NonNull String toString() {
+      return String.format(Locale.US, "hits: %d, misses: %d, hit rate: %.2f, evictions: %d, contention: %d", hits, misses, getHitRate(), evictions, contention);
+    }
+  }
+
+  /**
+   * Must only be used while holding its lock.
+   *
+   * Both segments are insertion-ordered, and {@link #get(Object)} re-inserts an entry to mark it as
+   * recently used. That keeps {@link #peek(Object)} a plain lookup that can't change eviction order.
+   */
+  private static final class Stripe<K, V> {
+    private final ReentrantLock       lock             = new ReentrantLock();
+    private final LinkedHashMap<K, V> probation        = new LinkedHashMap<>();
+    private final LinkedHashMap<K, V> protectedSegment = new LinkedHashMap<>();
+    private final AtomicLong          evictions;
+    private final int                 maxSize;
+    private final int                 protectedMax;
+
+    Stripe(int maxSize, @NonNull AtomicLong evictions) {
+      this.evictions    = evictions;
+      this.maxSize      = maxSize;
+      this.protectedMax = Math.max(1, (int) (maxSize * PROTECTED_RATIO));
+    }
+
+    @Nullable V get(@NonNull K key) {
+      V value = protectedSegment.remove(key);
+
+      if (value != null) {
+        protectedSegment.put(key, value);
+        return value;
+      }
+
+      value = probation.remove(key);
+
+      if (value != null) {
+        protectedSegment.put(key, value);
+
+        if (protectedSegment.size() > protectedMax) {
+          Iterator<Map.Entry<K, V>> iterator = protectedSegment.entrySet().iterator();
+          Map.Entry<K, V>           eldest   = iterator.next();
+
+          iterator.remove();
+          probation.put(eldest.getKey(), eldest.getValue());
+        }
+      }
+
+      return value;
+    }
+
+    @Nullable V peek(@NonNull K key) {
+      V value = protectedSegment.get(key);
+      return value != null ? value : probation.get(key);
+    }
+
+    void put(@NonNull K key, @NonNull V value) {
+      probation.put(key, value);
+
+      while (size() > maxSize) {
+        LinkedHashMap<K, V>       victims  = probation.isEmpty() ? protectedSegment : probation;
+        Iterator<Map.Entry<K, V>> iterator = victims.entrySet().iterator();
+
+        iterator.next();
+        iterator.remove();
+        evictions.incrementAndGet();
+      }
+    }
+
+    void remove(@NonNull K key) {
+      if (protectedSegment.remove(key) == null) {
+        probation.remove(key);
+      }
+    }
+
+    void clear() {
+      probation.clear();
+      protectedSegment.clear();
+    }
+
+    int size() {
+      return probation.size() + protectedSegment.size();
+    }
+  }
+}
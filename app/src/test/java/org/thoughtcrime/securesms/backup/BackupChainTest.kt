@@ -0,0 +1,110 @@
+package org.thoughtcrime.securesms.backup
+
+import com.google.protobuf.ByteString
+import org.junit.Assert.assertEquals
+import org.junit.Assert.fail
+import org.junit.BeforeClass
+import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.testutil.SystemOutLogger
+import java.io.IOException
+
+class BackupChainTest {
+
+  @Test
+  fun `resolve - a full backup needs nothing else`() {
+    val headers = mapOf(
+      "full" to header("full")
+    )
+
+    assertEquals(listOf("full"), resolve("full", headers))
+  }
+
+  @Test
+  fun `resolve - an incremental backup needs every backup back to the full one, oldest first`() {
+    val headers = mapOf(
+      "third" to header("third", parent = "second"),
+      "unrelated" to header("unrelated"),
+      "full" to header("full"),
+      "second" to header("second", parent = "full")
+    )
+
+    assertEquals(listOf("full", "second", "third"), resolve("third", headers))
+  }
+
+  @Test
+  fun `resolve - a missing backup in the middle of the chain`() {
+    val headers = mapOf(
+      "third" to header("third", parent = "second"),
+      "full" to header("full")
+    )
+
+    try {
+      resolve("third", headers)
+      fail("Expected a missing parent")
+    } catch (e: BackupChain.MissingParentException) {
+      // Expected
+    }
+  }
+
+  @Test
+  fun `resolve - a missing backup when there are no other backups`() {
+    try {
+      BackupChain.resolve("second", listOf()) { header("second", parent = "full") }
+      fail("Expected a missing parent")
+    } catch (e: BackupChain.MissingParentException) {
+      // Expected
+    }
+  }
+
+  @Test
+  fun `resolve - candidates that can't be read are skipped`() {
+    val headers = mapOf(
+      "second" to header("second", parent = "full"),
+      "full" to header("full")
+    )
+
+    val chain = BackupChain.resolve("second", listOf("unreadable", "second", "full")) { headers[it] ?: throw IOException("Unreadable") }
+
+    assertEquals(listOf("full", "second"), chain)
+  }
+
+  @Test
+  fun `resolve - a chain with a cycle`() {
+    val headers = mapOf(
+      "a" to header("a", parent = "b"),
+      "b" to header("b", parent = "a")
+    )
+
+    try {
+      resolve("a", headers)
+      fail("Expected a cycle")
+    } catch (e: BackupChain.MissingParentException) {
+      fail("Expected a cycle")
+    } catch (e: IOException) {
+      assertEquals("Backup chain has a cycle!", e.message)
+    }
+  }
+
+  private fun resolve(backup: String, headers: Map<String, BackupProtos.Header>): List<String> {
+    return BackupChain.resolve(backup, headers.keys.toList()) { headers.getValue(it) }
+  }
+
+  private fun header(id: String, parent: String? = null): BackupProtos.Header {
+    val header = BackupProtos.Header.newBuilder().setBackupId(ByteString.copyFromUtf8(id))
+
+    if (parent != null) {
+      header.parentBackupId = ByteString.copyFromUtf8(parent)
+    }
+
+    return header.build()
+  }
+
+  companion object {
+    @BeforeClass
+    @JvmStatic
+    fun setUpClass() {
+      Log.initialize(SystemOutLogger())
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package org.thoughtcrime.securesms.backup
+
+import android.app.Application
+import androidx.test.core.app.ApplicationProvider
+import com.google.protobuf.ByteString
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkStatic
+import io.mockk.unmockkAll
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNull
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.robolectric.RobolectricTestRunner
+import org.robolectric.annotation.Config
+import org.thoughtcrime.securesms.crypto.AttachmentSecret
+import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider
+import org.thoughtcrime.securesms.util.FeatureFlags
+
+@RunWith(RobolectricTestRunner::class)
+@Config(manifest = Config.NONE, application = Application::class)
+class BackupChainTest_manifest {
+
+  private val context: Application = ApplicationProvider.getApplicationContext()
+
+  private val backupId = ByteString.copyFromUtf8("backup")
+  private val hashes = setOf("hash-1", "hash-2", "hash-3")
+
+  @Before
+  fun setUp() {
+    mockkStatic(FeatureFlags::class)
+    mockkStatic(AttachmentSecretProvider::class)
+
+    every { FeatureFlags.incrementalBackups() } returns true
+    every { AttachmentSecretProvider.getInstance(any()) } returns mockk {
+      every { orCreateAttachmentSecret } returns AttachmentSecret(ByteArray(32), ByteArray(32), ByteArray(32))
+    }
+
+    BackupChain.deleteManifest(context)
+  }
+
+  @After
+  fun tearDown() {
+    unmockkAll()
+  }
+
+  @Test
+  fun `readManifest - returns the hashes saved for the same backup`() {
+    BackupChain.saveManifest(context, backupId, hashes)
+
+    assertEquals(hashes, BackupChain.readManifest(context, backupId))
+  }
+
+  @Test
+  fun `readManifest - ignores a manifest saved for a different backup`() {
+    BackupChain.saveManifest(context, ByteString.copyFromUtf8("older"), hashes)
+
+    assertNull(BackupChain.readManifest(context, backupId))
+  }
+
+  @Test
+  fun `readManifest - only the latest manifest is kept`() {
+    BackupChain.saveManifest(context, ByteString.copyFromUtf8("older"), setOf("hash-1"))
+    BackupChain.saveManifest(context, backupId, hashes)
+
+    assertNull(BackupChain.readManifest(context, ByteString.copyFromUtf8("older")))
+    assertEquals(hashes, BackupChain.readManifest(context, backupId))
+  }
+
+  @Test
+  fun `readManifest - nothing after the manifest is deleted`() {
+    BackupChain.saveManifest(context, backupId, hashes)
+    BackupChain.deleteManifest(context)
+
+    assertNull(BackupChain.readManifest(context, backupId))
+  }
+
+  @Test
+  fun `saveManifest - nothing is saved while incremental backups are disabled`() {
+    every { FeatureFlags.incrementalBackups() } returns false
+
+    BackupChain.saveManifest(context, backupId, hashes)
+
+    assertNull(BackupChain.readManifest(context, backupId))
+  }
+}
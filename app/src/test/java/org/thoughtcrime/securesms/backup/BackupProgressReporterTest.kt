@@ -0,0 +1,73 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.Assert.assertEquals
+import org.junit.Test
+
+class BackupProgressReporterTest {
+
+  private var now = 1_000L
+  private val events = mutableListOf<BackupEvent>()
+
+  private fun reporter(estimatedTotalCount: Long = 1000): BackupProgressReporter {
+    return BackupProgressReporter(BackupEvent.Type.PROGRESS, estimatedTotalCount, { now }, { events += it })
+  }
+
+  @Test
+  fun `onProgress - does not post for every item`() {
+    val reporter = reporter()
+
+    for (i in 1..1000L) {
+      reporter.onProgress(i, i * 100)
+    }
+
+    assertEquals(1, events.size)
+  }
+
+  @Test
+  fun `onProgress - posts again once enough time has passed`() {
+    val reporter = reporter()
+
+    for (i in 1..1000L) {
+      now += 10
+      reporter.onProgress(i, i * 100)
+    }
+
+    assertEquals(1000 / 64, events.size)
+  }
+
+  @Test
+  fun `onProgress - checks the clock after a large amount of data`() {
+    val reporter = reporter()
+
+    reporter.onProgress(1, 10 * 1024 * 1024)
+    now += 1000
+    reporter.onProgress(2, 20 * 1024 * 1024)
+
+    assertEquals(2, events.size)
+  }
+
+  @Test
+  fun `postNow - includes rate and time remaining`() {
+    val reporter = reporter(estimatedTotalCount = 100)
+
+    now += 2000
+    reporter.postNow(25, 4000)
+
+    val event = events.single()
+    assertEquals(25, event.count)
+    assertEquals(100, event.estimatedTotalCount)
+    assertEquals(4000, event.bytes)
+    assertEquals(2000, event.bytesPerSecond)
+    assertEquals(6000, event.estimatedTimeRemainingMs)
+  }
+
+  @Test
+  fun `postNow - time remaining is unknown without an estimate`() {
+    val reporter = reporter(estimatedTotalCount = 0)
+
+    now += 2000
+    reporter.postNow(25, 4000)
+
+    assertEquals(-1, events.single().estimatedTimeRemainingMs)
+  }
+}
@@ -0,0 +1,142 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.BeforeClass
+import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.testutil.SystemOutLogger
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import kotlin.experimental.xor
+import kotlin.random.Random
+
+class BackupRecordInputStreamTest {
+
+  private val random = Random(1234)
+
+  /** Covers empty data, a single byte, and data on either side of the verifier's chunk size. */
+  private val attachments = listOf(0, 1, 65_535, 65_536, 65_537, 200_000).map { random.nextBytes(it) }
+
+  @Test
+  fun `verifyAttachmentMac - accepts the same attachments as readAttachmentTo`() {
+    val backup = writeBackup()
+
+    val decrypted = readAll(backup)
+    assertEquals(attachments.size, decrypted.size)
+    attachments.forEachIndexed { i, expected -> assertArrayEquals(expected, decrypted[i]) }
+
+    val stages = List(2) { BackupPipelineStage("verify-$it", 4) }
+
+    try {
+      verifyAll(backup, stages)
+      stages.forEach { it.finish() }
+    } finally {
+      stages.forEach { it.abort() }
+    }
+  }
+
+  @Test
+  fun `verifyAttachmentMac - reports a bad MAC from the stage that checked it`() {
+    val backup = writeBackup(corruptIndex = 3)
+
+    try {
+      readAll(backup)
+      fail("Expected a bad MAC")
+    } catch (e: BackupRecordInputStream.BadMacException) {
+      // Expected, the serial path catches it too
+    }
+
+    val stages = List(2) { BackupPipelineStage("verify-$it", 4) }
+
+    try {
+      verifyAll(backup, stages)
+      stages.forEach { it.finish() }
+      fail("Expected a bad MAC")
+    } catch (e: BackupRecordInputStream.BadMacException) {
+      assertEquals("Bad MAC for attachment 3", e.message)
+    } finally {
+      stages.forEach { it.abort() }
+    }
+
+    assertFalse(hasLiveStageThreads())
+  }
+
+  @Test
+  fun `verifyAttachmentMac - keeps reading the stream in step with a bad MAC`() {
+    val backup = writeBackup(corruptIndex = 0)
+    val inputStream = BackupRecordInputStream(ByteArrayInputStream(backup), PASSPHRASE)
+    val stage = BackupPipelineStage("verify", 4)
+
+    try {
+      val frame = inputStream.readFrame()
+      inputStream.verifyAttachmentMac(frame.attachment.length, stage, "attachment 0")
+
+      // The frame after it still decrypts, so the reader never has to wait on the stage to know where the next frame starts
+      assertTrue(inputStream.readFrame().hasAttachment())
+    } finally {
+      stage.abort()
+    }
+  }
+
+  private fun writeBackup(corruptIndex: Int = -1): ByteArray {
+    val writer = TestBackupWriter(PASSPHRASE)
+    val macOffsets = attachments.mapIndexed { i, data -> writer.writeAttachment(i.toLong(), data) }
+    writer.writeEnd()
+
+    val backup = writer.toByteArray()
+
+    if (corruptIndex >= 0) {
+      backup[macOffsets[corruptIndex]] = backup[macOffsets[corruptIndex]] xor 1
+    }
+
+    return backup
+  }
+
+  private fun readAll(backup: ByteArray): List<ByteArray> {
+    val inputStream = BackupRecordInputStream(ByteArrayInputStream(backup), PASSPHRASE)
+    val decrypted = mutableListOf<ByteArray>()
+
+    var frame = inputStream.readFrame()
+    while (!frame.end) {
+      val output = ByteArrayOutputStream()
+      inputStream.readAttachmentTo(output, frame.attachment.length)
+      decrypted += output.toByteArray()
+
+      frame = inputStream.readFrame()
+    }
+
+    return decrypted
+  }
+
+  @Throws(IOException::class)
+  private fun verifyAll(backup: ByteArray, stages: List<BackupPipelineStage>) {
+    val inputStream = BackupRecordInputStream(ByteArrayInputStream(backup), PASSPHRASE)
+
+    var frame = inputStream.readFrame()
+    while (!frame.end) {
+      val index = frame.attachment.attachmentId.toInt()
+      inputStream.verifyAttachmentMac(frame.attachment.length, stages[index % stages.size], "attachment $index")
+
+      frame = inputStream.readFrame()
+    }
+  }
+
+  private fun hasLiveStageThreads(): Boolean {
+    return Thread.getAllStackTraces().keys.any { it.name.startsWith("signal-backup-verify") && it.isAlive }
+  }
+
+  companion object {
+    private const val PASSPHRASE = "000000000000000000000000000000"
+
+    @BeforeClass
+    @JvmStatic
+    fun setUpClass() {
+      Log.initialize(SystemOutLogger())
+    }
+  }
+}
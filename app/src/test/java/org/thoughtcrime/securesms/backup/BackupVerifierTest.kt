@@ -0,0 +1,112 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.BeforeClass
+import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.testutil.SystemOutLogger
+import java.io.ByteArrayInputStream
+import kotlin.experimental.xor
+import kotlin.random.Random
+
+class BackupVerifierTest {
+
+  private val random = Random(1234)
+
+  @Test
+  fun `verifyFile - valid backup`() {
+    val backup = writeBackup()
+
+    assertTrue(BackupVerifier.verifyFile(ByteArrayInputStream(backup), PASSPHRASE, 13))
+    assertFalse(hasLiveVerifierThreads())
+  }
+
+  @Test
+  fun `verifyFile - one attachment with a bad MAC`() {
+    val backup = writeBackup(corruptIndex = 7)
+
+    assertFalse(BackupVerifier.verifyFile(ByteArrayInputStream(backup), PASSPHRASE, 13))
+    assertFalse(hasLiveVerifierThreads())
+  }
+
+  @Test
+  fun `verifyFile - the last attachment with a bad MAC`() {
+    val backup = writeBackup(corruptIndex = 9)
+
+    assertFalse(BackupVerifier.verifyFile(ByteArrayInputStream(backup), PASSPHRASE, 13))
+    assertFalse(hasLiveVerifierThreads())
+  }
+
+  @Test
+  fun `verifyFile - references to data earlier in the same backup`() {
+    val writer = TestBackupWriter(PASSPHRASE)
+    writer.writeAttachment(1, random.nextBytes(1_000), "hash-1")
+    writer.writeReference(2, "hash-1")
+    writer.writeEnd()
+
+    assertTrue(BackupVerifier.verifyFile(ByteArrayInputStream(writer.toByteArray()), PASSPHRASE, 2))
+  }
+
+  @Test
+  fun `verifyFile - references to data in the backups it's based on`() {
+    val writer = TestBackupWriter(PASSPHRASE)
+    writer.writeReference(1, "hash-1")
+    writer.writeReference(2, "hash-2")
+    writer.writeEnd()
+
+    assertTrue(BackupVerifier.verifyFile(ByteArrayInputStream(writer.toByteArray()), PASSPHRASE, 2, setOf("hash-1", "hash-2")))
+  }
+
+  @Test
+  fun `verifyFile - a reference to data that isn't anywhere`() {
+    val writer = TestBackupWriter(PASSPHRASE)
+    writer.writeAttachment(1, random.nextBytes(1_000), "hash-1")
+    writer.writeReference(2, "hash-2")
+    writer.writeEnd()
+
+    assertFalse(BackupVerifier.verifyFile(ByteArrayInputStream(writer.toByteArray()), PASSPHRASE, 2, setOf("hash-3")))
+    assertFalse(hasLiveVerifierThreads())
+  }
+
+  @Test
+  fun `verifyFile - a reference to data that only comes later in the backup`() {
+    val writer = TestBackupWriter(PASSPHRASE)
+    writer.writeReference(1, "hash-1")
+    writer.writeAttachment(2, random.nextBytes(1_000), "hash-1")
+    writer.writeEnd()
+
+    assertFalse(BackupVerifier.verifyFile(ByteArrayInputStream(writer.toByteArray()), PASSPHRASE, 2))
+  }
+
+  private fun writeBackup(corruptIndex: Int = -1): ByteArray {
+    val writer = TestBackupWriter(PASSPHRASE)
+    val macOffsets = (0 until 10).map { writer.writeAttachment(it.toLong(), random.nextBytes(random.nextInt(150_000))) }
+
+    writer.writeSticker(1, random.nextBytes(10_000))
+    writer.writeAvatar("1", random.nextBytes(10_000))
+    writer.writeEnd()
+
+    val backup = writer.toByteArray()
+
+    if (corruptIndex >= 0) {
+      backup[macOffsets[corruptIndex]] = backup[macOffsets[corruptIndex]] xor 1
+    }
+
+    return backup
+  }
+
+  private fun hasLiveVerifierThreads(): Boolean {
+    return Thread.getAllStackTraces().keys.any { it.name.startsWith("signal-backup-verifier") && it.isAlive }
+  }
+
+  companion object {
+    private const val PASSPHRASE = "000000000000000000000000000000"
+
+    @BeforeClass
+    @JvmStatic
+    fun setUpClass() {
+      Log.initialize(SystemOutLogger())
+    }
+  }
+}
@@ -1,7 +1,16 @@
 package org.thoughtcrime.securesms.backup
 
+import org.junit.Assert.assertArrayEquals
 import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.BeforeClass
 import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.testutil.SystemOutLogger
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import kotlin.random.Random
 
 class FullBackupImporterTest {
 
@@ -159,4 +168,110 @@ class FullBackupImporterTest {
 
     assertEquals(listOf("A", "B", "C", "D"), order)
   }
+
+  @Test
+  fun `isSearchIndexTrigger - search triggers are deferred`() {
+    assertTrue(FullBackupImporter.isSearchIndexTrigger("CREATE TRIGGER mms_ai AFTER INSERT ON message BEGIN INSERT INTO mms_fts(rowid, body, thread_id) VALUES (new._id, new.body, new.thread_id); END"))
+    assertTrue(FullBackupImporter.isSearchIndexTrigger("create trigger mms_ad AFTER DELETE ON message BEGIN INSERT INTO mms_fts(mms_fts, rowid, body, thread_id) VALUES('delete', old._id, old.body, old.thread_id); END"))
+  }
+
+  @Test
+  fun `isSearchIndexTrigger - other statements are not deferred`() {
+    assertFalse(FullBackupImporter.isSearchIndexTrigger("CREATE TRIGGER msl_message_delete AFTER DELETE ON message BEGIN DELETE FROM msl_payload WHERE _id IN (SELECT payload_id FROM msl_message WHERE message_id = old._id); END"))
+    assertFalse(FullBackupImporter.isSearchIndexTrigger("CREATE VIRTUAL TABLE mms_fts USING fts5(body, thread_id UNINDEXED, content=message, content_rowid=_id)"))
+    assertFalse(FullBackupImporter.isSearchIndexTrigger("INSERT INTO message VALUES (?,?,?)"))
+  }
+
+  @Test
+  fun `isAttachmentBlobTrigger - blob triggers are deferred`() {
+    assertTrue(FullBackupImporter.isAttachmentBlobTrigger("CREATE TRIGGER attachment_blob_part_delete AFTER DELETE ON part WHEN old._data IS NOT NULL BEGIN UPDATE attachment_blob SET ref_count = ref_count - (old.quote IS NOT 1) WHERE _data = old._data; END"))
+    assertFalse(FullBackupImporter.isAttachmentBlobTrigger("CREATE TABLE attachment_blob (_data TEXT PRIMARY KEY)"))
+    assertFalse(FullBackupImporter.isAttachmentBlobTrigger("CREATE INDEX attachment_blob_data_hash_index ON attachment_blob (data_hash)"))
+  }
+
+  @Test
+  fun `isIgnoredStatement - secret tables are ignored`() {
+    assertTrue(FullBackupImporter.isIgnoredStatement("CREATE TABLE 'mms_fts_data'(id INTEGER PRIMARY KEY, block BLOB)"))
+    assertTrue(FullBackupImporter.isIgnoredStatement("CREATE TABLE sqlite_sequence(name,seq)"))
+    assertFalse(FullBackupImporter.isIgnoredStatement("CREATE TABLE message (_id INTEGER PRIMARY KEY)"))
+    assertFalse(FullBackupImporter.isIgnoredStatement("INSERT INTO message VALUES (?,?,?)"))
+  }
+
+  @Test
+  fun `readReferencedData - reads the data that references are waiting on`() {
+    val random = Random(1234)
+    val first = random.nextBytes(10_000)
+    val second = random.nextBytes(70_000)
+
+    val writer = TestBackupWriter(PASSPHRASE)
+    writer.writeAttachment(1, first, "hash-1")
+    writer.writeReference(2, "hash-2")
+    writer.writeSticker(1, random.nextBytes(1_000))
+    writer.writeAttachment(3, random.nextBytes(1_000))
+    writer.writeAttachment(4, random.nextBytes(1_000), "hash-3")
+    writer.writeAttachment(5, second, "hash-2")
+    writer.writeEnd()
+
+    val pendingReferences = mutableMapOf(
+      "hash-1" to mutableListOf(reference(10, "hash-1")),
+      "hash-2" to mutableListOf(reference(11, "hash-2"), reference(12, "hash-2")),
+      "hash-4" to mutableListOf(reference(13, "hash-4"))
+    )
+
+    val data = mutableMapOf<String, ByteArray>()
+    val restored = mutableMapOf<String, List<Long>>()
+
+    FullBackupImporter.readReferencedData(ByteArrayInputStream(writer.toByteArray()), PASSPHRASE, pendingReferences) { attachment, inputStream, references ->
+      val output = ByteArrayOutputStream()
+      inputStream.readAttachmentTo(output, attachment.length)
+
+      data[attachment.dataHash] = output.toByteArray()
+      restored[attachment.dataHash] = references.map { it.attachmentId }
+    }
+
+    assertArrayEquals(first, data["hash-1"])
+    assertArrayEquals(second, data["hash-2"])
+    assertEquals(mapOf("hash-1" to listOf(10L), "hash-2" to listOf(11L, 12L)), restored)
+    assertEquals(setOf("hash-4"), pendingReferences.keys)
+  }
+
+  @Test
+  fun `readReferencedData - stops reading once nothing is pending`() {
+    val random = Random(1234)
+
+    val writer = TestBackupWriter(PASSPHRASE)
+    writer.writeAttachment(1, random.nextBytes(1_000), "hash-1")
+    writer.writeAttachment(2, random.nextBytes(1_000), "hash-1")
+    writer.writeEnd()
+
+    val pendingReferences = mutableMapOf("hash-1" to mutableListOf(reference(10, "hash-1")))
+    val read = mutableListOf<Long>()
+
+    FullBackupImporter.readReferencedData(ByteArrayInputStream(writer.toByteArray()), PASSPHRASE, pendingReferences) { attachment, inputStream, _ ->
+      inputStream.skipAttachment(attachment.length)
+      read += attachment.attachmentId
+    }
+
+    assertEquals(listOf(1L), read)
+    assertTrue(pendingReferences.isEmpty())
+  }
+
+  private fun reference(id: Long, dataHash: String): BackupProtos.Attachment {
+    return BackupProtos.Attachment.newBuilder()
+      .setRowId(id)
+      .setAttachmentId(id)
+      .setDataHash(dataHash)
+      .setReference(true)
+      .build()
+  }
+
+  companion object {
+    private const val PASSPHRASE = "000000000000000000000000000000"
+
+    @BeforeClass
+    @JvmStatic
+    fun setUpClass() {
+      Log.initialize(SystemOutLogger())
+    }
+  }
 }
@@ -0,0 +1,212 @@
+package org.thoughtcrime.securesms.backup
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Assert.fail
+import org.junit.BeforeClass
+import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.testutil.SystemOutLogger
+import java.io.ByteArrayOutputStream
+import java.io.IOException
+import java.io.InterruptedIOException
+import java.io.OutputStream
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.concurrent.thread
+import kotlin.random.Random
+
+class PipelinedOutputStreamTest {
+
+  @Test
+  fun `finish - writes everything in order`() {
+    val expected = Random(1234).nextBytes(1_000_000)
+    val output = ByteArrayOutputStream()
+    val stage = BackupPipelineStage("test", 4)
+    val stream = PipelinedOutputStream(output, stage, 4)
+
+    var offset = 0
+    var length = 1
+    while (offset < expected.size) {
+      val count = minOf(length, expected.size - offset)
+      stream.write(expected, offset, count)
+      offset += count
+      length = (length * 7) % 100_003 + 1
+    }
+
+    stream.finish()
+
+    assertArrayEquals(expected, output.toByteArray())
+    assertEquals(expected.size.toLong(), stream.bytesWritten)
+  }
+
+  @Test
+  fun `finish - runs tasks from an upstream stage in order`() {
+    val output = ByteArrayOutputStream()
+    val upstream = BackupPipelineStage("upstream", 2)
+    val writer = BackupPipelineStage("writer", 2)
+    val stream = PipelinedOutputStream(output, writer, 2)
+
+    for (i in 0 until 10_000) {
+      upstream.submit { stream.write("$i,".toByteArray()) }
+    }
+
+    upstream.finish()
+    stream.finish()
+
+    assertEquals((0 until 10_000).joinToString(separator = ",", postfix = ","), String(output.toByteArray()))
+  }
+
+  @Test
+  fun `finish - rethrows write failure`() {
+    val failing = object : OutputStream() {
+      override fun write(b: Int) = throw IOException("disk full")
+      override fun write(b: ByteArray, off: Int, len: Int) = throw IOException("disk full")
+    }
+
+    val stage = BackupPipelineStage("test", 2)
+    val stream = PipelinedOutputStream(failing, stage, 2)
+
+    try {
+      stream.write(ByteArray(1024))
+      stream.finish()
+      fail("Expected an exception")
+    } catch (e: IOException) {
+      assertEquals("disk full", e.message)
+    }
+  }
+
+  @Test(timeout = 5000)
+  fun `abort - does not wait for queued tasks`() {
+    val stage = BackupPipelineStage("test", 4)
+
+    stage.submit { Thread.sleep(100) }
+    for (i in 0 until 4) {
+      stage.submit { Thread.sleep(10_000) }
+    }
+
+    stage.abort()
+
+    try {
+      stage.finish()
+      fail("Expected an exception")
+    } catch (e: IOException) {
+      // Expected
+    }
+  }
+
+  @Test(timeout = 5000)
+  fun `abort - discards queued tasks`() {
+    val stage = BackupPipelineStage("test", 4)
+    val started = CountDownLatch(1)
+    val release = CountDownLatch(1)
+    val ran = AtomicInteger()
+    val discarded = AtomicInteger()
+
+    stage.submit {
+      started.countDown()
+      release.await()
+    }
+    started.await()
+
+    for (i in 0 until 4) {
+      stage.submit(object : BackupPipelineStage.Task {
+        override fun run() {
+          ran.incrementAndGet()
+        }
+
+        override fun onDiscard() {
+          discarded.incrementAndGet()
+        }
+      })
+    }
+
+    // Let the running task finish while abort() is waiting on it, after the queue has been drained
+    thread {
+      Thread.sleep(200)
+      release.countDown()
+    }
+    stage.abort()
+
+    assertEquals(0, ran.get())
+    assertEquals(4, discarded.get())
+  }
+
+  @Test(timeout = 5000)
+  fun `abort - interrupts a stage that is stuck submitting downstream`() {
+    val upstream = BackupPipelineStage("upstream", 1)
+    val writer = BackupPipelineStage("writer", 1)
+    val writerStarted = CountDownLatch(1)
+    val releaseWriter = CountDownLatch(1)
+    val upstreamStarted = CountDownLatch(1)
+    val upstreamInterrupted = CountDownLatch(1)
+
+    writer.submit {
+      writerStarted.countDown()
+      releaseWriter.await()
+    }
+    writerStarted.await()
+    writer.submit { }
+
+    upstream.submit {
+      upstreamStarted.countDown()
+      try {
+        writer.submit { }
+      } catch (e: InterruptedIOException) {
+        upstreamInterrupted.countDown()
+        throw e
+      }
+    }
+    upstreamStarted.await()
+
+    upstream.abort(100)
+
+    assertTrue(upstreamInterrupted.await(1, TimeUnit.SECONDS))
+
+    releaseWriter.countDown()
+    writer.abort()
+  }
+
+  @Test(timeout = 5000)
+  fun `finish - discards tasks after a failure`() {
+    val stage = BackupPipelineStage("test", 4)
+    val release = CountDownLatch(1)
+    val discarded = AtomicInteger()
+
+    stage.submit {
+      release.await()
+      throw IOException("failed")
+    }
+
+    for (i in 0 until 3) {
+      stage.submit(object : BackupPipelineStage.Task {
+        override fun run() = Unit
+
+        override fun onDiscard() {
+          discarded.incrementAndGet()
+        }
+      })
+    }
+
+    release.countDown()
+
+    try {
+      stage.finish()
+      fail("Expected an exception")
+    } catch (e: IOException) {
+      assertEquals("failed", e.message)
+    }
+
+    assertEquals(3, discarded.get())
+  }
+
+  companion object {
+    @BeforeClass
+    @JvmStatic
+    fun setUpClass() {
+      Log.initialize(SystemOutLogger())
+    }
+  }
+}
@@ -0,0 +1,133 @@
+package org.thoughtcrime.securesms.backup
+
+import com.google.protobuf.ByteString
+import org.signal.core.util.Conversions
+import org.signal.libsignal.protocol.kdf.HKDF
+import java.io.ByteArrayOutputStream
+import javax.crypto.Cipher
+import javax.crypto.Mac
+import javax.crypto.spec.IvParameterSpec
+import javax.crypto.spec.SecretKeySpec
+import kotlin.random.Random
+
+/**
+ * Writes a backup in the same format as [FullBackupExporter], but on the calling thread and into memory, so that tests can build exactly the
+ * backup they need and then tamper with it.
+ */
+class TestBackupWriter(passphrase: String, random: Random = Random(1234)) {
+
+  private val output = ByteArrayOutputStream()
+  private val iv = random.nextBytes(16)
+  private val cipherKey: ByteArray
+  private val macKey: SecretKeySpec
+  private var counter: Int
+
+  init {
+    val salt = random.nextBytes(32)
+    val key = FullBackupBase.BackupStream.getBackupKey(passphrase, salt)
+    val derived = HKDF.deriveSecrets(key, "Backup Export".toByteArray(), 64)
+
+    cipherKey = derived.copyOfRange(0, 32)
+    macKey = SecretKeySpec(derived.copyOfRange(32, 64), "HmacSHA256")
+    counter = Conversions.byteArrayToInt(iv)
+
+    val header = BackupProtos.BackupFrame.newBuilder()
+      .setHeader(
+        BackupProtos.Header.newBuilder()
+          .setIv(ByteString.copyFrom(iv))
+          .setSalt(ByteString.copyFrom(salt))
+      )
+      .build()
+      .toByteArray()
+
+    output.write(Conversions.intToByteArray(header.size))
+    output.write(header)
+  }
+
+  fun writeFrame(frame: BackupProtos.BackupFrame) {
+    val (_, ciphertext) = encrypt(frame.toByteArray())
+    val mac = newMac().doFinal(ciphertext)
+
+    output.write(Conversions.intToByteArray(ciphertext.size + 10))
+    output.write(ciphertext)
+    output.write(mac, 0, 10)
+  }
+
+  /**
+   * @return Where the attachment's MAC starts in [toByteArray].
+   */
+  fun writeAttachment(id: Long, data: ByteArray, dataHash: String? = null): Int {
+    val attachment = BackupProtos.Attachment.newBuilder()
+      .setRowId(id)
+      .setAttachmentId(id)
+      .setLength(data.size)
+
+    if (dataHash != null) {
+      attachment.dataHash = dataHash
+    }
+
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setAttachment(attachment).build())
+
+    return writeData(data)
+  }
+
+  /**
+   * Writes an attachment whose data is in an earlier frame with the same hash, the way incremental backups do.
+   */
+  fun writeReference(id: Long, dataHash: String) {
+    writeFrame(
+      BackupProtos.BackupFrame.newBuilder()
+        .setAttachment(
+          BackupProtos.Attachment.newBuilder()
+            .setRowId(id)
+            .setAttachmentId(id)
+            .setDataHash(dataHash)
+            .setReference(true)
+        )
+        .build()
+    )
+  }
+
+  fun writeSticker(rowId: Long, data: ByteArray) {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setSticker(BackupProtos.Sticker.newBuilder().setRowId(rowId).setLength(data.size)).build())
+    writeData(data)
+  }
+
+  fun writeAvatar(recipientId: String, data: ByteArray) {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setAvatar(BackupProtos.Avatar.newBuilder().setRecipientId(recipientId).setLength(data.size)).build())
+    writeData(data)
+  }
+
+  fun writeEnd() {
+    writeFrame(BackupProtos.BackupFrame.newBuilder().setEnd(true).build())
+  }
+
+  fun toByteArray(): ByteArray = output.toByteArray()
+
+  private fun writeData(data: ByteArray): Int {
+    val (dataIv, ciphertext) = encrypt(data)
+    val mac = newMac().apply {
+      update(dataIv)
+      update(ciphertext)
+    }.doFinal()
+
+    output.write(ciphertext)
+    val macOffset = output.size()
+    output.write(mac, 0, 10)
+
+    return macOffset
+  }
+
+  private fun encrypt(plaintext: ByteArray): Pair<ByteArray, ByteArray> {
+    Conversions.intToByteArray(iv, 0, counter++)
+
+    val cipher = Cipher.getInstance("AES/CTR/NoPadding")
+    cipher.init(Cipher.ENCRYPT_MODE, SecretKeySpec(cipherKey, "AES"), IvParameterSpec(iv))
+
+    return iv.copyOf() to cipher.doFinal(plaintext)
+  }
+
+  private fun newMac(): Mac {
+    return Mac.getInstance("HmacSHA256").apply { init(macKey) }
+  }
+}
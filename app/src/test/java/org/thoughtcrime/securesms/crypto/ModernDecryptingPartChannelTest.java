@@ -0,0 +1,151 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public final class ModernDecryptingPartChannelTest {
+
+  private static final int LENGTH = 300_000;
+
+  private final Random random = new Random(42);
+
+  private AttachmentSecret attachmentSecret;
+  private byte[]           plaintext;
+  private byte[]           keyRandom;
+  private File             inlineFile;
+  private File             externalFile;
+
+  @Before
+  public void setUp() throws Exception {
+    byte[] modernKey = new byte[32];
+    random.nextBytes(modernKey);
+
+    attachmentSecret = new AttachmentSecret(null, null, modernKey);
+    plaintext        = new byte[LENGTH];
+    keyRandom        = new byte[32];
+
+    random.nextBytes(plaintext);
+    random.nextBytes(keyRandom);
+
+    inlineFile   = File.createTempFile("inline", "enc");
+    externalFile = File.createTempFile("external", "enc");
+
+    writeEncrypted(inlineFile, true);
+    writeEncrypted(externalFile, false);
+  }
+
+  @After
+  public void tearDown() {
+    inlineFile.delete();
+    externalFile.delete();
+  }
+
+  @Test
+  public void read_withInlineRandom_matchesPlaintext() throws IOException {
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, inlineFile)) {
+      assertReadsMatch(channel);
+    }
+  }
+
+  @Test
+  public void read_withExternalRandom_matchesPlaintext() throws IOException {
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, keyRandom, externalFile)) {
+      assertReadsMatch(channel);
+    }
+  }
+
+  @Test
+  public void read_matchesDecryptingInputStream() throws IOException {
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, inlineFile)) {
+      for (int i = 0; i < 50; i++) {
+        int    position = random.nextInt(LENGTH);
+        int    length   = Math.min(random.nextInt(10_000) + 1, LENGTH - position);
+        byte[] expected = new byte[length];
+        byte[] actual   = new byte[length];
+
+        try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, inlineFile, position)) {
+          readFully(inputStream, expected);
+        }
+
+        assertEquals(length, channel.read(position, actual, 0, length));
+        assertArrayEquals(expected, actual);
+      }
+    }
+  }
+
+  @Test
+  public void read_acrossTheEnd_returnsWhatIsLeft() throws IOException {
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, inlineFile)) {
+      byte[] buffer = new byte[100];
+
+      assertEquals(40, channel.read(LENGTH - 40, buffer, 0, buffer.length));
+      assertArrayEquals(Arrays.copyOfRange(plaintext, LENGTH - 40, LENGTH), Arrays.copyOf(buffer, 40));
+    }
+  }
+
+  @Test
+  public void read_atTheEnd_returnsMinusOne() throws IOException {
+    try (ModernDecryptingPartChannel channel = ModernDecryptingPartChannel.createFor(attachmentSecret, inlineFile)) {
+      assertEquals(-1, channel.read(LENGTH, new byte[10], 0, 10));
+      assertEquals(-1, channel.read(LENGTH + 100_000, new byte[10], 0, 10));
+    }
+  }
+
+  private void assertReadsMatch(ModernDecryptingPartChannel channel) throws IOException {
+    for (int i = 0; i < 200; i++) {
+      int    position = random.nextInt(LENGTH);
+      int    length   = Math.min(random.nextInt(100_000) + 1, LENGTH - position);
+      int    offset   = random.nextInt(16);
+      byte[] buffer   = new byte[offset + length];
+
+      assertEquals(length, channel.read(position, buffer, offset, length));
+      assertArrayEquals(Arrays.copyOfRange(plaintext, position, position + length), Arrays.copyOfRange(buffer, offset, offset + length));
+    }
+  }
+
+  private void writeEncrypted(File file, boolean inline) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(keyRandom), "AES"), new IvParameterSpec(new byte[16]));
+
+    try (FileOutputStream outputStream = new FileOutputStream(file)) {
+      if (inline) {
+        outputStream.write(keyRandom);
+      }
+
+      outputStream.write(cipher.doFinal(plaintext));
+    }
+  }
+
+  private static void readFully(InputStream inputStream, byte[] buffer) throws IOException {
+    int offset = 0;
+
+    while (offset < buffer.length) {
+      int read = inputStream.read(buffer, offset, buffer.length - offset);
+
+      if (read == -1) {
+        throw new IOException("Prematurely reached end of stream!");
+      }
+
+      offset += read;
+    }
+  }
+}
@@ -0,0 +1,165 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.signal.core.util.logging.Log;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.jobs.FastJobStorage;
+import org.thoughtcrime.securesms.testutil.EmptyLogger;
+import org.thoughtcrime.securesms.util.Debouncer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public final class JobControllerTest {
+
+  private static final int SUBMITTERS         = 4;
+  private static final int RUNNERS            = 4;
+  private static final int JOBS_PER_SUBMITTER = 250;
+  private static final int TOTAL_JOBS         = SUBMITTERS * JOBS_PER_SUBMITTER;
+
+  @BeforeClass
+  public static void init() {
+    Log.initialize(new EmptyLogger());
+  }
+
+  @Test(timeout = 30_000)
+  public void concurrentSubmitAndRun_runsEveryJobOnceAndKeepsQueueOrder() throws InterruptedException {
+    JobController subject = createController();
+    subject.init();
+
+    Map<String, AtomicInteger> runCounts    = new ConcurrentHashMap<>();
+    Map<String, List<String>>  submitOrder  = new ConcurrentHashMap<>();
+    Map<String, List<String>>  runOrder     = new ConcurrentHashMap<>();
+    CountDownLatch             allSubmitted = new CountDownLatch(SUBMITTERS);
+    CountDownLatch             allFinished  = new CountDownLatch(TOTAL_JOBS);
+
+    for (int i = 0; i < RUNNERS; i++) {
+      Thread runner = new Thread(() -> {
+        while (true) {
+          Job    job   = subject.pullNextEligibleJobForExecution(JobPredicate.NONE);
+          String queue = job.getParameters().getQueue();
+
+          runCounts.computeIfAbsent(job.getId(), id -> new AtomicInteger()).incrementAndGet();
+
+          if (queue != null) {
+            List<String> order = runOrder.computeIfAbsent(queue, q -> Collections.synchronizedList(new ArrayList<>()));
+            order.add(job.getId());
+          }
+
+          subject.onSuccess(job, null);
+          subject.onJobFinished(job);
+          allFinished.countDown();
+        }
+      }, "runner-" + i);
+
+      runner.setDaemon(true);
+      runner.start();
+    }
+
+    for (int i = 0; i < SUBMITTERS; i++) {
+      String queue = "queue-" + i;
+
+      new Thread(() -> {
+        List<String> order = new ArrayList<>(JOBS_PER_SUBMITTER / 2);
+
+        for (int j = 0; j < JOBS_PER_SUBMITTER; j++) {
+          // Every other job has no queue, so it can run alongside anything
+          Job job = new TestJob(j % 2 == 0 ? null : queue);
+
+          if (job.getParameters().getQueue() != null) {
+            order.add(job.getId());
+          }
+
+          subject.submitNewJobChain(Collections.singletonList(Collections.singletonList(job)));
+        }
+
+        submitOrder.put(queue, order);
+        allSubmitted.countDown();
+      }, "submitter-" + i).start();
+    }
+
+    assertTrue(allSubmitted.await(10, TimeUnit.SECONDS));
+    assertTrue(allFinished.await(20, TimeUnit.SECONDS));
+
+    assertEquals(TOTAL_JOBS, runCounts.size());
+    for (AtomicInteger count : runCounts.values()) {
+      assertEquals(1, count.get());
+    }
+
+    assertEquals(submitOrder.keySet(), runOrder.keySet());
+    for (Map.Entry<String, List<String>> entry : submitOrder.entrySet()) {
+      assertEquals(entry.getValue(), runOrder.get(entry.getKey()));
+    }
+  }
+
+  private static @NonNull JobController createController() {
+    Map<String, Job.Factory> factories = new HashMap<>();
+    factories.put(TestJob.KEY, new TestJob.Factory());
+
+    return new JobController(mock(Application.class),
+                             new FastJobStorage(mock(JobDatabase.class)),
+                             new JobInstantiator(factories),
+                             new ConstraintInstantiator(Collections.emptyMap()),
+                             new JsonDataSerializer(),
+                             new JobTracker(),
+                             mock(Scheduler.class),
+                             mock(Debouncer.class),
+                             mock(JobController.Callback.class));
+  }
+
+  private static final class TestJob extends Job {
+
+    private static final String KEY = "TestJob";
+
+    private TestJob(String queue) {
+      this(new Parameters.Builder().setQueue(queue).build());
+    }
+
+    private TestJob(@NonNull Parameters parameters) {
+      super(parameters);
+    }
+
+    @Override
+    public @NonNull Data serialize() {
+      return Data.EMPTY;
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public @NonNull Result run() {
+      return Result.success();
+    }
+
+    @Override
+    public void onFailure() {
+    }
+
+    private static final class Factory implements Job.Factory<TestJob> {
+      @Override
+      public @NonNull TestJob create(@NonNull Parameters parameters, @NonNull Data data) {
+        return new TestJob(parameters);
+      }
+    }
+  }
+}
@@ -0,0 +1,120 @@
+package org.thoughtcrime.securesms.jobmanager.impl;
+
+import org.junit.Test;
+import org.signal.core.util.StreamUtil;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.util.Base64;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public final class BinaryDataSerializerTest {
+
+  private static final float FloatDelta = 0.00001f;
+
+  @Test
+  public void serialize_roundTrip_allTypes() {
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+
+    Data input = new Data.Builder()
+                         .putString("s1", "s1 value")
+                         .putString("null", null)
+                         .putString("unicode", "é中😀")
+                         .putStringArray("s_array_1", new String[]{ "a", null, "c" })
+                         .putInt("max", Integer.MAX_VALUE)
+                         .putIntArray("i_array_1", new int[]{ 1, 2, Integer.MIN_VALUE })
+                         .putLong("min", Long.MIN_VALUE)
+                         .putLongArray("l_array_1", new long[]{ 1, Long.MAX_VALUE })
+                         .putFloat("f1", 1.2f)
+                         .putFloatArray("f_array_1", new float[]{ 5.6f, 7.8f })
+                         .putDouble("d1", 10.2)
+                         .putDoubleArray("d_array_1", new double[]{ 50.6, 70.8 })
+                         .putBoolean("b1", true)
+                         .putBooleanArray("b_array_1", new boolean[]{ false, true })
+                         .build();
+
+    String serialized = serializer.serialize(input);
+    Data   output     = serializer.deserialize(serialized);
+
+    assertTrue(BinaryDataSerializer.isBinary(serialized));
+    assertEquals("s1 value", output.getString("s1"));
+    assertNull(output.getString("null"));
+    assertEquals("é中😀", output.getString("unicode"));
+    assertArrayEquals(new String[]{ "a", null, "c" }, output.getStringArray("s_array_1"));
+    assertEquals(Integer.MAX_VALUE, output.getInt("max"));
+    assertArrayEquals(new int[]{ 1, 2, Integer.MIN_VALUE }, output.getIntegerArray("i_array_1"));
+    assertEquals(Long.MIN_VALUE, output.getLong("min"));
+    assertArrayEquals(new long[]{ 1, Long.MAX_VALUE }, output.getLongArray("l_array_1"));
+    assertEquals(1.2f, output.getFloat("f1"), FloatDelta);
+    assertArrayEquals(new float[]{ 5.6f, 7.8f }, output.getFloatArray("f_array_1"), FloatDelta);
+    assertEquals(10.2, output.getDouble("d1"), FloatDelta);
+    assertArrayEquals(new double[]{ 50.6, 70.8 }, output.getDoubleArray("d_array_1"), FloatDelta);
+    assertTrue(output.getBoolean("b1"));
+    assertArrayEquals(new boolean[]{ false, true }, output.getBooleanArray("b_array_1"));
+  }
+
+  @Test
+  public void serialize_blob_storedRawAndRestored() {
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    byte[]               blob       = new byte[3000];
+
+    for (int i = 0; i < blob.length; i++) {
+      blob[i] = (byte) i;
+    }
+
+    Data   input      = new Data.Builder().putBlob("blob", blob).putBlob("null", null).build();
+    String serialized = serializer.serialize(input);
+    Data   output     = serializer.deserialize(serialized);
+
+    assertTrue(BinaryDataSerializer.toBytes(serialized).length < Base64.encodeBytes(blob).length());
+    assertArrayEquals(blob, output.getBlob("blob"));
+    assertTrue(output.hasBlob("null"));
+    assertNull(output.getBlob("null"));
+  }
+
+  @Test
+  public void serialize_base64Text_keptAsText() {
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    String               text       = Base64.encodeBytes(new byte[48]);
+
+    Data output = serializer.deserialize(serializer.serialize(new Data.Builder().putString("s", text).build()));
+
+    assertEquals(text, output.getString("s"));
+  }
+
+  @Test
+  public void getBlob_readsBlobStoredAsString() {
+    BinaryDataSerializer serializer = new BinaryDataSerializer();
+    byte[]               blob       = new byte[]{ 1, 2, 3, 4, 5 };
+
+    Data output = serializer.deserialize(serializer.serialize(new Data.Builder().putBlobAsString("blob", blob).build()));
+
+    assertArrayEquals(blob, output.getBlob("blob"));
+  }
+
+  @Test
+  public void serialize_blob_survivesJson() {
+    JsonDataSerializer serializer = new JsonDataSerializer();
+    byte[]             blob       = new byte[]{ 1, 2, 3, 4, 5 };
+
+    Data output = serializer.deserialize(serializer.serialize(new Data.Builder().putBlob("blob", blob).build()));
+
+    assertArrayEquals(blob, output.getBlob("blob"));
+  }
+
+  @Test
+  public void deserialize_legacyJson() throws IOException {
+    String json = StreamUtil.readFullyAsString(ClassLoader.getSystemClassLoader().getResourceAsStream("data/data_serialized.json"));
+    Data   data = new BinaryDataSerializer().deserialize(json);
+
+    assertFalse(BinaryDataSerializer.isBinary(json));
+    assertEquals("s1 value", data.getString("s1"));
+    assertEquals(Integer.MAX_VALUE, data.getInt("max"));
+    assertArrayEquals(new long[]{ 1, 2, 3, Long.MAX_VALUE, Long.MIN_VALUE }, data.getLongArray("l_array_1"));
+  }
+}
@@ -0,0 +1,75 @@
+package org.thoughtcrime.securesms.jobs
+
+import io.mockk.every
+import io.mockk.mockk
+import io.mockk.mockkObject
+import io.mockk.unmockkObject
+import io.mockk.verify
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.BeforeClass
+import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.AttachmentTable
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.jobmanager.Data
+import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.testutil.SystemOutLogger
+import org.thoughtcrime.securesms.transport.RetryLaterException
+
+class AttachmentGarbageCollectionJobTest {
+
+  private val attachmentTable: AttachmentTable = mockk()
+
+  @Before
+  fun setUp() {
+    mockkObject(SignalDatabase.Companion)
+    every { SignalDatabase.attachments } returns attachmentTable
+    every { attachmentTable.collectTombstones(any(), any()) } returns 0
+  }
+
+  @After
+  fun tearDown() {
+    unmockkObject(SignalDatabase.Companion)
+  }
+
+  @Test
+  fun `run - succeeds when there are no tombstones left`() {
+    every { attachmentTable.hasTombstonesSince(any()) } returns false
+
+    val result = createJob().run()
+
+    assertTrue(result.isSuccess)
+  }
+
+  @Test
+  fun `run - retries when only new tombstones are left`() {
+    every { attachmentTable.hasTombstonesSince(any()) } returns true
+
+    val result = createJob().run()
+
+    assertTrue(result.isRetry)
+    verify { attachmentTable.collectTombstones(any(), any()) }
+  }
+
+  @Test
+  fun `getNextRunAttemptBackoff - waits until new tombstones are old enough`() {
+    val backoff = createJob().getNextRunAttemptBackoff(1, RetryLaterException(AttachmentGarbageCollectionJob.MIN_TOMBSTONE_AGE))
+
+    assertEquals(AttachmentGarbageCollectionJob.MIN_TOMBSTONE_AGE, backoff)
+  }
+
+  private fun createJob(): AttachmentGarbageCollectionJob {
+    return AttachmentGarbageCollectionJob.Factory().create(Job.Parameters.Builder().build(), Data.EMPTY)
+  }
+
+  companion object {
+    @BeforeClass
+    @JvmStatic
+    fun setUpClass() {
+      Log.initialize(SystemOutLogger())
+    }
+  }
+}
@@ -14,6 +14,7 @@ import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
@@ -22,6 +23,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -64,6 +69,17 @@ public class FastJobStorageTest {
     verify(database, times(0)).insertJobs(DataSet1.FULL_SPECS);
   }
 
+  @Test
+  public void memoryOnlyJob_skippedWritesCounted() {
+    FastJobStorage subject = new FastJobStorage(noopDatabase());
+
+    subject.insertJobs(DataSetMemory.FULL_SPECS);
+    subject.updateJobRunningState("id1", true);
+    subject.deleteJob("id1");
+
+    assertEquals(3, subject.getMemoryOnlySkippedWriteCount());
+  }
+
   @Test
   public void insertJobs_dataCanBeFound() {
     FastJobStorage subject = new FastJobStorage(noopDatabase());
@@ -435,6 +451,75 @@ public class FastJobStorageTest {
     assertTrue(jobs.isEmpty());
   }
 
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_sameCreateTimeInQueue_insertionOrderPreserved() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("b", "f1", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("a", "f2", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(noopDatabase());
+    subject.insertJobs(Arrays.asList(fullSpec1, fullSpec2));
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("b", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_nextInQueueEligibleAfterDelete() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 1, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_eligibleAfterDependencyDeleted() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, -1, EMPTY_DATA, null, true, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, -1, EMPTY_DATA, null, false, false),
+                                      Collections.emptyList(),
+                                      Collections.singletonList(new DependencySpec("2", "1", false)));
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_eligibleAfterNoLongerRunning() {
+    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, -1, EMPTY_DATA, null, true, false),
+                                     Collections.emptyList(),
+                                     Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Collections.singletonList(fullSpec)));
+    subject.init();
+    subject.updateJobRunningState("1", false);
+
+    assertEquals(1, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+  }
+
   @Test
   public void deleteJobs_writesToDatabase() {
     JobDatabase    database = fixedDataDatabase(DataSet1.FULL_SPECS);
@@ -587,6 +672,60 @@ public class FastJobStorageTest {
     assertTrue(subject.areQueuesEmpty(setOf("q4", "q5")));
   }
 
+  @Test
+  public void writeBehind_insertJobs_notWrittenUntilFlush() {
+    JobDatabase    database = noopDatabase();
+    List<Runnable> flushes  = new ArrayList<>();
+    FastJobStorage subject  = new FastJobStorage(database, flushes::add, 0);
+
+    subject.insertJobs(DataSet1.FULL_SPECS);
+
+    verify(database, times(0)).insertJobs(any());
+    verify(database, times(0)).writeChanges(any(), any(), any());
+    assertEquals(1, flushes.size());
+
+    subject.flush();
+
+    verify(database).writeChanges(DataSet1.FULL_SPECS, Collections.emptyList(), Collections.emptyList());
+  }
+
+  @Test
+  public void writeBehind_insertThenDelete_neverWritten() {
+    JobDatabase    database = noopDatabase();
+    List<Runnable> flushes  = new ArrayList<>();
+    FastJobStorage subject  = new FastJobStorage(database, flushes::add, 0);
+
+    subject.insertJobs(DataSet1.FULL_SPECS);
+    subject.deleteJobs(Arrays.asList("id1", "id2", "id3"));
+
+    for (Runnable flush : flushes) {
+      flush.run();
+    }
+
+    verify(database, times(0)).writeChanges(any(), any(), any());
+    verify(database, times(0)).deleteJobs(any());
+    assertEquals(3, subject.getCancelledWriteCount());
+  }
+
+  @Test
+  public void writeBehind_updatesAndDeletesOfStoredJobs_coalesced() {
+    JobDatabase    database = fixedDataDatabase(DataSet1.FULL_SPECS);
+    List<Runnable> flushes  = new ArrayList<>();
+    FastJobStorage subject  = new FastJobStorage(database, flushes::add, 0);
+
+    subject.init();
+    subject.updateJobRunningState("id1", true);
+    subject.updateJobRunningState("id2", true);
+    subject.updateJobAfterRetry("id2", false, 1, 10, "a");
+    subject.deleteJob("id1");
+
+    subject.flush();
+
+    verify(database, times(0)).updateJobRunningState(any(), anyBoolean());
+    verify(database, times(0)).updateJobAfterRetry(any(), anyBoolean(), anyInt(), anyLong(), any());
+    verify(database).writeChanges(Collections.emptyList(), Collections.singletonList(subject.getJobSpec("id2")), Collections.singletonList("id1"));
+  }
+
   private JobDatabase noopDatabase() {
     JobDatabase database = mock(JobDatabase.class);
 
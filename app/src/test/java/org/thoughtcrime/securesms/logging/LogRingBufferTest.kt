@@ -0,0 +1,81 @@
+package org.thoughtcrime.securesms.logging
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+
+class LogRingBufferTest {
+
+  @Test
+  fun `entries are read back in order`() {
+    val subject = LogRingBuffer(4)
+
+    subject.add("I", "tag", "one", 1, "main ", null, false)
+    subject.add("W", "tag", "two", 2, "main ", null, true)
+
+    val count = subject.awaitBatch(0)
+
+    assertEquals(2, count)
+    assertEquals("one", subject[0].message)
+    assertEquals("two", subject[1].message)
+    assertEquals("W", subject[1].level)
+    assertTrue(subject[1].keepLonger)
+  }
+
+  @Test
+  fun `when full, new entries are dropped and counted`() {
+    val subject = LogRingBuffer(2)
+
+    assertTrue(subject.add("I", "tag", "one", 1, "main ", null, false))
+    assertTrue(subject.add("I", "tag", "two", 2, "main ", null, false))
+    assertFalse(subject.add("I", "tag", "three", 3, "main ", null, false))
+    assertFalse(subject.add("I", "tag", "four", 4, "main ", null, false))
+
+    assertEquals(2, subject.awaitBatch(0))
+    assertEquals(2L, subject.release(2))
+    assertEquals(2L, subject.totalDropped)
+
+    assertTrue(subject.add("I", "tag", "five", 5, "main ", null, false))
+    assertEquals(1, subject.awaitBatch(0))
+    assertEquals("five", subject[0].message)
+    assertEquals(0L, subject.release(1))
+  }
+
+  @Test
+  fun `slots wrap around after release`() {
+    val subject = LogRingBuffer(3)
+
+    for (i in 0 until 10) {
+      subject.add("I", "tag", "message $i", i.toLong(), "main ", null, false)
+      assertEquals(1, subject.awaitBatch(0))
+      assertEquals("message $i", subject[0].message)
+      subject.release(1)
+    }
+  }
+
+  @Test
+  fun `blockForFlushed waits until entries are persisted`() {
+    val subject = LogRingBuffer(4)
+    subject.add("I", "tag", "one", 1, "main ", null, false)
+
+    val flushed = CountDownLatch(1)
+    Thread {
+      subject.blockForFlushed()
+      flushed.countDown()
+    }.start()
+
+    assertFalse(flushed.await(50, TimeUnit.MILLISECONDS))
+
+    val count = subject.awaitBatch(TimeUnit.SECONDS.toMillis(10))
+    subject.release(count)
+
+    assertFalse(flushed.await(50, TimeUnit.MILLISECONDS))
+
+    subject.markPersisted(count)
+
+    assertTrue(flushed.await(1, TimeUnit.SECONDS))
+  }
+}
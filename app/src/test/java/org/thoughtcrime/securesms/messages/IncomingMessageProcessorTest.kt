@@ -0,0 +1,140 @@
+package org.thoughtcrime.securesms.messages
+
+import io.mockk.Runs
+import io.mockk.every
+import io.mockk.just
+import io.mockk.mockk
+import io.mockk.mockkObject
+import io.mockk.mockkStatic
+import io.mockk.unmockkAll
+import io.mockk.verify
+import org.junit.After
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Before
+import org.junit.BeforeClass
+import org.junit.Test
+import org.signal.core.util.logging.Log
+import org.thoughtcrime.securesms.database.SignalDatabase
+import org.thoughtcrime.securesms.dependencies.ApplicationDependencies
+import org.thoughtcrime.securesms.jobmanager.Job
+import org.thoughtcrime.securesms.jobmanager.JobManager
+import org.thoughtcrime.securesms.jobs.PushDecryptMessageJob
+import org.thoughtcrime.securesms.testutil.SystemOutLogger
+import org.whispersystems.signalservice.api.messages.SignalServiceEnvelope
+
+class IncomingMessageProcessorTest {
+
+  private val jobManager: JobManager = mockk(relaxed = true)
+  private val addedJobs: MutableList<Job> = mutableListOf()
+
+  @Before
+  fun setUp() {
+    mockkStatic(ApplicationDependencies::class)
+    mockkStatic(PushDecryptMessageJob::class)
+    mockkObject(SignalDatabase.Companion)
+
+    every { ApplicationDependencies.getJobManager() } returns jobManager
+    every { jobManager.areQueuesEmpty(any()) } returns true
+    every { jobManager.add(capture(addedJobs)) } just Runs
+    every { SignalDatabase.runInTransaction(any()) } answers { firstArg<Runnable>().run() }
+    every { SignalDatabase.runInSavepoint(any(), any()) } answers { secondArg<Runnable>().run() }
+    every { SignalDatabase.runPostFailedTransaction(any(), any()) } just Runs
+  }
+
+  @After
+  fun tearDown() {
+    unmockkAll()
+  }
+
+  @Test
+  fun `processEnvelopes - decrypts every envelope inline`() {
+    val envelopes = List(4) { mockEnvelope() }
+    val decryptedJobs = List(4) { mockk<Job>() }
+
+    every { PushDecryptMessageJob.decrypt(any(), any(), any()) } answers { listOf(decryptedJobs[envelopes.indexOf(secondArg())]) }
+
+    processEnvelopes(envelopes)
+
+    assertEquals(decryptedJobs, addedJobs)
+    verify(exactly = 1) { SignalDatabase.runInTransaction(any()) }
+    verify(exactly = 4) { SignalDatabase.runInSavepoint(any(), any()) }
+  }
+
+  @Test
+  fun `processEnvelopes - decrypts a batch of one inline`() {
+    val envelope = mockEnvelope()
+    val decryptedJob = mockk<Job>()
+
+    every { PushDecryptMessageJob.decrypt(any(), envelope, any()) } returns listOf(decryptedJob)
+
+    processEnvelopes(listOf(envelope))
+
+    assertEquals(listOf(decryptedJob), addedJobs)
+  }
+
+  @Test
+  fun `processEnvelopes - enqueues everything if the batch fails to commit`() {
+    val envelopes = List(3) { mockEnvelope() }
+
+    every { PushDecryptMessageJob.decrypt(any(), any(), any()) } returns listOf(mockk())
+    every { SignalDatabase.runInTransaction(any()) } answers {
+      firstArg<Runnable>().run()
+      throw IllegalStateException("Failed to commit")
+    }
+
+    processEnvelopes(envelopes)
+
+    assertEquals(3, addedJobs.size)
+    assertTrue(addedJobs.all { it is PushDecryptMessageJob })
+  }
+
+  @Test
+  fun `processEnvelopes - a failure mid-batch does not repeat work for envelopes that were already decrypted`() {
+    val envelopes = List(4) { mockEnvelope() }
+    val decryptedJobs = List(4) { mockk<Job>() }
+
+    every { PushDecryptMessageJob.decrypt(any(), any(), any()) } answers {
+      val index = envelopes.indexOf(secondArg())
+
+      if (index == 2) {
+        throw IllegalStateException("Failed to decrypt")
+      }
+
+      listOf(decryptedJobs[index])
+    }
+
+    processEnvelopes(envelopes)
+
+    verify(exactly = 1) { PushDecryptMessageJob.decrypt(any(), envelopes[0], any()) }
+    verify(exactly = 1) { PushDecryptMessageJob.decrypt(any(), envelopes[1], any()) }
+    verify(exactly = 1) { PushDecryptMessageJob.decrypt(any(), envelopes[2], any()) }
+    verify(exactly = 0) { PushDecryptMessageJob.decrypt(any(), envelopes[3], any()) }
+
+    assertEquals(4, addedJobs.size)
+    assertEquals(listOf(decryptedJobs[0], decryptedJobs[1]), addedJobs.subList(0, 2))
+    assertTrue(addedJobs.subList(2, 4).all { it is PushDecryptMessageJob })
+  }
+
+  private fun processEnvelopes(envelopes: List<SignalServiceEnvelope>) {
+    IncomingMessageProcessor(mockk(relaxed = true)).acquire().use { processor ->
+      processor.processEnvelopes(envelopes)
+    }
+  }
+
+  private fun mockEnvelope(): SignalServiceEnvelope {
+    return mockk(relaxed = true) {
+      every { hasSourceUuid() } returns false
+      every { isReceipt } returns false
+      every { isUnidentifiedSender } returns true
+    }
+  }
+
+  companion object {
+    @BeforeClass
+    @JvmStatic
+    fun setUpClass() {
+      Log.initialize(SystemOutLogger())
+    }
+  }
+}
@@ -258,6 +258,23 @@ public final class RecipientIdCacheTest {
     assertEquals(recipientId1, recipientIdCache.get(sid1, null));
   }
 
+  @Test
+  public void remove_drops_every_lookup_for_the_id() {
+    RecipientId recipientId1 = recipientId();
+    RecipientId recipientId2 = recipientId();
+    ServiceId   sid1         = ServiceId.from(UUID.randomUUID());
+    ServiceId   sid2         = ServiceId.from(UUID.randomUUID());
+
+    recipientIdCache.put(recipient(recipientId1, sid1, "+15551234567"));
+    recipientIdCache.put(recipient(recipientId2, sid2, null));
+
+    recipientIdCache.remove(recipientId1);
+
+    assertNull(recipientIdCache.get(sid1, null));
+    assertNull(recipientIdCache.get(null, "+15551234567"));
+    assertEquals(recipientId2, recipientIdCache.get(sid2, null));
+  }
+
   private static @NonNull RecipientId recipientId() {
     return mock(RecipientId.class);
   }
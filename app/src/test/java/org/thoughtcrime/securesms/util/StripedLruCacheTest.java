@@ -0,0 +1,127 @@
+package org.thoughtcrime.securesms.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public final class StripedLruCacheTest {
+
+  @Test
+  public void putIfAbsent_returnsExistingValue() {
+    StripedLruCache<Integer, String> cache = new StripedLruCache<>(10, 1);
+
+    assertNull(cache.putIfAbsent(1, "a"));
+    assertEquals("a", cache.putIfAbsent(1, "b"));
+    assertEquals("a", cache.get(1));
+  }
+
+  @Test
+  public void put_evictsOnceFull() {
+    StripedLruCache<Integer, String> cache = new StripedLruCache<>(10, 1);
+
+    for (int i = 0; i < 20; i++) {
+      cache.put(i, String.valueOf(i));
+    }
+
+    assertEquals(10, cache.size());
+    assertEquals(10, cache.getStats().getEvictions());
+    assertNull(cache.peek(0));
+    assertNotNull(cache.peek(19));
+  }
+
+  @Test
+  public void put_keepsFrequentlyUsedEntriesWhenScanned() {
+    StripedLruCache<Integer, String> cache = new StripedLruCache<>(10, 1);
+
+    for (int i = 0; i < 5; i++) {
+      cache.put(i, String.valueOf(i));
+      cache.get(i);
+    }
+
+    for (int i = 100; i < 200; i++) {
+      cache.put(i, String.valueOf(i));
+    }
+
+    for (int i = 0; i < 5; i++) {
+      assertNotNull(cache.peek(i));
+    }
+  }
+
+  @Test
+  public void peek_doesNotChangeEvictionOrder() {
+    StripedLruCache<Integer, String> cache = new StripedLruCache<>(4, 1);
+
+    for (int i = 0; i < 3; i++) {
+      cache.put(i, String.valueOf(i));
+      cache.get(i);
+    }
+
+    assertNotNull(cache.peek(0));
+
+    cache.put(3, "3");
+    cache.get(3);
+    cache.put(4, "4");
+
+    assertNull(cache.peek(0));
+    assertNotNull(cache.peek(1));
+    assertNotNull(cache.peek(2));
+    assertNotNull(cache.peek(3));
+    assertNotNull(cache.peek(4));
+  }
+
+  @Test
+  public void getOrCreateAll_createsMissingValues() {
+    StripedLruCache<Integer, String> cache   = new StripedLruCache<>(100, 4);
+    List<String>                     created = new ArrayList<>();
+
+    cache.put(1, "existing");
+
+    Map<Integer, String> results = cache.getOrCreateAll(Arrays.asList(1, 2, 3), key -> "new" + key, created);
+
+    assertEquals(3, results.size());
+    assertEquals("existing", results.get(1));
+    assertEquals("new2", results.get(2));
+    assertEquals(Arrays.asList("new2", "new3"), sorted(created));
+    assertSame(results.get(3), cache.get(3));
+  }
+
+  @Test
+  public void getStats_tracksHitsAndMisses() {
+    StripedLruCache<Integer, String> cache = new StripedLruCache<>(100, 4);
+
+    cache.put(1, "a");
+    cache.get(1);
+    cache.get(1);
+    cache.get(2);
+
+    assertEquals(2, cache.getStats().getHits());
+    assertEquals(1, cache.getStats().getMisses());
+    assertEquals(2f / 3f, cache.getStats().getHitRate(), 0.001f);
+  }
+
+  @Test
+  public void getStats_countsAMissFollowedByPutIfAbsentOnce() {
+    StripedLruCache<Integer, String> cache = new StripedLruCache<>(100, 4);
+
+    cache.get(1);
+    cache.putIfAbsent(1, "a");
+    cache.get(1);
+
+    assertEquals(1, cache.getStats().getHits());
+    assertEquals(1, cache.getStats().getMisses());
+  }
+
+  private static List<String> sorted(List<String> list) {
+    List<String> copy = new ArrayList<>(list);
+    copy.sort(String::compareTo);
+    return copy;
+  }
+}
@@ -13,6 +13,8 @@ import org.whispersystems.signalservice.internal.websocket.WebsocketResponse;
 import org.whispersystems.util.Base64;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 import java.util.concurrent.TimeoutException;
 
@@ -244,18 +246,7 @@ public final class SignalWebSocket {
       WebSocketResponseMessage response = createWebSocketResponse(request);
       try {
         if (isSignalServiceEnvelope(request)) {
-          Optional<String> timestampHeader = findHeader(request);
-          long             timestamp       = 0;
-
-          if (timestampHeader.isPresent()) {
-            try {
-              timestamp = Long.parseLong(timestampHeader.get());
-            } catch (NumberFormatException e) {
-              Log.w(TAG, "Failed to parse " + SERVER_DELIVERED_TIMESTAMP_HEADER);
-            }
-          }
-
-          SignalServiceEnvelope envelope = new SignalServiceEnvelope(request.getBody().toByteArray(), timestamp);
+          SignalServiceEnvelope envelope = toEnvelope(request);
 
           callback.onMessage(envelope);
           return Optional.of(envelope);
@@ -268,6 +259,76 @@ public final class SignalWebSocket {
     }
   }
 
+  /**
+   * <p>
+   * A blocking call that reads a batch of messages off the pipe. It waits for the first request in
+   * the same way as {@link #readOrEmpty(long, MessageReceivedCallback)}, and then takes up to
+   * {@code maxBatchSize - 1} more envelopes that have already been received, without waiting for
+   * any more to arrive.
+   * <p>
+   * The {@link MessageBatchReceivedCallback} is called once with every envelope in the batch, and
+   * only after it returns are the messages acknowledged, all together.
+   * <p>
+   * The same caveat around the empty response applies as with {@link #readOrEmpty(long, MessageReceivedCallback)}.
+   *
+   * @param timeout      The timeout to wait for the first message.
+   * @param maxBatchSize The maximum number of envelopes to read.
+   * @param callback     A callback that will be called before the batch is acknowledged to the server.
+   * @return True if the empty response was hit while reading this batch, otherwise false.
+   */
+  @SuppressWarnings("DuplicateThrows")
+  public boolean readMessageBatch(long timeout, int maxBatchSize, MessageBatchReceivedCallback callback)
+      throws TimeoutException, WebSocketUnavailableException, IOException
+  {
+    List<SignalServiceEnvelope>    envelopes = new ArrayList<>(maxBatchSize);
+    List<WebSocketResponseMessage> responses = new ArrayList<>(maxBatchSize);
+    boolean                        empty     = false;
+
+    try {
+      Optional<WebSocketRequestMessage> request = Optional.of(getWebSocket().readRequest(timeout));
+
+      while (request.isPresent()) {
+        responses.add(createWebSocketResponse(request.get()));
+
+        if (isSignalServiceEnvelope(request.get())) {
+          envelopes.add(toEnvelope(request.get()));
+        } else if (isSocketEmptyRequest(request.get())) {
+          empty = true;
+          break;
+        }
+
+        if (envelopes.size() >= maxBatchSize) {
+          break;
+        }
+
+        request = getWebSocket().readRequestIfAvailable();
+      }
+
+      if (!envelopes.isEmpty()) {
+        callback.onMessageBatch(envelopes);
+      }
+
+      return empty;
+    } finally {
+      getWebSocket().sendResponses(responses);
+    }
+  }
+
+  private static SignalServiceEnvelope toEnvelope(WebSocketRequestMessage request) {
+    Optional<String> timestampHeader = findHeader(request);
+    long             timestamp       = 0;
+
+    if (timestampHeader.isPresent()) {
+      try {
+        timestamp = Long.parseLong(timestampHeader.get());
+      } catch (NumberFormatException e) {
+        Log.w(TAG, "Failed to parse " + SERVER_DELIVERED_TIMESTAMP_HEADER);
+      }
+    }
+
+    return new SignalServiceEnvelope(request.getBody().toByteArray(), timestamp);
+  }
+
   private static boolean isSignalServiceEnvelope(WebSocketRequestMessage message) {
     return "PUT".equals(message.getVerb()) && "/api/v1/message".equals(message.getPath());
   }
@@ -316,4 +377,11 @@ public final class SignalWebSocket {
   public interface MessageReceivedCallback {
     void onMessage(SignalServiceEnvelope envelope);
   }
+
+  /**
+   * For receiving a callback when a batch of messages has been received.
+   */
+  public interface MessageBatchReceivedCallback {
+    void onMessageBatch(List<SignalServiceEnvelope> envelopes);
+  }
 }
@@ -19,17 +19,20 @@ import java.io.IOException;
 import java.net.ProxySelector;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLContext;
@@ -61,9 +64,16 @@ public class WebSocketConnection extends WebSocketListener {
   private static final String TAG                       = WebSocketConnection.class.getSimpleName();
   public  static final int    KEEPALIVE_TIMEOUT_SECONDS = 30;
 
-  private final LinkedList<WebSocketRequestMessage> incomingRequests = new LinkedList<>();
-  private final Map<Long, OutgoingRequest>          outgoingRequests = new HashMap<>();
-  private final Set<Long>                           keepAlives       = new HashSet<>();
+  private static final WebSocketRequestMessage CLOSED = WebSocketRequestMessage.getDefaultInstance();
+
+  private final BlockingQueue<WebSocketRequestMessage> incomingRequests    = new LinkedBlockingQueue<>();
+  private final Map<Long, Long>                        requestReceiveTimes = new ConcurrentHashMap<>();
+  private final Map<Long, OutgoingRequest>             outgoingRequests    = new ConcurrentHashMap<>();
+  private final Set<Long>                              keepAlives          = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger                          maxQueueDepth       = new AtomicInteger();
+  private final AtomicLong                             ackCount            = new AtomicLong();
+  private final AtomicLong                             totalAckLatency     = new AtomicLong();
+  private final AtomicLong                             maxAckLatency       = new AtomicLong();
 
   private final String                                    name;
   private final String                                    wsUri;
@@ -79,7 +89,7 @@ public class WebSocketConnection extends WebSocketListener {
   private final boolean                                   allowStories;
   private final SignalServiceUrl                          serviceUrl;
 
-  private WebSocket client;
+  private volatile WebSocket client;
 
   public WebSocketConnection(String name,
                              SignalServiceConfiguration serviceConfiguration,
@@ -188,33 +198,61 @@ public class WebSocketConnection extends WebSocketListener {
       client.close(1000, "OK");
       client = null;
       webSocketState.onNext(WebSocketConnectionState.DISCONNECTING);
+      logStats();
     }
 
-    notifyAll();
+    incomingRequests.offer(CLOSED);
   }
 
-  public synchronized WebSocketRequestMessage readRequest(long timeoutMillis)
+  /**
+   * Blocks until a request is received from the server. Does not hold the connection's lock while
+   * waiting, so it never holds up OkHttp's reader thread or anyone sending responses.
+   */
+  public WebSocketRequestMessage readRequest(long timeoutMillis)
       throws TimeoutException, IOException
   {
     if (client == null) {
       throw new IOException("Connection closed!");
     }
 
-    long startTime = System.currentTimeMillis();
+    WebSocketRequestMessage request;
 
-    while (client != null && incomingRequests.isEmpty() && elapsedTime(startTime) < timeoutMillis) {
-      Util.wait(this, Math.max(1, timeoutMillis - elapsedTime(startTime)));
+    try {
+      request = incomingRequests.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      throw new IOException(e);
     }
 
-    if (incomingRequests.isEmpty() && client == null) {
+    if (request == CLOSED) {
       throw new IOException("Connection closed!");
-    } else if (incomingRequests.isEmpty()) {
+    } else if (request == null) {
       throw new TimeoutException("Timeout exceeded");
     } else {
-      return incomingRequests.removeFirst();
+      return request;
     }
   }
 
+  /**
+   * Like {@link #readRequest(long)}, but never blocks. Returns {@link Optional#empty()} if nothing
+   * has been received yet.
+   */
+  public Optional<WebSocketRequestMessage> readRequestIfAvailable() throws IOException {
+    WebSocketRequestMessage request = incomingRequests.poll();
+
+    if (request == CLOSED || (request == null && client == null)) {
+      throw new IOException("Connection closed!");
+    }
+
+    return Optional.ofNullable(request);
+  }
+
+  /**
+   * @return The number of requests that have been received but not yet read.
+   */
+  public int getIncomingQueueDepth() {
+    return incomingRequests.size();
+  }
+
   public synchronized Single<WebsocketResponse> sendRequest(WebSocketRequestMessage request) throws IOException {
     if (client == null) {
       throw new IOException("No connection!");
@@ -238,18 +276,36 @@ public class WebSocketConnection extends WebSocketListener {
                  .timeout(10, TimeUnit.SECONDS, Schedulers.io());
   }
 
-  public synchronized void sendResponse(WebSocketResponseMessage response) throws IOException {
+  /**
+   * Sends a response to a request from the server. OkHttp queues the frame for its own writer
+   * thread, so this doesn't need the connection's lock and won't wait on a concurrent read.
+   */
+  public void sendResponse(WebSocketResponseMessage response) throws IOException {
+    sendResponses(Collections.singletonList(response));
+  }
+
+  /**
+   * Sends a group of responses, in order. Each response is still its own frame on the wire, but
+   * they're all queued for writing back-to-back.
+   */
+  public void sendResponses(List<WebSocketResponseMessage> responses) throws IOException {
+    WebSocket client = this.client;
+
     if (client == null) {
       throw new IOException("Connection closed!");
     }
 
-    WebSocketMessage message = WebSocketMessage.newBuilder()
-                                               .setType(WebSocketMessage.Type.RESPONSE)
-                                               .setResponse(response)
-                                               .build();
+    for (WebSocketResponseMessage response : responses) {
+      WebSocketMessage message = WebSocketMessage.newBuilder()
+                                                 .setType(WebSocketMessage.Type.RESPONSE)
+                                                 .setResponse(response)
+                                                 .build();
 
-    if (!client.send(ByteString.of(message.toByteArray()))) {
-      throw new IOException("Write failed!");
+      if (!client.send(ByteString.of(message.toByteArray()))) {
+        throw new IOException("Write failed!");
+      }
+
+      onAcknowledged(response.getId());
     }
   }
 
@@ -282,12 +338,14 @@ public class WebSocketConnection extends WebSocketListener {
   }
 
   @Override
-  public synchronized void onMessage(WebSocket webSocket, ByteString payload) {
+  public void onMessage(WebSocket webSocket, ByteString payload) {
     try {
       WebSocketMessage message = WebSocketMessage.parseFrom(payload.toByteArray());
 
       if (message.getType().getNumber() == WebSocketMessage.Type.REQUEST_VALUE) {
-        incomingRequests.add(message.getRequest());
+        requestReceiveTimes.put(message.getRequest().getId(), System.currentTimeMillis());
+        incomingRequests.offer(message.getRequest());
+        updateMax(maxQueueDepth, incomingRequests.size());
       } else if (message.getType().getNumber() == WebSocketMessage.Type.RESPONSE_VALUE) {
         OutgoingRequest listener = outgoingRequests.remove(message.getResponse().getId());
         if (listener != null) {
@@ -302,8 +360,6 @@ public class WebSocketConnection extends WebSocketListener {
           healthMonitor.onKeepAliveResponse(message.getResponse().getId(), credentialsProvider.isPresent());
         }
       }
-
-      notifyAll();
     } catch (InvalidProtocolBufferException e) {
       warn(e);
     }
@@ -315,8 +371,6 @@ public class WebSocketConnection extends WebSocketListener {
     webSocketState.onNext(WebSocketConnectionState.DISCONNECTED);
 
     cleanupAfterShutdown();
-
-    notifyAll();
   }
 
   @Override
@@ -330,8 +384,6 @@ public class WebSocketConnection extends WebSocketListener {
     }
 
     cleanupAfterShutdown();
-
-    notifyAll();
   }
 
   private void cleanupAfterShutdown() {
@@ -347,6 +399,43 @@ public class WebSocketConnection extends WebSocketListener {
       log("Client not null when closed");
       client.close(1000, "OK");
       client = null;
+      logStats();
+    }
+
+    incomingRequests.offer(CLOSED);
+  }
+
+  private void onAcknowledged(long requestId) {
+    Long receiveTime = requestReceiveTimes.remove(requestId);
+
+    if (receiveTime != null) {
+      long latency = System.currentTimeMillis() - receiveTime;
+
+      ackCount.incrementAndGet();
+      totalAckLatency.addAndGet(latency);
+      updateMax(maxAckLatency, latency);
+    }
+  }
+
+  private void logStats() {
+    long acks = ackCount.get();
+
+    if (acks > 0) {
+      log("Acked " + acks + " requests. Average ack latency: " + (totalAckLatency.get() / acks) + " ms, max: " + maxAckLatency.get() + " ms, max queue depth: " + maxQueueDepth.get());
+    }
+  }
+
+  private static void updateMax(AtomicInteger max, int value) {
+    int current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
+    }
+  }
+
+  private static void updateMax(AtomicLong max, long value) {
+    long current = max.get();
+    while (value > current && !max.compareAndSet(current, value)) {
+      current = max.get();
     }
   }
 
@@ -362,10 +451,6 @@ public class WebSocketConnection extends WebSocketListener {
     webSocket.close(1000, "OK");
   }
 
-  private long elapsedTime(long startTime) {
-    return System.currentTimeMillis() - startTime;
-  }
-
   private Pair<SSLSocketFactory, X509TrustManager> createTlsSocketFactory(TrustStore trustStore) {
     try {
       SSLContext     context       = SSLContext.getInstance("TLS");
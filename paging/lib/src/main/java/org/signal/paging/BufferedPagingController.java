@@ -2,6 +2,9 @@ package org.signal.paging;
 
 import androidx.annotation.NonNull;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
@@ -72,6 +75,17 @@ class BufferedPagingController<Key, Data> implements PagingController<Key> {
     });
   }
 
+  @Override
+  public void onDataItemsChanged(Collection<Key> keys) {
+    List<Key> copy = new ArrayList<>(keys);
+
+    serializationExecutor.execute(() -> {
+      if (activeController != null) {
+        activeController.onDataItemsChanged(copy);
+      }
+    });
+  }
+
   @Override
   public void onDataItemInserted(Key key, int position) {
     serializationExecutor.execute(() -> {
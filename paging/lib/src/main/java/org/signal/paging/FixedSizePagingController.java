@@ -5,8 +5,11 @@ import androidx.annotation.NonNull;
 import org.signal.core.util.concurrent.SignalExecutors;
 import org.signal.core.util.logging.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Executor;
@@ -181,6 +184,68 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
     });
   }
 
+  /**
+   * Same as {@link #onDataItemChanged(Object)}, but every changed item is loaded before a single
+   * updated list is published, rather than publishing (and copying the list) once per item.
+   */
+  @Override
+  public void onDataItemsChanged(Collection<Key> keys) {
+    List<Key> changedKeys = new ArrayList<>(keys);
+
+    if (DEBUG) Log.d(TAG, buildItemsChangedLog(changedKeys, ""));
+
+    FETCH_EXECUTOR.execute(() -> {
+      Map<Integer, Data> changes = new LinkedHashMap<>();
+
+      for (Key key : changedKeys) {
+        Integer position = keyToPosition.get(key);
+
+        if (position == null) {
+          Log.w(TAG, "Notified of key " + key + " but it wasn't in the cache!");
+          continue;
+        }
+
+        if (invalidated) {
+          Log.w(TAG, "Invalidated! Just before batched change was loaded for position " + position);
+          return;
+        }
+
+        synchronized (loadState) {
+          loadState.mark(position);
+        }
+
+        Data item = dataSource.load(key);
+
+        if (item == null) {
+          Log.w(TAG, "Notified of key " + key + " but the loaded item was null!");
+          continue;
+        }
+
+        changes.put(position, item);
+      }
+
+      if (changes.isEmpty()) {
+        return;
+      }
+
+      if (invalidated) {
+        Log.w(TAG, "Invalidated! Just after batched change was loaded for " + changes.size() + " positions");
+        return;
+      }
+
+      List<Data> updatedList = new CompressedList<>(data);
+
+      for (Map.Entry<Integer, Data> change : changes.entrySet()) {
+        updatedList.set(change.getKey(), change.getValue());
+      }
+
+      data = updatedList;
+      dataStream.next(updatedList);
+
+      if (DEBUG) Log.d(TAG, buildItemsChangedLog(changedKeys, "Published updated data for " + changes.size() + " items"));
+    });
+  }
+
   @Override
   public void onDataItemInserted(Key key, int inputPosition) {
     if (DEBUG) Log.d(TAG, buildItemInsertedLog(key, inputPosition, ""));
@@ -252,4 +317,8 @@ class FixedSizePagingController<Key, Data> implements PagingController<Key> {
   private String buildItemChangedLog(Key key, String message) {
     return "[onDataItemChanged(" + key + "), size: " + loadState.size() + "] " + message;
   }
+
+  private String buildItemsChangedLog(List<Key> keys, String message) {
+    return "[onDataItemsChanged(" + keys.size() + " keys), size: " + loadState.size() + "] " + message;
+  }
 }
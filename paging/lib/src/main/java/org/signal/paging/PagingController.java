@@ -1,5 +1,6 @@
 package org.signal.paging;
 
+import java.util.Collection;
 
 public interface PagingController<Key> {
   int POSITION_END = -1;
@@ -7,5 +8,6 @@ public interface PagingController<Key> {
   void onDataNeededAroundIndex(int aroundIndex);
   void onDataInvalidated();
   void onDataItemChanged(Key key);
+  void onDataItemsChanged(Collection<Key> keys);
   void onDataItemInserted(Key key, int position);
 }
@@ -0,0 +1,76 @@
+package org.signal.paging;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FixedSizePagingControllerTest {
+
+  private static final int SIZE = 10;
+
+  @Test
+  public void onDataItemsChanged_publishesOnceWithEveryChange() throws InterruptedException {
+    TestDataSource                    dataSource = new TestDataSource();
+    LinkedBlockingQueue<List<String>> published  = new LinkedBlockingQueue<>();
+    PagingConfig                      config     = new PagingConfig.Builder().setPageSize(SIZE).build();
+
+    FixedSizePagingController<Integer, String> subject = new FixedSizePagingController<>(dataSource, config, published::add, SIZE);
+
+    subject.onDataNeededAroundIndex(0);
+    assertNotNull(published.poll(5, TimeUnit.SECONDS));
+
+    dataSource.version = 1;
+    subject.onDataItemsChanged(Arrays.asList(2, 5, 7));
+
+    List<String> updated = published.poll(5, TimeUnit.SECONDS);
+
+    assertNotNull(updated);
+    assertEquals("0:0", updated.get(0));
+    assertEquals("2:1", updated.get(2));
+    assertEquals("5:1", updated.get(5));
+    assertEquals("7:1", updated.get(7));
+    assertNull(published.poll(200, TimeUnit.MILLISECONDS));
+  }
+
+  private static final class TestDataSource implements PagedDataSource<Integer, String> {
+
+    private volatile int version;
+
+    @Override
+    public int size() {
+      return SIZE;
+    }
+
+    @Override
+    public @NonNull List<String> load(int start, int length, @NonNull CancellationSignal cancellationSignal) {
+      List<String> items = new ArrayList<>(length);
+
+      for (int i = start; i < start + length; i++) {
+        items.add(load(i));
+      }
+
+      return items;
+    }
+
+    @Override
+    public @Nullable String load(Integer key) {
+      return key + ":" + version;
+    }
+
+    @Override
+    public @NonNull Integer getKey(@NonNull String data) {
+      return Integer.parseInt(data.substring(0, data.indexOf(':')));
+    }
+  }
+}